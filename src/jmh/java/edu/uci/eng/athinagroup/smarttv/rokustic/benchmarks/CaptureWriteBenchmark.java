@@ -0,0 +1,178 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.benchmarks;
+
+import edu.uci.eng.athinagroup.smarttv.rokustic.capture.FlowTable;
+import edu.uci.eng.athinagroup.smarttv.rokustic.capture.FlowTruncationPolicy;
+import edu.uci.eng.athinagroup.smarttv.rokustic.capture.PacketRing;
+import edu.uci.eng.athinagroup.smarttv.rokustic.capture.PcapFileWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the capture write path on batches of in-memory packets: the pcap writer on its own, the ring buffer
+ * hand-off followed by the write (i.e. what the capture's writer thread does per batch), the per-packet truncation
+ * decision made on the capture's reader thread, and the per-flow accounting done by the writer thread. Output goes to
+ * a stream that discards everything, so the numbers exclude disk I/O.
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CaptureWriteBenchmark {
+
+    private static final int SNAPSHOT_LENGTH = 65536;
+    private static final int LINKTYPE_ETHERNET = 1;
+
+    /**
+     * Number of packets per batch.
+     */
+    @Param({ "64", "1024" })
+    public int batchSize;
+
+    private byte[][] mPackets;
+    private PcapFileWriter mWriter;
+    private PacketRing mRing;
+    private PacketRing.PacketHandler mWriteHandler;
+    private FlowTruncationPolicy mTruncationPolicy;
+    private FlowTable mFlowTable;
+
+    @Setup
+    public void setUp() throws IOException {
+        mPackets = packets(batchSize);
+        mWriter = new PcapFileWriter(new DiscardingOutputStream(), SNAPSHOT_LENGTH, LINKTYPE_ETHERNET);
+        mRing = new PacketRing(1 << 16, 1 << 25);
+        mWriteHandler = mWriter::write;
+        mTruncationPolicy = new FlowTruncationPolicy();
+        mFlowTable = new FlowTable();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mWriter.close();
+    }
+
+    @Benchmark
+    public long writeBatch() throws IOException {
+        for (byte[] p : mPackets) {
+            mWriter.write(p, 0, p.length, p.length, 1_600_000_000L, 123_456_000);
+        }
+        mWriter.flush();
+        return mWriter.getBytesWritten();
+    }
+
+    @Benchmark
+    public int ringThenWriteBatch() throws Exception {
+        for (byte[] p : mPackets) {
+            mRing.offer(p, p.length, p.length, 1_600_000_000L, 123_456_000);
+        }
+        int written = mRing.drain(mWriteHandler, batchSize);
+        mWriter.flush();
+        return written;
+    }
+
+    @Benchmark
+    public int truncateBatch() {
+        int bytes = 0;
+        for (byte[] p : mPackets) {
+            bytes += mTruncationPolicy.captureLength(p, p.length);
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public int flowTableBatch() {
+        for (byte[] p : mPackets) {
+            mFlowTable.add(p, 0, p.length, p.length, 1_600_000_000L, 123_456_000);
+        }
+        return mFlowTable.size();
+    }
+
+    /**
+     * Build a deterministic mix of Ethernet/IPv4/TCP frames that resembles a streaming app's traffic: mostly
+     * full-sized segments of a few bulk flows, interleaved with small ACKs and handshake segments of short flows.
+     */
+    private static byte[][] packets(int count) {
+        Random rnd = new Random(42);
+        byte[][] packets = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int kind = rnd.nextInt(10);
+            int payload;
+            int flags = 0x10; // ACK
+            int flow;
+            if (kind < 6) {
+                payload = 1460;
+                flow = rnd.nextInt(4);
+            } else if (kind < 9) {
+                payload = 0;
+                flow = rnd.nextInt(4);
+            } else {
+                payload = 0;
+                flags = 0x02; // SYN
+                flow = 4 + rnd.nextInt(1000);
+            }
+            packets[i] = tcpFrame(flow, flags, payload);
+        }
+        return packets;
+    }
+
+    private static byte[] tcpFrame(int flow, int flags, int payloadLength) {
+        byte[] f = new byte[14 + 20 + 20 + payloadLength];
+        // Ethernet: IPv4
+        f[12] = 0x08;
+        // IPv4: version 4, IHL 5, protocol TCP, 10.0.0.2 -> 93.184.x.y
+        f[14] = 0x45;
+        int totalLength = 40 + payloadLength;
+        f[16] = (byte) (totalLength >>> 8);
+        f[17] = (byte) totalLength;
+        f[23] = 6;
+        f[26] = 10;
+        f[29] = 2;
+        f[30] = 93;
+        f[31] = (byte) 184;
+        f[32] = (byte) (flow >>> 8);
+        f[33] = (byte) flow;
+        // TCP: ports 49152+flow -> 443, data offset 5
+        int srcPort = 49152 + (flow & 0x3FFF);
+        f[34] = (byte) (srcPort >>> 8);
+        f[35] = (byte) srcPort;
+        f[36] = 0x01;
+        f[37] = (byte) 0xBB;
+        f[46] = 0x50;
+        f[47] = (byte) flags;
+        return f;
+    }
+
+    private static class DiscardingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+}
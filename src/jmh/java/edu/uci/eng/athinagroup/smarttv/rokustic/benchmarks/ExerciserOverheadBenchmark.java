@@ -0,0 +1,115 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.benchmarks;
+
+import com.vmichalak.protocol.ssdp.Device;
+import edu.uci.eng.athinagroup.smarttv.rokustic.DefaultRokuAppExerciser;
+import edu.uci.eng.athinagroup.smarttv.rokustic.capture.CaptureSession;
+import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model.AppInfo;
+import edu.uci.eng.athinagroup.smarttv.rokustic.plan.ExercisePlanLibrary;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+/**
+ * Measures the fixed, per-app bookkeeping cost of the exercise loop, i.e. everything but the ECP round trips and the
+ * playback windows: building an exerciser for an app, looking up its plan, setting up the step timings and action
+ * timeline, rotating the capture, stepping through the plan, writing the results and completing the run. No requests
+ * are sent: the plan consists of zero-length waits as many as the steps of the default plan, the capture session is
+ * a no-op stand-in that is never opened, and the Roku is a placeholder address.
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExerciserOverheadBenchmark {
+
+    private static final int APP_ID = 12;
+
+    private Device mRoku;
+    private AppInfo mApp;
+    private Path mBaseDir;
+    private ExercisePlanLibrary mPlans;
+    private CaptureSession mCaptureSession;
+    private ScheduledExecutorService mScheduler;
+    private ExecutorService mIoExecutor;
+
+    @Setup
+    public void setUp() throws IOException, ParseException {
+        // TEST-NET-1 address; never contacted.
+        mRoku = new Device("192.0.2.1", "http://192.0.2.1:8060/", "Roku/9.2.0 UPnP/1.0 Roku/9.2.0", "roku:ecp",
+                "uuid:roku:ecp:BENCHMARK0000");
+        mApp = new AppInfo();
+        mApp.setId(APP_ID);
+        mApp.setName("Netflix");
+        mApp.setType("appl");
+        mApp.setVersion("4.2.81179053");
+        mBaseDir = Files.createTempDirectory("rokustic-benchmark");
+        List<String> plan = new ArrayList<>();
+        plan.add("apps " + APP_ID);
+        for (int i = 0; i < ExercisePlanLibrary.builtIn().getDefaultPlan().size(); i++) {
+            plan.add("wait 0ms");
+        }
+        Path planDir = Files.createDirectories(mBaseDir.resolve("plans"));
+        Files.write(planDir.resolve("offline" + ExercisePlanLibrary.PLAN_FILE_EXTENSION), plan,
+                StandardCharsets.UTF_8);
+        mPlans = ExercisePlanLibrary.load(planDir.toFile());
+        mCaptureSession = new CaptureSession("benchmark0") {
+            @Override
+            public CompletableFuture<Instant> rotateAsync(File output) {
+                return CompletableFuture.completedFuture(Instant.now());
+            }
+        };
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        mIoExecutor = Executors.newCachedThreadPool();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mScheduler.shutdownNow();
+        mIoExecutor.shutdownNow();
+        try (Stream<Path> files = Files.walk(mBaseDir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public Optional<Exception> exerciseApp() {
+        DefaultRokuAppExerciser exerciser = new DefaultRokuAppExerciser(mRoku, mApp, mBaseDir.toString());
+        exerciser.setCaptureSession(mCaptureSession);
+        exerciser.setPlan(mPlans.planFor(APP_ID));
+        exerciser.runAsync(mScheduler, mIoExecutor).join();
+        return exerciser.getError();
+    }
+
+}
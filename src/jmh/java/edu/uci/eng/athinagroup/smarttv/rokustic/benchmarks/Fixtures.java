@@ -0,0 +1,49 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Loads the recorded fixtures that the benchmarks run against (see {@code src/jmh/resources/fixtures}), so that no
+ * benchmark needs a Roku or a network interface.
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    static byte[] read(String name) throws IOException {
+        try (InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name)) {
+            if (in == null) {
+                throw new IOException("missing fixture: " + name);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.benchmarks;
+
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.InstalledAppsReader;
+import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model.AppInfo;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the ways of decoding an ECP 'query/apps' response: the Jackson XML mapping that backs
+ * {@code RokuEcpClient.getInstalledApps()} (which first buffers the body into a {@link String}), and the streaming
+ * {@link InstalledAppsReader}, both for full records and for the ID-only fast path.
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InstalledAppsParsingBenchmark {
+
+    /**
+     * ID of an app near the end of the fixture, i.e. (close to) the worst case for a membership check.
+     */
+    private int mLastAppId;
+
+    private byte[] mBody;
+    private XmlMapper mXmlMapper;
+
+    @Setup
+    public void setUp() throws Exception {
+        mBody = Fixtures.read("query-apps-1000.xml");
+        mXmlMapper = new XmlMapper();
+        AppInfo[] apps = mXmlMapper.readValue(mBody, AppInfo[].class);
+        mLastAppId = apps[apps.length - 1].getId();
+    }
+
+    @Benchmark
+    public AppInfo[] jacksonMapping() throws Exception {
+        // Mirrors Unirest's asObject path: body to String, then String to POJOs.
+        String body = new String(mBody, StandardCharsets.UTF_8);
+        return mXmlMapper.readValue(body, AppInfo[].class);
+    }
+
+    @Benchmark
+    public boolean jacksonMembership() throws Exception {
+        for (AppInfo app : jacksonMapping()) {
+            if (app.getId() == mLastAppId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Benchmark
+    public void streamingRecords(Blackhole bh) throws Exception {
+        InstalledAppsReader.readApps(new ByteArrayInputStream(mBody), app -> {
+            bh.consume(app);
+            return true;
+        });
+    }
+
+    @Benchmark
+    public boolean streamingMembership() throws Exception {
+        boolean[] found = { false };
+        InstalledAppsReader.readAppIds(new ByteArrayInputStream(mBody), id -> !(found[0] = id == mLastAppId));
+        return found[0];
+    }
+
+}
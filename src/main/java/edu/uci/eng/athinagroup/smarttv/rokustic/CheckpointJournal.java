@@ -0,0 +1,221 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * <p>
+ *     An append-only journal of per-app progress through a batch: an app was started, its capture file was completely
+ *     written, and it was exercised successfully or failed. Every entry is forced to disk before
+ *     {@link #append(Event, int, String)} returns, so the journal survives a crash or power loss of the machine running
+ *     the batch. On startup, the journal of the previous run(s) is replayed so that apps that were already finished
+ *     can be skipped and only failed or incomplete apps are exercised again.
+ * </p>
+ * <p>
+ *     An app counts as finished when its most recent attempt both succeeded and had its capture file finalized; an app
+ *     that succeeded but whose capture file was still open when the batch died may have a truncated capture, and is
+ *     redone. The journal is a tab-separated text file with one entry per line: time (epoch millis), event, app ID and
+ *     a free-form detail (e.g. the Roku that exercised the app). A torn last line left by a crash is ignored.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class CheckpointJournal implements Closeable {
+
+    /**
+     * Name of the journal file in an output directory.
+     */
+    public static final String DEFAULT_FILENAME = "checkpoint-journal.tsv";
+
+    /**
+     * The events that are journaled for each app.
+     */
+    public enum Event {
+        /**
+         * An attempt to exercise the app started.
+         */
+        STARTED,
+        /**
+         * The capture file of the app was completely written and closed.
+         */
+        CAPTURE_FINALIZED,
+        /**
+         * The app was exercised without errors.
+         */
+        SUCCEEDED,
+        /**
+         * Exercising the app failed.
+         */
+        FAILED
+    }
+
+    private final File mFile;
+    private final FileChannel mChannel;
+
+    /**
+     * State of the most recent attempt of each app, keyed by app ID.
+     */
+    private final Map<Integer, AttemptState> mStates = new HashMap<>();
+
+    private CheckpointJournal(File file, FileChannel channel) {
+        mFile = file;
+        mChannel = channel;
+    }
+
+    /**
+     * Open a journal for appending, replaying its existing entries (if any).
+     *
+     * @param file The journal file. Created if it does not exist.
+     * @return The journal.
+     * @throws IOException if the journal could not be read or opened.
+     */
+    public static CheckpointJournal open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        CheckpointJournal journal = new CheckpointJournal(file, channel);
+        try {
+            journal.replay();
+        } catch (IOException ioe) {
+            channel.close();
+            throw ioe;
+        }
+        return journal;
+    }
+
+    private void replay() throws IOException {
+        byte[] content = Files.readAllBytes(mFile.toPath());
+        String text = new String(content, StandardCharsets.UTF_8);
+        int lastNewline = text.lastIndexOf('\n');
+        // Anything after the last newline is an entry that was being written when the previous run died.
+        for (String line : text.substring(0, lastNewline + 1).split("\n")) {
+            String[] fields = line.split("\t", 4);
+            if (fields.length < 3) {
+                continue;
+            }
+            try {
+                apply(Event.valueOf(fields[1]), Integer.parseInt(fields[2]));
+            } catch (IllegalArgumentException iae) {
+                // Malformed entry (NumberFormatException is an IllegalArgumentException); skip it.
+            }
+        }
+        if (lastNewline != text.length() - 1) {
+            // Terminate the torn entry, so that the next entry starts on a line of its own.
+            mChannel.write(ByteBuffer.wrap(new byte[] { '\n' }));
+        }
+    }
+
+    private void apply(Event event, int appId) {
+        AttemptState state = mStates.computeIfAbsent(appId, id -> new AttemptState());
+        switch (event) {
+            case STARTED:
+                state.mSucceeded = false;
+                state.mCaptureFinalized = false;
+                break;
+            case CAPTURE_FINALIZED:
+                state.mCaptureFinalized = true;
+                break;
+            case SUCCEEDED:
+                state.mSucceeded = true;
+                break;
+            case FAILED:
+                state.mSucceeded = false;
+                break;
+        }
+    }
+
+    /**
+     * Append an entry and force it to disk.
+     *
+     * @param event The event.
+     * @param appId The ID of the app that the event concerns.
+     * @param detail Free-form detail, e.g. the Roku that exercised the app. Tabs and line breaks are replaced.
+     * @throws IOException if the entry could not be written.
+     */
+    public synchronized void append(Event event, int appId, String detail) throws IOException {
+        String line = String.format("%d\t%s\t%d\t%s\n", System.currentTimeMillis(), event, appId,
+                detail == null ? "" : detail.replace('\t', ' ').replace('\n', ' ').replace('\r', ' '));
+        ByteBuffer buf = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        while (buf.hasRemaining()) {
+            mChannel.write(buf);
+        }
+        // Data only (fdatasync); that still persists the file length needed to read the entry back.
+        mChannel.force(false);
+        apply(event, appId);
+    }
+
+    /**
+     * Like {@link #append(Event, int, String)}, but prints a warning instead of throwing if the entry could not be
+     * written. A lost entry does not stop the batch, but means that the app may be redone when the batch is resumed.
+     *
+     * @return {@code true} if the entry was written.
+     */
+    public boolean appendOrWarn(Event event, int appId, String detail) {
+        try {
+            append(event, appId, detail);
+            return true;
+        } catch (IOException ioe) {
+            System.err.printf("WARNING: could not journal %s for app with ID=%d: %s", event, appId, ioe.getMessage());
+            System.err.println();
+            return false;
+        }
+    }
+
+    /**
+     * Determine if an app was finished by a previous (or the current) run.
+     * @param appId The ID of the app.
+     * @return {@code true} if the most recent attempt of the app succeeded and its capture file was finalized.
+     */
+    public synchronized boolean isFinished(int appId) {
+        AttemptState state = mStates.get(appId);
+        return state != null && state.mSucceeded && state.mCaptureFinalized;
+    }
+
+    /**
+     * @return IDs of the apps that are finished, see {@link #isFinished(int)}.
+     */
+    public synchronized Set<Integer> getFinishedAppIds() {
+        Set<Integer> finished = new HashSet<>();
+        for (Map.Entry<Integer, AttemptState> e : mStates.entrySet()) {
+            if (e.getValue().mSucceeded && e.getValue().mCaptureFinalized) {
+                finished.add(e.getKey());
+            }
+        }
+        return finished;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mChannel.close();
+    }
+
+    private static class AttemptState {
+        private boolean mSucceeded;
+        private boolean mCaptureFinalized;
+    }
+
+}
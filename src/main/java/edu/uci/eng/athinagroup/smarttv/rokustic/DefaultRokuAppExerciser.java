@@ -19,28 +19,37 @@ package edu.uci.eng.athinagroup.smarttv.rokustic;
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.exceptions.UnirestException;
 import com.vmichalak.protocol.ssdp.Device;
+import edu.uci.eng.athinagroup.smarttv.rokustic.capture.ActionTimeline;
+import edu.uci.eng.athinagroup.smarttv.rokustic.capture.CaptureSession;
 import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.RokuEcpClient;
+import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.RokuStateWaiter;
 import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model.AppInfo;
-import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model.RokuRemoteKey;
+import edu.uci.eng.athinagroup.smarttv.rokustic.metrics.RunMetrics;
+import edu.uci.eng.athinagroup.smarttv.rokustic.plan.ExercisePlan;
+import edu.uci.eng.athinagroup.smarttv.rokustic.plan.ExercisePlanLibrary;
+import edu.uci.eng.athinagroup.smarttv.rokustic.plan.StepTimings;
 
 import java.io.*;
-import java.time.ZonedDateTime;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.util.Locale;
 import java.util.Optional;
-import java.util.function.BiConsumer;
+import java.util.concurrent.*;
 
 /**
- * Exercises a Roku app by performing a default set of key presses on a virtual Roku remote.
+ * Exercises a Roku app by performing the steps of an {@link ExercisePlan} (by default, a fixed set of key presses on a
+ * virtual Roku remote) while recording the app's traffic. The durations of starting and stopping the capture, of
+ * each type of step, and of the entire run are recorded in {@link RunMetrics}. The time each app launch and key press
+ * was sent and answered is recorded in an {@link ActionTimeline} on the clock of the capture, and written next to the
+ * network trace.
  *
  * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
  */
 public class DefaultRokuAppExerciser implements Runnable {
 
     private final RokuEcpClient mEcpClient;
+    private final RokuStateWaiter mStateWaiter;
     private final AppInfo mApp;
     private final File mBaseDir;
+    private final RunMetrics mMetrics = RunMetrics.get();
 
     /**
      * Name of network interface that is the target of the packet capture.
@@ -50,6 +59,37 @@ public class DefaultRokuAppExerciser implements Runnable {
 
     private final Pcap4jTcpDump mPacketCapture = new Pcap4jTcpDump();
 
+    /**
+     * The plan to exercise the app with, or {@code null} for the built-in default plan.
+     */
+    private volatile ExercisePlan mPlan;
+
+    /**
+     * Timings of the steps of the most recent run, or {@code null} if {@link #run()} has not been invoked (yet).
+     */
+    private volatile StepTimings mStepTimings;
+
+    /**
+     * Timeline of the actions of the most recent run, or {@code null} if {@link #run()} has not been invoked (yet).
+     */
+    private volatile ActionTimeline mActionTimeline;
+
+    /**
+     * A long-lived capture session shared by consecutive exercisers. If set, it is used instead of
+     * {@link #mPacketCapture}.
+     */
+    private volatile CaptureSession mCaptureSession;
+
+    /**
+     * Where errors and step timings are logged, or {@code null} to only print errors.
+     */
+    private volatile RunLog mRunLog;
+
+    /**
+     * The error that caused {@link #run()} to abort, or {@code null} if no error occurred (yet).
+     */
+    private volatile Exception mError;
+
     /**
      * Create a new {@code DefaultRokuAppExerciser} that will exercise the app identified by the provided
      * {@link AppInfo} on the Roku identified by the provided {@link Device}, and that will output data (e.g., error
@@ -60,7 +100,8 @@ public class DefaultRokuAppExerciser implements Runnable {
      * @param baseDir A directory where output is to be written.
      */
     public DefaultRokuAppExerciser(Device roku, AppInfo targetApp, String baseDir) {
-        mEcpClient = new RokuEcpClient(roku);
+        mEcpClient = RokuEcpClient.forDevice(roku);
+        mStateWaiter = new RokuStateWaiter(mEcpClient);
         mApp = targetApp;
         mBaseDir = new File(baseDir);
         // Ensure validity of base dir, creating dir if necessary.
@@ -74,90 +115,75 @@ public class DefaultRokuAppExerciser implements Runnable {
         }
     }
 
+    /**
+     * Exercise the app, and return once the capture has been stopped and the step timings have been written. The
+     * steps are run by {@link #runAsync(ScheduledExecutorService)} on a scheduler thread that is shared by all
+     * exercisers that are run this way; the calling thread merely waits.
+     */
     @Override
-    @SuppressWarnings("Duplicates")
     public void run() {
         try {
-            mPacketCapture.startCapture(mNifName, pcapFilepath().getAbsolutePath());
-            // Wrap status code check in consumer to avoid redoing if-check for all ecp api calls.
-            final int expectedStatusCode = 200;
-            BiConsumer<HttpResponse<?>, Optional<String>> httpLogger = (httpResponse, note) -> {
-                if (httpResponse.getStatus() != expectedStatusCode) {
-                    logHttpResponse(httpResponse, note);
-                }
-            };
-            HttpResponse<?> resp;
-            // Launch the target app.
-            resp = mEcpClient.launchApp(mApp);
-            httpLogger.accept(resp, Optional.of("launch #1."));
-            // Allow the app time to load.
-            Thread.sleep(secondsToMillis(20));
-            // Send "OK" keypress (common that initially selected UI element is the next recommended/featured video)
-            resp = mEcpClient.sendKeypress(RokuRemoteKey.SELECT);
-            httpLogger.accept(resp, Optional.of(RokuRemoteKey.SELECT.name() + " #1"));
-            // Let video play for a couple of minutes
-            Thread.sleep(minutesToMillis(5));
-
-            // Relaunch the app s.t. we can play different content.
-            List<HttpResponse<?>> relaunchRespones = performRelaunchAppControlSequence();
-            relaunchRespones.forEach(r -> httpLogger.accept(r, Optional.of("part of relaunch #1 keypress sequence")));
-            /*
-             * Try using the arrow keys a bit to find a video that is not the default/recommended one.
-             * Note: avoid going (too much) left, as some apps (e.g. YouTube) have a tab-like menu-bar on the left,
-             * and we want to play content, not randomly change settings.
-             */
-            resp = mEcpClient.sendKeypress(RokuRemoteKey.DOWN);
-            httpLogger.accept(resp, Optional.of(RokuRemoteKey.DOWN.name() + " #1"));
-            Thread.sleep(secondsToMillis(1));
-            resp = mEcpClient.sendKeypress(RokuRemoteKey.DOWN);
-            httpLogger.accept(resp, Optional.of(RokuRemoteKey.DOWN.name() + " #2"));
-            Thread.sleep(secondsToMillis(1));
-            resp = mEcpClient.sendKeypress(RokuRemoteKey.RIGHT);
-            httpLogger.accept(resp, Optional.of(RokuRemoteKey.RIGHT.name() + " #1"));
-            Thread.sleep(secondsToMillis(1));
-            resp = mEcpClient.sendKeypress(RokuRemoteKey.RIGHT);
-            httpLogger.accept(resp, Optional.of(RokuRemoteKey.RIGHT.name() + " #2"));
-            Thread.sleep(secondsToMillis(1));
-            // Play whatever video we've ended up at.
-            resp = mEcpClient.sendKeypress(RokuRemoteKey.SELECT);
-            httpLogger.accept(resp, Optional.of(RokuRemoteKey.SELECT.name() + " #2"));
-            // Let video play for a couple of minutes.
-            Thread.sleep(minutesToMillis(5));
-
-            // Relaunch the app s.t. we can play different content.
-            relaunchRespones = performRelaunchAppControlSequence();
-            relaunchRespones.forEach(r -> httpLogger.accept(r, Optional.of("part of relaunch #2 keypress sequence")));
-            // Use the arrow keys to navigate to the thumbnail of a 3rd video.
-            resp = mEcpClient.sendKeypress(RokuRemoteKey.DOWN);
-            httpLogger.accept(resp, Optional.of(RokuRemoteKey.DOWN.name() + " #3"));
-            Thread.sleep(secondsToMillis(1));
-            resp = mEcpClient.sendKeypress(RokuRemoteKey.DOWN);
-            httpLogger.accept(resp, Optional.of(RokuRemoteKey.DOWN.name() + " #4"));
-            Thread.sleep(secondsToMillis(1));
-            resp = mEcpClient.sendKeypress(RokuRemoteKey.SELECT);
-            httpLogger.accept(resp, Optional.of(RokuRemoteKey.SELECT.name() + " #3"));
-            // Let the video play for a couple of minutes.
-            Thread.sleep(minutesToMillis(5));
-            // Quit the app.
-            resp = mEcpClient.sendKeypress(RokuRemoteKey.HOME);
-            httpLogger.accept(resp, Optional.of("Quit (go to Roku home screen)"));
-            // Wait a bit for the Roku to load the device home screen.
-            Thread.sleep(secondsToMillis(10));
-        } catch (Exception e) {
-            // If something fails, we discard the run for the sake of consistency.
-            // Print the stacktrace for immediate feedback.
-            e.printStackTrace();
-            // Dump the error information to a file to make it clear that the experiment must be rerun and to enable
-            // subsequent investigation of the error.
-            logError(e);
-        } finally {
-            // Terminate packet capture.
-            if (mPacketCapture.isStarted()) {
-                mPacketCapture.stopCapture();
+            runAsync(DefaultScheduler.INSTANCE).join();
+        } catch (CompletionException ce) {
+            Throwable cause = ce.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
             }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw ce;
         }
     }
 
+    /**
+     * <p>
+     *     Exercise the app without blocking the calling thread. Each step of the plan is a task on {@code scheduler}:
+     *     requests are sent asynchronously and their responses are handled by the next task, and a {@code WAIT} step,
+     *     each poll of an {@code AWAIT_...} step and each settle time is a delayed task. No thread is therefore held
+     *     while the app is exercised, and a handful of threads can drive the exercisers of an entire fleet. Setting
+     *     up the run, starting and stopping the capture, and writing the step timings and action timeline are done on
+     *     a separate executor for blocking work (shared by all exercisers run with this method), so they never hold up
+     *     the steps of other exercisers.
+     * </p>
+     * <p>
+     *     Errors are reported as for {@link #run()}, i.e. through {@link #getError()}.
+     * </p>
+     *
+     * @param scheduler Runs the steps.
+     * @return A future that completes once the capture has been stopped and the step timings have been written. It
+     *         only completes exceptionally if something other than exercising the app failed, e.g. if an
+     *         {@link Error} was thrown or the capture could not be stopped.
+     */
+    public CompletableFuture<Void> runAsync(ScheduledExecutorService scheduler) {
+        return runAsync(scheduler, DefaultIoExecutor.INSTANCE);
+    }
+
+    /**
+     * Same as {@link #runAsync(ScheduledExecutorService)}, but with the given executor for blocking work.
+     *
+     * @param scheduler Runs the steps.
+     * @param ioExecutor Sets up the run, starts and stops the capture, and writes the results. The returned future is
+     *                   completed on this executor.
+     * @return A future that completes once the capture has been stopped and the step timings have been written.
+     */
+    public CompletableFuture<Void> runAsync(ScheduledExecutorService scheduler, Executor ioExecutor) {
+        Run run = new Run(scheduler, ioExecutor);
+        scheduler.execute(run::start);
+        return run.mDone;
+    }
+
+    /**
+     * Log {@code resp} if it does not have status 200.
+     * @return the status code of {@code resp}.
+     */
+    private int checkStatus(HttpResponse<?> resp, String note) {
+        if (resp.getStatus() != 200) {
+            logHttpResponse(resp, note);
+        }
+        return resp.getStatus();
+    }
+
     /**
      * Set the name of the network interface that should be monitored while the Roku app is being exercised.
      * @param nifName the name of the network interface that should be monitored while the Roku app is being exercised.
@@ -166,33 +192,94 @@ public class DefaultRokuAppExerciser implements Runnable {
         mNifName = nifName;
     }
 
+    /**
+     * Use an already opened, long-lived capture session instead of opening the network interface for this app only.
+     * The session's output is rotated to this app's pcap file when {@link #run()} starts, and is left open when
+     * {@link #run()} returns. The network interface set by {@link #setNifName(String)} is ignored.
+     * @param captureSession the capture session to record the app's traffic with.
+     */
+    public void setCaptureSession(CaptureSession captureSession) {
+        mCaptureSession = captureSession;
+    }
+
+    /**
+     * Log HTTP error responses, the error that aborts {@link #run()} (if any) and the step timings to a run log. If
+     * not set, HTTP errors are only printed, and the error that aborts {@link #run()} is written to an error report
+     * next to the app's pcap file.
+     * @param runLog the run log.
+     */
+    public void setRunLog(RunLog runLog) {
+        mRunLog = runLog;
+    }
+
+    /**
+     * @return The file that the app's traffic is written to.
+     */
+    public File getPcapFile() {
+        return pcapFilepath();
+    }
+
+    /**
+     * Set the plan to exercise the app with. If not set, the built-in default plan is used.
+     * @param plan the exercise plan.
+     */
+    public void setPlan(ExercisePlan plan) {
+        mPlan = plan;
+    }
+
+    /**
+     * Get the timings of the steps of the exercise plan, as recorded by the most recent invocation of {@link #run()}.
+     * The timings are also written to a file next to the app's pcap file.
+     * @return The step timings, or an empty {@link Optional} if {@link #run()} has not been invoked (yet).
+     */
+    public Optional<StepTimings> getStepTimings() {
+        return Optional.ofNullable(mStepTimings);
+    }
+
+    /**
+     * Get the timeline of the app launches and key presses, as recorded by the most recent invocation of
+     * {@link #run()}. The timeline is also written to a file next to the app's pcap file.
+     * @return The action timeline, or an empty {@link Optional} if {@link #run()} has not been invoked (yet).
+     */
+    public Optional<ActionTimeline> getActionTimeline() {
+        return Optional.ofNullable(mActionTimeline);
+    }
+
+    /**
+     * Get the error that caused {@link #run()} to abort before the full sequence of virtual key presses was performed.
+     * @return The error that occurred during {@link #run()}, or an empty {@link Optional} if {@link #run()} completed
+     *         normally (or has not been invoked yet).
+     */
+    public Optional<Exception> getError() {
+        return Optional.ofNullable(mError);
+    }
+
     /**
      * If an error occurs during {@link #run()}, the full sequence of virtual key presses has not been performed, and
      * {@link #mApp} has therefore not been fully exercised. If one exercises many apps in one batch (e.g., over night),
      * merely printing errors to {@code System.err} is an impractical approach as the error output will get mixed with
      * (a lot of) other output and will therefore most likely not be noticed. To enable identification of apps that
-     * needs to be "re-exercised", and to aid debugging, this method prints the error information to a file, which
-     * embeds {@link #mApp}'s ID in its name.
+     * needs to be "re-exercised", and to aid debugging, this method logs the error to the run log, or, if no run log
+     * is set, writes it to the file named by {@link #errLogFilepath()}.
      *
      * @param error The error that occurred during {@link #run()}.
      */
     private void logError(Exception error) {
-        try {
-            BufferedWriter fileWriter = new BufferedWriter(new FileWriter(errLogFilepath()));
-            PrintWriter printWriter = new PrintWriter(fileWriter);
+        RunLog runLog = mRunLog;
+        if (runLog != null) {
+            runLog.exception(mApp.getId(), mEcpClient.getDevice().getIPAddress(), error);
+            return;
+        }
+        try (PrintWriter printWriter = new PrintWriter(new BufferedWriter(new FileWriter(errLogFilepath())))) {
             // Print metadata as header.
-            String header = String.format("Error report for '%s' version '%s' (app id: %d)", mApp.getName(), mApp.getVersion(), mApp.getId());
-            printWriter.println(header);
+            printWriter.printf("Error report for '%s' version '%s' (app id: %d)", mApp.getName(), mApp.getVersion(),
+                    mApp.getId());
+            printWriter.println();
             printWriter.println();
             // Print the exception message and stack trace
             printWriter.println(error.getMessage());
             printWriter.println();
             error.printStackTrace(printWriter);
-            // Flush streams and clean up.
-            printWriter.flush();
-            fileWriter.flush();
-            printWriter.close();
-            fileWriter.close();
         } catch (IOException ioe) {
             // Too bad: error while writing error info.
             // Not too much we can do about this except provide immediate feedback.
@@ -201,101 +288,22 @@ public class DefaultRokuAppExerciser implements Runnable {
     }
 
     /**
-     * Logs an HTTP response by appending it to the file named by {@link #httpErrLogFilepath()}.
+     * Logs an HTTP response to the run log (if set). The response is serialized by the run log's background thread,
+     * so this returns immediately.
      * @param resp The HTTP response to log.
      * @param note A note to be associated with the response.
      */
-    private void logHttpResponse(HttpResponse<?> resp, Optional<String> note) {
-        try {
-            boolean created = httpErrLogFilepath().createNewFile();
-            // Open in append mode as we may call this multiple times (if more than one roku ecp request return an error code)
-            BufferedWriter fileWriter = new BufferedWriter(new FileWriter(httpErrLogFilepath(), true));
-            PrintWriter printWriter = new PrintWriter(fileWriter);
-            // Print a header line if this is the first http error we are writing
-            if (created) {
-                String header = String.format("HTTP error report for '%s' version '%s' (app id: %d)", mApp.getName(), mApp.getVersion(), mApp.getId());
-                printWriter.println(header);
-            }
-            // Blank line between each response.
-            printWriter.println();
-            // Wrap all content for a single response within a set of horizontal lines.
-            printWriter.println("=========================================================");
-            // Print metadata.
-            printWriter.println("Logged: " + ZonedDateTime.now().toString());
-            note.ifPresent(n -> printWriter.println(String.format("Note: %s", n)));
-            // Blank line before response data.
-            printWriter.println();
-            // Write HTTP status line.
-            printWriter.println(String.format("%d %s", resp.getStatus(), resp.getStatusText()));
-            // Write headers.
-            for (Map.Entry<String, List<String>> h : resp.getHeaders().entrySet()) {
-                // Print header name. Don't skip to next line as values are to follow.
-                printWriter.printf("%s:", h.getKey());
-                // Print header value(s)
-                for (int i = 0; i < h.getValue().size(); i++) {
-                    printWriter.printf(" %s", h.getValue().get(i));
-                    if (i < h.getValue().size() - 1) {
-                        // Print value separator for all but the last value.
-                        printWriter.print(",");
-                    }
-                }
-                // Skip line as next header goes on next line.
-                printWriter.println();
-            }
-            // Blank line before message body.
-            printWriter.println();
-            // Next print the message body, treating every data type as a string
-            // (assumes utf-8; may be improved by reading the content type)
-            String encoding = "UTF-8";
-            InputStream msgBodyStream = resp.getRawBody();
-            byte[] buf = new byte[4096];
-            StringBuilder sb = new StringBuilder();
-            int bytesRead;
-            while ((bytesRead = msgBodyStream.read(buf)) != -1) {
-                sb.append(new String(buf, 0, bytesRead, encoding));
-            }
-            printWriter.println("=========================================================");
-            // Flush streams and clean up.
-            msgBodyStream.close();
-            printWriter.flush();
-            fileWriter.flush();
-            printWriter.close();
-            fileWriter.close();
-        } catch (IOException ioe) {
-            // Too bad: error while writing error info.
-            // Not too much we can do about this except provide immediate feedback.
-            ioe.printStackTrace();
+    private void logHttpResponse(HttpResponse<?> resp, String note) {
+        RunLog runLog = mRunLog;
+        if (runLog != null) {
+            runLog.httpError(mApp.getId(), mEcpClient.getDevice().getIPAddress(), note, resp);
+        } else {
+            System.out.printf("WARNING: %s for app with ID=%d: %d %s", note, mApp.getId(), resp.getStatus(),
+                    resp.getStatusText());
+            System.out.println();
         }
     }
 
-    /**
-     * Invoke a sequence of key presses that takes the user to the home screen, and then re-launches {@link #mApp}.
-     *
-     * @return The responses received from the Roku, one for each keypress.
-     * @throws UnirestException if an ECP request fails.
-     * @throws InterruptedException if some naughty thread decides to interrupt the current thread's beauty sleep.
-     */
-    private List<HttpResponse<?>> performRelaunchAppControlSequence() throws UnirestException, InterruptedException {
-        // Bundle responses in list to allow calling code access to them, e.g., for logging.
-        ArrayList<HttpResponse<?>> responses = new ArrayList<>();
-        responses.add(mEcpClient.sendKeypress(RokuRemoteKey.HOME));
-        // Let the homescreen load
-        Thread.sleep(secondsToMillis(10));
-        // Then relaunch the app.
-        responses.add(mEcpClient.launchApp(mApp));
-        // Allow the app time to load.
-        Thread.sleep(secondsToMillis(20));
-        return responses;
-    }
-
-    private long minutesToMillis(long minutes) {
-        return minutes * secondsToMillis(60);
-    }
-
-    private long secondsToMillis(long seconds) {
-        return seconds * 1_000;
-    }
-
     /**
      * Generate a suitable name for the pcap file, i.e., one that embeds {@link #mApp}'s id.
      * The pcap file is stored in the {@link #mBaseDir}. The returned {@link File} instance is set up such that it
@@ -309,17 +317,378 @@ public class DefaultRokuAppExerciser implements Runnable {
     }
 
     /**
-     * Similar to {@link #pcapFilepath()}, but for the error log.
-     * @return a {@link File} representation of the error log file.
+     * Similar to {@link #pcapFilepath()}, but for the error report written if no run log is set.
+     * @return a {@link File} representation of the error report file.
      */
     private File errLogFilepath() {
         String errReportFilename = String.format("app-%d-error-report.txt", mApp.getId());
         return mBaseDir.toPath().resolve(errReportFilename).toFile();
     }
 
-    private File httpErrLogFilepath() {
-        String httpErrReportFilename = String.format("app-%d-http-error-report.txt", mApp.getId());
-        return mBaseDir.toPath().resolve(httpErrReportFilename).toFile();
+    /**
+     * Similar to {@link #pcapFilepath()}, but for the timings of the steps of the exercise plan.
+     * @return a {@link File} representation of the step timings file.
+     */
+    private File stepTimingsFilepath() {
+        String stepTimingsFilename = String.format("app-%d-steps.tsv", mApp.getId());
+        return mBaseDir.toPath().resolve(stepTimingsFilename).toFile();
+    }
+
+    /**
+     * Similar to {@link #pcapFilepath()}, but for the timeline of the app launches and key presses.
+     * @return a {@link File} representation of the action timeline file.
+     */
+    private File actionTimelineFilepath() {
+        String actionsFilename = String.format("app-%d-actions.tsv", mApp.getId());
+        return mBaseDir.toPath().resolve(actionsFilename).toFile();
+    }
+
+    /**
+     * One run of the exercise plan. The run is advanced by a chain of tasks on {@link #mScheduler}, each of which
+     * starts the next task (or request) before it returns, so at most one task of a run is pending at any time.
+     * Blocking work is handed to {@link #mIoExecutor}.
+     */
+    private class Run {
+
+        private final ScheduledExecutorService mScheduler;
+
+        private final Executor mIoExecutor;
+
+        private final CompletableFuture<Void> mDone = new CompletableFuture<>();
+
+        private final long mRunStart = System.currentTimeMillis();
+
+        private ExercisePlan mSteps;
+        private StepTimings mTimings;
+        private ActionTimeline mActions;
+
+        /**
+         * Index of the current step, and the time it started.
+         */
+        private int mStep = 0;
+        private long mStepStart;
+
+        private boolean mFinished = false;
+
+        /**
+         * {@link System#nanoTime()} at which the request of the current step was sent. Set by the thread that sends
+         * the request, which is not necessarily {@link #mScheduler}, as sending may be delayed by rate limiting.
+         */
+        private volatile long mSentNanos;
+
+        private Run(ScheduledExecutorService scheduler, Executor ioExecutor) {
+            mScheduler = scheduler;
+            mIoExecutor = ioExecutor;
+        }
+
+        private void start() {
+            then(onIo(this::prepare).thenCompose(ignored -> startCapture()), ignored -> {
+                mMetrics.recordPhase("capture_start", System.currentTimeMillis() - mRunStart);
+                nextStep();
+            });
+        }
+
+        /**
+         * Look up the plan, and allocate the step timings and the action timeline (which waits for the wall clock to
+         * tick to anchor its clock).
+         */
+        private void prepare() throws IOException {
+            mSteps = mPlan != null ? mPlan : ExercisePlanLibrary.builtIn().getDefaultPlan();
+            mTimings = new StepTimings(mSteps);
+            mStepTimings = mTimings;
+            mActions = new ActionTimeline(mSteps);
+            mActionTimeline = mActions;
+        }
+
+        private CompletableFuture<?> startCapture() {
+            if (mCaptureSession != null) {
+                // Switch the shared session over to this app's file. The file stays open until the next app (or the
+                // owner of the session) rotates it out, so no traffic is lost between apps.
+                return mCaptureSession.rotateAsync(pcapFilepath());
+            }
+            return onIo(() -> mPacketCapture.startCapture(mNifName, pcapFilepath().getAbsolutePath()));
+        }
+
+        /**
+         * Evaluate the condition of the current step, and perform the step if the condition holds. Requests that are
+         * not answered with status 200 are logged, but do not abort the run.
+         */
+        private void nextStep() {
+            if (mStep >= mSteps.size()) {
+                finish(null);
+                return;
+            }
+            mStepStart = System.currentTimeMillis();
+            then(holdsAsync(mSteps.getCondition(mStep)), holds -> {
+                if (holds) {
+                    perform();
+                    return;
+                }
+                // Skip the step along with the rest of the macro (e.g. "relaunch") that it starts.
+                long end = System.currentTimeMillis();
+                int skipTo = mSteps.getSkipTo(mStep);
+                for (; mStep < skipTo; mStep++) {
+                    mTimings.record(mStep, mStepStart, end, StepTimings.SKIPPED);
+                }
+                nextStep();
+            });
+        }
+
+        private void perform() {
+            final int step = mStep;
+            switch (mSteps.getOp(step)) {
+                case LAUNCH:
+                    then(mEcpClient.launchAppAsync(mApp.getId(), sent -> mSentNanos = sent), resp -> {
+                        int outcome = checkStatus(resp, mSteps.getLabel(step));
+                        mActions.record(step, mActions.toMicros(mSentNanos), outcome);
+                        done(outcome);
+                    });
+                    break;
+                case KEY:
+                    then(mEcpClient.sendKeypressAsync(mSteps.getKey(step), sent -> mSentNanos = sent), resp -> {
+                        int outcome = checkStatus(resp, mSteps.getLabel(step));
+                        mActions.record(step, mActions.toMicros(mSentNanos), outcome);
+                        done(outcome);
+                    });
+                    break;
+                case WAIT:
+                    schedule(mSteps.getMillis(step), () -> done(StepTimings.DONE));
+                    break;
+                case AWAIT_APP_LOADED:
+                    then(mStateWaiter.awaitAppInForegroundAsync(mApp.getId(), mSteps.getMillis(step), mScheduler),
+                            this::settle);
+                    break;
+                case AWAIT_HOME_SCREEN:
+                    then(mStateWaiter.awaitHomeScreenAsync(mSteps.getMillis(step), mScheduler), this::settle);
+                    break;
+                case AWAIT_PLAYBACK:
+                    then(mStateWaiter.awaitPlaybackAsync(mSteps.getMillis(step), mScheduler), this::settle);
+                    break;
+                default:
+                    throw new IllegalStateException("unknown step: " + mSteps.getOp(step));
+            }
+        }
+
+        /**
+         * Finish an {@code AWAIT_...} step: if the awaited state was reached, let it settle for the step's settle
+         * time, but never past the step's timeout. The Roku reports an app as active as soon as its splash screen
+         * shows, and the home screen as showing before it responds to key presses.
+         */
+        private void settle(boolean reached) {
+            if (!reached) {
+                done(StepTimings.TIMED_OUT);
+                return;
+            }
+            long remaining = mSteps.getMillis(mStep) - (System.currentTimeMillis() - mStepStart);
+            schedule(Math.max(0, Math.min(mSteps.getSettleMillis(mStep), remaining)), () -> done(StepTimings.DONE));
+        }
+
+        /**
+         * Record the outcome of the current step, and move on to the next step.
+         */
+        private void done(int outcome) {
+            long end = System.currentTimeMillis();
+            mTimings.record(mStep, mStepStart, end, outcome);
+            mMetrics.recordPhase("step_" + mSteps.getOp(mStep).name().toLowerCase(Locale.ROOT), end - mStepStart);
+            mStep++;
+            nextStep();
+        }
+
+        private CompletableFuture<Boolean> holdsAsync(ExercisePlan.Condition condition) {
+            switch (condition) {
+                case ALWAYS:
+                    return CompletableFuture.completedFuture(true);
+                case PLAYING:
+                    return mStateWaiter.isPlayingAsync();
+                case NOT_PLAYING:
+                    return mStateWaiter.isPlayingAsync().thenApply(playing -> !playing);
+                case HOME_SCREEN:
+                    return mStateWaiter.isHomeScreenAsync();
+                case NOT_HOME_SCREEN:
+                    return mStateWaiter.isHomeScreenAsync().thenApply(home -> !home);
+                case APP_ACTIVE:
+                    return mStateWaiter.isAppInForegroundAsync(mApp.getId());
+                case NOT_APP_ACTIVE:
+                    return mStateWaiter.isAppInForegroundAsync(mApp.getId()).thenApply(active -> !active);
+                default:
+                    throw new IllegalStateException("unknown condition: " + condition);
+            }
+        }
+
+        /**
+         * Continue the run with {@code continuation} on {@link #mScheduler} once {@code future} completes, or abort
+         * the run if {@code future} completes exceptionally.
+         */
+        private <T> void then(CompletableFuture<T> future, Continuation<T> continuation) {
+            future.whenCompleteAsync((value, error) -> {
+                if (error != null) {
+                    fail(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+                    return;
+                }
+                try {
+                    continuation.accept(value);
+                } catch (Throwable t) {
+                    fail(t);
+                }
+            }, mScheduler).exceptionally(rejected -> {
+                // The scheduler was shut down before the run finished.
+                fail(rejected);
+                return null;
+            });
+        }
+
+        /**
+         * Run {@code task} on {@link #mIoExecutor}.
+         * @return A future that completes once {@code task} has run, or exceptionally with what it threw.
+         */
+        private CompletableFuture<Void> onIo(Task task) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            try {
+                mIoExecutor.execute(() -> {
+                    try {
+                        task.run();
+                        future.complete(null);
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                future.completeExceptionally(ree);
+            }
+            return future;
+        }
+
+        /**
+         * Continue the run with {@code continuation} on {@link #mScheduler} after {@code delayMillis}.
+         */
+        private void schedule(long delayMillis, Runnable continuation) {
+            mScheduler.schedule(() -> {
+                try {
+                    continuation.run();
+                } catch (Throwable t) {
+                    fail(t);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void fail(Throwable error) {
+            if (mFinished) {
+                return;
+            }
+            if (!(error instanceof Exception)) {
+                finish(error);
+                return;
+            }
+            // If something fails, we discard the run for the sake of consistency.
+            // Print the stacktrace for immediate feedback.
+            error.printStackTrace();
+            mError = (Exception) error;
+            // Log the error information to make it clear that the experiment must be rerun and to enable subsequent
+            // investigation of the error.
+            logError(mError);
+            finish(null);
+        }
+
+        /**
+         * End the run, and hand the remaining work to {@link #mIoExecutor}, see {@link #writeResults(Throwable)}.
+         */
+        private void finish(Throwable error) {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+            try {
+                mIoExecutor.execute(() -> writeResults(error));
+            } catch (RejectedExecutionException ree) {
+                // The executor was shut down before the run finished; the results must still be written.
+                writeResults(error);
+            }
+        }
+
+        /**
+         * Stop the capture (unless it is a shared session), write the step timings and the action timeline, and
+         * complete {@link #mDone}.
+         */
+        private void writeResults(Throwable error) {
+            CaptureSession captureSession = mCaptureSession;
+            if (mError == null && captureSession != null && captureSession.getError().isPresent()) {
+                // The app's traffic was not (completely) captured, so the run must be redone.
+                mError = new IOException("packet capture failed", captureSession.getError().get());
+                logError(mError);
+            }
+            try {
+                if (mPacketCapture.isStarted()) {
+                    long stopStart = System.currentTimeMillis();
+                    mPacketCapture.stopCapture();
+                    mMetrics.recordPhase("capture_stop", System.currentTimeMillis() - stopStart);
+                }
+                if (mTimings != null) {
+                    try {
+                        mTimings.writeTsv(stepTimingsFilepath());
+                    } catch (IOException ioe) {
+                        ioe.printStackTrace();
+                    }
+                    RunLog runLog = mRunLog;
+                    if (runLog != null) {
+                        runLog.steps(mApp.getId(), mEcpClient.getDevice().getIPAddress(), mTimings);
+                    }
+                }
+                if (mActions != null) {
+                    try {
+                        mActions.writeTsv(actionTimelineFilepath());
+                    } catch (IOException ioe) {
+                        ioe.printStackTrace();
+                    }
+                }
+                mMetrics.recordPhase("app", System.currentTimeMillis() - mRunStart);
+            } catch (Throwable t) {
+                if (error == null) {
+                    error = t;
+                }
+            }
+            if (error == null) {
+                mDone.complete(null);
+            } else {
+                mDone.completeExceptionally(error);
+            }
+        }
+    }
+
+    /**
+     * The rest of a {@link Run}, to be performed once a value is available.
+     */
+    private interface Continuation<T> {
+        void accept(T value) throws Exception;
+    }
+
+    /**
+     * Blocking work of a {@link Run}.
+     */
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * Runs the steps of exercisers that are run with {@link #run()}. Created on first use.
+     */
+    private static class DefaultScheduler {
+        private static final ScheduledExecutorService INSTANCE = Executors.newScheduledThreadPool(1, r -> {
+            Thread t = new Thread(r, "exerciser-steps");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Does the blocking work of exercisers that are run with {@link #runAsync(ScheduledExecutorService)}. Created on
+     * first use.
+     */
+    private static class DefaultIoExecutor {
+        private static final ExecutorService INSTANCE = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "exerciser-io");
+            t.setDaemon(true);
+            return t;
+        });
     }
 
 }
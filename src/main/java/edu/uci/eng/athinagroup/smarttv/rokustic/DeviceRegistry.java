@@ -0,0 +1,295 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic;
+
+import com.mashape.unirest.http.HttpResponse;
+import com.vmichalak.protocol.ssdp.Device;
+import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.RokuEcpClient;
+import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model.DeviceInfo;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * <p>
+ *     Rokus that were discovered in previous runs, persisted to a file and keyed by their unique service name (USN),
+ *     which embeds the Roku's serial number and thus survives a change of IP address.
+ * </p>
+ * <p>
+ *     Instead of waiting for the full SSDP discovery timeout on every start, the known Rokus are revalidated with a
+ *     direct (unicast) ECP {@code query/device-info} request to each of them, all sent in parallel. A Roku that
+ *     answers, and reports the serial number it was registered with, is used right away. Multicast discovery is only
+ *     needed for Rokus that did not answer (e.g. because they were assigned a new IP address) and for Rokus that have
+ *     never been seen.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class DeviceRegistry {
+
+    /**
+     * The registry file used by {@link Main}.
+     */
+    public static final File DEFAULT_FILE = new File(System.getProperty("user.home"), ".rokustic-devices.tsv");
+
+    /**
+     * Default max time to wait for the known Rokus to answer a revalidation request, in milliseconds.
+     */
+    public static final long DEFAULT_REVALIDATION_TIMEOUT_MILLIS = 1_500;
+
+    private static final String HEADER = "# usn\tserial-number\tip\tdescription-url\tserver\tservice-type\tlast-seen";
+
+    private final File mFile;
+
+    /**
+     * The known Rokus, keyed by USN, in the order in which they were first seen.
+     */
+    private final Map<String, Entry> mEntries = new LinkedHashMap<>();
+
+    private DeviceRegistry(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Create an empty registry.
+     *
+     * @param file The file that the registry is saved to.
+     * @return The registry.
+     */
+    public static DeviceRegistry empty(File file) {
+        return new DeviceRegistry(file);
+    }
+
+    /**
+     * Load a registry from a file.
+     *
+     * @param file The registry file. If it does not exist, the registry is empty.
+     * @return The registry.
+     * @throws IOException if the file exists, but could not be read.
+     */
+    public static DeviceRegistry load(File file) throws IOException {
+        DeviceRegistry registry = empty(file);
+        if (!file.exists()) {
+            return registry;
+        }
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t", -1);
+            if (fields.length < 7) {
+                // Malformed (e.g. partially written) line; the Roku will be found by discovery instead.
+                continue;
+            }
+            Device device = new Device(fields[2], fields[3], fields[4], fields[5], fields[0]);
+            long lastSeen;
+            try {
+                lastSeen = Long.parseLong(fields[6]);
+            } catch (NumberFormatException nfe) {
+                lastSeen = 0;
+            }
+            registry.mEntries.put(fields[0], new Entry(device, fields[1], lastSeen));
+        }
+        return registry;
+    }
+
+    /**
+     * Write the registry to its file. The file is replaced atomically, so a crash never leaves a partial registry.
+     *
+     * @throws IOException if the registry could not be written.
+     */
+    public synchronized void save() throws IOException {
+        File parent = mFile.getAbsoluteFile().getParentFile();
+        File tmp = new File(parent, mFile.getName() + ".tmp");
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp),
+                StandardCharsets.UTF_8))) {
+            out.println(HEADER);
+            for (Entry e : mEntries.values()) {
+                Device d = e.mDevice;
+                out.println(String.join("\t", clean(d.getUSN()), clean(e.mSerialNumber), clean(d.getIPAddress()),
+                        clean(d.getDescriptionUrl()), clean(d.getServer()), clean(d.getServiceType()),
+                        Long.toString(e.mLastSeenMillis)));
+            }
+            if (out.checkError()) {
+                throw new IOException("could not write " + tmp);
+            }
+        }
+        Files.move(tmp.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Revalidate all known Rokus in parallel using unicast {@code query/device-info} requests.
+     *
+     * @param timeoutMillis Max time to wait for the Rokus to answer, in milliseconds.
+     * @return The known Rokus, split by whether they answered.
+     */
+    public synchronized Revalidation revalidate(long timeoutMillis) {
+        List<Entry> entries = new ArrayList<>(mEntries.values());
+        List<Optional<DeviceInfo>> infos = queryDeviceInfos(getDevices(), timeoutMillis);
+        long now = System.currentTimeMillis();
+        Revalidation result = new Revalidation();
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            Optional<DeviceInfo> info = infos.get(i);
+            // Guard against the Roku's IP address having been handed to another Roku.
+            if (info.isPresent() && (entry.mSerialNumber.isEmpty() ||
+                    entry.mSerialNumber.equalsIgnoreCase(String.valueOf(info.get().getSerialNumber())))) {
+                if (entry.mSerialNumber.isEmpty() && info.get().getSerialNumber() != null) {
+                    entry.mSerialNumber = info.get().getSerialNumber();
+                }
+                entry.mLastSeenMillis = now;
+                result.mLive.add(entry.mDevice);
+            } else {
+                result.mMissing.add(entry.mDevice);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Add (or update) Rokus found by SSDP discovery. Their serial numbers are queried in parallel.
+     *
+     * @param devices The discovered Rokus. A Roku that is already known is updated, e.g. with its new IP address.
+     * @param timeoutMillis Max time to wait for the Rokus to report their serial numbers, in milliseconds.
+     */
+    public synchronized void register(List<Device> devices, long timeoutMillis) {
+        List<Optional<DeviceInfo>> infos = queryDeviceInfos(devices, timeoutMillis);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < devices.size(); i++) {
+            Device device = devices.get(i);
+            String serialNumber = infos.get(i).map(DeviceInfo::getSerialNumber).orElse(null);
+            if (serialNumber == null) {
+                // Keep the serial number from an earlier registration, if any.
+                Entry known = mEntries.get(device.getUSN());
+                serialNumber = known == null ? "" : known.mSerialNumber;
+            }
+            mEntries.put(device.getUSN(), new Entry(device, serialNumber, now));
+        }
+    }
+
+    /**
+     * Remove Rokus from the registry, e.g. Rokus that failed revalidation and were not found by discovery either.
+     *
+     * @param devices The Rokus to remove.
+     */
+    public synchronized void forget(Collection<Device> devices) {
+        for (Device d : devices) {
+            mEntries.remove(d.getUSN());
+        }
+    }
+
+    /**
+     * @return The known Rokus, in the order in which they were first seen.
+     */
+    public synchronized List<Device> getDevices() {
+        List<Device> devices = new ArrayList<>();
+        for (Entry e : mEntries.values()) {
+            devices.add(e.mDevice);
+        }
+        return devices;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Send a {@code query/device-info} request to every Roku at once, and collect the answers that arrive before the
+     * deadline. The result has one element per Roku, in the order of {@code devices}; it is empty if the Roku did not
+     * answer in time or did not answer with status 200.
+     */
+    private static List<Optional<DeviceInfo>> queryDeviceInfos(List<Device> devices, long timeoutMillis) {
+        List<CompletableFuture<HttpResponse<DeviceInfo>>> futures = new ArrayList<>();
+        for (Device d : devices) {
+            futures.add(RokuEcpClient.forDevice(d).getDeviceInfoAsync());
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        List<Optional<DeviceInfo>> infos = new ArrayList<>();
+        for (CompletableFuture<HttpResponse<DeviceInfo>> future : futures) {
+            Optional<DeviceInfo> info = Optional.empty();
+            try {
+                HttpResponse<DeviceInfo> resp = future.get(Math.max(0, deadline - System.nanoTime()),
+                        TimeUnit.NANOSECONDS);
+                if (resp.getStatus() == 200) {
+                    info = Optional.ofNullable(resp.getBody());
+                }
+            } catch (TimeoutException | ExecutionException e) {
+                // Roku did not answer in time, or the request failed.
+                future.cancel(false);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException re) {
+                // Malformed response body.
+            }
+            infos.add(info);
+        }
+        return infos;
+    }
+
+    private static String clean(String s) {
+        return s == null ? "" : s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    /**
+     * The outcome of {@link #revalidate(long)}.
+     */
+    public static class Revalidation {
+
+        private final List<Device> mLive = new ArrayList<>();
+        private final List<Device> mMissing = new ArrayList<>();
+
+        /**
+         * @return The known Rokus that answered.
+         */
+        public List<Device> getLive() {
+            return Collections.unmodifiableList(mLive);
+        }
+
+        /**
+         * @return The known Rokus that did not answer in time, or that answered with a different serial number.
+         */
+        public List<Device> getMissing() {
+            return Collections.unmodifiableList(mMissing);
+        }
+    }
+
+    private static class Entry {
+
+        private final Device mDevice;
+        private String mSerialNumber;
+        private long mLastSeenMillis;
+
+        private Entry(Device device, String serialNumber, long lastSeenMillis) {
+            mDevice = device;
+            mSerialNumber = serialNumber;
+            mLastSeenMillis = lastSeenMillis;
+        }
+    }
+
+}
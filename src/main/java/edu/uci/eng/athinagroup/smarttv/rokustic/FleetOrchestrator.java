@@ -0,0 +1,704 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic;
+
+import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.exceptions.UnirestException;
+import com.vmichalak.protocol.ssdp.Device;
+import edu.uci.eng.athinagroup.smarttv.rokustic.capture.CaptureSession;
+import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.RokuEcpClient;
+import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model.AppInfo;
+import edu.uci.eng.athinagroup.smarttv.rokustic.metrics.RunMetrics;
+import edu.uci.eng.athinagroup.smarttv.rokustic.plan.ExercisePlanLibrary;
+import org.pcap4j.core.PcapNativeException;
+
+import java.io.File;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ *     Exercises the apps installed on a fleet of Rokus in parallel. Each Roku is assigned its own worker which runs
+ *     one {@link DefaultRokuAppExerciser} at a time. Apps are dealt out round-robin to the local work queues of the
+ *     workers whose Roku has the app installed. A worker that runs out of local work steals apps from the tail of
+ *     the other workers' queues, so the fleet stays busy until all apps have been exercised.
+ * </p>
+ * <p>
+ *     Workers do not have threads of their own. The exercisers are run with
+ *     {@link DefaultRokuAppExerciser#runAsync(ScheduledExecutorService, Executor)} on a scheduler with
+ *     {@link #getSchedulerThreads()} threads, and a worker picks its next app when the exerciser of its previous app
+ *     completes. Since an exerciser spends nearly all of its time waiting, a few threads drive the entire fleet.
+ *     Blocking work, such as opening a worker's capture session, runs on a separate pool.
+ * </p>
+ * <p>
+ *     Failures are tracked per device: an app whose exercise fails is handed to the queue of another device that has
+ *     it installed (up to {@link #getMaxAttemptsPerApp()} attempts in total), preferably one that has not failed it
+ *     yet, and a device that fails
+ *     {@link #getMaxConsecutiveFailures()} apps in a row is retired from the pool instead of stopping the batch.
+ * </p>
+ * <p>
+ *     Each worker keeps its own {@link CaptureSession} open for its entire share of the batch. The session is
+ *     filtered on the worker's Roku's IP address, so Rokus that share a network interface still get separate
+ *     {@code app-<ID>.pcap} files.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class FleetOrchestrator {
+
+    /**
+     * Default value for {@link #getMaxConsecutiveFailures()}.
+     */
+    public static final int DEFAULT_MAX_CONSECUTIVE_FAILURES = 3;
+
+    /**
+     * Default value for {@link #getMaxAttemptsPerApp()}.
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS_PER_APP = 2;
+
+    /**
+     * How long an idle worker waits before it checks for requeued work again, in milliseconds.
+     */
+    private static final long IDLE_POLL_MILLIS = 1_000;
+
+    /**
+     * Default value for {@link #getSchedulerThreads()}.
+     */
+    public static final int DEFAULT_SCHEDULER_THREADS = 2;
+
+    private final List<Device> mRokus;
+    private final String mNifName;
+    private final String mBaseDir;
+
+    private volatile int mMaxConsecutiveFailures = DEFAULT_MAX_CONSECUTIVE_FAILURES;
+    private volatile int mMaxAttemptsPerApp = DEFAULT_MAX_ATTEMPTS_PER_APP;
+    private volatile int mSchedulerThreads = DEFAULT_SCHEDULER_THREADS;
+
+    /**
+     * The exercise plans to choose from, or {@code null} to exercise every app with the built-in default plan.
+     */
+    private volatile ExercisePlanLibrary mPlanLibrary;
+
+    /**
+     * Journal of per-app progress, or {@code null} if progress is not journaled.
+     */
+    private volatile CheckpointJournal mJournal;
+
+    /**
+     * Applied to each worker's capture session before it is opened, or {@code null}.
+     */
+    private volatile Consumer<CaptureSession> mCaptureConfig;
+
+    /**
+     * Where the workers' exercisers log errors and step timings, or {@code null}.
+     */
+    private volatile RunLog mRunLog;
+
+    /**
+     * One worker per Roku; populated by {@link #exerciseApps()}.
+     */
+    private final List<Worker> mWorkers = new ArrayList<>();
+
+    /**
+     * Runs the workers and their exercisers; created by {@link #exerciseApps()}.
+     */
+    private ScheduledExecutorService mScheduler;
+
+    /**
+     * Runs the blocking work of the workers and their exercisers, e.g. opening a capture session, so that it does not
+     * hold up {@link #mScheduler}; created by {@link #exerciseApps()}.
+     */
+    private ExecutorService mIoExecutor;
+
+    /**
+     * Counted down by each worker when it has closed its capture session and will not exercise any more apps.
+     */
+    private CountDownLatch mRunningWorkers;
+
+    /**
+     * Number of apps that are currently being exercised by some worker. Idle workers must stay alive while this is
+     * non-zero as a failed app may be requeued.
+     */
+    private final AtomicInteger mInFlight = new AtomicInteger();
+
+    /**
+     * Number of attempts made for each app, keyed by app ID.
+     */
+    private final Map<Integer, AtomicInteger> mAttempts = new ConcurrentHashMap<>();
+
+    /**
+     * The apps that were successfully exercised, keyed by app ID.
+     */
+    private final Map<Integer, AppInfo> mSucceeded = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new {@code FleetOrchestrator}.
+     *
+     * @param rokus The Rokus that make up the fleet.
+     * @param nifName Name of the network interface that is the target of the packet capture.
+     * @param baseDir A directory where output is to be written.
+     */
+    public FleetOrchestrator(List<Device> rokus, String nifName, String baseDir) {
+        if (rokus.isEmpty()) {
+            throw new IllegalArgumentException("fleet must contain at least one Roku");
+        }
+        mRokus = new ArrayList<>(rokus);
+        mNifName = nifName;
+        mBaseDir = baseDir;
+    }
+
+    /**
+     * Exercise every app installed on (at least one of) the Rokus in the fleet exactly once, and block until all
+     * workers are done.
+     *
+     * @return A report that summarizes the outcome of the batch.
+     * @throws InterruptedException if interrupted while waiting for the workers to finish.
+     */
+    public FleetReport exerciseApps() throws InterruptedException {
+        if (!mWorkers.isEmpty()) {
+            throw new IllegalStateException("fleet has already been run");
+        }
+        for (Device roku : mRokus) {
+            mWorkers.add(new Worker(roku));
+        }
+        // Get the set of apps installed on each Roku, and deal the apps out round-robin to the workers whose Roku has
+        // the app installed.
+        Map<Integer, AppInfo> allApps = new TreeMap<>();
+        for (Worker w : mWorkers) {
+            if (!w.queryInstalledApps()) {
+                continue;
+            }
+            for (AppInfo app : w.mInstalled.values()) {
+                allApps.putIfAbsent(app.getId(), app);
+            }
+        }
+        if (mJournal != null) {
+            // Resume an interrupted batch: apps that a previous run finished are not exercised again.
+            int skipped = allApps.size();
+            allApps.keySet().removeAll(mJournal.getFinishedAppIds());
+            skipped -= allApps.size();
+            if (skipped > 0) {
+                System.out.printf("Skipping %d apps that were finished in a previous run (see %s).", skipped,
+                        mJournal.getFile().getName());
+                System.out.println();
+            }
+        }
+        int next = 0;
+        for (AppInfo app : allApps.values()) {
+            for (int i = 0; i < mWorkers.size(); i++) {
+                Worker w = mWorkers.get((next + i) % mWorkers.size());
+                if (w.canExercise(app)) {
+                    w.mQueue.offerLast(app);
+                    next = (next + i + 1) % mWorkers.size();
+                    break;
+                }
+            }
+        }
+        System.out.printf("Exercising %d apps on %d Rokus.", allApps.size(), mWorkers.size());
+        System.out.println();
+        RunMetrics.get().addAppsToDo(allApps.size());
+
+        AtomicInteger threadCount = new AtomicInteger();
+        mScheduler = Executors.newScheduledThreadPool(mSchedulerThreads,
+                r -> new Thread(r, "fleet-scheduler-" + threadCount.incrementAndGet()));
+        AtomicInteger ioThreadCount = new AtomicInteger();
+        mIoExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "fleet-io-" + ioThreadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        mRunningWorkers = new CountDownLatch(mWorkers.size());
+        try {
+            for (Worker w : mWorkers) {
+                mScheduler.execute(w::start);
+            }
+            mRunningWorkers.await();
+        } finally {
+            mScheduler.shutdownNow();
+            mIoExecutor.shutdownNow();
+        }
+
+        List<AppInfo> unfinished = new ArrayList<>();
+        for (AppInfo app : allApps.values()) {
+            if (!mSucceeded.containsKey(app.getId())) {
+                unfinished.add(app);
+            }
+        }
+        List<Device> retired = new ArrayList<>();
+        for (Worker w : mWorkers) {
+            if (w.mRetired) {
+                retired.add(w.mRoku);
+            }
+        }
+        return new FleetReport(new ArrayList<>(mSucceeded.values()), unfinished, retired);
+    }
+
+    /**
+     * Get the number of consecutive failed exercises after which a Roku is retired from the fleet.
+     * @return the number of consecutive failed exercises after which a Roku is retired from the fleet.
+     */
+    public int getMaxConsecutiveFailures() {
+        return mMaxConsecutiveFailures;
+    }
+
+    /**
+     * Set the number of consecutive failed exercises after which a Roku is retired from the fleet.
+     * @param maxConsecutiveFailures the number of consecutive failed exercises after which a Roku is retired.
+     */
+    public void setMaxConsecutiveFailures(int maxConsecutiveFailures) {
+        mMaxConsecutiveFailures = maxConsecutiveFailures;
+    }
+
+    /**
+     * Get the maximum number of times the fleet will try to exercise an app before it gives up on that app.
+     * @return the maximum number of attempts per app.
+     */
+    public int getMaxAttemptsPerApp() {
+        return mMaxAttemptsPerApp;
+    }
+
+    /**
+     * Set the maximum number of times the fleet will try to exercise an app before it gives up on that app.
+     * @param maxAttemptsPerApp the maximum number of attempts per app.
+     */
+    public void setMaxAttemptsPerApp(int maxAttemptsPerApp) {
+        mMaxAttemptsPerApp = maxAttemptsPerApp;
+    }
+
+    /**
+     * Get the number of threads that run the workers and their exercisers.
+     * @return the number of scheduler threads.
+     */
+    public int getSchedulerThreads() {
+        return mSchedulerThreads;
+    }
+
+    /**
+     * Set the number of threads that run the workers and their exercisers. The threads only block while a capture
+     * session is opened, rotated or closed, so a few threads suffice for fleets of any size. Must be set before
+     * {@link #exerciseApps()} is invoked.
+     * @param schedulerThreads the number of scheduler threads.
+     */
+    public void setSchedulerThreads(int schedulerThreads) {
+        if (schedulerThreads < 1) {
+            throw new IllegalArgumentException("schedulerThreads must be positive");
+        }
+        mSchedulerThreads = schedulerThreads;
+    }
+
+    /**
+     * Set the exercise plans that the fleet chooses from. If not set, every app is exercised with the built-in
+     * default plan.
+     * @param planLibrary the exercise plans.
+     */
+    public void setPlanLibrary(ExercisePlanLibrary planLibrary) {
+        mPlanLibrary = planLibrary;
+    }
+
+    /**
+     * Journal the progress of each app, and skip the apps that the journal records as finished when the fleet is run.
+     * @param journal the journal, or {@code null} for none.
+     */
+    public void setJournal(CheckpointJournal journal) {
+        mJournal = journal;
+    }
+
+    /**
+     * Set a function that configures the capture session of each Roku (e.g. its output compression) before the
+     * session is opened.
+     * @param captureConfig the function, or {@code null} to use the sessions' defaults.
+     */
+    public void setCaptureConfig(Consumer<CaptureSession> captureConfig) {
+        mCaptureConfig = captureConfig;
+    }
+
+    /**
+     * Set the run log that HTTP errors, exercise errors and step timings are logged to.
+     * @param runLog the run log, or {@code null} to only print errors.
+     */
+    public void setRunLog(RunLog runLog) {
+        mRunLog = runLog;
+    }
+
+    /**
+     * Append an entry to {@link #mJournal}, if set.
+     */
+    private void journal(CheckpointJournal.Event event, int appId, String detail) {
+        CheckpointJournal journal = mJournal;
+        if (journal != null) {
+            journal.appendOrWarn(event, appId, detail);
+        }
+    }
+
+    /**
+     * Exercises apps on a single Roku of the fleet. All methods but {@link #queryInstalledApps()} and
+     * {@link #openCapture()} run on {@link #mScheduler}, one at a time.
+     */
+    private class Worker {
+
+        private final Device mRoku;
+
+        /**
+         * Apps assigned to this worker. The worker itself takes from the head; other workers steal from the tail.
+         */
+        private final ConcurrentLinkedDeque<AppInfo> mQueue = new ConcurrentLinkedDeque<>();
+
+        /**
+         * The apps installed on {@link #mRoku}, keyed by app ID.
+         */
+        private final Map<Integer, AppInfo> mInstalled = new HashMap<>();
+
+        private int mConsecutiveFailures = 0;
+
+        private volatile boolean mRetired = false;
+
+        /**
+         * Set by {@link #stop()}; a stopped worker no longer takes apps from its queue.
+         */
+        private volatile boolean mStopped = false;
+
+        /**
+         * IDs of the apps that this worker failed to exercise. Not stolen back by this worker while another worker can
+         * retry them.
+         */
+        private final Set<Integer> mFailed = ConcurrentHashMap.newKeySet();
+
+        /**
+         * Apps whose capture file is still open, keyed by that file. Used to journal when the capture is finalized.
+         */
+        private final Map<File, Integer> mOpenCaptures = new ConcurrentHashMap<>();
+
+        /**
+         * Capture session for this worker's apps; open from {@link #start()} until {@link #stop()}.
+         */
+        private CaptureSession mCaptureSession;
+
+        private Worker(Device roku) {
+            mRoku = roku;
+        }
+
+        /**
+         * Query {@link #mRoku} for its installed apps. Retires this worker if the query fails.
+         * @return {@code true} if the query succeeded, {@code false} otherwise.
+         */
+        private boolean queryInstalledApps() {
+            HttpResponse<AppInfo[]> appsResponse;
+            try {
+                appsResponse = RokuEcpClient.forDevice(mRoku).getInstalledApps();
+            } catch (UnirestException ue) {
+                appsResponse = null;
+            }
+            if (appsResponse == null || appsResponse.getStatus() != 200) {
+                System.out.printf("WARNING: could not get list of installed apps from %s. Removing it from the fleet.",
+                        mRoku.getDescriptionUrl());
+                System.out.println();
+                mRetired = true;
+                return false;
+            }
+            for (AppInfo app : appsResponse.getBody()) {
+                if (Main.isExercisable(app)) {
+                    mInstalled.put(app.getId(), app);
+                }
+            }
+            System.out.printf("Found %d apps on %s.", mInstalled.size(), mRoku.getDescriptionUrl());
+            System.out.println();
+            return true;
+        }
+
+        private boolean canExercise(AppInfo app) {
+            return !mRetired && mInstalled.containsKey(app.getId());
+        }
+
+        private void start() {
+            mCaptureSession = CaptureSession.forDevice(mNifName, mRoku);
+            Consumer<CaptureSession> captureConfig = mCaptureConfig;
+            if (captureConfig != null) {
+                captureConfig.accept(mCaptureSession);
+            }
+            mCaptureSession.setOutputClosedListener(file -> {
+                Integer appId = mOpenCaptures.remove(file);
+                if (appId != null) {
+                    journal(CheckpointJournal.Event.CAPTURE_FINALIZED, appId, file.getName());
+                }
+            });
+            mIoExecutor.execute(this::openCapture);
+        }
+
+        /**
+         * Open {@link #mCaptureSession}, then continue on {@link #mScheduler} with the first app, or retire this worker
+         * if the session could not be opened. Runs on {@link #mIoExecutor} as opening the network interface blocks.
+         */
+        private void openCapture() {
+            try {
+                mCaptureSession.open();
+            } catch (PcapNativeException | RuntimeException | Error e) {
+                if (!(e instanceof PcapNativeException)) {
+                    e.printStackTrace();
+                }
+                mScheduler.execute(() -> {
+                    System.out.printf("WARNING: could not open %s for capture. Removing %s from the fleet.", mNifName,
+                            mRoku.getDescriptionUrl());
+                    System.out.println();
+                    mRetired = true;
+                    mRunningWorkers.countDown();
+                });
+                return;
+            }
+            mScheduler.execute(this::next);
+        }
+
+        /**
+         * Start exercising the next app, or stop this worker if there is no app left that it can exercise.
+         */
+        private void next() {
+            if (mRetired) {
+                stop();
+                return;
+            }
+            // Count up in-flight before looking for work s.t. other idle workers do not terminate while this worker
+            // holds an app that it has not started exercising yet.
+            mInFlight.incrementAndGet();
+            AppInfo app = mQueue.pollFirst();
+            if (app == null) {
+                app = steal();
+            }
+            if (app == null) {
+                if (mInFlight.decrementAndGet() == 0) {
+                    // Nothing left to steal, and no other worker can requeue anything.
+                    stop();
+                    return;
+                }
+                mScheduler.schedule(this::next, IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                return;
+            }
+            CompletableFuture<Void> exercised;
+            try {
+                exercised = exercise(app);
+            } catch (RuntimeException | Error e) {
+                mInFlight.decrementAndGet();
+                e.printStackTrace();
+                stop();
+                return;
+            }
+            exercised.whenComplete((ignored, error) -> {
+                mInFlight.decrementAndGet();
+                if (error != null) {
+                    // A bug rather than a failed exercise; stop this worker instead of repeating it for each app.
+                    error.printStackTrace();
+                    stop();
+                } else {
+                    next();
+                }
+            });
+        }
+
+        /**
+         * Close this worker's capture session, and let {@link #exerciseApps()} know that this worker is done.
+         */
+        private void stop() {
+            mStopped = true;
+            try {
+                mCaptureSession.close();
+            } finally {
+                mRunningWorkers.countDown();
+            }
+        }
+
+        /**
+         * Steal an app from the tail of another worker's queue.
+         * @return The stolen app, or {@code null} if no other worker has an app that this worker can exercise.
+         */
+        private AppInfo steal() {
+            for (Worker victim : mWorkers) {
+                if (victim == this) {
+                    continue;
+                }
+                Iterator<AppInfo> it = victim.mQueue.descendingIterator();
+                while (it.hasNext()) {
+                    AppInfo app = it.next();
+                    if (!canExercise(app) || (mFailed.contains(app.getId()) && retryWorker(app) != null)) {
+                        continue;
+                    }
+                    // removeLastOccurrence only succeeds for one thief, so the app is claimed exactly once.
+                    if (victim.mQueue.removeLastOccurrence(app)) {
+                        return app;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Pick another worker to retry {@code app}, which this worker failed to exercise: preferably one that has not
+         * failed it yet, then the one with the fewest queued apps.
+         * @return The worker, or {@code null} if no other (running) worker can exercise the app.
+         */
+        private Worker retryWorker(AppInfo app) {
+            Worker best = null;
+            for (Worker w : mWorkers) {
+                if (w == this || w.mStopped || !w.canExercise(app)) {
+                    continue;
+                }
+                if (best == null) {
+                    best = w;
+                    continue;
+                }
+                boolean failed = w.mFailed.contains(app.getId());
+                boolean bestFailed = best.mFailed.contains(app.getId());
+                if ((bestFailed && !failed) || (bestFailed == failed && w.mQueue.size() < best.mQueue.size())) {
+                    best = w;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Start exercising {@code app}.
+         * @return A future that completes once the app has been exercised and the outcome has been recorded.
+         */
+        private CompletableFuture<Void> exercise(AppInfo app) {
+            // Exercise this device's own copy of the app info (version may differ between Rokus).
+            AppInfo target = mInstalled.get(app.getId());
+            int attempt = mAttempts.computeIfAbsent(app.getId(), id -> new AtomicInteger()).incrementAndGet();
+            System.out.printf("[%s] Exercising %s (attempt %d)...", mRoku.getIPAddress(), target.getName(), attempt);
+            System.out.println();
+            DefaultRokuAppExerciser appExerciser = new DefaultRokuAppExerciser(mRoku, target, mBaseDir);
+            appExerciser.setCaptureSession(mCaptureSession);
+            appExerciser.setRunLog(mRunLog);
+            if (mPlanLibrary != null) {
+                appExerciser.setPlan(mPlanLibrary.planFor(app.getId()));
+            }
+            journal(CheckpointJournal.Event.STARTED, app.getId(), mRoku.getIPAddress());
+            File captureFile = appExerciser.getPcapFile();
+            return appExerciser.runAsync(mScheduler, mIoExecutor).thenCompose(ignored -> {
+                if (appExerciser.getError().isPresent()) {
+                    // A retry (on any Roku) writes to the same file, so close it before the app can be requeued. The
+                    // close is not journaled: the capture of a failed attempt does not count as finalized.
+                    return closeCapture();
+                }
+                // This app's capture is closed when the next app rotates the session or when the session is closed.
+                mOpenCaptures.put(captureFile, app.getId());
+                return CompletableFuture.completedFuture(null);
+            }).thenRunAsync(() -> exercised(app, target, attempt, appExerciser), mScheduler);
+        }
+
+        /**
+         * Close the current capture file of {@link #mCaptureSession}, and discard packets until the next app.
+         * @return A future that completes once the file has been closed.
+         */
+        private CompletableFuture<Void> closeCapture() {
+            CompletableFuture<Instant> rotated;
+            try {
+                rotated = mCaptureSession.rotateAsync(null);
+            } catch (IllegalStateException ise) {
+                rotated = new CompletableFuture<>();
+                rotated.completeExceptionally(ise);
+            }
+            return rotated.handle((boundary, error) -> {
+                if (error != null) {
+                    // The session has terminated, which closed the file.
+                    error.printStackTrace();
+                }
+                return null;
+            });
+        }
+
+        /**
+         * Record the outcome of an exercise of {@code app}, and requeue the app if it failed.
+         */
+        private void exercised(AppInfo app, AppInfo target, int attempt, DefaultRokuAppExerciser appExerciser) {
+            if (!appExerciser.getError().isPresent()) {
+                journal(CheckpointJournal.Event.SUCCEEDED, app.getId(), mRoku.getIPAddress());
+                mConsecutiveFailures = 0;
+                mSucceeded.put(app.getId(), target);
+                RunMetrics.get().recordAppDone(true);
+                System.out.printf("[%s] Done exercising %s.", mRoku.getIPAddress(), target.getName());
+                System.out.println();
+                System.out.println(RunMetrics.get().getProgressLine());
+                return;
+            }
+            journal(CheckpointJournal.Event.FAILED, app.getId(), appExerciser.getError().get().toString());
+            mConsecutiveFailures++;
+            mFailed.add(app.getId());
+            System.out.printf("[%s] Failed to exercise %s.", mRoku.getIPAddress(), target.getName());
+            System.out.println();
+            // Retire before requeueing s.t. this worker is not considered for the requeued app.
+            if (mCaptureSession.getError().isPresent()) {
+                mRetired = true;
+                System.out.printf("WARNING: capture of %s failed (%s). Removing it from the fleet.",
+                        mRoku.getDescriptionUrl(), mCaptureSession.getError().get());
+                System.out.println();
+            } else if (mConsecutiveFailures >= mMaxConsecutiveFailures) {
+                mRetired = true;
+                System.out.printf("WARNING: %s failed %d apps in a row. Removing it from the fleet.",
+                        mRoku.getDescriptionUrl(), mConsecutiveFailures);
+                System.out.println();
+            }
+            if (attempt < mMaxAttemptsPerApp) {
+                // Retry on another worker if possible. This worker keeps the app only if no other worker can exercise
+                // it (if this worker has been retired, the app is then reported as not exercised).
+                Worker retry = retryWorker(app);
+                (retry != null ? retry : this).mQueue.offerLast(app);
+            } else {
+                RunMetrics.get().recordAppDone(false);
+                System.out.println(RunMetrics.get().getProgressLine());
+            }
+        }
+    }
+
+    /**
+     * Summary of a fleet run.
+     */
+    public static class FleetReport {
+
+        private final List<AppInfo> mExercised;
+        private final List<AppInfo> mNotExercised;
+        private final List<Device> mRetiredRokus;
+
+        public FleetReport(List<AppInfo> exercised, List<AppInfo> notExercised, List<Device> retiredRokus) {
+            mExercised = exercised;
+            mNotExercised = notExercised;
+            mRetiredRokus = retiredRokus;
+        }
+
+        /**
+         * @return The apps that were successfully exercised.
+         */
+        public List<AppInfo> getExercised() {
+            return Collections.unmodifiableList(mExercised);
+        }
+
+        /**
+         * @return The apps that could not be exercised, e.g., because all attempts failed or because every Roku that
+         *         has the app installed was retired from the fleet.
+         */
+        public List<AppInfo> getNotExercised() {
+            return Collections.unmodifiableList(mNotExercised);
+        }
+
+        /**
+         * @return The Rokus that were removed from the fleet during the run.
+         */
+        public List<Device> getRetiredRokus() {
+            return Collections.unmodifiableList(mRetiredRokus);
+        }
+    }
+
+}
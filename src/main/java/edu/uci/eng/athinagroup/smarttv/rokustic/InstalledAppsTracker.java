@@ -0,0 +1,159 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic;
+
+import com.mashape.unirest.http.exceptions.UnirestException;
+import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.RokuEcpClient;
+
+import java.util.*;
+
+/**
+ * <p>
+ *     Keeps a cached view of the set of apps installed on a Roku, and tracks a set of pending installs against it.
+ *     Instead of querying the Roku once per pending install, a single {@link #refreshIfPending()} fetches the list of
+ *     installed apps once, diffs it against the cached view, and resolves every pending install whose app has appeared.
+ *     No queries are made while no installs are pending.
+ * </p>
+ * <p>
+ *     Instances are not thread safe.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class InstalledAppsTracker {
+
+    private final RokuEcpClient mEcpClient;
+
+    /**
+     * IDs of the apps installed on the Roku as of the last successful refresh.
+     */
+    private final Set<Integer> mInstalled = new HashSet<>();
+
+    /**
+     * Deadlines (in epoch millis) of the pending installs, keyed by app ID, in the order the installs were started.
+     */
+    private final Map<Integer, Long> mPending = new LinkedHashMap<>();
+
+    private boolean mHasSnapshot = false;
+
+    private int mRefreshCount = 0;
+
+    /**
+     * Create a new {@code InstalledAppsTracker}. The cached view is empty until the first refresh.
+     * @param ecpClient Client for the Roku whose installed apps are to be tracked.
+     */
+    public InstalledAppsTracker(RokuEcpClient ecpClient) {
+        mEcpClient = ecpClient;
+    }
+
+    /**
+     * Query the Roku for its installed apps and update the cached view, regardless of whether any installs are
+     * pending.
+     *
+     * @return IDs of the apps that appeared since the previous refresh (all installed apps on the first refresh).
+     * @throws UnirestException if the Roku could not be queried. The cached view is left unchanged.
+     */
+    public Set<Integer> refresh() throws UnirestException {
+        Set<Integer> current = new HashSet<>();
+        int status = mEcpClient.visitInstalledAppIds(id -> {
+            current.add(id);
+            return true;
+        });
+        mRefreshCount++;
+        if (status != 200) {
+            throw new UnirestException(String.format("query for installed apps failed with status %d", status));
+        }
+        Set<Integer> appeared = new HashSet<>(current);
+        appeared.removeAll(mInstalled);
+        // Replace rather than add, so that uninstalled apps disappear from the view.
+        mInstalled.clear();
+        mInstalled.addAll(current);
+        mPending.keySet().removeAll(appeared);
+        mHasSnapshot = true;
+        return appeared;
+    }
+
+    /**
+     * Same as {@link #refresh()}, but only queries the Roku if there are pending installs.
+     *
+     * @return IDs of the apps that appeared since the previous refresh, or an empty set if nothing is pending.
+     * @throws UnirestException if the Roku could not be queried.
+     */
+    public Set<Integer> refreshIfPending() throws UnirestException {
+        return mPending.isEmpty() ? Collections.emptySet() : refresh();
+    }
+
+    /**
+     * Start tracking an install.
+     *
+     * @param appId The ID of the app being installed.
+     * @param deadlineMillis Time (epoch millis) after which the install is considered to have failed.
+     */
+    public void addPending(int appId, long deadlineMillis) {
+        mPending.put(appId, deadlineMillis);
+    }
+
+    /**
+     * Stop tracking the installs whose deadline has passed.
+     *
+     * @param nowMillis The current time (epoch millis).
+     * @return IDs of the apps whose install timed out.
+     */
+    public List<Integer> expirePending(long nowMillis) {
+        List<Integer> expired = new ArrayList<>();
+        Iterator<Map.Entry<Integer, Long>> it = mPending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Long> e = it.next();
+            if (e.getValue() <= nowMillis) {
+                expired.add(e.getKey());
+                it.remove();
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * @return IDs of the pending installs.
+     */
+    public Set<Integer> getPending() {
+        return Collections.unmodifiableSet(mPending.keySet());
+    }
+
+    /**
+     * Determine if an app was installed as of the last successful refresh. Does not query the Roku.
+     * @param appId The ID of the app.
+     * @return {@code true} if the app is in the cached view, {@code false} otherwise.
+     */
+    public boolean isInstalled(int appId) {
+        return mInstalled.contains(appId);
+    }
+
+    /**
+     * @return {@code true} if at least one refresh has succeeded.
+     */
+    public boolean hasSnapshot() {
+        return mHasSnapshot;
+    }
+
+    /**
+     * @return The number of times the Roku has been queried for its installed apps.
+     */
+    public int getRefreshCount() {
+        return mRefreshCount;
+    }
+
+}
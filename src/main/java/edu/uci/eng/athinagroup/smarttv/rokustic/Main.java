@@ -20,14 +20,27 @@ import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.exceptions.UnirestException;
 import com.vmichalak.protocol.ssdp.Device;
 import com.vmichalak.protocol.ssdp.SSDPClient;
+import edu.uci.eng.athinagroup.smarttv.rokustic.capture.CaptureSession;
+import edu.uci.eng.athinagroup.smarttv.rokustic.capture.SegmentedPcapWriter;
+import edu.uci.eng.athinagroup.smarttv.rokustic.catalog.ChannelIdReader;
+import edu.uci.eng.athinagroup.smarttv.rokustic.catalog.ChannelIdSet;
 import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.RokuEcpClient;
 import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model.AppInfo;
+import edu.uci.eng.athinagroup.smarttv.rokustic.metrics.MetricsServer;
+import edu.uci.eng.athinagroup.smarttv.rokustic.metrics.RunMetrics;
+import edu.uci.eng.athinagroup.smarttv.rokustic.plan.ExercisePlanLibrary;
+import org.pcap4j.core.PcapNativeException;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -43,8 +56,26 @@ public class Main {
      */
     public static final int DISCOVERY_TIMEOUT_MILLIS = 10_000;
 
+    /**
+     * Hash salt used to split channels over several Rokus; differs from {@link ChannelIdReader#FILE_SHARD_SALT} so
+     * that the channels of one shard are spread over all Rokus.
+     */
+    private static final int DEVICE_SHARD_SALT = 1;
+
     private static final Map<Integer, Task> TASKS;
 
+    /**
+     * Shard of the channel list to install, given as {@code --shard <index>/<count>}; the whole list by default.
+     */
+    private static int sShardIndex = 0;
+    private static int sShardCount = 1;
+
+    /**
+     * Rokus to select without prompting, given as {@code --devices all|<usn or IP>[,<usn or IP>...]}; {@code null} to
+     * prompt the user.
+     */
+    private static String sDevices = null;
+
     static {
         TASKS = new HashMap<>();
         int taskId = 0;
@@ -55,20 +86,107 @@ public class Main {
     }
 
     public static void main(String[] args) {
-        Device roku;
+        parseShard(args);
+        parseDevices(args);
+        MetricsServer metricsServer = startMetrics(args);
         try {
-            roku = selectDevice();
+            run();
+        } finally {
+            if (metricsServer != null) {
+                metricsServer.close();
+            }
+        }
+    }
+
+    private static void run() {
+        List<Device> rokus;
+        try {
+            rokus = selectDevices();
         } catch (IOException ioe) {
             System.err.println("Roku device discovery failed. Terminating.");
             return;
         }
-        if (roku == null) {
+        if (rokus.isEmpty()) {
             System.out.println("No Rokus found on the local network. Terminating.");
             return;
         }
-        System.out.println("[ Selected Roku: " + roku + " ]");
+        for (Device roku : rokus) {
+            System.out.println("[ Selected Roku: " + roku + " ]");
+        }
         Task task = selectTask();
-        task.execute(roku);
+        task.execute(rokus);
+    }
+
+    /**
+     * Select a shard of the channel list given to the install task, given as {@code --shard <index>/<count>} with
+     * {@code 0 <= index < count}; see {@link ChannelIdReader#setShard(int, int)}. Lets several machines share one
+     * channel list.
+     */
+    private static void parseShard(String[] args) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if ("--shard".equals(args[i])) {
+                String[] parts = args[i + 1].split("/");
+                try {
+                    int index = Integer.parseInt(parts[0].trim());
+                    int count = parts.length == 2 ? Integer.parseInt(parts[1].trim()) : -1;
+                    if (count < 1 || index < 0 || index >= count) {
+                        throw new NumberFormatException();
+                    }
+                    sShardIndex = index;
+                    sShardCount = count;
+                } catch (NumberFormatException nfe) {
+                    System.out.printf("WARNING: invalid shard '%s' (expected <index>/<count>); using all channels.",
+                            args[i + 1]);
+                    System.out.println();
+                }
+            }
+        }
+    }
+
+    /**
+     * Select the Rokus to use without prompting, given as {@code --devices all} for all found Rokus, or as a comma
+     * separated list of the USNs or IP addresses of the Rokus to use. Lets the tool run unattended.
+     */
+    private static void parseDevices(String[] args) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if ("--devices".equals(args[i])) {
+                sDevices = args[i + 1].trim();
+            }
+        }
+    }
+
+    /**
+     * Expose the {@link RunMetrics} of this run over JMX and HTTP. The HTTP port is {@link MetricsServer#DEFAULT_PORT}
+     * unless given as {@code --metrics-port <port>}; port 0 disables the HTTP endpoint.
+     * @return The HTTP endpoint, or {@code null} if it is disabled or could not be started.
+     */
+    private static MetricsServer startMetrics(String[] args) {
+        RunMetrics.get().registerMBean();
+        int port = MetricsServer.DEFAULT_PORT;
+        for (int i = 0; i + 1 < args.length; i++) {
+            if ("--metrics-port".equals(args[i])) {
+                try {
+                    port = Integer.parseInt(args[i + 1]);
+                } catch (NumberFormatException nfe) {
+                    System.out.printf("WARNING: invalid metrics port '%s'; using %d.", args[i + 1], port);
+                    System.out.println();
+                }
+            }
+        }
+        if (port == 0) {
+            return null;
+        }
+        try {
+            MetricsServer server = new MetricsServer(RunMetrics.get(), port);
+            System.out.printf("Serving metrics at http://localhost:%d/metrics (summary at http://localhost:%d/).",
+                    server.getPort(), server.getPort());
+            System.out.println();
+            return server;
+        } catch (IOException ioe) {
+            System.out.printf("WARNING: could not serve metrics on port %d: %s", port, ioe.getMessage());
+            System.out.println();
+            return null;
+        }
     }
 
     /**
@@ -105,8 +223,11 @@ public class Main {
     }
 
     /**
-     * Performs SSDP discovery for Rokus and prompts the user to select a discovered device. <br/>
-     * Structure of SSDP request that Rokus will respond to:
+     * Finds Rokus on the local network and prompts the user to select a found device, or all found devices (fleet
+     * mode). If the devices were given as {@code --devices}, they are selected without prompting. <br/>
+     * Rokus found in previous runs are kept in a {@link DeviceRegistry} and are revalidated with direct ECP requests,
+     * which takes a fraction of a second. SSDP discovery is only performed if there are no known Rokus, if a known
+     * Roku did not answer, or if requested by the user. Structure of SSDP request that Rokus will respond to:
      *
      * <pre>
      * M-SEARCH * HTTP/1.1
@@ -115,45 +236,188 @@ public class Main {
      * ST: roku:ecp
      * </pre>
      *
-     * @return A {@link Device} instance that wraps metadata for the chosen device, or {@code null} if no Rokus were
-     *         discovered.
+     * @return A list of {@link Device} instances that wrap metadata for the chosen device(s), or an empty list if no
+     *         Rokus were found.
      * @throws IOException if SSDP discovery fails.
      */
-    public static Device selectDevice() throws IOException {
-        System.out.println(String.format("Initiating SSDP discovery of Rokus. Will timeout after %d ms.", DISCOVERY_TIMEOUT_MILLIS));
-        List<Device> discoveredRokus = SSDPClient.discover(DISCOVERY_TIMEOUT_MILLIS, "roku:ecp");
-        if (discoveredRokus.size() == 0) {
-            return null;
+    public static List<Device> selectDevices() throws IOException {
+        DeviceRegistry registry;
+        try {
+            registry = DeviceRegistry.load(DeviceRegistry.DEFAULT_FILE);
+        } catch (IOException ioe) {
+            System.out.printf("WARNING: could not read device registry %s: %s", DeviceRegistry.DEFAULT_FILE,
+                    ioe.getMessage());
+            System.out.println();
+            registry = DeviceRegistry.empty(DeviceRegistry.DEFAULT_FILE);
         }
-        System.out.println(String.format("Discovered %d Roku device(s):", discoveredRokus.size()));
-        for (int i = 0; i < discoveredRokus.size(); i++) {
-            System.out.println(String.format("  %d: %s", i+1, discoveredRokus.get(i)));
+        List<Device> foundRokus = new ArrayList<>();
+        List<Device> missingRokus = new ArrayList<>();
+        boolean discover = registry.isEmpty();
+        boolean discovered = false;
+        if (!registry.isEmpty()) {
+            DeviceRegistry.Revalidation revalidation =
+                    registry.revalidate(DeviceRegistry.DEFAULT_REVALIDATION_TIMEOUT_MILLIS);
+            foundRokus.addAll(revalidation.getLive());
+            missingRokus.addAll(revalidation.getMissing());
+            System.out.printf("%d of %d known Roku device(s) responded.", foundRokus.size(),
+                    foundRokus.size() + missingRokus.size());
+            System.out.println();
+            discover = !missingRokus.isEmpty();
+            if (!discover) {
+                saveRegistry(registry);
+            }
         }
-        System.out.println("Please select the target device by its index.");
-        Scanner stdIn = new Scanner(System.in);
-        int rokuIdx;
         while (true) {
-            try {
-                String line = stdIn.nextLine();
-                String[] tokens = line.split(" ");
-                if (tokens.length > 0) {
-                    // Assume index is first token; allow garbage after chosen index.
-                    rokuIdx = Integer.parseInt(tokens[0]) - 1;
-                    if (rokuIdx >= 0 && rokuIdx < discoveredRokus.size()) {
-                        // Valid index.
+            if (discover) {
+                foundRokus = discoverDevices(registry, foundRokus, missingRokus);
+                missingRokus.clear();
+                discover = false;
+                discovered = true;
+            }
+            if (foundRokus.size() == 0) {
+                return Collections.emptyList();
+            }
+            if (sDevices != null) {
+                List<Device> selected = new ArrayList<>();
+                List<String> notFound = new ArrayList<>();
+                selectGivenDevices(foundRokus, selected, notFound);
+                if (notFound.isEmpty() || discovered) {
+                    for (String name : notFound) {
+                        System.out.printf("WARNING: Roku '%s' (given as --devices) was not found.", name);
+                        System.out.println();
+                    }
+                    return selected;
+                }
+                // A given Roku may not have been found yet; rerun discovery once.
+                discover = true;
+                continue;
+            }
+            System.out.println(String.format("Found %d Roku device(s):", foundRokus.size()));
+            for (int i = 0; i < foundRokus.size(); i++) {
+                System.out.println(String.format("  %d: %s", i+1, foundRokus.get(i)));
+            }
+            System.out.println("Please select the target device by its index, 0 to select all devices (fleet mode), " +
+                    "or d to rerun discovery.");
+            Scanner stdIn = new Scanner(System.in);
+            int rokuIdx;
+            while (true) {
+                try {
+                    String line = stdIn.nextLine();
+                    String[] tokens = line.trim().split(" ");
+                    if (tokens.length > 0 && "d".equalsIgnoreCase(tokens[0])) {
+                        discover = true;
                         break;
                     }
+                    if (tokens.length > 0) {
+                        // Assume index is first token; allow garbage after chosen index.
+                        rokuIdx = Integer.parseInt(tokens[0]) - 1;
+                        if (rokuIdx >= -1 && rokuIdx < foundRokus.size()) {
+                            // Valid index.
+                            return rokuIdx == -1 ? foundRokus : Collections.singletonList(foundRokus.get(rokuIdx));
+                        }
+                    }
+                } catch (NumberFormatException nfe) { }
+                System.out.println("Invalid index, please try again.");
+            }
+        }
+    }
+
+    /**
+     * Select the Rokus given as {@link #sDevices} among {@code foundRokus}.
+     * @param foundRokus The Rokus to select from.
+     * @param selected Receives the selected Rokus, in the order of {@code foundRokus}.
+     * @param notFound Receives the given USNs and IP addresses that do not match any of {@code foundRokus}.
+     */
+    private static void selectGivenDevices(List<Device> foundRokus, List<Device> selected, List<String> notFound) {
+        if ("all".equalsIgnoreCase(sDevices)) {
+            selected.addAll(foundRokus);
+            return;
+        }
+        Set<Device> matched = new HashSet<>();
+        for (String name : sDevices.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            boolean found = false;
+            for (Device roku : foundRokus) {
+                if (name.equalsIgnoreCase(roku.getUSN()) || name.equals(roku.getIPAddress())) {
+                    matched.add(roku);
+                    found = true;
                 }
-            } catch (NumberFormatException nfe) { }
-            System.out.println("Invalid index, please try again.");
+            }
+            if (!found) {
+                notFound.add(name);
+            }
+        }
+        for (Device roku : foundRokus) {
+            if (matched.contains(roku)) {
+                selected.add(roku);
+            }
+        }
+    }
+
+    /**
+     * Performs SSDP discovery and updates {@code registry} with its result.
+     * @param registry The known Rokus.
+     * @param liveRokus Rokus that are known to be up, e.g. because they were revalidated.
+     * @param missingRokus Known Rokus that did not answer revalidation. Those not found by discovery either are
+     *                     removed from the registry.
+     * @return {@code liveRokus} along with the discovered Rokus.
+     * @throws IOException if SSDP discovery fails.
+     */
+    private static List<Device> discoverDevices(DeviceRegistry registry, List<Device> liveRokus,
+                                                List<Device> missingRokus) throws IOException {
+        System.out.println(String.format("Initiating SSDP discovery of Rokus. Will timeout after %d ms.", DISCOVERY_TIMEOUT_MILLIS));
+        List<Device> discoveredRokus = SSDPClient.discover(DISCOVERY_TIMEOUT_MILLIS, "roku:ecp");
+        registry.register(discoveredRokus, DeviceRegistry.DEFAULT_REVALIDATION_TIMEOUT_MILLIS);
+        // A discovered Roku supersedes the registry's view of it (it may have been assigned a new IP address).
+        Map<String, Device> found = new LinkedHashMap<>();
+        for (Device d : liveRokus) {
+            found.put(d.getUSN(), d);
+        }
+        for (Device d : discoveredRokus) {
+            found.put(d.getUSN(), d);
+        }
+        List<Device> gone = new ArrayList<>();
+        for (Device d : missingRokus) {
+            if (!found.containsKey(d.getUSN())) {
+                gone.add(d);
+                System.out.printf("WARNING: known Roku %s was not found; removing it from the registry.",
+                        d.getDescriptionUrl());
+                System.out.println();
+            }
+        }
+        registry.forget(gone);
+        saveRegistry(registry);
+        return new ArrayList<>(found.values());
+    }
+
+    private static void saveRegistry(DeviceRegistry registry) {
+        try {
+            registry.save();
+        } catch (IOException ioe) {
+            System.out.printf("WARNING: could not save device registry %s: %s", registry.getFile(),
+                    ioe.getMessage());
+            System.out.println();
         }
-        return discoveredRokus.get(rokuIdx);
     }
 
-    private static void installApps(Device roku) {
+    /**
+     * Determine if an installed app should be exercised.
+     * @param app An app installed on a Roku.
+     * @return {@code false} for apps that are hardwired on the Roku, {@code true} otherwise.
+     */
+    static boolean isExercisable(AppInfo app) {
+        // Hack to exclude https://channelstore.roku.com/details/31012/fandangonow
+        // This app is hardwired on the Roku - there is no way to remove it.
+        return app.getId() != 31012;
+    }
+
+    private static void installApps(List<Device> rokus) {
         System.out.println("Type the path to the file that defines what channels to install, then press enter.");
         Scanner stdIn = new Scanner(System.in);
-        Set<Integer> appIds;
+        ChannelIdSet appIds;
         while (true) {
             String line = stdIn.nextLine();
             File f = new File(line);
@@ -162,71 +426,259 @@ public class Main {
                 System.out.println("Invalid file path, or unreadable file. Please try again.");
                 continue;
             }
-            List<String> lines;
-            try {
-                lines = Files.readAllLines(p);
+            // Stream the IDs into a bitset rather than loading the file; malformed lines are reported and skipped.
+            appIds = new ChannelIdSet();
+            try (ChannelIdReader reader = ChannelIdReader.open(f)) {
+                reader.setShard(sShardIndex, sShardCount);
+                reader.readAll(appIds::add);
             } catch (IOException ioe) {
                 System.out.println("Error occurred while reading specified file. Please try again.");
                 continue;
             }
-            // Assume a single app ID in each line.
-            appIds = new HashSet<>();
-            for (String ln : lines) {
-                if (ln.trim().startsWith("#")) {
-                    // Interpret pound sign as comment
-                    continue;
-                }
-                try {
-                    appIds.add(Integer.parseInt(ln));
-                } catch (NumberFormatException nfe) {
-                    System.out.println("WARNING: line could not be parsed as a channel ID: '" + line + "'.");
-                }
-            }
             if (appIds.size() == 0) {
                 System.out.println("Provided file did not contain any channel IDs or was in an incorrect format.");
                 continue;
             } else {
                 System.out.printf("Successfully read %d channel IDs from file.", appIds.size());
                 System.out.println();
+                if (sShardCount > 1) {
+                    System.out.printf("(Only the channels in shard %d/%d are installed.)", sShardIndex, sShardCount);
+                    System.out.println();
+                }
                 break;
             }
         }
-        RokuAppInstaller rokuAppInstaller = new RokuAppInstaller(roku);
-        try {
-            List<RokuAppInstaller.AppInstallReport> reports = rokuAppInstaller.installApps(appIds);
-            long successes = reports.stream().filter(r -> r.isInstalled()).count();
-            long failures = reports.stream().filter(r -> !r.isInstalled()).count();
-            System.out.printf("Successfully installed %d apps.", successes);
+        if (rokus.size() > 1) {
+            System.out.printf("Enter 's' to split the channels over the %d selected Rokus (each channel is installed " +
+                    "on one of them), or press enter to install all channels on every Roku.", rokus.size());
             System.out.println();
-            if (failures > 0) {
-                System.out.printf("Installation failed for %d apps.", failures);
+            if (stdIn.nextLine().trim().equalsIgnoreCase("s")) {
+                ChannelIdSet[] splits = new ChannelIdSet[rokus.size()];
+                for (int i = 0; i < splits.length; i++) {
+                    splits[i] = new ChannelIdSet();
+                }
+                appIds.forEachId(id -> splits[ChannelIdReader.shardOf(id, splits.length, DEVICE_SHARD_SALT)].add(id));
+                installApps(rokus, Arrays.asList(splits));
+                return;
+            }
+        }
+        installApps(rokus, Collections.nCopies(rokus.size(), appIds));
+    }
+
+    /**
+     * Install apps on several Rokus at the same time, one thread per Roku, and print a summary for each Roku once all
+     * of them are done.
+     * @param rokus The Rokus.
+     * @param appIds For each Roku, the IDs of the apps to install on it.
+     */
+    private static void installApps(List<Device> rokus, List<? extends Set<Integer>> appIds) {
+        ExecutorService installers = Executors.newFixedThreadPool(rokus.size());
+        try {
+            List<Future<List<RokuAppInstaller.AppInstallReport>>> reports = new ArrayList<>();
+            for (int i = 0; i < rokus.size(); i++) {
+                Device roku = rokus.get(i);
+                Set<Integer> ids = appIds.get(i);
+                System.out.printf("Installing %d apps on %s.", ids.size(), roku.getDescriptionUrl());
                 System.out.println();
-                StringBuilder sb = new StringBuilder();
-                sb.append("Installation failed for apps with IDs: ");
-                List<Integer> failedInstalls = reports.stream().
-                        filter(r -> !r.isInstalled()).map(r -> r.getAppId()).collect(Collectors.toList());
-                for (int i = 0; i < failedInstalls.size(); i++) {
-                    Integer appId = failedInstalls.get(i);
-                    if (i > 0) {
-                        sb.append(", ");
+                reports.add(installers.submit(() -> new RokuAppInstaller(roku).installApps(ids)));
+            }
+            for (int i = 0; i < rokus.size(); i++) {
+                List<RokuAppInstaller.AppInstallReport> rokuReports;
+                try {
+                    rokuReports = reports.get(i).get();
+                } catch (ExecutionException ee) {
+                    if (!(ee.getCause() instanceof IOException)) {
+                        ee.getCause().printStackTrace();
                     }
-                    sb.append(appId);
+                    rokuReports = null;
                 }
-                System.out.println(sb.toString());
+                printInstallSummary(rokus.get(i), rokuReports);
             }
-        } catch (IOException e) {
-            System.out.println("Installation reports could not be produced. Some apps may not have been installed.");
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            installers.shutdownNow();
         }
     }
 
-    private static void exerciseApps(Device roku) {
+    /**
+     * @param reports The install reports of the Roku, or {@code null} if they could not be produced.
+     */
+    private static void printInstallSummary(Device roku, List<RokuAppInstaller.AppInstallReport> reports) {
+        if (reports == null) {
+            System.out.printf("Installation reports could not be produced for %s. Some apps may not have been " +
+                    "installed.", roku.getDescriptionUrl());
+            System.out.println();
+            return;
+        }
+        long successes = reports.stream().filter(r -> r.isInstalled()).count();
+        long failures = reports.stream().filter(r -> !r.isInstalled()).count();
+        System.out.printf("Successfully installed %d apps on %s.", successes, roku.getDescriptionUrl());
+        System.out.println();
+        if (failures > 0) {
+            System.out.printf("Installation failed for %d apps.", failures);
+            System.out.println();
+            StringBuilder sb = new StringBuilder();
+            sb.append("Installation failed for apps with IDs: ");
+            List<Integer> failedInstalls = reports.stream().
+                    filter(r -> !r.isInstalled()).map(r -> r.getAppId()).collect(Collectors.toList());
+            for (int i = 0; i < failedInstalls.size(); i++) {
+                Integer appId = failedInstalls.get(i);
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(appId);
+            }
+            System.out.println(sb.toString());
+        }
+    }
+
+    private static void exerciseApps(List<Device> rokus) {
         Scanner stdIn = new Scanner(System.in);
         System.out.println("Enter the name of the network interface to record traffic on, then press enter.");
         String nif = stdIn.nextLine().trim();
         System.out.println("Enter the path to the output directory, then press enter.");
         String baseDir = stdIn.nextLine().trim();
+        System.out.println("Enter the path to a directory of exercise plans (leave empty to use the default plan), " +
+                "then press enter.");
+        String planDir = stdIn.nextLine().trim();
+        ExercisePlanLibrary planLibrary;
+        try {
+            planLibrary = planDir.isEmpty() ? ExercisePlanLibrary.builtIn() :
+                    ExercisePlanLibrary.load(new File(planDir));
+        } catch (IOException | ParseException e) {
+            System.out.printf("ERROR: could not load exercise plans: %s. Terminating.", e.getMessage());
+            System.out.println();
+            return;
+        }
+        System.out.printf("Loaded %d exercise plan(s).", Math.max(1, planLibrary.getPlans().size()));
+        System.out.println();
+        System.out.println("Enter the format of the network traces: pcap or pcap.gz (gzip compressed), optionally " +
+                "followed by a max file size in MB after which a trace is continued in a new file (e.g. 'pcap.gz " +
+                "500'), then press enter. Leave empty for uncompressed pcap files of unlimited size.");
+        Consumer<CaptureSession> captureConfig;
+        while (true) {
+            captureConfig = parseTraceFormat(stdIn.nextLine().trim());
+            if (captureConfig != null) {
+                break;
+            }
+            System.out.println("Invalid format, please try again.");
+        }
+
+        // Progress is journaled in the output directory, so that rerunning the task on the same directory resumes an
+        // interrupted batch.
+        CheckpointJournal journal;
+        try {
+            journal = CheckpointJournal.open(new File(baseDir, CheckpointJournal.DEFAULT_FILENAME));
+        } catch (IOException ioe) {
+            System.out.printf("ERROR: could not open checkpoint journal: %s. Terminating.", ioe.getMessage());
+            System.out.println();
+            return;
+        }
+        // Errors and step timings of all apps go to a single log in the output directory.
+        RunLog runLog = null;
+        try {
+            runLog = RunLog.open(new File(baseDir, RunLog.DEFAULT_FILENAME));
+        } catch (IOException ioe) {
+            System.out.printf("WARNING: could not open run log: %s. Errors will only be printed.", ioe.getMessage());
+            System.out.println();
+        }
+        try {
+            if (rokus.size() == 1) {
+                exerciseApps(rokus.get(0), nif, baseDir, planLibrary, journal, runLog, captureConfig);
+            } else {
+                exerciseAppsOnFleet(rokus, nif, baseDir, planLibrary, journal, runLog, captureConfig);
+            }
+        } finally {
+            try {
+                journal.close();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+            if (runLog != null) {
+                closeRunLog(runLog);
+            }
+        }
+    }
+
+    private static void closeRunLog(RunLog runLog) {
+        try {
+            runLog.close();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        if (runLog.getDroppedCount() > 0) {
+            System.out.printf("WARNING: %d entries could not be logged to %s.", runLog.getDroppedCount(),
+                    runLog.getFile());
+            System.out.println();
+        }
+    }
+
+    /**
+     * Parse the answer to the network trace format prompt.
+     * @return A function that configures a capture session for the format, or {@code null} if {@code format} is
+     *         invalid.
+     */
+    private static Consumer<CaptureSession> parseTraceFormat(String format) {
+        String[] tokens = format.isEmpty() ? new String[] { "pcap" } : format.split("\\s+");
+        SegmentedPcapWriter.Compression compression;
+        if ("pcap".equalsIgnoreCase(tokens[0])) {
+            compression = SegmentedPcapWriter.Compression.NONE;
+        } else if ("pcap.gz".equalsIgnoreCase(tokens[0])) {
+            compression = SegmentedPcapWriter.Compression.GZIP;
+        } else {
+            return null;
+        }
+        long maxMegabytes = 0;
+        if (tokens.length > 1) {
+            try {
+                maxMegabytes = Long.parseLong(tokens[1]);
+            } catch (NumberFormatException nfe) {
+                return null;
+            }
+            if (maxMegabytes <= 0) {
+                return null;
+            }
+        }
+        final long maxSegmentBytes = maxMegabytes * 1024 * 1024;
+        return session -> {
+            session.setCompression(compression);
+            session.setSegmentLimits(maxSegmentBytes, 0);
+        };
+    }
 
-        RokuEcpClient rokuEcpClient = new RokuEcpClient(roku);
+    private static void exerciseAppsOnFleet(List<Device> rokus, String nif, String baseDir,
+                                            ExercisePlanLibrary planLibrary, CheckpointJournal journal,
+                                            RunLog runLog, Consumer<CaptureSession> captureConfig) {
+        FleetOrchestrator fleet = new FleetOrchestrator(rokus, nif, baseDir);
+        fleet.setPlanLibrary(planLibrary);
+        fleet.setJournal(journal);
+        fleet.setRunLog(runLog);
+        fleet.setCaptureConfig(captureConfig);
+        FleetOrchestrator.FleetReport report;
+        try {
+            report = fleet.exerciseApps();
+        } catch (InterruptedException ie) {
+            System.out.println("ERROR: interrupted while waiting for the fleet to finish. Terminating.");
+            return;
+        }
+        System.out.printf("Successfully exercised %d apps.", report.getExercised().size());
+        System.out.println();
+        for (Device roku : report.getRetiredRokus()) {
+            System.out.printf("WARNING: %s was removed from the fleet during the run.", roku.getDescriptionUrl());
+            System.out.println();
+        }
+        if (report.getNotExercised().size() > 0) {
+            String failedApps = report.getNotExercised().stream().
+                    map(app -> Integer.toString(app.getId())).collect(Collectors.joining(", "));
+            System.out.println("Exercise failed for apps with IDs: " + failedApps);
+        }
+    }
+
+    private static void exerciseApps(Device roku, String nif, String baseDir, ExercisePlanLibrary planLibrary,
+                                     CheckpointJournal journal, RunLog runLog,
+                                     Consumer<CaptureSession> captureConfig) {
+        RokuEcpClient rokuEcpClient = RokuEcpClient.forDevice(roku);
         // Get the set of apps installed on the Roku.
         HttpResponse<AppInfo[]> appsResponse;
         try {
@@ -238,20 +690,70 @@ public class Main {
         if (appsResponse.getStatus() == 200) {
             System.out.printf("Found %d apps on %s.", appsResponse.getBody().length, roku.getDescriptionUrl());
             System.out.println();
-            // Exercise each installed app.
-            for(AppInfo app : appsResponse.getBody()) {
-                if (app.getId() == 31012) {
-                    // Hack to exclude https://channelstore.roku.com/details/31012/fandangonow
-                    // This app is hardwired on the Roku - there is no way to remove it.
-                    continue;
+            // Keep a single capture session open for the entire batch, rotating its output file for each app.
+            CaptureSession captureSession = CaptureSession.forDevice(nif, roku);
+            captureConfig.accept(captureSession);
+            // Apps that succeeded, keyed by their capture file; journaled as finished once that file is closed.
+            Map<File, Integer> openCaptures = new HashMap<>();
+            captureSession.setOutputClosedListener(file -> {
+                Integer appId;
+                synchronized (openCaptures) {
+                    appId = openCaptures.remove(file);
                 }
-                System.out.printf("Exercising %s...", app.getName());
-                System.out.println();
-                DefaultRokuAppExerciser appExerciser = new DefaultRokuAppExerciser(roku, app, baseDir);
-                appExerciser.setNifName(nif);
-                appExerciser.run();
-                System.out.printf("Done exercising %s.", app.getName());
+                if (appId != null) {
+                    journal.appendOrWarn(CheckpointJournal.Event.CAPTURE_FINALIZED, appId, file.getName());
+                }
+            });
+            try {
+                captureSession.open();
+            } catch (PcapNativeException pne) {
+                System.out.printf("ERROR: Could not open network interface %s for capture. Terminating.", nif);
                 System.out.println();
+                return;
+            }
+            RunMetrics metrics = RunMetrics.get();
+            metrics.addAppsToDo((int) Arrays.stream(appsResponse.getBody())
+                    .filter(app -> isExercisable(app) && !journal.isFinished(app.getId())).count());
+            try {
+                // Exercise each installed app.
+                for(AppInfo app : appsResponse.getBody()) {
+                    if (!isExercisable(app)) {
+                        continue;
+                    }
+                    if (journal.isFinished(app.getId())) {
+                        System.out.printf("Skipping %s (finished in a previous run).", app.getName());
+                        System.out.println();
+                        continue;
+                    }
+                    System.out.printf("Exercising %s...", app.getName());
+                    System.out.println();
+                    DefaultRokuAppExerciser appExerciser = new DefaultRokuAppExerciser(roku, app, baseDir);
+                    appExerciser.setCaptureSession(captureSession);
+                    appExerciser.setRunLog(runLog);
+                    appExerciser.setPlan(planLibrary.planFor(app.getId()));
+                    journal.appendOrWarn(CheckpointJournal.Event.STARTED, app.getId(), roku.getIPAddress());
+                    appExerciser.run();
+                    if (appExerciser.getError().isPresent()) {
+                        journal.appendOrWarn(CheckpointJournal.Event.FAILED, app.getId(),
+                                appExerciser.getError().get().toString());
+                    } else {
+                        journal.appendOrWarn(CheckpointJournal.Event.SUCCEEDED, app.getId(), roku.getIPAddress());
+                        synchronized (openCaptures) {
+                            openCaptures.put(appExerciser.getPcapFile(), app.getId());
+                        }
+                    }
+                    metrics.recordAppDone(!appExerciser.getError().isPresent());
+                    System.out.printf("Done exercising %s.", app.getName());
+                    System.out.println();
+                    System.out.println(metrics.getProgressLine());
+                    if (captureSession.getError().isPresent()) {
+                        System.out.printf("ERROR: Capture failed (%s). Terminating.", captureSession.getError().get());
+                        System.out.println();
+                        break;
+                    }
+                }
+            } finally {
+                captureSession.close();
             }
         } else {
             System.out.println("ERROR: Query for installed apps failed. Terminating.");
@@ -263,9 +765,9 @@ public class Main {
 
         private final int mId;
         private final String mDescription;
-        private final Consumer<Device> mJob;
+        private final Consumer<List<Device>> mJob;
 
-        private Task(int id, String description, Consumer<Device> job) {
+        private Task(int id, String description, Consumer<List<Device>> job) {
             mId = id;
             mDescription = description;
             mJob = job;
@@ -279,8 +781,8 @@ public class Main {
             return mDescription;
         }
 
-        private void execute(Device roku) {
-            mJob.accept(roku);
+        private void execute(List<Device> rokus) {
+            mJob.accept(rokus);
         }
 
     }
@@ -16,9 +16,12 @@
  */
 package edu.uci.eng.athinagroup.smarttv.rokustic;
 
-import org.pcap4j.core.*;
-import org.pcap4j.packet.namednumber.DataLinkType;
+import edu.uci.eng.athinagroup.smarttv.rokustic.capture.CaptureSession;
+import edu.uci.eng.athinagroup.smarttv.rokustic.capture.CaptureStats;
+import org.pcap4j.core.PcapNativeException;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 
@@ -27,7 +30,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * file. Instances of this class are "use once, then throw away", i.e., once {@link #startCapture(String, String)} has
  * been called, any additional invocations of that same method will result in an error. If you wish to rerun the capture
  * for the same network interface and output to (overwrite) the same file, you should create a new {@code Pcap4jTcpDump}
- * instance.<br/><br/>
+ * instance. To capture several consecutive runs without reopening the network interface in between, use a single
+ * {@link CaptureSession} and rotate its output file instead.<br/><br/>
  *
  * Note that this is just a simple composition of building blocks from the amazing {@code pcap4j} library. Credit goes
  * to the author, Kaito Yamada.
@@ -37,36 +41,15 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class Pcap4jTcpDump {
 
     /**
-     * Handle for reading packets associated with the target network interface.
+     * The capture session that does the actual work.
      */
-    private volatile PcapHandle mNifReader;
-
-    /**
-     * Responsible for outputting packets to a file.
-     */
-    private volatile PcapDumper mPcapWriter;
+    private volatile CaptureSession mSession;
 
     /**
      * Flag that indicates if the capture was (ever) started.
      */
     private AtomicBoolean mStarted = new AtomicBoolean(false);
 
-    /**
-     * Thread responsible for parsing and writing captured packets.
-     */
-    private final Thread mCaptureThread = new Thread(() -> {
-        try {
-            mNifReader.loop(-1, mPcapWriter);
-        } catch (PcapNativeException|NotOpenException e) {
-            e.printStackTrace();
-        } catch (InterruptedException e) {
-            // Result of a call to breakLoop()
-            // Note that it may potentially be necessary to write bogus packets to handle here in order to flush buffers
-            // and have the capture terminate (see breakLoop() javadoc).
-            System.out.printf("Capture marked for termination.");
-        }
-    });
-
     /**
      * Determine if the capture was started.
      * @return {@code true} if the capture was started, {@code false} otherwise. Note that this method will also
@@ -81,56 +64,42 @@ public class Pcap4jTcpDump {
      *
      * @param nifName name of the network interface that is the target of the capture.
      * @param outputPcapFilename name of the file where the packets are to be stored.
+     * @throws PcapNativeException if the network interface could not be opened.
+     * @throws IOException if the output file could not be created.
      */
-    public void startCapture(String nifName, String outputPcapFilename) throws PcapNativeException {
+    public void startCapture(String nifName, String outputPcapFilename) throws PcapNativeException, IOException {
         // Mark as started.
         if (!mStarted.compareAndSet(false, true)) {
             throw new IllegalStateException("capture already started, can't start again");
         }
-
-        // Get the selected nif.
-        PcapNetworkInterface nif = Pcaps.getDevByName(nifName);
-
-        // ==================== constants used below ====================
-        // Max number of bytes to capture for each packet.
-        final int snapshotLength = 65536;
-        // The link type. We assume all uses will be working with Ethernet links.
-        DataLinkType dlt = DataLinkType.EN10MB;
-        // Read timeout in millis, i.e. max time the OS should buffer packets before handing them to pcap4j.
-        final int readTimeout = 50;
-        // ==============================================================
-
-        // Prepare a dumper for writing the packets to a file.
+        mSession = new CaptureSession(nifName);
+        mSession.open();
         try {
-            mPcapWriter = Pcaps.openDead(dlt, snapshotLength).dumpOpen(outputPcapFilename);
-        } catch (NotOpenException noe) {
-            // Should never happen as the handle has just been opened in the openDead call, and as there are no calls
-            // inbetween openDead and dumpOpen, the handle cannot have been closed. Spare caller from having to deal
-            // with the checked exception type (as it will never occur) and instead rethrow as unchecked "just in case".
-            throw new RuntimeException(noe);
+            mSession.rotate(new File(outputPcapFilename));
+        } catch (IOException ioe) {
+            mSession.close();
+            throw ioe;
         }
-
-        // Set up the handle that reads the packets.
-        mNifReader = nif.openLive(snapshotLength, PcapNetworkInterface.PromiscuousMode.PROMISCUOUS, readTimeout);
-
-        // Now start the thread that will read packets from the handle and write them to a file.
-        mCaptureThread.start();
     }
 
     /**
-     * Stop capturing traffic.
+     * Stop capturing traffic. Returns once all captured packets have been written to the output file.
      */
     public void stopCapture() {
         if (!isStarted()) {
             throw new IllegalStateException("cannot stop a capture that was never started");
         }
-        try {
-            mNifReader.breakLoop();
-        } catch (NotOpenException e) {
-            // Should never happen, so spare caller from having to deal with the checked exception type and instead
-            // rethrow as unchecked.
-            throw new RuntimeException(e);
-        }
+        mSession.close();
+    }
+
+    /**
+     * Get the packet counters of this capture. Counters are live while the capture is running, and final once the
+     * capture has terminated.
+     * @return a snapshot of the packet counters of this capture.
+     */
+    public CaptureStats getStats() {
+        CaptureSession session = mSession;
+        return session == null ? new CaptureStats(0, 0, 0, 0, 0) : session.getStats();
     }
 
 }
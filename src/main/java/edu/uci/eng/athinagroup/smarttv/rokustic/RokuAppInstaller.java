@@ -20,8 +20,8 @@ import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.exceptions.UnirestException;
 import com.vmichalak.protocol.ssdp.Device;
 import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.RokuEcpClient;
-import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model.AppInfo;
 import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model.RokuRemoteKey;
+import edu.uci.eng.athinagroup.smarttv.rokustic.metrics.RunMetrics;
 
 import java.io.IOException;
 import java.util.*;
@@ -34,18 +34,36 @@ import java.util.concurrent.TimeUnit;
  */
 public class RokuAppInstaller {
 
+    /**
+     * Default value for {@link #getMaxPendingInstalls()}.
+     */
+    public static final int DEFAULT_MAX_PENDING_INSTALLS = 3;
+
+    /**
+     * Time after which an install that has not completed is considered to have failed.
+     */
+    private static final long INSTALL_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(75);
+
+    private static final long INSTALL_POLL_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
     private final RokuEcpClient mEcpClient;
 
+    private final RunMetrics mMetrics = RunMetrics.get();
+
+    private int mMaxPendingInstalls = DEFAULT_MAX_PENDING_INSTALLS;
+
     /**
      * Create a {@code RokuAppInstaller} that will install apps on the given Roku device.
      * @param roku The Roku device on which this {@code RokuAppInstaller} will install apps.
      */
     public RokuAppInstaller(Device roku) {
-        mEcpClient = new RokuEcpClient(roku);
+        mEcpClient = RokuEcpClient.forDevice(roku);
     }
 
     /**
-     * Install a set of apps on the Roku.
+     * Install a set of apps on the Roku. Up to {@link #getMaxPendingInstalls()} installs are in progress at the same
+     * time, and all of them are checked for completion with a single query for the installed apps per poll. Apps that
+     * are already installed are skipped.
      *
      * @param appIds IDs identifying the apps to be installed.
      * @return A collection of installation reports, one for each element in {@code appIds} indicating whether that
@@ -56,17 +74,22 @@ public class RokuAppInstaller {
      */
     public List<AppInstallReport> installApps(Collection<Integer> appIds) throws IOException {
         Map<Integer, AppInstallReport> errorReports = new HashMap<>();
+        InstalledAppsTracker tracker = new InstalledAppsTracker(mEcpClient);
+        try {
+            // Snapshot of the apps that are already installed; these need not be installed again.
+            tracker.refresh();
+        } catch (UnirestException ue) {
+            System.err.printf("[%s] WARNING: could not query installed apps; attempting to install all apps.",
+                    mEcpClient.getDevice().getIPAddress());
+            System.err.println();
+        }
         for (Integer appId : appIds) {
+            if (tracker.isInstalled(appId)) {
+                continue;
+            }
             try {
+                // No fixed breather between requests: the client's rate limiter paces them to what the Roku copes with.
                 HttpResponse<String> response = mEcpClient.installApp(appId);
-
-                // Give the Roku a breather (seems it sometimes stops responding when sending back to back requests)
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException ie) {
-                    // Ignore.
-                }
-
                 if (response.getStatus() != 200) {
                     // E.g., a 503 Service Unavailable response will be returned if the app is already installed, or if
                     // no app in the Roku Channel Store matches the supplied ID.
@@ -80,52 +103,33 @@ public class RokuAppInstaller {
                     // Some unexpected result when pressing SELECT => means installation was not started. Too bad.
                     continue;
                 }
-                int waits = 0;
-                final int maxWaits = 15;
-                boolean installed;
-                System.out.printf("Installing app with ID=%d...", appId);
-                // Wait for the app to install (or give up after a while)
-                while (!(installed = isInstalled(appId)) && waits < maxWaits) {
-                    try {
-                        Thread.sleep(TimeUnit.SECONDS.toMillis(5));
-                    } catch (InterruptedException ie) {
-                        System.err.printf("WARNING: interrupted while waiting for app with ID=%d to install.", appId);
-                        System.err.println();
-                    }
-                    System.out.print(".");
-                    waits++;
-                }
+                System.out.printf("[%s] Installing app with ID=%d...", mEcpClient.getDevice().getIPAddress(), appId);
                 System.out.println();
-                if (installed) {
-                    System.out.println(String.format("Successfully installed app with ID=%d.", appId));
-                } else {
-                    System.out.println(
-                            String.format("WARNING: timed out when attempting to install app with ID=%d.", appId));
-                }
+                tracker.addPending(appId, System.currentTimeMillis() + INSTALL_TIMEOUT_MILLIS);
+                mMetrics.recordInstallStarted();
             } catch (UnirestException ue) {
                 // Error occurred in one of the REST queries sent to the Roku.
-                // Note that the app may actually have been successfully installed even though we observe an error,
-                // namely when it is the call to isInstalled during the while loop that causes an error.
                 errorReports.put(appId, new AppInstallReport(appId, false, ue));
             }
+            // Let the installs started so far complete in the background, unless too many are already in progress.
+            awaitPendingInstalls(tracker, mMaxPendingInstalls - 1, errorReports);
         }
+        awaitPendingInstalls(tracker, 0, errorReports);
         // Determine which apps were successfully installed.
         // We'll consider apps that were already installed prior to calling this method as successful installs.
-        List<AppInstallReport> reports = new ArrayList<>();
-        AppInfo[] installedApps;
-        try {
-            installedApps = mEcpClient.getInstalledApps().getBody();
-        } catch (UnirestException ue) {
-            // Rethrow wrapped in IOException to let caller know that we could not produce a meaningful summary of the
-            // (un)successful installations since the getInstalledApps() call failed.
-            throw new IOException("Installation summary unavailable: could not query installed apps.", ue);
-        }
-        HashSet<Integer> installedAppsIds = new HashSet<>();
-        for (AppInfo appInfo : installedApps) {
-            installedAppsIds.add(appInfo.getId());
+        if (!tracker.hasSnapshot() || !errorReports.isEmpty()) {
+            // The cached view may be stale: an install may have completed after it timed out or after a query failed.
+            try {
+                tracker.refresh();
+            } catch (UnirestException ue) {
+                // Rethrow wrapped in IOException to let caller know that we could not produce a meaningful summary of
+                // the (un)successful installations since the query for installed apps failed.
+                throw new IOException("Installation summary unavailable: could not query installed apps.", ue);
+            }
         }
+        List<AppInstallReport> reports = new ArrayList<>();
         for (Integer appId : appIds) {
-            if (installedAppsIds.contains(appId)) {
+            if (tracker.isInstalled(appId)) {
                 reports.add(new AppInstallReport(appId, true));
             } else {
                 // Fetch the prebuilt error report (in case we encountered an exception above), or create one.
@@ -136,6 +140,66 @@ public class RokuAppInstaller {
         return reports;
     }
 
+    /**
+     * Poll the Roku until at most {@code maxPending} installs are pending. Each poll resolves all pending installs
+     * whose app has appeared in one query, and installs that have not completed within
+     * {@link #INSTALL_TIMEOUT_MILLIS} are given up on.
+     */
+    private void awaitPendingInstalls(InstalledAppsTracker tracker, int maxPending,
+                                      Map<Integer, AppInstallReport> errorReports) {
+        while (tracker.getPending().size() > Math.max(maxPending, 0)) {
+            try {
+                Thread.sleep(INSTALL_POLL_INTERVAL_MILLIS);
+            } catch (InterruptedException ie) {
+                System.err.println("WARNING: interrupted while waiting for apps to install.");
+            }
+            // Remember the pending installs, so that a failed query can be attributed to them.
+            Set<Integer> pending = new HashSet<>(tracker.getPending());
+            try {
+                mMetrics.recordInstallPoll();
+                for (Integer appId : tracker.refreshIfPending()) {
+                    if (pending.contains(appId)) {
+                        mMetrics.recordInstallSucceeded();
+                        System.out.printf("[%s] Successfully installed app with ID=%d.",
+                                mEcpClient.getDevice().getIPAddress(), appId);
+                        System.out.println();
+                    }
+                }
+            } catch (UnirestException ue) {
+                // Note that the apps may still install successfully; keep polling until they time out.
+                for (Integer appId : pending) {
+                    errorReports.put(appId, new AppInstallReport(appId, false, ue));
+                }
+            }
+            for (Integer appId : tracker.expirePending(System.currentTimeMillis())) {
+                mMetrics.recordInstallTimedOut();
+                System.out.printf("[%s] WARNING: timed out when attempting to install app with ID=%d.",
+                        mEcpClient.getDevice().getIPAddress(), appId);
+                System.out.println();
+                errorReports.putIfAbsent(appId, new AppInstallReport(appId, false));
+            }
+        }
+    }
+
+    /**
+     * Set the max number of installs that may be in progress at the same time. Installs run in the background on the
+     * Roku, so the next install can be started while earlier installs are still downloading.
+     * @param maxPendingInstalls The max number of concurrent installs. 1 installs apps strictly one after the other.
+     */
+    public void setMaxPendingInstalls(int maxPendingInstalls) {
+        if (maxPendingInstalls < 1) {
+            throw new IllegalArgumentException("maxPendingInstalls must be positive");
+        }
+        mMaxPendingInstalls = maxPendingInstalls;
+    }
+
+    /**
+     * @return The max number of installs that may be in progress at the same time.
+     */
+    public int getMaxPendingInstalls() {
+        return mMaxPendingInstalls;
+    }
+
     /**
      * Query the Roku device to check if a given app is installed.
      * @param appId The ID of the app.
@@ -143,7 +207,7 @@ public class RokuAppInstaller {
      * @throws UnirestException if an error occurs when querying the Roku device for its installed apps.
      */
     public boolean isInstalled(int appId) throws UnirestException {
-        return Arrays.stream(mEcpClient.getInstalledApps().getBody()).anyMatch(appInfo -> appInfo.getId() == appId);
+        return mEcpClient.isAppInstalled(appId);
     }
 
     /**
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.mashape.unirest.http.HttpResponse;
+import edu.uci.eng.athinagroup.smarttv.rokustic.plan.ExercisePlan;
+import edu.uci.eng.athinagroup.smarttv.rokustic.plan.StepTimings;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ *     A structured log of a run: HTTP error responses (including their bodies), errors that aborted the exercise of an
+ *     app, and the step timings of each exercised app, as one JSON object per line in a single file per output
+ *     directory. Every entry carries the time it was logged, its type, the app ID and the Roku, so the log of a large
+ *     batch can be filtered with e.g. {@code grep '"app_id":12,'} or {@code jq}.
+ * </p>
+ * <p>
+ *     Logging does not block: the logging thread only adds the entry to a lock-free queue. A background thread
+ *     serializes each queued entry into a buffer of its own, so that only complete lines are appended to the file,
+ *     and writes the entries in batches, flushing after each batch. If the background thread
+ *     falls more than {@link #MAX_PENDING_ENTRIES} entries behind, further entries are dropped (and the number of
+ *     dropped entries is logged) rather than letting the queue grow without bound.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class RunLog implements Closeable {
+
+    /**
+     * Name of the run log in an output directory.
+     */
+    public static final String DEFAULT_FILENAME = "run-log.jsonl";
+
+    /**
+     * Max number of entries waiting to be written.
+     */
+    public static final int MAX_PENDING_ENTRIES = 100_000;
+
+    /**
+     * Max number of characters of a response body that are logged.
+     */
+    private static final int MAX_BODY_CHARS = 64 * 1024;
+
+    /**
+     * How long the background thread sleeps when there is nothing to write.
+     */
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final File mFile;
+    private final Writer mOut;
+    /**
+     * The entry being serialized. Only used by {@link #mAppender}.
+     */
+    private final StringWriter mLine = new StringWriter();
+    private final Queue<Entry> mQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mPending = new AtomicInteger();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final Thread mAppender = new Thread(this::appendEntries, "run-log");
+    private volatile boolean mClosed = false;
+
+    private RunLog(File file, Writer out) {
+        mFile = file;
+        mOut = out;
+        mAppender.setDaemon(true);
+        mAppender.start();
+    }
+
+    /**
+     * Open a run log for appending.
+     *
+     * @param file The log file. Created if it does not exist.
+     * @return The run log.
+     * @throws IOException if the file could not be opened.
+     */
+    public static RunLog open(File file) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                StandardCharsets.UTF_8), 1 << 16);
+        return new RunLog(file, out);
+    }
+
+    /**
+     * Log an ECP request that was not answered with status 200.
+     *
+     * @param appId The app that was being exercised.
+     * @param device The Roku the request was sent to.
+     * @param note What the request was for, e.g. the label of the step of the exercise plan.
+     * @param response The response. Its body is read by the background thread.
+     */
+    public void httpError(int appId, String device, String note, HttpResponse<?> response) {
+        enqueue("http_error", appId, device, json -> {
+            json.writeStringField("note", note);
+            json.writeNumberField("status", response.getStatus());
+            json.writeStringField("status_text", response.getStatusText());
+            json.writeObjectFieldStart("headers");
+            for (Map.Entry<String, List<String>> h : response.getHeaders().entrySet()) {
+                json.writeStringField(h.getKey(), String.join(", ", h.getValue()));
+            }
+            json.writeEndObject();
+            json.writeStringField("body", body(response));
+        });
+    }
+
+    /**
+     * Log an error that aborted the exercise of an app.
+     *
+     * @param appId The app that was being exercised.
+     * @param device The Roku the app was exercised on.
+     * @param error The error.
+     */
+    public void exception(int appId, String device, Throwable error) {
+        enqueue("exception", appId, device, json -> {
+            json.writeStringField("message", String.valueOf(error.getMessage()));
+            StringWriter trace = new StringWriter();
+            error.printStackTrace(new PrintWriter(trace));
+            json.writeStringField("stack_trace", trace.toString());
+        });
+    }
+
+    /**
+     * Log the timings of the steps of an exercise plan. {@code timings} must not change after this call.
+     *
+     * @param appId The app that was exercised.
+     * @param device The Roku the app was exercised on.
+     * @param timings The step timings.
+     */
+    public void steps(int appId, String device, StepTimings timings) {
+        enqueue("steps", appId, device, json -> {
+            ExercisePlan plan = timings.getPlan();
+            json.writeArrayFieldStart("steps");
+            for (int i = 0; i < plan.size(); i++) {
+                json.writeStartObject();
+                json.writeStringField("op", plan.getOp(i).name());
+                json.writeStringField("label", plan.getLabel(i));
+                json.writeNumberField("start_millis", timings.getStartMillis(i));
+                json.writeNumberField("end_millis", timings.getEndMillis(i));
+                json.writeNumberField("outcome", timings.getOutcome(i));
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+        });
+    }
+
+    /**
+     * @return The number of entries that were dropped because the background thread fell too far behind.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Write all entries logged so far and close the log.
+     */
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        LockSupport.unpark(mAppender);
+        try {
+            mAppender.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        mOut.close();
+    }
+
+    private void enqueue(String type, int appId, String device, Fields fields) {
+        if (mClosed) {
+            throw new IllegalStateException("run log is closed");
+        }
+        if (mPending.incrementAndGet() > MAX_PENDING_ENTRIES) {
+            mPending.decrementAndGet();
+            mDropped.incrementAndGet();
+            return;
+        }
+        mQueue.offer(new Entry(System.currentTimeMillis(), type, appId, device, fields));
+    }
+
+    /**
+     * Body of {@link #mAppender}: writes queued entries until the log is closed and the queue is empty.
+     */
+    private void appendEntries() {
+        long reportedDrops = 0;
+        while (true) {
+            // Read the flag before draining: once set, no more entries are added.
+            boolean closed = mClosed;
+            int written = 0;
+            Entry entry;
+            try {
+                while ((entry = mQueue.poll()) != null) {
+                    mPending.decrementAndGet();
+                    write(entry);
+                    written++;
+                }
+                long dropped = mDropped.get();
+                if (dropped > reportedDrops) {
+                    final long count = dropped - reportedDrops;
+                    write(new Entry(System.currentTimeMillis(), "dropped", -1, null,
+                            json -> json.writeNumberField("count", count)));
+                    reportedDrops = dropped;
+                    written++;
+                }
+                if (written > 0) {
+                    mOut.flush();
+                }
+            } catch (IOException ioe) {
+                System.err.printf("WARNING: could not write run log %s: %s", mFile, ioe.getMessage());
+                System.err.println();
+            }
+            if (closed) {
+                return;
+            }
+            if (written == 0) {
+                LockSupport.parkNanos(this, IDLE_NANOS);
+            }
+        }
+    }
+
+    private void write(Entry entry) throws IOException {
+        try {
+            serialize(entry, entry.mFields);
+        } catch (RuntimeException | IOException e) {
+            // The entry's data could not be read (or left the generator in a nested object): discard the partial
+            // entry and log the error in its place, so that the line is well-formed.
+            serialize(entry, json -> json.writeStringField("log_error", e.toString()));
+        }
+        StringBuffer line = mLine.getBuffer();
+        line.append('\n');
+        mOut.append(line);
+    }
+
+    /**
+     * Serialize {@code entry} into {@link #mLine} (replacing its contents), with its type-specific fields written by
+     * {@code fields}. Uses a generator of its own so that a failed entry cannot affect the next.
+     */
+    private void serialize(Entry entry, Fields fields) throws IOException {
+        mLine.getBuffer().setLength(0);
+        JsonGenerator json = JSON.createGenerator(mLine);
+        json.writeStartObject();
+        json.writeNumberField("time", entry.mTimeMillis);
+        json.writeStringField("type", entry.mType);
+        if (entry.mAppId >= 0) {
+            json.writeNumberField("app_id", entry.mAppId);
+        }
+        if (entry.mDevice != null) {
+            json.writeStringField("device", entry.mDevice);
+        }
+        fields.write(json);
+        json.writeEndObject();
+        json.flush();
+    }
+
+    /**
+     * Read the body of {@code response} as text, truncated to {@link #MAX_BODY_CHARS}.
+     */
+    private static String body(HttpResponse<?> response) {
+        InputStream raw = response.getRawBody();
+        if (raw == null) {
+            return response.getBody() == null ? "" : String.valueOf(response.getBody());
+        }
+        // Assumes UTF-8; Rokus answer ECP requests with XML or plain text.
+        StringBuilder sb = new StringBuilder();
+        try (Reader in = new InputStreamReader(raw, StandardCharsets.UTF_8)) {
+            char[] buf = new char[4096];
+            int n;
+            while (sb.length() < MAX_BODY_CHARS && (n = in.read(buf)) != -1) {
+                sb.append(buf, 0, Math.min(n, MAX_BODY_CHARS - sb.length()));
+            }
+        } catch (IOException ioe) {
+            // Log what could be read.
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the type-specific fields of an entry. Invoked on the background thread.
+     */
+    private interface Fields {
+        void write(JsonGenerator json) throws IOException;
+    }
+
+    private static class Entry {
+
+        private final long mTimeMillis;
+        private final String mType;
+        private final int mAppId;
+        private final String mDevice;
+        private final Fields mFields;
+
+        private Entry(long timeMillis, String type, int appId, String device, Fields fields) {
+            mTimeMillis = timeMillis;
+            mType = type;
+            mAppId = appId;
+            mDevice = device;
+            mFields = fields;
+        }
+    }
+
+}
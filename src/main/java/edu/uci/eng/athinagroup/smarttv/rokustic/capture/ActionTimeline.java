@@ -0,0 +1,169 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.capture;
+
+import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model.RokuRemoteKey;
+import edu.uci.eng.athinagroup.smarttv.rokustic.plan.ExercisePlan;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     Records when each ECP action (app launch or key press) of one run of an {@link ExercisePlan} was sent to the
+ *     Roku and when the Roku answered it, on the clock of the packet capture: microseconds since the epoch, as in the
+ *     record headers of the pcap file. Traffic caused by an action can therefore be found by looking up the action's
+ *     timestamps in the trace, e.g. with {@link PcapIndex#read(long, long, PacketRing.PacketHandler)}.
+ * </p>
+ * <p>
+ *     The wall clock of the JVM only has millisecond resolution and may be stepped (e.g. by NTP) while the app is
+ *     exercised. Timestamps are therefore taken from {@link System#nanoTime()}, which is monotonic and has (sub-)
+ *     microsecond resolution, and are converted to wall clock time using an anchor that pairs the two clocks. The
+ *     anchor is taken when the timeline is created, at the moment the wall clock ticks over to its next millisecond,
+ *     so it is accurate to a few microseconds. As a new timeline is created for each app, the drift between the two
+ *     clocks never accumulates over more than one app.
+ * </p>
+ * <p>
+ *     All storage is allocated up front, sized to the plan, so recording an action does not allocate.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class ActionTimeline {
+
+    private final ExercisePlan mPlan;
+
+    /**
+     * Wall clock time of {@link #mAnchorNanos}, in microseconds since the epoch.
+     */
+    private final long mAnchorMicros;
+    private final long mAnchorNanos;
+
+    private final int[] mSteps;
+    private final long[] mSentMicros;
+    private final long[] mAnsweredMicros;
+    private final int[] mStatuses;
+    private int mSize;
+
+    /**
+     * Create a new, empty {@code ActionTimeline} and anchor its clock to the wall clock.
+     * @param plan The plan being run.
+     */
+    public ActionTimeline(ExercisePlan plan) {
+        mPlan = plan;
+        mSteps = new int[plan.size()];
+        mSentMicros = new long[plan.size()];
+        mAnsweredMicros = new long[plan.size()];
+        mStatuses = new int[plan.size()];
+        // Busy-wait for the wall clock to tick (at most a millisecond) to pin down where in its millisecond we are.
+        long millis = System.currentTimeMillis();
+        long next;
+        long nanos;
+        do {
+            nanos = System.nanoTime();
+            next = System.currentTimeMillis();
+        } while (next == millis);
+        mAnchorNanos = nanos;
+        mAnchorMicros = TimeUnit.MILLISECONDS.toMicros(next);
+    }
+
+    /**
+     * @return The current time on the clock of this timeline, in microseconds since the epoch.
+     */
+    public long nowMicros() {
+        return toMicros(System.nanoTime());
+    }
+
+    /**
+     * @param nanoTime A time as returned by {@link System#nanoTime()}.
+     * @return That time on the clock of this timeline, in microseconds since the epoch.
+     */
+    public long toMicros(long nanoTime) {
+        return mAnchorMicros + (nanoTime - mAnchorNanos) / 1000;
+    }
+
+    /**
+     * Record an action.
+     *
+     * @param step Index of the step that performed the action. Must be a {@code LAUNCH} or {@code KEY} step.
+     * @param sentMicros Time the request was sent, as returned by {@link #nowMicros()} or {@link #toMicros(long)}.
+     * @param status HTTP status code of the Roku's answer. The action is considered answered at the time of this call.
+     */
+    public void record(int step, long sentMicros, int status) {
+        long answeredMicros = nowMicros();
+        mSteps[mSize] = step;
+        mSentMicros[mSize] = sentMicros;
+        mAnsweredMicros[mSize] = answeredMicros;
+        mStatuses[mSize] = status;
+        mSize++;
+    }
+
+    /**
+     * @return The number of actions recorded.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public ExercisePlan getPlan() {
+        return mPlan;
+    }
+
+    /**
+     * @return Index of the step that performed the {@code i}th action.
+     */
+    public int getStep(int i) {
+        return mSteps[i];
+    }
+
+    public long getSentMicros(int i) {
+        return mSentMicros[i];
+    }
+
+    public long getAnsweredMicros(int i) {
+        return mAnsweredMicros[i];
+    }
+
+    public int getStatus(int i) {
+        return mStatuses[i];
+    }
+
+    /**
+     * Write the actions as tab-separated values, one line per action in the order they were performed, with a header
+     * line. The {@code label} column identifies the action as in the step timings, e.g. {@code SELECT #2}.
+     *
+     * @param file The output file. Replaced if it exists.
+     * @throws IOException if the file could not be written.
+     */
+    public void writeTsv(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8)))) {
+            out.println("step\top\tkey\tlabel\tsent_micros\tanswered_micros\tstatus");
+            for (int i = 0; i < mSize; i++) {
+                int step = mSteps[i];
+                RokuRemoteKey key = mPlan.getKey(step);
+                out.printf("%d\t%s\t%s\t%s\t%d\t%d\t%d%n", step, mPlan.getOp(step), key != null ? key : "-",
+                        mPlan.getLabel(step), mSentMicros[i], mAnsweredMicros[i], mStatuses[i]);
+            }
+            if (out.checkError()) {
+                throw new IOException("could not write action timeline to " + file);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,699 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.capture;
+
+import com.vmichalak.protocol.ssdp.Device;
+import edu.uci.eng.athinagroup.smarttv.rokustic.metrics.RunMetrics;
+import org.pcap4j.core.*;
+import org.pcap4j.packet.namednumber.DataLinkType;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ *     A long-lived packet capture on a single network interface. The interface is opened once by {@link #open()} and
+ *     stays open until {@link #close()}, while the output file can be swapped at any time using {@link #rotate(File)}.
+ *     This allows a single session to capture an entire batch of apps, writing each app's traffic to its own file
+ *     without any setup/teardown cost or capture gap between apps.
+ * </p>
+ * <p>
+ *     Rotation happens at an exact, timestamped boundary: every packet captured before the boundary goes to the
+ *     previous file, and every packet captured at or after the boundary goes to the next file. The files are closed
+ *     and created by the writer thread (see below), so {@link #rotateAsync(File)} does not block the caller.
+ * </p>
+ * <p>
+ *     Reading and writing are decoupled: one thread reads packets from the network interface into a preallocated
+ *     {@link PacketRing}, and a second thread drains the ring in batches and writes the packets to disk. A slow disk
+ *     therefore never stalls the libpcap read loop; if the writer falls behind for long enough for the ring to fill
+ *     up, packets are dropped and counted (see {@link #getStats()}) instead of silently being dropped by the kernel.
+ *     If writing fails (e.g. because the disk is full), the session fails: it stops capturing, the file being written
+ *     is closed without being reported as complete, and the error is available from {@link #getError()}.
+ * </p>
+ * <p>
+ *     To keep the output small, a session can be restricted to a single device with a kernel BPF filter (see
+ *     {@link #setFilter(String)} and {@link #forDevice(String, Device)}), and the bulk of long flows can be cut down to
+ *     their headers with a {@link FlowTruncationPolicy}. Per-flow packet and byte counts are computed as packets are
+ *     written, and stored in a small summary file next to each output file (see {@link FlowTable}), so that traffic
+ *     volumes are available without reading the pcap files again. Likewise, the domains contacted are collected from
+ *     DNS answers and TLS server names into a {@link DomainIndex} next to each output file.
+ * </p>
+ * <p>
+ *     The reader polls the handle with a short read timeout instead of blocking in {@code pcap_loop}, so
+ *     {@link #close()} returns within a bounded time even if no more packets arrive.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class CaptureSession implements Closeable {
+
+    /**
+     * Default max number of bytes to capture for each packet.
+     */
+    public static final int DEFAULT_SNAPSHOT_LENGTH = 65536;
+
+    /**
+     * Read timeout in millis, i.e. max time the OS should buffer packets before handing them to pcap4j. This also
+     * bounds how long it takes to stop the session and to rotate the output when no packets arrive.
+     */
+    private static final int READ_TIMEOUT_MILLIS = 50;
+
+    /**
+     * Max number of packets buffered between the reader and the writer thread.
+     */
+    private static final int RING_SLOTS = 1 << 16;
+
+    /**
+     * Max number of packet bytes buffered between the reader and the writer thread.
+     */
+    private static final int RING_BYTES = 1 << 25;
+
+    /**
+     * Max number of packets written per batch; the output is flushed after each batch.
+     */
+    private static final int WRITE_BATCH_SIZE = 1024;
+
+    /**
+     * The link type. We assume all uses will be working with Ethernet links.
+     */
+    private static final DataLinkType DLT = DataLinkType.EN10MB;
+
+    private final String mNifName;
+    private final int mSnapshotLength;
+
+    /**
+     * BPF expression installed on the handle, or {@code null} to capture every packet.
+     */
+    private volatile String mFilter;
+
+    /**
+     * Decides how much of each packet to store, or {@code null} to store every packet in full. Only used by
+     * {@link #mReaderThread}.
+     */
+    private volatile FlowTruncationPolicy mTruncationPolicy;
+
+    /**
+     * Handle for reading packets associated with the target network interface.
+     */
+    private volatile PcapHandle mNifReader;
+
+    /**
+     * Buffers packets between {@link #mReaderThread} and {@link #mWriterThread}.
+     */
+    private final PacketRing mRing = new PacketRing(RING_SLOTS, RING_BYTES);
+
+    /**
+     * Cleared by {@link #close()} to make {@link #mReaderThread} stop reading.
+     */
+    private volatile boolean mRunning = false;
+
+    /**
+     * Set by {@link #mReaderThread} once it has stopped reading packets, signalling {@link #mWriterThread} to finish
+     * once the ring has been drained.
+     */
+    private volatile boolean mReaderDone = false;
+
+    /**
+     * The file that packets are currently written to. Only accessed by {@link #mWriterThread}.
+     */
+    private SegmentedPcapWriter mOutput;
+
+    /**
+     * How output files are compressed.
+     */
+    private volatile SegmentedPcapWriter.Compression mCompression = SegmentedPcapWriter.Compression.NONE;
+
+    /**
+     * Max size of a segment of an output file in bytes, or 0 for no limit.
+     */
+    private volatile long mMaxSegmentBytes = 0;
+
+    /**
+     * Max duration of a segment of an output file in milliseconds, or 0 for no limit.
+     */
+    private volatile long mMaxSegmentMillis = 0;
+
+    /**
+     * Per-flow statistics of the packets written to {@link #mOutput}. Only accessed by {@link #mWriterThread}.
+     */
+    private final FlowTable mFlows = new FlowTable();
+
+    /**
+     * Domains contacted by the packets written to {@link #mOutput}. Only accessed by {@link #mWriterThread}.
+     */
+    private final DomainIndex mDomains = new DomainIndex();
+
+    /**
+     * Decodes each written packet once for {@link #mFlows} and {@link #mDomains}. Only accessed by
+     * {@link #mWriterThread}.
+     */
+    private final PacketHeaders mWrittenHeaders = new PacketHeaders();
+
+    /**
+     * Set if updating {@link #mFlows} or {@link #mDomains} failed for a packet of {@link #mOutput}, in which case the
+     * summaries of that file are incomplete and are not written. Only accessed by {@link #mWriterThread}.
+     */
+    private boolean mSummariesFailed = false;
+
+    /**
+     * If set, a flow summary is written next to every output file when it is closed.
+     */
+    private volatile boolean mFlowSummaryEnabled = true;
+
+    /**
+     * If set, a domain index is written next to every output file when it is closed.
+     */
+    private volatile boolean mDomainIndexEnabled = true;
+
+    /**
+     * Notified of every output file that has been completely written and closed, or {@code null}.
+     */
+    private volatile Consumer<File> mOutputClosedListener;
+
+    /**
+     * Rotations requested by {@link #rotateAsync(File)} that the writer thread has not yet performed, in the order
+     * they were requested.
+     */
+    private final Queue<Rotation> mPendingRotations = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Set by {@link #mWriterThread} (under the session lock) once it performs no more rotations.
+     */
+    private boolean mWriterDone = false;
+
+    /**
+     * The error that made {@link #mWriterThread} stop writing, or {@code null} if no error occurred (yet).
+     */
+    private volatile Exception mError;
+
+    /**
+     * Packet counters of the handle, as of the last time the handle was queried (or just before it was closed).
+     */
+    private volatile PcapStat mLastPcapStat;
+
+    private volatile long mWritten = 0;
+
+    /**
+     * Reports {@link #getStats()} to {@link RunMetrics} while the session is open.
+     */
+    private final Supplier<CaptureStats> mMetricsStats = this::getStats;
+
+    private final Thread mReaderThread = new Thread(this::readPackets, "pcap-reader");
+
+    private final Thread mWriterThread = new Thread(this::writePackets, "pcap-writer");
+
+    /**
+     * Create a new {@code CaptureSession} with the default snapshot length.
+     * @param nifName name of the network interface that is the target of the capture.
+     */
+    public CaptureSession(String nifName) {
+        this(nifName, DEFAULT_SNAPSHOT_LENGTH);
+    }
+
+    /**
+     * Create a new {@code CaptureSession}.
+     * @param nifName name of the network interface that is the target of the capture.
+     * @param snapshotLength max number of bytes to capture for each packet.
+     */
+    public CaptureSession(String nifName, int snapshotLength) {
+        mNifName = nifName;
+        mSnapshotLength = snapshotLength;
+    }
+
+    /**
+     * Create a new {@code CaptureSession} that only captures the traffic of a given Roku, and that stores only the
+     * first {@link FlowTruncationPolicy#DEFAULT_FULL_BYTES_PER_FLOW} bytes of each flow in full.
+     *
+     * @param nifName name of the network interface that is the target of the capture.
+     * @param roku the Roku whose traffic is to be captured.
+     * @return a session that has not been opened yet.
+     */
+    public static CaptureSession forDevice(String nifName, Device roku) {
+        CaptureSession session = new CaptureSession(nifName);
+        session.setFilter(hostFilter(roku.getIPAddress()));
+        session.setTruncationPolicy(new FlowTruncationPolicy());
+        return session;
+    }
+
+    /**
+     * Build a BPF expression that matches all traffic to and from a given host.
+     * @param ipAddress the IP address of the host.
+     * @return the BPF expression.
+     */
+    public static String hostFilter(String ipAddress) {
+        return "host " + ipAddress;
+    }
+
+    /**
+     * Set a BPF expression (tcpdump syntax) that restricts which packets the kernel hands to the capture. Must be
+     * called before {@link #open()}.
+     * @param bpfExpression the BPF expression, or {@code null} to capture every packet.
+     */
+    public void setFilter(String bpfExpression) {
+        if (mNifReader != null) {
+            throw new IllegalStateException("filter must be set before the session is opened");
+        }
+        mFilter = bpfExpression;
+    }
+
+    /**
+     * Set the policy that decides how much of each packet to store. Must be called before {@link #open()}.
+     * @param truncationPolicy the policy, or {@code null} to store every packet in full.
+     */
+    public void setTruncationPolicy(FlowTruncationPolicy truncationPolicy) {
+        if (mNifReader != null) {
+            throw new IllegalStateException("truncation policy must be set before the session is opened");
+        }
+        mTruncationPolicy = truncationPolicy;
+    }
+
+    /**
+     * Set how output files are compressed (not compressed by default). Takes effect from the next
+     * {@link #rotate(File)}. A compressed output file gets the compression's suffix, e.g. {@code app-12.pcap} is
+     * written to {@code app-12.pcap.gz}.
+     * @param compression the compression.
+     */
+    public void setCompression(SegmentedPcapWriter.Compression compression) {
+        mCompression = compression;
+    }
+
+    /**
+     * Split output files into segments of bounded size and/or duration (not split by default), so that no single
+     * file grows too large to handle. Takes effect from the next {@link #rotate(File)}. See
+     * {@link SegmentedPcapWriter} for how segments are named. Flow summaries and domain indexes still cover the entire
+     * output file, i.e. all of its segments.
+     * @param maxSegmentBytes Max size of a segment on disk (i.e. after compression) in bytes, or 0 for no limit.
+     * @param maxSegmentMillis Max time between the first and the last packet of a segment in milliseconds, or 0 for
+     *                         no limit.
+     */
+    public void setSegmentLimits(long maxSegmentBytes, long maxSegmentMillis) {
+        mMaxSegmentBytes = maxSegmentBytes;
+        mMaxSegmentMillis = maxSegmentMillis;
+    }
+
+    /**
+     * Enable or disable flow summaries (enabled by default). When enabled, per-flow packet and byte counts are kept
+     * for the packets written to each output file, and written to the file's {@link FlowTable#summaryFileFor(File)}
+     * when the output file is closed.
+     * @param enabled {@code true} to write flow summaries.
+     */
+    public void setFlowSummaryEnabled(boolean enabled) {
+        mFlowSummaryEnabled = enabled;
+    }
+
+    /**
+     * Enable or disable domain indexes (enabled by default). When enabled, the domains looked up with DNS or named in
+     * TLS ClientHellos are collected for the packets written to each output file, and written to the file's
+     * {@link DomainIndex#indexFileFor(File)} when the output file is closed.
+     * @param enabled {@code true} to write domain indexes.
+     */
+    public void setDomainIndexEnabled(boolean enabled) {
+        mDomainIndexEnabled = enabled;
+    }
+
+    /**
+     * Set a callback that is notified (on the session's writer thread) whenever an output file has been completely
+     * written and closed, i.e. when it is rotated out or when the session is closed. The callback receives the file
+     * passed to {@link #rotate(File)}, once all of its segments have been closed. A file that could not be closed
+     * cleanly is not reported.
+     * @param listener the callback, or {@code null} for none.
+     */
+    public void setOutputClosedListener(Consumer<File> listener) {
+        mOutputClosedListener = listener;
+    }
+
+    /**
+     * Open the network interface and start capturing. Packets are discarded until an output file is set using
+     * {@link #rotate(File)}.
+     *
+     * @throws PcapNativeException if the network interface could not be opened or the filter could not be installed.
+     */
+    public synchronized void open() throws PcapNativeException {
+        if (mNifReader != null) {
+            throw new IllegalStateException("capture session already opened, can't open again");
+        }
+        PcapNetworkInterface nif = Pcaps.getDevByName(mNifName);
+        PcapHandle handle = nif.openLive(mSnapshotLength, PcapNetworkInterface.PromiscuousMode.PROMISCUOUS,
+                READ_TIMEOUT_MILLIS);
+        if (mFilter != null) {
+            try {
+                handle.setFilter(mFilter, BpfProgram.BpfCompileMode.OPTIMIZE);
+            } catch (PcapNativeException|NotOpenException e) {
+                handle.close();
+                throw new PcapNativeException("could not install filter '" + mFilter + "': " + e.getMessage());
+            }
+        }
+        mNifReader = handle;
+        mRunning = true;
+        mWriterThread.start();
+        mReaderThread.start();
+        RunMetrics.get().addCapture(mFilter == null ? mNifName : mNifName + " " + mFilter, mMetricsStats);
+    }
+
+    /**
+     * @return {@code true} if the session has been opened and has neither been closed nor failed.
+     */
+    public boolean isOpen() {
+        return mRunning;
+    }
+
+    /**
+     * Get the error that made the session fail. A failed session captures no more packets, the file that was being
+     * written when the error occurred is incomplete (and is not reported to the
+     * {@link #setOutputClosedListener(Consumer) output closed listener}), and no more rotations can be performed.
+     * @return The error, or an empty {@link Optional} if the session has not failed.
+     */
+    public Optional<Exception> getError() {
+        return Optional.ofNullable(mError);
+    }
+
+    /**
+     * @return name of the network interface that is the target of the capture.
+     */
+    public String getNifName() {
+        return mNifName;
+    }
+
+    /**
+     * Switch the output to a new file. All packets captured before the returned boundary are written to the previous
+     * file (if any), which is flushed and closed before this method returns. All packets captured at or after the
+     * boundary are written to {@code output}. This waits for {@link #rotateAsync(File)} to complete; the wait is not
+     * interruptible, but bounded by the read timeout of the session.
+     *
+     * @param output The file where packets are to be written from now on, or {@code null} to discard packets until
+     *               the next rotation. If compression or segmentation is enabled, the actual file names are derived
+     *               from {@code output}, see {@link SegmentedPcapWriter#segmentFile(File, int,
+     *               SegmentedPcapWriter.Compression)}.
+     * @return The rotation boundary.
+     * @throws IOException if {@code output} could not be created.
+     */
+    public Instant rotate(File output) throws IOException {
+        try {
+            return rotateAsync(output).join();
+        } catch (CompletionException ce) {
+            Throwable cause = ce.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw ce;
+        }
+    }
+
+    /**
+     * Asynchronous version of {@link #rotate(File)}. The boundary is the time of the call, and the writer thread
+     * performs the rotation (closes the previous file and creates {@code output}) once it has written every packet
+     * captured before the boundary, i.e. at the latest twice the read timeout after the call. Rotations take effect
+     * in the order they are requested.
+     *
+     * @param output The file where packets are to be written from now on, or {@code null} to discard packets until
+     *               the next rotation.
+     * @return A future that completes with the rotation boundary once the previous file has been closed, or
+     *         exceptionally with an {@link IOException} if {@code output} could not be created (packets are then
+     *         discarded until the next rotation), or with an {@link IllegalStateException} if the session terminated
+     *         before the rotation was performed. The future is completed by the writer thread, so dependent actions
+     *         should not block.
+     */
+    public synchronized CompletableFuture<Instant> rotateAsync(File output) {
+        if (!mRunning || mWriterDone) {
+            throw new IllegalStateException("capture session is not open", mError);
+        }
+        Rotation rotation = new Rotation(output, Instant.now(), mCompression, mMaxSegmentBytes, mMaxSegmentMillis);
+        mPendingRotations.add(rotation);
+        return rotation.mDone;
+    }
+
+    /**
+     * Stop capturing, and flush and close the current output file. Returns once all packets read from the network
+     * interface have been written.
+     */
+    @Override
+    public void close() {
+        mRunning = false;
+        try {
+            mReaderThread.join();
+            mWriterThread.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        RunMetrics.get().removeCapture(mMetricsStats);
+    }
+
+    /**
+     * Get the packet counters of this session. Counters are live while the session is open, and final once it has
+     * been closed.
+     * @return a snapshot of the packet counters of this session.
+     */
+    public CaptureStats getStats() {
+        if (!mReaderDone) {
+            updatePcapStat();
+        }
+        PcapStat ps = mLastPcapStat;
+        return new CaptureStats(ps == null ? 0 : ps.getNumPacketsReceived(),
+                ps == null ? 0 : ps.getNumPacketsDropped(),
+                ps == null ? 0 : ps.getNumPacketsDroppedByIf(),
+                mRing.getDropped(),
+                mWritten);
+    }
+
+    /**
+     * Body of {@link #mReaderThread}: reads packets from the network interface into the ring.
+     */
+    private void readPackets() {
+        PcapHandle handle = mNifReader;
+        FlowTruncationPolicy truncationPolicy = mTruncationPolicy;
+        try {
+            while (mRunning) {
+                PcapPacket packet;
+                try {
+                    packet = handle.getNextPacketEx();
+                } catch (TimeoutException te) {
+                    // Read timeout expired without any packets; check if we should stop.
+                    continue;
+                }
+                Instant ts = packet.getTimestamp();
+                byte[] raw = packet.getRawData();
+                int length = truncationPolicy == null ? raw.length : truncationPolicy.captureLength(raw, raw.length);
+                mRing.offer(raw, length, packet.getOriginalLength(), ts.getEpochSecond(), ts.getNano());
+            }
+        } catch (PcapNativeException|NotOpenException|EOFException e) {
+            e.printStackTrace();
+        } finally {
+            updatePcapStat();
+            handle.close();
+            mReaderDone = true;
+        }
+    }
+
+    /**
+     * Body of {@link #mWriterThread}: drains the ring and writes the packets to the current output file.
+     */
+    private void writePackets() {
+        PacketRing.PacketHandler writePacket = (buf, offset, capLen, origLen, tsSec, tsNanos) -> {
+            Rotation rotation;
+            while ((rotation = mPendingRotations.peek()) != null && rotation.isDue(tsSec, tsNanos)) {
+                performRotation(mPendingRotations.poll());
+            }
+            if (mOutput != null) {
+                mOutput.write(buf, offset, capLen, origLen, tsSec, tsNanos);
+                mWritten++;
+                boolean flows = mFlowSummaryEnabled;
+                boolean domains = mDomainIndexEnabled;
+                if ((flows || domains) && !mSummariesFailed) {
+                    // The summaries are a by-product; a bug in them must not cost the trace itself.
+                    try {
+                        PacketHeaders headers = mWrittenHeaders.decode(buf, offset, capLen) ? mWrittenHeaders : null;
+                        if (flows) {
+                            mFlows.add(headers, buf, origLen, tsSec, tsNanos);
+                        }
+                        if (domains && headers != null) {
+                            mDomains.add(headers, buf, origLen, tsSec, tsNanos);
+                        }
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                        mSummariesFailed = true;
+                    }
+                }
+            }
+        };
+        try {
+            while (true) {
+                // Read the flag before draining: if set, the ring will receive no more packets after this drain.
+                boolean readerDone = mReaderDone;
+                int written = mRing.drain(writePacket, WRITE_BATCH_SIZE);
+                if (written > 0) {
+                    if (mOutput != null) {
+                        mOutput.flush();
+                    }
+                    continue;
+                }
+                // Ring is empty. Any packet from before a pending rotation boundary has been handed to us by now if
+                // the read timeout has expired (twice, to be safe) since the boundary.
+                Rotation rotation;
+                while ((rotation = mPendingRotations.peek()) != null && (readerDone || System.currentTimeMillis() >
+                        rotation.mBoundary.toEpochMilli() + 2 * READ_TIMEOUT_MILLIS)) {
+                    performRotation(mPendingRotations.poll());
+                }
+                if (readerDone) {
+                    break;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            mError = e;
+            // Fail the session: stop the reader, as nothing would write the packets it reads.
+            mRunning = false;
+        } finally {
+            closeOutput(mError == null);
+            failPendingRotations();
+        }
+    }
+
+    private void performRotation(Rotation rotation) {
+        closeOutput(true);
+        if (rotation.mOutput != null) {
+            try {
+                mOutput = new SegmentedPcapWriter(rotation.mOutput, mSnapshotLength, DLT.value(),
+                        rotation.mCompression, rotation.mMaxSegmentBytes, rotation.mMaxSegmentMillis);
+            } catch (IOException ioe) {
+                rotation.mDone.completeExceptionally(ioe);
+                return;
+            }
+        }
+        rotation.mDone.complete(rotation.mBoundary);
+    }
+
+    /**
+     * Fail the rotations that the writer thread will not perform as it is terminating.
+     */
+    private synchronized void failPendingRotations() {
+        mWriterDone = true;
+        Rotation rotation;
+        while ((rotation = mPendingRotations.poll()) != null) {
+            rotation.mDone.completeExceptionally(
+                    new IllegalStateException("capture session terminated during rotation", mError));
+        }
+    }
+
+    /**
+     * Close {@link #mOutput}, write its summaries and notify {@link #mOutputClosedListener}. If the output is not
+     * {@code complete} (writing it failed), it is only closed.
+     */
+    private void closeOutput(boolean complete) {
+        SegmentedPcapWriter writer = mOutput;
+        if (writer == null) {
+            return;
+        }
+        File closed = writer.getFile();
+        mOutput = null;
+        boolean summaries = complete && !mSummariesFailed;
+        mSummariesFailed = false;
+        try {
+            writer.close();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            complete = false;
+        }
+        if (!complete) {
+            mFlows.clear();
+            mDomains.clear();
+            return;
+        }
+        // The summaries can be recomputed from the pcap file, so failing to write them doesn't hold back the
+        // notification.
+        if (summaries && mFlowSummaryEnabled) {
+            try {
+                mFlows.writeTo(FlowTable.summaryFileFor(closed));
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
+        if (summaries && mDomainIndexEnabled) {
+            try {
+                mDomains.writeTo(DomainIndex.indexFileFor(closed));
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
+        mFlows.clear();
+        mDomains.clear();
+        Consumer<File> listener = mOutputClosedListener;
+        if (listener != null) {
+            listener.accept(closed);
+        }
+    }
+
+    /**
+     * Refresh {@link #mLastPcapStat} from the handle, if it is open.
+     */
+    private void updatePcapStat() {
+        PcapHandle handle = mNifReader;
+        if (handle == null || !handle.isOpen()) {
+            return;
+        }
+        try {
+            mLastPcapStat = handle.getStats();
+        } catch (PcapNativeException|NotOpenException e) {
+            // Handle closed concurrently or stats unsupported on this platform; keep the last known counters.
+        }
+    }
+
+    /**
+     * A request to switch output file at a given point in time, along with the output settings in effect when it was
+     * requested.
+     */
+    private static class Rotation {
+
+        private final File mOutput;
+        private final Instant mBoundary;
+        private final SegmentedPcapWriter.Compression mCompression;
+        private final long mMaxSegmentBytes;
+        private final long mMaxSegmentMillis;
+        private final CompletableFuture<Instant> mDone = new CompletableFuture<>();
+
+        private Rotation(File output, Instant boundary, SegmentedPcapWriter.Compression compression,
+                         long maxSegmentBytes, long maxSegmentMillis) {
+            mOutput = output;
+            mBoundary = boundary;
+            mCompression = compression;
+            mMaxSegmentBytes = maxSegmentBytes;
+            mMaxSegmentMillis = maxSegmentMillis;
+        }
+
+        private boolean isDue(long tsSeconds, int tsNanos) {
+            long boundarySeconds = mBoundary.getEpochSecond();
+            return tsSeconds > boundarySeconds || (tsSeconds == boundarySeconds && tsNanos >= mBoundary.getNano());
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.capture;
+
+/**
+ * Snapshot of the packet counters of a packet capture.
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class CaptureStats {
+
+    private final long mReceived;
+    private final long mKernelDropped;
+    private final long mInterfaceDropped;
+    private final long mRingDropped;
+    private final long mWritten;
+
+    public CaptureStats(long received, long kernelDropped, long interfaceDropped, long ringDropped, long written) {
+        mReceived = received;
+        mKernelDropped = kernelDropped;
+        mInterfaceDropped = interfaceDropped;
+        mRingDropped = ringDropped;
+        mWritten = written;
+    }
+
+    /**
+     * @return The number of packets received by the kernel packet filter (as reported by libpcap).
+     */
+    public long getReceived() {
+        return mReceived;
+    }
+
+    /**
+     * @return The number of packets dropped by the kernel because the capture did not read them fast enough.
+     */
+    public long getKernelDropped() {
+        return mKernelDropped;
+    }
+
+    /**
+     * @return The number of packets dropped by the network interface or its driver.
+     */
+    public long getInterfaceDropped() {
+        return mInterfaceDropped;
+    }
+
+    /**
+     * @return The number of packets read from the kernel, but dropped because the writer fell behind.
+     */
+    public long getRingDropped() {
+        return mRingDropped;
+    }
+
+    /**
+     * @return The number of packets written to the output file.
+     */
+    public long getWritten() {
+        return mWritten;
+    }
+
+    /**
+     * @return {@code true} if any packets were lost, {@code false} otherwise.
+     */
+    public boolean hasDrops() {
+        return mKernelDropped > 0 || mInterfaceDropped > 0 || mRingDropped > 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s { received=%d; kernelDropped=%d; interfaceDropped=%d; ringDropped=%d; written=%d; }",
+                getClass().getSimpleName(), mReceived, mKernelDropped, mInterfaceDropped, mRingDropped, mWritten);
+    }
+
+}
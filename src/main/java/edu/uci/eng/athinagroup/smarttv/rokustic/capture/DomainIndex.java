@@ -0,0 +1,534 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.capture;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * <p>
+ *     Builds an index of the domains that a device contacted, as packets are captured, so that the hostnames
+ *     contacted by an app are known without parsing its pcap file afterwards. Domains are taken from DNS messages
+ *     (the question name of queries and responses, mapped to the IPv4/IPv6 addresses in A/AAAA answers) and from the
+ *     server name indication (SNI) of TLS ClientHellos. For every domain, the index keeps the time it was first seen,
+ *     the addresses it resolved to, and the number of flows and bytes (original packet lengths) attributed to it.
+ * </p>
+ * <p>
+ *     A flow is attributed to the domain that its responder's address was last resolved from, or, if the address was
+ *     not resolved during the capture (e.g. due to a cached DNS answer), to the SNI of the flow's ClientHello. Only DNS
+ *     over UDP port 53 and ClientHellos contained in a single TCP segment are decoded; QUIC is not.
+ * </p>
+ * <p>
+ *     Decoding only reads the bytes it needs: the first payload byte of a TCP segment decides whether it can be a TLS
+ *     handshake record, and DNS messages are walked without building a message object. Instances are not thread safe
+ *     and are meant to be used by the capture's writer thread only.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class DomainIndex {
+
+    /**
+     * File extension of a domain index; see {@link #indexFileFor(File)}.
+     */
+    public static final String INDEX_EXTENSION = ".domains";
+
+    private static final int DNS_PORT = 53;
+    private static final int DNS_HEADER_LENGTH = 12;
+    private static final int DNS_TYPE_A = 1;
+    private static final int DNS_TYPE_AAAA = 28;
+
+    /**
+     * Max number of labels in a domain name, and max number of compression pointers followed while reading one.
+     */
+    private static final int MAX_LABELS = 127;
+
+    private static final int TLS_CONTENT_TYPE_HANDSHAKE = 0x16;
+    private static final int TLS_HANDSHAKE_CLIENT_HELLO = 0x01;
+    private static final int TLS_EXTENSION_SERVER_NAME = 0x0000;
+
+    /**
+     * The table of seen flows is cleared when it holds this many flows, bounding memory use.
+     */
+    private static final int MAX_FLOWS = 1 << 18;
+
+    private static final int INITIAL_FLOW_CAPACITY = 1 << 10;
+
+    private static final String HEADER = "# domain\tfirst_us\tflows\tbytes\tsource\taddresses";
+
+    private final PacketHeaders mHeaders = new PacketHeaders();
+
+    /**
+     * The domains seen so far, in the order in which they were first seen, keyed by (lowercase) name.
+     */
+    private final Map<String, Domain> mDomains = new LinkedHashMap<>();
+
+    /**
+     * The domain that each address was last resolved from.
+     */
+    private final Map<Address, Domain> mResolved = new HashMap<>();
+
+    /**
+     * Hashes of the flows seen so far; 0 marks an empty slot (a flow that hashes to 0 is stored as 1).
+     */
+    private long[] mFlowKeys = new long[INITIAL_FLOW_CAPACITY];
+
+    /**
+     * The domain that the flow in the corresponding slot of {@link #mFlowKeys} is attributed to, if any.
+     */
+    private Domain[] mFlowDomains = new Domain[INITIAL_FLOW_CAPACITY];
+
+    /**
+     * Bytes of the flow in the corresponding slot of {@link #mFlowKeys} seen before it was attributed to a domain.
+     */
+    private long[] mFlowBytes = new long[INITIAL_FLOW_CAPACITY];
+
+    /**
+     * Bytes of all (non-DNS) packets inspected, whether or not their flow is attributed to a domain.
+     */
+    private long mTotalBytes = 0;
+
+    private int mFlowCount = 0;
+
+    /**
+     * Get the file that the domain index of a pcap file is written to: the pcap file with its extension replaced by
+     * {@link #INDEX_EXTENSION}, e.g. {@code app-12.pcap} becomes {@code app-12.domains}.
+     * @param pcapFile The pcap file.
+     * @return The index file, in the same directory as {@code pcapFile}.
+     */
+    public static File indexFileFor(File pcapFile) {
+        String name = pcapFile.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        return new File(pcapFile.getAbsoluteFile().getParentFile(), base + INDEX_EXTENSION);
+    }
+
+    /**
+     * Inspect a packet.
+     *
+     * @param buffer Buffer holding the packet.
+     * @param offset Index of the first byte of the packet in {@code buffer}.
+     * @param capLen Number of captured bytes of the packet.
+     * @param origLen Length of the packet on the wire.
+     * @param tsSeconds Timestamp of the packet, seconds part.
+     * @param tsNanos Timestamp of the packet, nanoseconds part.
+     */
+    public void add(byte[] buffer, int offset, int capLen, int origLen, long tsSeconds, int tsNanos) {
+        if (mHeaders.decode(buffer, offset, capLen)) {
+            add(mHeaders, buffer, origLen, tsSeconds, tsNanos);
+        }
+    }
+
+    /**
+     * Inspect a packet whose headers have already been decoded.
+     *
+     * @param headers The headers of the packet, successfully decoded from {@code buffer}.
+     * @param buffer Buffer holding the packet.
+     * @param origLen Length of the packet on the wire.
+     * @param tsSeconds Timestamp of the packet, seconds part.
+     * @param tsNanos Timestamp of the packet, nanoseconds part.
+     */
+    public void add(PacketHeaders headers, byte[] buffer, int origLen, long tsSeconds, int tsNanos) {
+        final long micros = tsSeconds * 1_000_000L + tsNanos / 1_000;
+        final int protocol = headers.getProtocol();
+        if (protocol == PacketHeaders.PROTOCOL_UDP &&
+                (headers.getSrcPort() == DNS_PORT || headers.getDstPort() == DNS_PORT)) {
+            readDns(buffer, headers.getPayloadOffset(), headers.getPayloadOffset() + headers.getPayloadLength(),
+                    micros);
+            return;
+        }
+        int slot = flowSlot(headers.flowHash());
+        if (mFlowKeys[slot] == 0) {
+            // First packet of the flow: its destination is taken to be the responder.
+            mFlowKeys[slot] = headers.flowHash() == 0 ? 1 : headers.flowHash();
+            Domain domain = mResolved.get(Address.read(buffer, headers.getDstAddrOffset(), headers.getAddrLength()));
+            if (domain != null) {
+                domain.mFlows++;
+                mFlowDomains[slot] = domain;
+            }
+            mFlowCount++;
+            if (mFlowCount > mFlowKeys.length / 2) {
+                growFlows();
+                slot = flowSlot(headers.flowHash());
+            }
+        }
+        mTotalBytes += origLen;
+        if (mFlowDomains[slot] != null) {
+            mFlowDomains[slot].mBytes += origLen;
+        } else {
+            mFlowBytes[slot] += origLen;
+        }
+        if (protocol == PacketHeaders.PROTOCOL_TCP && headers.getPayloadLength() > 0 &&
+                (buffer[headers.getPayloadOffset()] & 0xFF) == TLS_CONTENT_TYPE_HANDSHAKE) {
+            String sni = readSni(buffer, headers.getPayloadOffset(),
+                    headers.getPayloadOffset() + headers.getPayloadLength());
+            if (sni != null) {
+                Domain domain = domain(sni, micros);
+                domain.mSeenInSni = true;
+                if (mFlowDomains[slot] == null) {
+                    domain.mFlows++;
+                    domain.mBytes += mFlowBytes[slot];
+                    mFlowDomains[slot] = domain;
+                    mFlowBytes[slot] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The number of domains in the index.
+     */
+    public int size() {
+        return mDomains.size();
+    }
+
+    /**
+     * @return The domains in the index, in the order in which they were first seen.
+     */
+    public Set<String> getDomains() {
+        return Collections.unmodifiableSet(mDomains.keySet());
+    }
+
+    /**
+     * Get the number of flows attributed to a domain.
+     * @param domain The domain.
+     * @return The number of flows, or 0 if {@code domain} is not in the index.
+     */
+    public int getFlows(String domain) {
+        Domain d = mDomains.get(domain);
+        return d == null ? 0 : d.mFlows;
+    }
+
+    /**
+     * Get the number of bytes (original packet lengths) of the flows attributed to a domain.
+     * @param domain The domain.
+     * @return The number of bytes, or 0 if {@code domain} is not in the index.
+     */
+    public long getBytes(String domain) {
+        Domain d = mDomains.get(domain);
+        return d == null ? 0 : d.mBytes;
+    }
+
+    /**
+     * @return The number of bytes of flows (other than DNS) that are not attributed to any domain.
+     */
+    public long getUnattributedBytes() {
+        long attributed = 0;
+        for (Domain d : mDomains.values()) {
+            attributed += d.mBytes;
+        }
+        return mTotalBytes - attributed;
+    }
+
+    /**
+     * Write the index as tab-separated text, one domain per line in the order in which the domains were first seen:
+     * domain, time first seen (microseconds since the epoch), number of flows, number of bytes, where the domain was
+     * seen ({@code dns}, {@code sni} or {@code dns,sni}) and a comma-separated list of the addresses it resolved to.
+     *
+     * @param out Where to write the index.
+     * @throws IOException if the index could not be written.
+     */
+    public void writeTo(File out) throws IOException {
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(out),
+                StandardCharsets.UTF_8))) {
+            w.write(HEADER);
+            w.write('\n');
+            for (Domain d : mDomains.values()) {
+                String source = d.mSeenInDns ? (d.mSeenInSni ? "dns,sni" : "dns") : "sni";
+                w.write(String.join("\t", d.mName, Long.toString(d.mFirstSeenMicros), Integer.toString(d.mFlows),
+                        Long.toString(d.mBytes), source, String.join(",", d.mAddresses)));
+                w.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Remove all domains and flows, e.g. when the capture switches to a new output file.
+     */
+    public void clear() {
+        mDomains.clear();
+        mResolved.clear();
+        mFlowKeys = new long[INITIAL_FLOW_CAPACITY];
+        mFlowDomains = new Domain[INITIAL_FLOW_CAPACITY];
+        mFlowBytes = new long[INITIAL_FLOW_CAPACITY];
+        mFlowCount = 0;
+        mTotalBytes = 0;
+    }
+
+    private Domain domain(String name, long micros) {
+        Domain domain = mDomains.get(name);
+        if (domain == null) {
+            domain = new Domain(name, micros);
+            mDomains.put(name, domain);
+        }
+        return domain;
+    }
+
+    /**
+     * Read the question name and the A/AAAA answers of a DNS message in {@code buf[start, end)}. Malformed or
+     * truncated messages are read as far as they are intact.
+     */
+    private void readDns(byte[] buf, int start, int end, long micros) {
+        if (end - start < DNS_HEADER_LENGTH) {
+            return;
+        }
+        int flags = PacketHeaders.readUnsignedShort(buf, start + 2);
+        int questions = PacketHeaders.readUnsignedShort(buf, start + 4);
+        int answers = PacketHeaders.readUnsignedShort(buf, start + 6);
+        int rcode = flags & 0x0F;
+        if (questions != 1 || rcode != 0) {
+            // Multi-question messages are not used in practice; failed lookups did not lead to any traffic.
+            return;
+        }
+        StringBuilder name = new StringBuilder();
+        int pos = readName(buf, start, start + DNS_HEADER_LENGTH, end, name);
+        if (pos < 0 || name.length() == 0 || pos + 4 > end) {
+            return;
+        }
+        Domain domain = domain(name.toString(), micros);
+        domain.mSeenInDns = true;
+        pos += 4; // QTYPE, QCLASS
+        boolean isResponse = (flags & 0x8000) != 0;
+        for (int i = 0; isResponse && i < answers; i++) {
+            pos = readName(buf, start, pos, end, null);
+            if (pos < 0 || pos + 10 > end) {
+                return;
+            }
+            int type = PacketHeaders.readUnsignedShort(buf, pos);
+            int rdLength = PacketHeaders.readUnsignedShort(buf, pos + 8);
+            pos += 10;
+            if (pos + rdLength > end) {
+                return;
+            }
+            // CNAME chains are not followed: every address is attributed to the name that was looked up.
+            if ((type == DNS_TYPE_A && rdLength == 4) || (type == DNS_TYPE_AAAA && rdLength == 16)) {
+                Address address = Address.read(buf, pos, rdLength);
+                mResolved.put(address, domain);
+                domain.mAddresses.add(address.toString());
+            }
+            pos += rdLength;
+        }
+    }
+
+    /**
+     * Read a (possibly compressed) domain name starting at {@code pos} of a DNS message that starts at
+     * {@code msgStart}.
+     *
+     * @param name Receives the name in lowercase, or {@code null} to skip the name.
+     * @return The position just after the name, or -1 if the name is malformed.
+     */
+    private static int readName(byte[] buf, int msgStart, int pos, int end, StringBuilder name) {
+        int next = -1;
+        for (int labels = 0; labels < MAX_LABELS; labels++) {
+            if (pos >= end) {
+                return -1;
+            }
+            int len = buf[pos] & 0xFF;
+            if (len == 0) {
+                return next < 0 ? pos + 1 : next;
+            }
+            if ((len & 0xC0) == 0xC0) {
+                if (pos + 1 >= end) {
+                    return -1;
+                }
+                if (next < 0) {
+                    next = pos + 2;
+                }
+                if (name == null) {
+                    // The rest of the name is elsewhere; nothing more to skip.
+                    return next;
+                }
+                pos = msgStart + (PacketHeaders.readUnsignedShort(buf, pos) & 0x3FFF);
+                continue;
+            }
+            if ((len & 0xC0) != 0 || pos + 1 + len > end) {
+                return -1;
+            }
+            if (name != null) {
+                if (name.length() > 0) {
+                    name.append('.');
+                }
+                for (int i = pos + 1; i <= pos + len; i++) {
+                    name.append(Character.toLowerCase((char) (buf[i] & 0xFF)));
+                }
+            }
+            pos += 1 + len;
+        }
+        return -1;
+    }
+
+    /**
+     * Extract the host name from the server name extension of a TLS ClientHello in {@code buf[pos, end)}.
+     *
+     * @return The host name in lowercase, or {@code null} if the data is not a complete ClientHello with an SNI.
+     */
+    private static String readSni(byte[] buf, int pos, int end) {
+        // Record header: content type (1), version (2), length (2). Handshake header: type (1), length (3).
+        if (pos + 9 > end || (buf[pos + 1] & 0xFF) != 0x03 ||
+                (buf[pos + 5] & 0xFF) != TLS_HANDSHAKE_CLIENT_HELLO) {
+            return null;
+        }
+        // Client version (2), random (32).
+        pos += 9 + 2 + 32;
+        // Session ID.
+        if (pos + 1 > end) {
+            return null;
+        }
+        pos += 1 + (buf[pos] & 0xFF);
+        // Cipher suites.
+        if (pos + 2 > end) {
+            return null;
+        }
+        pos += 2 + PacketHeaders.readUnsignedShort(buf, pos);
+        // Compression methods.
+        if (pos + 1 > end) {
+            return null;
+        }
+        pos += 1 + (buf[pos] & 0xFF);
+        if (pos + 2 > end) {
+            return null;
+        }
+        int extensionsEnd = Math.min(end, pos + 2 + PacketHeaders.readUnsignedShort(buf, pos));
+        pos += 2;
+        while (pos + 4 <= extensionsEnd) {
+            int type = PacketHeaders.readUnsignedShort(buf, pos);
+            int length = PacketHeaders.readUnsignedShort(buf, pos + 2);
+            pos += 4;
+            if (type == TLS_EXTENSION_SERVER_NAME) {
+                // Server name list length (2), name type (1), name length (2), name.
+                if (pos + 5 > extensionsEnd || buf[pos + 2] != 0) {
+                    return null;
+                }
+                int nameLength = PacketHeaders.readUnsignedShort(buf, pos + 3);
+                if (nameLength == 0 || pos + 5 + nameLength > extensionsEnd) {
+                    return null;
+                }
+                return new String(buf, pos + 5, nameLength, StandardCharsets.US_ASCII).toLowerCase(Locale.ROOT);
+            }
+            pos += length;
+        }
+        return null;
+    }
+
+    private int flowSlot(long flowHash) {
+        long key = flowHash == 0 ? 1 : flowHash;
+        int mask = mFlowKeys.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        while (mFlowKeys[slot] != 0 && mFlowKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void growFlows() {
+        long[] oldKeys = mFlowKeys;
+        Domain[] oldDomains = mFlowDomains;
+        long[] oldBytes = mFlowBytes;
+        if (mFlowCount >= MAX_FLOWS) {
+            // Forget the flows seen so far; a flow that continues is at worst counted once more.
+            mFlowKeys = new long[INITIAL_FLOW_CAPACITY];
+            mFlowDomains = new Domain[INITIAL_FLOW_CAPACITY];
+            mFlowBytes = new long[INITIAL_FLOW_CAPACITY];
+            mFlowCount = 0;
+            return;
+        }
+        mFlowKeys = new long[oldKeys.length * 2];
+        mFlowDomains = new Domain[oldKeys.length * 2];
+        mFlowBytes = new long[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = flowSlot(oldKeys[i]);
+                mFlowKeys[slot] = oldKeys[i];
+                mFlowDomains[slot] = oldDomains[i];
+                mFlowBytes[slot] = oldBytes[i];
+            }
+        }
+    }
+
+    /**
+     * A domain and what is known about it.
+     */
+    private static class Domain {
+
+        private final String mName;
+        private final long mFirstSeenMicros;
+        private final Set<String> mAddresses = new LinkedHashSet<>();
+        private int mFlows = 0;
+        private long mBytes = 0;
+        private boolean mSeenInDns = false;
+        private boolean mSeenInSni = false;
+
+        private Domain(String name, long firstSeenMicros) {
+            mName = name;
+            mFirstSeenMicros = firstSeenMicros;
+        }
+    }
+
+    /**
+     * An IPv4 or IPv6 address, as a map key.
+     */
+    private static class Address {
+
+        private final long mHi;
+        private final long mLo;
+        private final boolean mIpv6;
+
+        private Address(long hi, long lo, boolean ipv6) {
+            mHi = hi;
+            mLo = lo;
+            mIpv6 = ipv6;
+        }
+
+        private static Address read(byte[] buf, int pos, int length) {
+            return length == 16 ? new Address(PacketHeaders.readLong(buf, pos), PacketHeaders.readLong(buf, pos + 8),
+                    true) : new Address(0, PacketHeaders.readUnsignedInt(buf, pos), false);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Address)) {
+                return false;
+            }
+            Address other = (Address) o;
+            return mHi == other.mHi && mLo == other.mLo && mIpv6 == other.mIpv6;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) PacketHeaders.mix(mHi * 31 + mLo + (mIpv6 ? 1 : 0));
+        }
+
+        @Override
+        public String toString() {
+            byte[] addr = new byte[mIpv6 ? 16 : 4];
+            for (int i = 0; i < addr.length; i++) {
+                long word = mIpv6 && i < 8 ? mHi : mLo;
+                addr[i] = (byte) (word >>> (8 * ((addr.length - 1 - i) % 8)));
+            }
+            try {
+                return InetAddress.getByAddress(addr).getHostAddress();
+            } catch (UnknownHostException uhe) {
+                // Only thrown for an illegal address length.
+                throw new AssertionError(uhe);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.capture;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <p>
+ *     Online per-flow statistics, computed as packets are captured so that per-app traffic volumes do not require a
+ *     second pass over the pcap files. A flow is a TCP or UDP 5-tuple; both directions of a connection make up one
+ *     flow, oriented from the endpoint that sent the first packet seen (usually the client). For each flow, the table
+ *     keeps the packet and byte counts of either direction and the timestamps of the first and last packet. Bytes are
+ *     original (on-the-wire) frame lengths, so truncated packets are accounted for in full.
+ * </p>
+ * <p>
+ *     To keep up with line rate, flows are stored in parallel arrays of primitives indexed by insertion order, and
+ *     located through an open-addressing index keyed by {@link PacketHeaders#flowHash()}; the full 5-tuple is compared
+ *     on a hash match, so colliding flows are kept apart. Nothing is allocated per packet. The table holds at most
+ *     {@link #getMaxFlows()} flows; packets of further flows are only counted (see {@link #getUntrackedPackets()}).
+ *     Instances are not thread safe and are meant to be used by the capture's writer thread only.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class FlowTable {
+
+    /**
+     * Default value for {@link #getMaxFlows()}.
+     */
+    public static final int DEFAULT_MAX_FLOWS = 1 << 20;
+
+    /**
+     * File extension of a flow summary; see {@link #summaryFileFor(File)}.
+     */
+    public static final String SUMMARY_EXTENSION = ".flows";
+
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    private static final String HEADER = "# proto\tsrc\tsport\tdst\tdport\tfirst_us\tlast_us\tpackets_out\tbytes_out" +
+            "\tpackets_in\tbytes_in";
+
+    private final int mMaxFlows;
+    private final PacketHeaders mHeaders = new PacketHeaders();
+
+    /**
+     * Index into the flow arrays: {@code 1 + } the index of the flow in the slot, or 0 for an empty slot.
+     */
+    private int[] mSlots = new int[INITIAL_CAPACITY * 2];
+
+    // Flow arrays, indexed by the order in which the flows were first seen.
+    private long[] mHashes = new long[INITIAL_CAPACITY];
+    /**
+     * The addresses of endpoints A (the first sender) and B, as two big-endian longs each; IPv4 addresses only use the
+     * low long.
+     */
+    private long[] mAddrAHi = new long[INITIAL_CAPACITY];
+    private long[] mAddrALo = new long[INITIAL_CAPACITY];
+    private long[] mAddrBHi = new long[INITIAL_CAPACITY];
+    private long[] mAddrBLo = new long[INITIAL_CAPACITY];
+    /**
+     * Port of A in the high 16 bits, port of B in the low 16 bits.
+     */
+    private int[] mPorts = new int[INITIAL_CAPACITY];
+    /**
+     * IP version in the high byte, IP protocol number in the low byte.
+     */
+    private short[] mProtocols = new short[INITIAL_CAPACITY];
+    private long[] mFirstMicros = new long[INITIAL_CAPACITY];
+    private long[] mLastMicros = new long[INITIAL_CAPACITY];
+    private long[] mPacketsAB = new long[INITIAL_CAPACITY];
+    private long[] mBytesAB = new long[INITIAL_CAPACITY];
+    private long[] mPacketsBA = new long[INITIAL_CAPACITY];
+    private long[] mBytesBA = new long[INITIAL_CAPACITY];
+
+    private int mSize = 0;
+
+    private long mUntrackedPackets = 0;
+    private long mUntrackedBytes = 0;
+    private long mOtherPackets = 0;
+    private long mOtherBytes = 0;
+
+    /**
+     * Create a new {@code FlowTable} that holds up to {@link #DEFAULT_MAX_FLOWS} flows.
+     */
+    public FlowTable() {
+        this(DEFAULT_MAX_FLOWS);
+    }
+
+    /**
+     * Create a new {@code FlowTable}.
+     * @param maxFlows Max number of flows to hold.
+     */
+    public FlowTable(int maxFlows) {
+        mMaxFlows = maxFlows;
+    }
+
+    /**
+     * Get the file that the flow summary of a pcap file is written to: the pcap file with its extension replaced by
+     * {@link #SUMMARY_EXTENSION}, e.g. {@code app-12.pcap} becomes {@code app-12.flows}.
+     * @param pcapFile The pcap file.
+     * @return The summary file, in the same directory as {@code pcapFile}.
+     */
+    public static File summaryFileFor(File pcapFile) {
+        String name = pcapFile.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        return new File(pcapFile.getAbsoluteFile().getParentFile(), base + SUMMARY_EXTENSION);
+    }
+
+    /**
+     * Account for a packet.
+     *
+     * @param buffer Buffer holding the packet.
+     * @param offset Index of the first byte of the packet in {@code buffer}.
+     * @param capLen Number of captured bytes of the packet.
+     * @param origLen Original length of the packet on the wire.
+     * @param tsSeconds Timestamp of the packet, seconds part.
+     * @param tsNanos Timestamp of the packet, nanoseconds part.
+     */
+    public void add(byte[] buffer, int offset, int capLen, int origLen, long tsSeconds, int tsNanos) {
+        add(mHeaders.decode(buffer, offset, capLen) ? mHeaders : null, buffer, origLen, tsSeconds, tsNanos);
+    }
+
+    /**
+     * Account for a packet whose headers have already been decoded, e.g. because the packet is also inspected by
+     * another analyzer.
+     *
+     * @param headers The headers of the packet, decoded from {@code buffer}, or {@code null} if the packet could not be
+     *                decoded (see {@link PacketHeaders#decode(byte[], int, int)}).
+     * @param buffer Buffer holding the packet.
+     * @param origLen Original length of the packet on the wire.
+     * @param tsSeconds Timestamp of the packet, seconds part.
+     * @param tsNanos Timestamp of the packet, nanoseconds part.
+     */
+    public void add(PacketHeaders headers, byte[] buffer, int origLen, long tsSeconds, int tsNanos) {
+        if (headers == null) {
+            mOtherPackets++;
+            mOtherBytes += origLen;
+            return;
+        }
+        final long micros = tsSeconds * 1_000_000L + tsNanos / 1_000;
+        final int addrLength = headers.getAddrLength();
+        final long srcHi = addrLength == 16 ? PacketHeaders.readLong(buffer, headers.getSrcAddrOffset()) : 0;
+        final long srcLo = addrLength == 16 ? PacketHeaders.readLong(buffer, headers.getSrcAddrOffset() + 8) :
+                PacketHeaders.readUnsignedInt(buffer, headers.getSrcAddrOffset());
+        final long dstHi = addrLength == 16 ? PacketHeaders.readLong(buffer, headers.getDstAddrOffset()) : 0;
+        final long dstLo = addrLength == 16 ? PacketHeaders.readLong(buffer, headers.getDstAddrOffset() + 8) :
+                PacketHeaders.readUnsignedInt(buffer, headers.getDstAddrOffset());
+        final int srcPort = headers.getSrcPort();
+        final int dstPort = headers.getDstPort();
+        final short protocol = (short) (headers.getIpVersion() << 8 | headers.getProtocol());
+        final long hash = headers.flowHash();
+
+        int mask = mSlots.length - 1;
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        while (mSlots[slot] != 0) {
+            int i = mSlots[slot] - 1;
+            if (mHashes[i] == hash && mProtocols[i] == protocol) {
+                if (mAddrAHi[i] == srcHi && mAddrALo[i] == srcLo && mAddrBHi[i] == dstHi && mAddrBLo[i] == dstLo &&
+                        mPorts[i] == (srcPort << 16 | dstPort)) {
+                    mPacketsAB[i]++;
+                    mBytesAB[i] += origLen;
+                    mLastMicros[i] = Math.max(mLastMicros[i], micros);
+                    return;
+                }
+                if (mAddrAHi[i] == dstHi && mAddrALo[i] == dstLo && mAddrBHi[i] == srcHi && mAddrBLo[i] == srcLo &&
+                        mPorts[i] == (dstPort << 16 | srcPort)) {
+                    mPacketsBA[i]++;
+                    mBytesBA[i] += origLen;
+                    mLastMicros[i] = Math.max(mLastMicros[i], micros);
+                    return;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (mSize >= mMaxFlows) {
+            mUntrackedPackets++;
+            mUntrackedBytes += origLen;
+            return;
+        }
+        if (mSize == mHashes.length) {
+            growFlows();
+        }
+        int i = mSize++;
+        mHashes[i] = hash;
+        mAddrAHi[i] = srcHi;
+        mAddrALo[i] = srcLo;
+        mAddrBHi[i] = dstHi;
+        mAddrBLo[i] = dstLo;
+        mPorts[i] = srcPort << 16 | dstPort;
+        mProtocols[i] = protocol;
+        mFirstMicros[i] = micros;
+        mLastMicros[i] = micros;
+        mPacketsAB[i] = 1;
+        mBytesAB[i] = origLen;
+        mPacketsBA[i] = 0;
+        mBytesBA[i] = 0;
+        mSlots[slot] = i + 1;
+        if (mSize > mSlots.length / 2) {
+            growSlots();
+        }
+    }
+
+    /**
+     * @return The number of flows in the table.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return The max number of flows that the table holds.
+     */
+    public int getMaxFlows() {
+        return mMaxFlows;
+    }
+
+    /**
+     * @return The number of TCP/UDP packets that were not attributed to a flow because the table was full.
+     */
+    public long getUntrackedPackets() {
+        return mUntrackedPackets;
+    }
+
+    /**
+     * @return The number of packets that are not TCP/UDP (or whose headers were not captured), and thus not part of
+     *         any flow.
+     */
+    public long getOtherPackets() {
+        return mOtherPackets;
+    }
+
+    /**
+     * Write the table as tab-separated text, one flow per line in the order in which the flows were first seen.
+     * Timestamps are in microseconds since the epoch. Packets that are not part of any flow are summarized in trailing
+     * comment lines.
+     *
+     * @param out Where to write the table.
+     * @throws IOException if the table could not be written.
+     */
+    public void writeTo(File out) throws IOException {
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(out),
+                StandardCharsets.UTF_8))) {
+            w.write(HEADER);
+            w.write('\n');
+            StringBuilder sb = new StringBuilder(128);
+            for (int i = 0; i < mSize; i++) {
+                sb.setLength(0);
+                int version = mProtocols[i] >>> 8;
+                int protocol = mProtocols[i] & 0xFF;
+                sb.append(protocol == PacketHeaders.PROTOCOL_TCP ? "tcp" : "udp").append('\t')
+                        .append(address(version, mAddrAHi[i], mAddrALo[i])).append('\t')
+                        .append(mPorts[i] >>> 16).append('\t')
+                        .append(address(version, mAddrBHi[i], mAddrBLo[i])).append('\t')
+                        .append(mPorts[i] & 0xFFFF).append('\t')
+                        .append(mFirstMicros[i]).append('\t')
+                        .append(mLastMicros[i]).append('\t')
+                        .append(mPacketsAB[i]).append('\t')
+                        .append(mBytesAB[i]).append('\t')
+                        .append(mPacketsBA[i]).append('\t')
+                        .append(mBytesBA[i]).append('\n');
+                w.append(sb);
+            }
+            if (mOtherPackets > 0) {
+                w.write(String.format("# other: %d packets, %d bytes%n", mOtherPackets, mOtherBytes));
+            }
+            if (mUntrackedPackets > 0) {
+                w.write(String.format("# untracked (table full): %d packets, %d bytes%n", mUntrackedPackets,
+                        mUntrackedBytes));
+            }
+        }
+    }
+
+    /**
+     * Remove all flows and counts, e.g. when the capture switches to a new output file. The arrays are kept for reuse.
+     */
+    public void clear() {
+        Arrays.fill(mSlots, 0);
+        mSize = 0;
+        mUntrackedPackets = 0;
+        mUntrackedBytes = 0;
+        mOtherPackets = 0;
+        mOtherBytes = 0;
+    }
+
+    private void growFlows() {
+        int capacity = mHashes.length * 2;
+        mHashes = Arrays.copyOf(mHashes, capacity);
+        mAddrAHi = Arrays.copyOf(mAddrAHi, capacity);
+        mAddrALo = Arrays.copyOf(mAddrALo, capacity);
+        mAddrBHi = Arrays.copyOf(mAddrBHi, capacity);
+        mAddrBLo = Arrays.copyOf(mAddrBLo, capacity);
+        mPorts = Arrays.copyOf(mPorts, capacity);
+        mProtocols = Arrays.copyOf(mProtocols, capacity);
+        mFirstMicros = Arrays.copyOf(mFirstMicros, capacity);
+        mLastMicros = Arrays.copyOf(mLastMicros, capacity);
+        mPacketsAB = Arrays.copyOf(mPacketsAB, capacity);
+        mBytesAB = Arrays.copyOf(mBytesAB, capacity);
+        mPacketsBA = Arrays.copyOf(mPacketsBA, capacity);
+        mBytesBA = Arrays.copyOf(mBytesBA, capacity);
+    }
+
+    private void growSlots() {
+        mSlots = new int[mSlots.length * 2];
+        int mask = mSlots.length - 1;
+        for (int i = 0; i < mSize; i++) {
+            int slot = (int) (mHashes[i] ^ (mHashes[i] >>> 32)) & mask;
+            while (mSlots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            mSlots[slot] = i + 1;
+        }
+    }
+
+    private static String address(int version, long hi, long lo) {
+        byte[] addr = new byte[version == 6 ? 16 : 4];
+        if (version == 6) {
+            for (int i = 0; i < 8; i++) {
+                addr[i] = (byte) (hi >>> (56 - 8 * i));
+                addr[8 + i] = (byte) (lo >>> (56 - 8 * i));
+            }
+        } else {
+            for (int i = 0; i < 4; i++) {
+                addr[i] = (byte) (lo >>> (24 - 8 * i));
+            }
+        }
+        try {
+            return InetAddress.getByAddress(addr).getHostAddress();
+        } catch (UnknownHostException uhe) {
+            // Only thrown for an illegal address length.
+            throw new AssertionError(uhe);
+        }
+    }
+
+}
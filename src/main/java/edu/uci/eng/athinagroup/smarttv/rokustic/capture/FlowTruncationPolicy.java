@@ -0,0 +1,161 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.capture;
+
+/**
+ * <p>
+ *     Decides how many bytes of each packet to store. Packets are stored in full while their flow is young: TCP
+ *     handshake/teardown segments (SYN, FIN, RST) and the first {@link #getFullBytesPerFlow()} payload bytes of every
+ *     TCP/UDP flow (covering DNS, TLS handshakes and HTTP headers). Once a flow has exceeded that budget, only the
+ *     packet headers up to and including the transport layer header are stored; the original packet length is still
+ *     recorded. Non-TCP/UDP packets are always stored in full.
+ * </p>
+ * <p>
+ *     The per-flow byte counts are kept in an open-addressing table of primitive longs keyed by
+ *     {@link PacketHeaders#flowHash()}; a hash collision between two flows at worst truncates one of them early.
+ *     Instances are not thread safe and are meant to be used by the capture's reader thread only.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class FlowTruncationPolicy {
+
+    /**
+     * Default value for {@link #getFullBytesPerFlow()}.
+     */
+    public static final int DEFAULT_FULL_BYTES_PER_FLOW = 32 * 1024;
+
+    /**
+     * The table is cleared when it holds this many flows, bounding memory use for captures that run for days.
+     */
+    private static final int MAX_FLOWS = 1 << 18;
+
+    private static final int INITIAL_CAPACITY = 1 << 12;
+
+    private final int mFullBytesPerFlow;
+    private final PacketHeaders mHeaders = new PacketHeaders();
+
+    /**
+     * Flow hashes; 0 marks an empty slot (a flow that hashes to 0 is stored as 1).
+     */
+    private long[] mKeys = new long[INITIAL_CAPACITY];
+
+    /**
+     * Payload bytes seen for the flow in the corresponding slot of {@link #mKeys}.
+     */
+    private long[] mBytes = new long[INITIAL_CAPACITY];
+
+    private int mSize = 0;
+
+    /**
+     * Create a new {@code FlowTruncationPolicy} that stores {@link #DEFAULT_FULL_BYTES_PER_FLOW} bytes per flow in
+     * full.
+     */
+    public FlowTruncationPolicy() {
+        this(DEFAULT_FULL_BYTES_PER_FLOW);
+    }
+
+    /**
+     * Create a new {@code FlowTruncationPolicy}.
+     * @param fullBytesPerFlow Number of payload bytes of each flow to store in full.
+     */
+    public FlowTruncationPolicy(int fullBytesPerFlow) {
+        mFullBytesPerFlow = fullBytesPerFlow;
+    }
+
+    /**
+     * @return Number of payload bytes of each flow that are stored in full.
+     */
+    public int getFullBytesPerFlow() {
+        return mFullBytesPerFlow;
+    }
+
+    /**
+     * Determine how many bytes of a packet to store, and account for the packet in its flow's byte count.
+     *
+     * @param packet Buffer holding the packet, starting at index 0.
+     * @param length Number of captured bytes of the packet.
+     * @return The number of leading bytes of the packet to store.
+     */
+    public int captureLength(byte[] packet, int length) {
+        if (!mHeaders.decode(packet, 0, length)) {
+            return length;
+        }
+        int payload = mHeaders.getPayloadLength();
+        long seen = addBytes(mHeaders.flowHash(), payload);
+        if ((mHeaders.getTcpFlags() & (PacketHeaders.TCP_SYN | PacketHeaders.TCP_FIN | PacketHeaders.TCP_RST)) != 0) {
+            return length;
+        }
+        if (seen - payload < mFullBytesPerFlow) {
+            // Flow was still within its budget when this packet arrived.
+            return length;
+        }
+        return mHeaders.getPayloadOffset();
+    }
+
+    /**
+     * Add to the byte count of a flow.
+     * @return The flow's byte count including {@code bytes}.
+     */
+    private long addBytes(long flowHash, int bytes) {
+        long key = flowHash == 0 ? 1 : flowHash;
+        int mask = mKeys.length - 1;
+        int slot = (int) key & mask;
+        while (mKeys[slot] != 0) {
+            if (mKeys[slot] == key) {
+                return mBytes[slot] += bytes;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (mSize >= MAX_FLOWS) {
+            clear();
+            return addBytes(flowHash, bytes);
+        }
+        mKeys[slot] = key;
+        mBytes[slot] = bytes;
+        if (++mSize > mKeys.length / 2) {
+            grow();
+        }
+        return bytes;
+    }
+
+    private void grow() {
+        long[] oldKeys = mKeys;
+        long[] oldBytes = mBytes;
+        mKeys = new long[oldKeys.length * 2];
+        mBytes = new long[oldBytes.length * 2];
+        int mask = mKeys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == 0) {
+                continue;
+            }
+            int slot = (int) oldKeys[i] & mask;
+            while (mKeys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            mKeys[slot] = oldKeys[i];
+            mBytes[slot] = oldBytes[i];
+        }
+    }
+
+    private void clear() {
+        mKeys = new long[INITIAL_CAPACITY];
+        mBytes = new long[INITIAL_CAPACITY];
+        mSize = 0;
+    }
+
+}
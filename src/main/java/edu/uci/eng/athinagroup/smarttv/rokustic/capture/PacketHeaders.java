@@ -0,0 +1,270 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.capture;
+
+/**
+ * <p>
+ *     Minimal, allocation-free decoder for the Ethernet, IPv4/IPv6 and TCP/UDP headers of a raw captured packet. A
+ *     single instance is meant to be reused for every packet on one thread: {@link #decode(byte[], int, int)} only
+ *     records offsets and a few header fields, and the addresses are read straight from the packet buffer.
+ * </p>
+ * <p>
+ *     This is deliberately much less complete than pcap4j's packet factories, which build an object graph for every
+ *     packet. Use those for anything beyond locating flows and payloads.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class PacketHeaders {
+
+    public static final int PROTOCOL_TCP = 6;
+    public static final int PROTOCOL_UDP = 17;
+
+    public static final int TCP_FIN = 0x01;
+    public static final int TCP_SYN = 0x02;
+    public static final int TCP_RST = 0x04;
+
+    private static final int ETHERTYPE_IPV4 = 0x0800;
+    private static final int ETHERTYPE_IPV6 = 0x86DD;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+    private static final int ETHERNET_HEADER_LENGTH = 14;
+
+    private byte[] mBuffer;
+    private int mIpVersion;
+    private int mProtocol;
+    private int mSrcAddrOffset;
+    private int mDstAddrOffset;
+    private int mAddrLength;
+    private int mTransportOffset;
+    private int mPayloadOffset;
+    private int mEnd;
+    private int mSrcPort;
+    private int mDstPort;
+    private int mTcpFlags;
+
+    /**
+     * Decode the headers of an Ethernet frame.
+     *
+     * @param buffer Buffer holding the packet.
+     * @param offset Index of the first byte of the packet in {@code buffer}.
+     * @param length Number of captured bytes of the packet.
+     * @return {@code true} if the frame carries a TCP or UDP segment whose headers were captured in full,
+     *         {@code false} otherwise (in which case the getters return meaningless values).
+     */
+    public boolean decode(byte[] buffer, int offset, int length) {
+        mBuffer = buffer;
+        mEnd = offset + length;
+        int pos = offset + ETHERNET_HEADER_LENGTH;
+        if (pos > mEnd) {
+            return false;
+        }
+        int etherType = readUnsignedShort(buffer, pos - 2);
+        if (etherType == ETHERTYPE_VLAN) {
+            pos += 4;
+            if (pos > mEnd) {
+                return false;
+            }
+            etherType = readUnsignedShort(buffer, pos - 2);
+        }
+        if (etherType == ETHERTYPE_IPV4) {
+            if (pos + 20 > mEnd) {
+                return false;
+            }
+            int ihl = (buffer[pos] & 0x0F) * 4;
+            // Only the first fragment carries the transport header.
+            int fragmentOffset = readUnsignedShort(buffer, pos + 6) & 0x1FFF;
+            if (ihl < 20 || fragmentOffset != 0) {
+                return false;
+            }
+            mIpVersion = 4;
+            mProtocol = buffer[pos + 9] & 0xFF;
+            mSrcAddrOffset = pos + 12;
+            mDstAddrOffset = pos + 16;
+            mAddrLength = 4;
+            // Exclude link layer padding (e.g. of Ethernet frames shorter than 60 bytes) from the payload. A total
+            // length of 0 is left by TCP segmentation offload on the sending host; trust the capture then.
+            int totalLength = readUnsignedShort(buffer, pos + 2);
+            if (totalLength != 0) {
+                if (totalLength < ihl) {
+                    return false;
+                }
+                mEnd = Math.min(mEnd, pos + totalLength);
+            }
+            pos += ihl;
+        } else if (etherType == ETHERTYPE_IPV6) {
+            if (pos + 40 > mEnd) {
+                return false;
+            }
+            // Extension headers are not traversed; such packets are simply not decoded.
+            mIpVersion = 6;
+            mProtocol = buffer[pos + 6] & 0xFF;
+            mSrcAddrOffset = pos + 8;
+            mDstAddrOffset = pos + 24;
+            mAddrLength = 16;
+            // Likewise; a payload length of 0 is left by offload, or announces a jumbogram.
+            int payloadLength = readUnsignedShort(buffer, pos + 4);
+            if (payloadLength != 0) {
+                mEnd = Math.min(mEnd, pos + 40 + payloadLength);
+            }
+            pos += 40;
+        } else {
+            return false;
+        }
+        mTransportOffset = pos;
+        if (mProtocol == PROTOCOL_TCP) {
+            if (pos + 20 > mEnd) {
+                return false;
+            }
+            mSrcPort = readUnsignedShort(buffer, pos);
+            mDstPort = readUnsignedShort(buffer, pos + 2);
+            mTcpFlags = buffer[pos + 13] & 0xFF;
+            mPayloadOffset = pos + ((buffer[pos + 12] & 0xF0) >>> 4) * 4;
+        } else if (mProtocol == PROTOCOL_UDP) {
+            if (pos + 8 > mEnd) {
+                return false;
+            }
+            mSrcPort = readUnsignedShort(buffer, pos);
+            mDstPort = readUnsignedShort(buffer, pos + 2);
+            mTcpFlags = 0;
+            mPayloadOffset = pos + 8;
+            int udpLength = readUnsignedShort(buffer, pos + 4);
+            if (udpLength >= 8) {
+                mEnd = Math.min(mEnd, pos + udpLength);
+            }
+        } else {
+            return false;
+        }
+        return mPayloadOffset <= mEnd;
+    }
+
+    /**
+     * @return 4 or 6.
+     */
+    public int getIpVersion() {
+        return mIpVersion;
+    }
+
+    /**
+     * @return The IP protocol number of the transport layer, i.e. {@link #PROTOCOL_TCP} or {@link #PROTOCOL_UDP}.
+     */
+    public int getProtocol() {
+        return mProtocol;
+    }
+
+    /**
+     * @return Index of the source address in the packet buffer.
+     */
+    public int getSrcAddrOffset() {
+        return mSrcAddrOffset;
+    }
+
+    /**
+     * @return Index of the destination address in the packet buffer.
+     */
+    public int getDstAddrOffset() {
+        return mDstAddrOffset;
+    }
+
+    /**
+     * @return Length of an address in bytes: 4 for IPv4, 16 for IPv6.
+     */
+    public int getAddrLength() {
+        return mAddrLength;
+    }
+
+    public int getSrcPort() {
+        return mSrcPort;
+    }
+
+    public int getDstPort() {
+        return mDstPort;
+    }
+
+    /**
+     * @return The TCP flags byte, or 0 for UDP.
+     */
+    public int getTcpFlags() {
+        return mTcpFlags;
+    }
+
+    /**
+     * @return Index of the transport layer header in the packet buffer.
+     */
+    public int getTransportOffset() {
+        return mTransportOffset;
+    }
+
+    /**
+     * @return Index of the first byte after the transport layer header in the packet buffer.
+     */
+    public int getPayloadOffset() {
+        return mPayloadOffset;
+    }
+
+    /**
+     * @return Number of captured payload bytes, up to the end of the datagram as given by the IP (and UDP) length
+     *         fields, i.e. not counting link layer padding.
+     */
+    public int getPayloadLength() {
+        return mEnd - mPayloadOffset;
+    }
+
+    /**
+     * Compute a hash of the flow that the packet belongs to. Both directions of a flow hash to the same value.
+     * @return the direction-independent flow hash.
+     */
+    public long flowHash() {
+        long a = endpointHash(mSrcAddrOffset, mSrcPort);
+        long b = endpointHash(mDstAddrOffset, mDstPort);
+        // Order-independent combination of the two endpoints.
+        return mix(Math.min(a, b) * 31 + Math.max(a, b) + mProtocol);
+    }
+
+    private long endpointHash(int addrOffset, int port) {
+        long h = port;
+        for (int i = 0; i < mAddrLength; i++) {
+            h = h * 31 + (mBuffer[addrOffset + i] & 0xFF);
+        }
+        return mix(h);
+    }
+
+    /**
+     * Finalization step of MurmurHash3 (fmix64); spreads the bits of {@code h} across the entire word.
+     */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    static int readUnsignedShort(byte[] buf, int pos) {
+        return ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+    }
+
+    static long readUnsignedInt(byte[] buf, int pos) {
+        return ((buf[pos] & 0xFFL) << 24) | ((buf[pos + 1] & 0xFF) << 16) | ((buf[pos + 2] & 0xFF) << 8) |
+                (buf[pos + 3] & 0xFF);
+    }
+
+    static long readLong(byte[] buf, int pos) {
+        return (readUnsignedInt(buf, pos) << 32) | readUnsignedInt(buf, pos + 4);
+    }
+
+}
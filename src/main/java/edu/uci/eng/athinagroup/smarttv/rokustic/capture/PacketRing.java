@@ -0,0 +1,209 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.capture;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *     A bounded, lock-free ring of raw packets with a single producer (the thread reading packets from the network
+ *     interface) and a single consumer (the thread writing packets to disk). Packet bytes are stored back to back in
+ *     one preallocated byte arena, and packet metadata (length, timestamp) in preallocated primitive arrays, so neither
+ *     side allocates memory per packet and small packets do not waste a full snapshot-length buffer each.
+ * </p>
+ * <p>
+ *     If the consumer falls behind and the ring is full (out of either slots or arena space),
+ *     {@link #offer(byte[], int, int, long, int)} drops the packet rather than blocking the producer, and counts the
+ *     drop; see {@link #getDropped()}.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class PacketRing {
+
+    /**
+     * Callback used by {@link #drain(PacketHandler, int)} to hand packets to the consumer.
+     */
+    public interface PacketHandler {
+        /**
+         * Process a single packet. The contents of {@code buffer} are only valid for the duration of the call.
+         *
+         * @param buffer Buffer holding the captured bytes of the packet.
+         * @param offset Index of the first byte of the packet in {@code buffer}.
+         * @param capturedLength Number of captured bytes of the packet.
+         * @param originalLength Length of the packet on the wire.
+         * @param tsSeconds Capture timestamp, seconds part (epoch seconds).
+         * @param tsNanos Capture timestamp, nanoseconds part.
+         * @throws Exception if the packet could not be processed. The packet is still released from the ring.
+         */
+        void onPacket(byte[] buffer, int offset, int capturedLength, int originalLength, long tsSeconds, int tsNanos)
+                throws Exception;
+    }
+
+    /**
+     * Packet bytes, stored back to back. A packet never wraps around the end of the arena; if it does not fit in the
+     * remaining space at the end, it is stored at the start of the arena instead.
+     */
+    private final byte[] mArena;
+    private final int mArenaMask;
+
+    private final long[] mStarts;
+    private final int[] mCapturedLengths;
+    private final int[] mOriginalLengths;
+    private final long[] mTsSeconds;
+    private final int[] mTsNanos;
+    private final int mMask;
+
+    /**
+     * Sequence number of the next slot to be written by the producer. Only modified by the producer.
+     */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * Sequence number of the next slot to be read by the consumer. Only modified by the consumer.
+     */
+    private final AtomicLong mHead = new AtomicLong();
+
+    /**
+     * The producer's (possibly stale) view of {@link #mHead}; avoids a volatile read for every packet.
+     */
+    private long mCachedHead = 0;
+
+    /**
+     * Absolute (never wrapped) arena position where the producer will store the next packet.
+     */
+    private long mArenaTail = 0;
+
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /**
+     * Create a new {@code PacketRing}.
+     *
+     * @param slots Max number of packets that the ring can hold. Rounded up to the nearest power of two.
+     * @param arenaBytes Max number of packet bytes that the ring can hold. Rounded up to the nearest power of two.
+     *                   Packets larger than this are truncated.
+     */
+    public PacketRing(int slots, int arenaBytes) {
+        if (slots < 1 || arenaBytes < 1) {
+            throw new IllegalArgumentException("ring must have at least one slot and at least one byte");
+        }
+        int capacity = ceilPowerOfTwo(slots);
+        mMask = capacity - 1;
+        mStarts = new long[capacity];
+        mCapturedLengths = new int[capacity];
+        mOriginalLengths = new int[capacity];
+        mTsSeconds = new long[capacity];
+        mTsNanos = new int[capacity];
+        mArena = new byte[ceilPowerOfTwo(arenaBytes)];
+        mArenaMask = mArena.length - 1;
+    }
+
+    /**
+     * Copy a packet into the ring. Must only be called by the producer thread.
+     *
+     * @param packet The captured bytes of the packet, starting at index 0.
+     * @param length Number of leading bytes of {@code packet} to store.
+     * @param originalLength Length of the packet on the wire.
+     * @param tsSeconds Capture timestamp, seconds part (epoch seconds).
+     * @param tsNanos Capture timestamp, nanoseconds part.
+     * @return {@code true} if the packet was stored, {@code false} if it was dropped because the ring is full.
+     */
+    public boolean offer(byte[] packet, int length, int originalLength, long tsSeconds, int tsNanos) {
+        final long tail = mTail.get();
+        final int len = Math.min(length, mArena.length);
+        long start = mArenaTail;
+        int offset = (int) (start & mArenaMask);
+        if (offset + len > mArena.length) {
+            // Skip the remainder of the arena and store the packet at the start.
+            start += mArena.length - offset;
+            offset = 0;
+        }
+        if (!hasRoom(tail, start + len)) {
+            // Our view of the consumer position may be stale; refresh it before giving up.
+            mCachedHead = mHead.get();
+            if (!hasRoom(tail, start + len)) {
+                mDropped.incrementAndGet();
+                return false;
+            }
+        }
+        int slot = (int) (tail & mMask);
+        System.arraycopy(packet, 0, mArena, offset, len);
+        mStarts[slot] = start;
+        mCapturedLengths[slot] = len;
+        mOriginalLengths[slot] = originalLength;
+        mTsSeconds[slot] = tsSeconds;
+        mTsNanos[slot] = tsNanos;
+        mArenaTail = start + len;
+        // Publish the slot to the consumer.
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    private boolean hasRoom(long tail, long end) {
+        if (tail == mCachedHead) {
+            // Empty (as far as we know): the entire arena is free.
+            return true;
+        }
+        return tail - mCachedHead <= mMask && end - mStarts[(int) (mCachedHead & mMask)] <= mArena.length;
+    }
+
+    /**
+     * Hand up to {@code maxPackets} packets to {@code handler}, in capture order, and release their slots to the
+     * producer as one batch. Must only be called by the consumer thread.
+     *
+     * @param handler Receives the packets.
+     * @param maxPackets Max number of packets to process in this batch.
+     * @return The number of packets processed.
+     * @throws Exception if {@code handler} fails.
+     */
+    public int drain(PacketHandler handler, int maxPackets) throws Exception {
+        final long head = mHead.get();
+        final long available = Math.min(mTail.get() - head, maxPackets);
+        int i = 0;
+        try {
+            for (; i < available; i++) {
+                int slot = (int) ((head + i) & mMask);
+                handler.onPacket(mArena, (int) (mStarts[slot] & mArenaMask), mCapturedLengths[slot],
+                        mOriginalLengths[slot], mTsSeconds[slot], mTsNanos[slot]);
+            }
+        } finally {
+            // Release the batch, including a packet the handler failed on (it is not going to be retried).
+            mHead.lazySet(head + Math.min(i + 1, available));
+        }
+        return i;
+    }
+
+    /**
+     * @return {@code true} if the ring holds no packets.
+     */
+    public boolean isEmpty() {
+        return mTail.get() == mHead.get();
+    }
+
+    /**
+     * @return The number of packets dropped because the ring was full.
+     */
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    private static int ceilPowerOfTwo(int n) {
+        int p = Integer.highestOneBit(n);
+        return p < n ? p << 1 : p;
+    }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.capture;
+
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * <p>
+ *     Reads packets from a stream in the classic libpcap file format (either byte order, microsecond or nanosecond
+ *     timestamps), the counterpart of {@link PcapFileWriter}. Files whose name ends in {@code .gz} are decompressed
+ *     while they are read; see {@link #open(File)}.
+ * </p>
+ * <p>
+ *     Packets are read into a single reusable buffer and handed to a {@link PacketRing.PacketHandler}, so reading a
+ *     file does not allocate per packet. A truncated last packet (e.g. of a capture that was killed) ends the file. A
+ *     packet longer than the snapshot length of the file (or {@link #MAX_PACKET_LENGTH}) is rejected as corrupt
+ *     rather than trusted with the size of the buffer.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class PcapFileReader implements Closeable {
+
+    /**
+     * Max number of bytes of a packet record, whatever the snapshot length in the file header. The largest snapshot
+     * length that libpcap accepts.
+     */
+    public static final int MAX_PACKET_LENGTH = 256 * 1024;
+
+    private static final int PCAP_MAGIC_NANOS = 0xa1b23c4d;
+
+    private static final int FILE_BUFFER_SIZE = 1 << 16;
+
+    private final InputStream mIn;
+    private final boolean mSwapped;
+    private final boolean mNanos;
+    private final int mSnapshotLength;
+    private final int mLinkType;
+    private final int mMaxPacketLength;
+
+    private final byte[] mRecordHeader = new byte[PcapFileWriter.RECORD_HEADER_LENGTH];
+    private byte[] mBuffer = new byte[FILE_BUFFER_SIZE];
+
+    /**
+     * Create a {@code PcapFileReader} and read the file header from {@code in}.
+     * @param in The stream to read from, positioned at the start of the file header.
+     * @throws IOException if the file header could not be read or is not a pcap file header.
+     */
+    public PcapFileReader(InputStream in) throws IOException {
+        mIn = in;
+        byte[] header = new byte[PcapFileWriter.FILE_HEADER_LENGTH];
+        if (!readFully(header, 0, header.length)) {
+            throw new EOFException("not a pcap file (too short)");
+        }
+        int magic = readIntLittleEndian(header, 0);
+        if (magic == PcapFileWriter.PCAP_MAGIC || magic == PCAP_MAGIC_NANOS) {
+            mSwapped = false;
+        } else if (Integer.reverseBytes(magic) == PcapFileWriter.PCAP_MAGIC ||
+                Integer.reverseBytes(magic) == PCAP_MAGIC_NANOS) {
+            mSwapped = true;
+            magic = Integer.reverseBytes(magic);
+        } else {
+            throw new IOException("not a pcap file (unknown magic number)");
+        }
+        mNanos = magic == PCAP_MAGIC_NANOS;
+        mSnapshotLength = readInt(header, 16);
+        mLinkType = readInt(header, 20);
+        mMaxPacketLength = mSnapshotLength > 0 && mSnapshotLength < MAX_PACKET_LENGTH ?
+                mSnapshotLength : MAX_PACKET_LENGTH;
+    }
+
+    /**
+     * Open a pcap file for reading, decompressing it if its name ends in {@code .gz}.
+     * @param file The pcap file.
+     * @return A reader positioned at the first packet.
+     * @throws IOException if the file could not be opened or is not a pcap file.
+     */
+    public static PcapFileReader open(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            in = file.getName().endsWith(SegmentedPcapWriter.Compression.GZIP.getSuffix()) ?
+                    new GZIPInputStream(in, FILE_BUFFER_SIZE) : new BufferedInputStream(in, FILE_BUFFER_SIZE);
+            return new PcapFileReader(in);
+        } catch (IOException ioe) {
+            in.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Read the next packet and hand it to {@code handler}. The buffer passed to {@code handler} is reused for the
+     * next packet.
+     *
+     * @param handler Receives the packet.
+     * @return {@code true} if a packet was read, {@code false} if the end of the file has been reached.
+     * @throws IOException if the stream could not be read, the packet record is corrupt, or {@code handler} failed.
+     */
+    public boolean next(PacketRing.PacketHandler handler) throws IOException {
+        if (!readFully(mRecordHeader, 0, mRecordHeader.length)) {
+            return false;
+        }
+        long tsSeconds = readInt(mRecordHeader, 0) & 0xFFFFFFFFL;
+        int tsFraction = readInt(mRecordHeader, 4);
+        int inclLen = readInt(mRecordHeader, 8);
+        int origLen = readInt(mRecordHeader, 12);
+        if (inclLen < 0) {
+            throw new IOException("corrupt packet record (negative length)");
+        }
+        if (inclLen > mMaxPacketLength) {
+            throw new IOException(String.format("corrupt packet record (length %d exceeds %d)", inclLen,
+                    mMaxPacketLength));
+        }
+        if (inclLen > mBuffer.length) {
+            mBuffer = new byte[inclLen];
+        }
+        if (!readFully(mBuffer, 0, inclLen)) {
+            return false;
+        }
+        try {
+            handler.onPacket(mBuffer, 0, inclLen, origLen, tsSeconds, mNanos ? tsFraction : tsFraction * 1_000);
+        } catch (IOException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        return true;
+    }
+
+    /**
+     * Read all remaining packets.
+     * @param handler Receives the packets.
+     * @return The number of packets read.
+     * @throws IOException if the stream could not be read, or {@code handler} failed.
+     */
+    public long readAll(PacketRing.PacketHandler handler) throws IOException {
+        long count = 0;
+        while (next(handler)) {
+            count++;
+        }
+        return count;
+    }
+
+    public int getSnapshotLength() {
+        return mSnapshotLength;
+    }
+
+    public int getLinkType() {
+        return mLinkType;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    /**
+     * Fill {@code buf[off, off + len)} from the stream.
+     * @return {@code false} if the stream ended first (a partial read counts as the end of the file).
+     */
+    private boolean readFully(byte[] buf, int off, int len) throws IOException {
+        while (len > 0) {
+            int n;
+            try {
+                n = mIn.read(buf, off, len);
+            } catch (EOFException eofe) {
+                // GZIPInputStream reports a truncated gzip stream this way.
+                return false;
+            }
+            if (n < 0) {
+                return false;
+            }
+            off += n;
+            len -= n;
+        }
+        return true;
+    }
+
+    private int readInt(byte[] buf, int pos) {
+        int value = readIntLittleEndian(buf, pos);
+        return mSwapped ? Integer.reverseBytes(value) : value;
+    }
+
+    private static int readIntLittleEndian(byte[] buf, int pos) {
+        return (buf[pos] & 0xFF) | (buf[pos + 1] & 0xFF) << 8 | (buf[pos + 2] & 0xFF) << 16 |
+                (buf[pos + 3] & 0xFF) << 24;
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.capture;
+
+import java.io.*;
+
+/**
+ * <p>
+ *     Writes packets to a stream in the classic libpcap file format (microsecond timestamps, little endian), i.e., the
+ *     format produced by {@code tcpdump -w}. Unlike {@link org.pcap4j.core.PcapDumper}, this writer takes packets as
+ *     (buffer, offset, length) triples, so packets can be written straight from reusable buffers, and it does not
+ *     need a native pcap handle.
+ * </p>
+ * <p>
+ *     Output is buffered; call {@link #flush()} to push buffered packets to the underlying stream.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class PcapFileWriter implements Closeable, Flushable {
+
+    /**
+     * Magic number identifying a pcap file with microsecond timestamps.
+     */
+    public static final int PCAP_MAGIC = 0xa1b2c3d4;
+
+    /**
+     * Size of the pcap global (file) header, in bytes.
+     */
+    public static final int FILE_HEADER_LENGTH = 24;
+
+    /**
+     * Size of the pcap per-packet record header, in bytes.
+     */
+    public static final int RECORD_HEADER_LENGTH = 16;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final OutputStream mOut;
+    private final int mSnapshotLength;
+
+    /**
+     * Scratch buffer for record headers; reused for every packet.
+     */
+    private final byte[] mRecordHeader = new byte[RECORD_HEADER_LENGTH];
+
+    private long mBytesWritten = 0;
+
+    /**
+     * Create a new {@code PcapFileWriter} and write the pcap file header to {@code out}.
+     *
+     * @param out The stream that the pcap data is written to. Closed when this writer is closed.
+     * @param snapshotLength Max number of bytes stored per packet; recorded in the file header.
+     * @param linkType The link-layer header type (e.g. 1 for Ethernet); recorded in the file header.
+     * @throws IOException if the file header could not be written.
+     */
+    public PcapFileWriter(OutputStream out, int snapshotLength, int linkType) throws IOException {
+        mOut = out instanceof BufferedOutputStream ? out : new BufferedOutputStream(out, BUFFER_SIZE);
+        mSnapshotLength = snapshotLength;
+        byte[] header = new byte[FILE_HEADER_LENGTH];
+        putInt(header, 0, PCAP_MAGIC);
+        // Version 2.4
+        putShort(header, 4, 2);
+        putShort(header, 6, 4);
+        // thiszone and sigfigs are always zero.
+        putInt(header, 16, snapshotLength);
+        putInt(header, 20, linkType);
+        mOut.write(header);
+        mBytesWritten += header.length;
+    }
+
+    /**
+     * Create a new {@code PcapFileWriter} that writes to a file, replacing any existing file.
+     *
+     * @param file The output file.
+     * @param snapshotLength Max number of bytes stored per packet; recorded in the file header.
+     * @param linkType The link-layer header type (e.g. 1 for Ethernet); recorded in the file header.
+     * @throws IOException if the file could not be opened or the file header could not be written.
+     */
+    public PcapFileWriter(File file, int snapshotLength, int linkType) throws IOException {
+        this(new FileOutputStream(file), snapshotLength, linkType);
+    }
+
+    /**
+     * Append a packet.
+     *
+     * @param buffer Buffer holding the captured bytes of the packet.
+     * @param offset Index of the first byte of the packet in {@code buffer}.
+     * @param capturedLength Number of bytes of {@code buffer} to write. Truncated to the snapshot length.
+     * @param originalLength Length of the packet on the wire.
+     * @param tsSeconds Capture timestamp, seconds part (epoch seconds).
+     * @param tsNanos Capture timestamp, nanoseconds part.
+     * @throws IOException if the packet could not be written.
+     */
+    public void write(byte[] buffer, int offset, int capturedLength, int originalLength, long tsSeconds, int tsNanos)
+            throws IOException {
+        int inclLen = Math.min(capturedLength, mSnapshotLength);
+        putInt(mRecordHeader, 0, (int) tsSeconds);
+        putInt(mRecordHeader, 4, tsNanos / 1000);
+        putInt(mRecordHeader, 8, inclLen);
+        putInt(mRecordHeader, 12, Math.max(originalLength, inclLen));
+        mOut.write(mRecordHeader);
+        mOut.write(buffer, offset, inclLen);
+        mBytesWritten += RECORD_HEADER_LENGTH + inclLen;
+    }
+
+    /**
+     * @return The number of bytes written so far, including the file header and bytes that are still buffered.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    private static void putInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) value;
+        dst[offset + 1] = (byte) (value >>> 8);
+        dst[offset + 2] = (byte) (value >>> 16);
+        dst[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private static void putShort(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) value;
+        dst[offset + 1] = (byte) (value >>> 8);
+    }
+
+}
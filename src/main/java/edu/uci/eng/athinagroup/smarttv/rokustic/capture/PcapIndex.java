@@ -0,0 +1,446 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * <p>
+ *     A sparse index of the packet timestamps of a finished (uncompressed) pcap file, for extracting the packets of a
+ *     time range without reading the file from its start. The index is stored in a sidecar file next to the pcap file
+ *     ({@code app-12.pcap} gets {@code app-12.pcap.idx}) and is rebuilt automatically if the pcap file has changed
+ *     since it was indexed.
+ * </p>
+ * <p>
+ *     The pcap file is divided into blocks of {@link #BLOCK_PACKETS} consecutive packets. For each block, the index
+ *     stores the file offset of the block's first packet, the latest timestamp of any packet up to and including the
+ *     block, and the earliest timestamp of any packet from the block onwards. These running max/min timestamps let
+ *     {@link #read(long, long, PacketRing.PacketHandler)} skip exactly the blocks that cannot hold packets of the
+ *     range, even if packets are not perfectly ordered by time. A truncated last record (e.g. if the capture was killed)
+ *     is left out of the index, and the index records where the last complete record ends so that reads stop there.
+ * </p>
+ * <p>
+ *     Both files are memory-mapped rather than read onto the heap: building the index only touches the packet record
+ *     headers, and reading a range only touches the blocks that overlap it. Pcap files of any size are supported; they
+ *     are mapped in windows of at most {@link #MAP_WINDOW_BYTES}.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class PcapIndex {
+
+    /**
+     * File extension of an index, appended to the name of the pcap file.
+     */
+    public static final String INDEX_EXTENSION = ".idx";
+
+    /**
+     * Number of packets per block, i.e. the max number of packets before the start of a range that are read (but not
+     * reported) by {@link #read(long, long, PacketRing.PacketHandler)}.
+     */
+    public static final int BLOCK_PACKETS = 256;
+
+    /**
+     * Max size of a memory-mapped window of the pcap file.
+     */
+    private static final long MAP_WINDOW_BYTES = 1L << 30;
+
+    private static final int INDEX_MAGIC = 0x52504958; // "RPIX"
+    private static final int INDEX_VERSION = 2;
+    private static final int INDEX_HEADER_LENGTH = 48;
+
+    private static final int PCAP_MAGIC_MICROS = 0xa1b2c3d4;
+    private static final int PCAP_MAGIC_NANOS = 0xa1b23c4d;
+
+    private final File mPcapFile;
+    private final ByteOrder mByteOrder;
+    private final boolean mNanos;
+    private final long mPacketCount;
+
+    /**
+     * File offset just past the last complete packet record.
+     */
+    private final long mDataEnd;
+
+    /**
+     * Views of the (memory-mapped) index: per block, the offset of its first packet, the running max timestamp
+     * through the block, and the running min timestamp from the block onwards. Timestamps are in microseconds.
+     */
+    private final LongBuffer mOffsets;
+    private final LongBuffer mMaxMicros;
+    private final LongBuffer mMinMicros;
+
+    private PcapIndex(File pcapFile, ByteOrder byteOrder, boolean nanos, long packetCount, long dataEnd,
+                      LongBuffer offsets, LongBuffer maxMicros, LongBuffer minMicros) {
+        mPcapFile = pcapFile;
+        mByteOrder = byteOrder;
+        mNanos = nanos;
+        mPacketCount = packetCount;
+        mDataEnd = dataEnd;
+        mOffsets = offsets;
+        mMaxMicros = maxMicros;
+        mMinMicros = minMicros;
+    }
+
+    /**
+     * Get the index file of a pcap file.
+     * @param pcapFile The pcap file.
+     * @return The index file, in the same directory as {@code pcapFile}.
+     */
+    public static File indexFileFor(File pcapFile) {
+        return new File(pcapFile.getAbsoluteFile().getParentFile(), pcapFile.getName() + INDEX_EXTENSION);
+    }
+
+    /**
+     * Open the index of a pcap file, building (and storing) the index first if it does not exist or is out of date.
+     *
+     * @param pcapFile A complete, uncompressed pcap file.
+     * @return The index.
+     * @throws IOException if the pcap file could not be read or is not a pcap file, or the index could not be stored.
+     */
+    public static PcapIndex open(File pcapFile) throws IOException {
+        File indexFile = indexFileFor(pcapFile);
+        if (!isCurrent(indexFile, pcapFile)) {
+            build(pcapFile, indexFile);
+        }
+        return load(pcapFile, indexFile);
+    }
+
+    /**
+     * Report every packet whose timestamp is in {@code [fromMicros, toMicros)}, in file order.
+     *
+     * @param fromMicros Start of the range (inclusive), in microseconds since the epoch.
+     * @param toMicros End of the range (exclusive), in microseconds since the epoch.
+     * @param handler Receives the packets. The buffer is reused between calls.
+     * @return The number of packets reported.
+     * @throws IOException if the pcap file could not be read, or {@code handler} failed.
+     */
+    public long read(long fromMicros, long toMicros, PacketRing.PacketHandler handler) throws IOException {
+        int blocks = mOffsets.limit();
+        // First block that may hold a packet at/after the start of the range.
+        int lo = 0;
+        int hi = blocks;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mMaxMicros.get(mid) < fromMicros) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (lo == blocks) {
+            return 0;
+        }
+        long reported = 0;
+        byte[] scratch = new byte[0];
+        try (FileChannel channel = FileChannel.open(mPcapFile.toPath(), StandardOpenOption.READ)) {
+            Window window = new Window(channel, mByteOrder);
+            for (int block = lo; block < blocks; block++) {
+                if (mMinMicros.get(block) >= toMicros) {
+                    // No packet from this block onwards is in the range.
+                    break;
+                }
+                long blockEnd = block + 1 < blocks ? mOffsets.get(block + 1) : mDataEnd;
+                long pos = mOffsets.get(block);
+                while (pos + PcapFileWriter.RECORD_HEADER_LENGTH <= blockEnd) {
+                    ByteBuffer buf = window.at(pos, PcapFileWriter.RECORD_HEADER_LENGTH);
+                    int at = window.offset(pos);
+                    long tsSeconds = buf.getInt(at) & 0xFFFFFFFFL;
+                    int tsFraction = buf.getInt(at + 4);
+                    int inclLen = buf.getInt(at + 8);
+                    int origLen = buf.getInt(at + 12);
+                    long micros = tsSeconds * 1_000_000L + (mNanos ? tsFraction / 1_000 : tsFraction);
+                    long dataPos = pos + PcapFileWriter.RECORD_HEADER_LENGTH;
+                    if (inclLen < 0 || dataPos + inclLen > blockEnd) {
+                        throw new IOException("truncated packet record at offset " + pos);
+                    }
+                    if (micros >= fromMicros && micros < toMicros) {
+                        if (scratch.length < inclLen) {
+                            scratch = new byte[Math.max(inclLen, 2 * scratch.length)];
+                        }
+                        ByteBuffer data = window.at(dataPos, inclLen);
+                        data.position(window.offset(dataPos));
+                        data.get(scratch, 0, inclLen);
+                        handler.onPacket(scratch, 0, inclLen, origLen, tsSeconds,
+                                mNanos ? tsFraction : tsFraction * 1_000);
+                        reported++;
+                    }
+                    pos = dataPos + inclLen;
+                }
+            }
+        } catch (IOException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        return reported;
+    }
+
+    /**
+     * Convenience method that copies the packets of a time range to a new pcap file, e.g. to cut out the traffic
+     * between two steps of an exercise plan. The new file has the snapshot length and link type of the indexed file.
+     *
+     * @param from Start of the range (inclusive).
+     * @param to End of the range (exclusive).
+     * @param out The output file; replaced if it exists.
+     * @return The number of packets copied.
+     * @throws IOException if the pcap file could not be read or the output could not be written.
+     */
+    public long slice(Instant from, Instant to, File out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(PcapFileWriter.FILE_HEADER_LENGTH).order(mByteOrder);
+        try (FileChannel channel = FileChannel.open(mPcapFile.toPath(), StandardOpenOption.READ)) {
+            channel.read(header, 0);
+        }
+        try (PcapFileWriter writer = new PcapFileWriter(out, header.getInt(16), header.getInt(20))) {
+            return read(toMicros(from), toMicros(to), writer::write);
+        }
+    }
+
+    /**
+     * @return The number of packets in the pcap file.
+     */
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    /**
+     * @return The earliest packet timestamp in the pcap file in microseconds since the epoch, or
+     *         {@link Long#MAX_VALUE} if it holds no packets.
+     */
+    public long getFirstMicros() {
+        return mMinMicros.limit() == 0 ? Long.MAX_VALUE : mMinMicros.get(0);
+    }
+
+    /**
+     * @return The latest packet timestamp in the pcap file in microseconds since the epoch, or
+     *         {@link Long#MIN_VALUE} if it holds no packets.
+     */
+    public long getLastMicros() {
+        return mMaxMicros.limit() == 0 ? Long.MIN_VALUE : mMaxMicros.get(mMaxMicros.limit() - 1);
+    }
+
+    public File getPcapFile() {
+        return mPcapFile;
+    }
+
+    private static long toMicros(Instant instant) {
+        return instant.getEpochSecond() * 1_000_000L + instant.getNano() / 1_000;
+    }
+
+    /**
+     * Determine if {@code indexFile} exists and was built from the current version of {@code pcapFile}.
+     */
+    private static boolean isCurrent(File indexFile, File pcapFile) throws IOException {
+        if (!indexFile.isFile() || indexFile.length() < INDEX_HEADER_LENGTH) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "r")) {
+            return raf.readInt() == INDEX_MAGIC && raf.readInt() == INDEX_VERSION &&
+                    raf.readLong() == pcapFile.length() && raf.readLong() == pcapFile.lastModified();
+        }
+    }
+
+    /**
+     * Scan the record headers of {@code pcapFile} and write the index to {@code indexFile}.
+     */
+    private static void build(File pcapFile, File indexFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(pcapFile.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            ByteOrder order = byteOrder(channel);
+            Window window = new Window(channel, order);
+            boolean nanos = window.at(0, 4).getInt(0) == PCAP_MAGIC_NANOS;
+            // Worst case: every packet is a bare record header.
+            long maxBlocks = (fileSize / PcapFileWriter.RECORD_HEADER_LENGTH) / BLOCK_PACKETS + 1;
+            long[] offsets = new long[(int) Math.min(maxBlocks, 1 << 16)];
+            long[] maxMicros = new long[offsets.length];
+            long[] minMicros = new long[offsets.length];
+            int blocks = 0;
+            long packets = 0;
+            long runningMax = Long.MIN_VALUE;
+            long pos = PcapFileWriter.FILE_HEADER_LENGTH;
+            while (pos + PcapFileWriter.RECORD_HEADER_LENGTH <= fileSize) {
+                ByteBuffer buf = window.at(pos, PcapFileWriter.RECORD_HEADER_LENGTH);
+                int at = window.offset(pos);
+                long micros = (buf.getInt(at) & 0xFFFFFFFFL) * 1_000_000L +
+                        (nanos ? buf.getInt(at + 4) / 1_000 : buf.getInt(at + 4));
+                int inclLen = buf.getInt(at + 8);
+                if (inclLen < 0 || pos + PcapFileWriter.RECORD_HEADER_LENGTH + inclLen > fileSize) {
+                    // Truncated last record, e.g. the capture was killed; index the complete records only.
+                    break;
+                }
+                if (packets % BLOCK_PACKETS == 0) {
+                    if (blocks == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, blocks * 2);
+                        maxMicros = Arrays.copyOf(maxMicros, blocks * 2);
+                        minMicros = Arrays.copyOf(minMicros, blocks * 2);
+                    }
+                    offsets[blocks] = pos;
+                    minMicros[blocks] = Long.MAX_VALUE;
+                    blocks++;
+                }
+                runningMax = Math.max(runningMax, micros);
+                maxMicros[blocks - 1] = runningMax;
+                minMicros[blocks - 1] = Math.min(minMicros[blocks - 1], micros);
+                packets++;
+                pos += PcapFileWriter.RECORD_HEADER_LENGTH + inclLen;
+            }
+            // Turn the per-block minimums into running minimums from each block onwards.
+            for (int i = blocks - 2; i >= 0; i--) {
+                minMicros[i] = Math.min(minMicros[i], minMicros[i + 1]);
+            }
+            writeIndex(pcapFile, indexFile, order, nanos, packets, pos, blocks, offsets, maxMicros, minMicros);
+        }
+    }
+
+    private static void writeIndex(File pcapFile, File indexFile, ByteOrder order, boolean nanos, long packets,
+                                   long dataEnd, int blocks, long[] offsets, long[] maxMicros, long[] minMicros)
+            throws IOException {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        long size = INDEX_HEADER_LENGTH + 3L * 8 * blocks;
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            raf.setLength(size);
+            MappedByteBuffer out = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            out.putInt(INDEX_MAGIC);
+            out.putInt(INDEX_VERSION);
+            out.putLong(pcapFile.length());
+            out.putLong(pcapFile.lastModified());
+            out.putInt(order == ByteOrder.BIG_ENDIAN ? 1 : 0);
+            out.putInt(nanos ? 1 : 0);
+            out.putLong(packets);
+            out.putLong(dataEnd);
+            // Blocks count is implied by the file size.
+            out.asLongBuffer().put(offsets, 0, blocks);
+            out.position(INDEX_HEADER_LENGTH + 8 * blocks);
+            out.asLongBuffer().put(maxMicros, 0, blocks);
+            out.position(INDEX_HEADER_LENGTH + 16 * blocks);
+            out.asLongBuffer().put(minMicros, 0, blocks);
+            out.force();
+        }
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static PcapIndex load(File pcapFile, File indexFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed.
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int blocks = (int) ((channel.size() - INDEX_HEADER_LENGTH) / 24);
+            ByteOrder order = in.getInt(24) == 1 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            boolean nanos = in.getInt(28) == 1;
+            long packets = in.getLong(32);
+            long dataEnd = in.getLong(40);
+            return new PcapIndex(pcapFile, order, nanos, packets, dataEnd, view(in, 0, blocks), view(in, 1, blocks),
+                    view(in, 2, blocks));
+        }
+    }
+
+    private static LongBuffer view(MappedByteBuffer index, int array, int blocks) {
+        ByteBuffer dup = index.duplicate();
+        dup.position(INDEX_HEADER_LENGTH + 8 * array * blocks);
+        dup.limit(INDEX_HEADER_LENGTH + 8 * (array + 1) * blocks);
+        return dup.slice().asLongBuffer();
+    }
+
+    private static ByteOrder byteOrder(FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        if (channel.size() < PcapFileWriter.FILE_HEADER_LENGTH || channel.read(magic, 0) != 4) {
+            throw new IOException("not a pcap file (too short)");
+        }
+        int m = magic.getInt(0);
+        if (m == PCAP_MAGIC_MICROS || m == PCAP_MAGIC_NANOS) {
+            return ByteOrder.LITTLE_ENDIAN;
+        }
+        if (Integer.reverseBytes(m) == PCAP_MAGIC_MICROS || Integer.reverseBytes(m) == PCAP_MAGIC_NANOS) {
+            return ByteOrder.BIG_ENDIAN;
+        }
+        throw new IOException("not an uncompressed pcap file (unknown magic number)");
+    }
+
+    /**
+     * A memory-mapped window of a file that slides along as positions beyond it are requested.
+     */
+    private static class Window {
+
+        private final FileChannel mChannel;
+        private final ByteOrder mOrder;
+        private MappedByteBuffer mBuffer;
+        private long mStart = 0;
+        private long mEnd = 0;
+
+        private Window(FileChannel channel, ByteOrder order) {
+            mChannel = channel;
+            mOrder = order;
+        }
+
+        /**
+         * Get a buffer that holds {@code [pos, pos + length)} of the file; see {@link #offset(long)}.
+         */
+        private ByteBuffer at(long pos, int length) throws IOException {
+            if (pos < mStart || pos + length > mEnd) {
+                long size = Math.min(Math.max(MAP_WINDOW_BYTES, length), mChannel.size() - pos);
+                mBuffer = mChannel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+                mBuffer.order(mOrder);
+                mStart = pos;
+                mEnd = pos + size;
+            }
+            return mBuffer;
+        }
+
+        /**
+         * @return The index in the current buffer of file position {@code pos}.
+         */
+        private int offset(long pos) {
+            return (int) (pos - mStart);
+        }
+    }
+
+    /**
+     * Copy the packets of a time range of a pcap file to a new pcap file, building the index if necessary.
+     * Arguments: {@code <pcap file> <from> <to> <output file>}, where {@code from} and {@code to} are either
+     * milliseconds since the epoch (as in the {@code -steps.tsv} files) or ISO-8601 instants.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.out.println("Usage: PcapIndex <pcap file> <from> <to> <output file>");
+            return;
+        }
+        PcapIndex index = open(new File(args[0]));
+        Instant from = parseInstant(args[1]);
+        Instant to = parseInstant(args[2]);
+        long copied = index.slice(from, to, new File(args[3]));
+        System.out.printf("Copied %d of %d packets (%s to %s) to '%s'.", copied, index.getPacketCount(), from, to,
+                args[3]);
+        System.out.println();
+    }
+
+    private static Instant parseInstant(String s) {
+        return s.chars().allMatch(Character::isDigit) ? Instant.ofEpochMilli(Long.parseLong(s)) : Instant.parse(s);
+    }
+
+}
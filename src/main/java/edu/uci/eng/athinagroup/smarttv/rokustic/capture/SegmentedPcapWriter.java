@@ -0,0 +1,287 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.capture;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>
+ *     Writes one logical pcap output, optionally compressed and split into segments. Each segment is a complete pcap
+ *     file (with its own file header) that standard tools can read: plain segments directly, gzip compressed segments
+ *     through e.g. Wireshark or {@code zcat file.pcap.gz | tcpdump -r -}.
+ * </p>
+ * <p>
+ *     A new segment is started before a packet that would otherwise land in a segment that has reached its max size
+ *     (in bytes on disk, i.e. after compression) or its max duration (measured on packet timestamps). The first
+ *     segment is named after the logical output file, and subsequent segments get a sequence number before the
+ *     extension, e.g. {@code app-12.pcap.gz}, {@code app-12_001.pcap.gz}, {@code app-12_002.pcap.gz}; see
+ *     {@link #segmentFile(File, int, Compression)}. As the number of segments and the compression may differ from a
+ *     previous capture to the same logical output file, every segment of that file left by a previous capture (with
+ *     any index and compression) is deleted when the writer is created.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class SegmentedPcapWriter implements Closeable, Flushable {
+
+    /**
+     * How a segment is compressed.
+     */
+    public enum Compression {
+        /**
+         * Plain pcap.
+         */
+        NONE(""),
+        /**
+         * Gzip (deflate) stream; the segment's name gets a {@code .gz} suffix.
+         */
+        GZIP(".gz");
+
+        private final String mSuffix;
+
+        Compression(String suffix) {
+            mSuffix = suffix;
+        }
+
+        /**
+         * @return The suffix appended to the name of a segment.
+         */
+        public String getSuffix() {
+            return mSuffix;
+        }
+    }
+
+    /**
+     * Size of the buffer between the compressor and the file.
+     */
+    private static final int FILE_BUFFER_SIZE = 1 << 16;
+
+    private final File mFile;
+    private final int mSnapshotLength;
+    private final int mLinkType;
+    private final Compression mCompression;
+    private final long mMaxSegmentBytes;
+    private final long mMaxSegmentMicros;
+
+    private final List<File> mSegments = new ArrayList<>();
+
+    private PcapFileWriter mSegment;
+
+    /**
+     * Counts the bytes of {@link #mSegment} that have reached the file.
+     */
+    private CountingOutputStream mSegmentFileBytes;
+
+    /**
+     * Timestamp of the first packet of {@link #mSegment}, in microseconds, or -1 if it has no packets yet.
+     */
+    private long mSegmentStartMicros;
+
+    /**
+     * Uncompressed bytes written to closed segments.
+     */
+    private long mClosedSegmentsBytes = 0;
+
+    /**
+     * Create a new {@code SegmentedPcapWriter} and open its first segment.
+     *
+     * @param file The logical output file.
+     * @param snapshotLength Max number of bytes stored per packet; recorded in the file header.
+     * @param linkType The link-layer header type (e.g. 1 for Ethernet); recorded in the file header.
+     * @param compression How segments are compressed.
+     * @param maxSegmentBytes Max size of a segment on disk in bytes, or 0 for no limit.
+     * @param maxSegmentMillis Max time between the first and the last packet of a segment in milliseconds, or 0 for
+     *                         no limit.
+     * @throws IOException if a segment of a previous capture could not be deleted, or if the first segment could not
+     *         be created.
+     */
+    public SegmentedPcapWriter(File file, int snapshotLength, int linkType, Compression compression,
+                               long maxSegmentBytes, long maxSegmentMillis) throws IOException {
+        mFile = file;
+        mSnapshotLength = snapshotLength;
+        mLinkType = linkType;
+        mCompression = compression;
+        mMaxSegmentBytes = maxSegmentBytes;
+        mMaxSegmentMicros = TimeUnit.MILLISECONDS.toMicros(maxSegmentMillis);
+        deleteSegments(file);
+        openSegment();
+    }
+
+    /**
+     * Get the name of a segment of a logical output file.
+     *
+     * @param file The logical output file.
+     * @param index The index of the segment; 0 for the first.
+     * @param compression How the segment is compressed.
+     * @return The segment file, in the same directory as {@code file}.
+     */
+    public static File segmentFile(File file, int index, Compression compression) {
+        String name = file.getName();
+        if (index > 0) {
+            int dot = name.lastIndexOf('.');
+            String sequence = String.format("_%03d", index);
+            name = dot > 0 ? name.substring(0, dot) + sequence + name.substring(dot) : name + sequence;
+        }
+        return new File(file.getAbsoluteFile().getParentFile(), name + compression.getSuffix());
+    }
+
+    /**
+     * Delete all segments of a logical output file, whatever their index and compression.
+     *
+     * @param file The logical output file.
+     * @throws IOException if a segment could not be deleted.
+     */
+    private static void deleteSegments(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        // Same split of the name as in segmentFile(File, int, Compression).
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String stem = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        StringBuilder suffixes = new StringBuilder();
+        for (Compression compression : Compression.values()) {
+            suffixes.append(suffixes.length() == 0 ? "" : "|").append(Pattern.quote(compression.getSuffix()));
+        }
+        Pattern segmentName = Pattern.compile(Pattern.quote(stem) + "(?:_\\d{3,})?" + Pattern.quote(extension) +
+                "(?:" + suffixes + ")");
+        File[] segments = dir.listFiles((d, n) -> segmentName.matcher(n).matches());
+        for (File segment : segments == null ? new File[0] : segments) {
+            if (!segment.delete() && segment.exists()) {
+                throw new IOException("could not delete segment of a previous capture: " + segment);
+            }
+        }
+    }
+
+    /**
+     * Append a packet, first starting a new segment if the current segment has reached its max size or duration.
+     *
+     * @param buffer Buffer holding the captured bytes of the packet.
+     * @param offset Index of the first byte of the packet in {@code buffer}.
+     * @param capturedLength Number of bytes of {@code buffer} to write. Truncated to the snapshot length.
+     * @param originalLength Length of the packet on the wire.
+     * @param tsSeconds Capture timestamp, seconds part (epoch seconds).
+     * @param tsNanos Capture timestamp, nanoseconds part.
+     * @throws IOException if the packet could not be written, or a new segment could not be created.
+     */
+    public void write(byte[] buffer, int offset, int capturedLength, int originalLength, long tsSeconds, int tsNanos)
+            throws IOException {
+        long micros = tsSeconds * 1_000_000L + tsNanos / 1_000;
+        if (mSegmentStartMicros < 0) {
+            mSegmentStartMicros = micros;
+        } else if ((mMaxSegmentBytes > 0 && mSegmentFileBytes.mCount >= mMaxSegmentBytes) ||
+                (mMaxSegmentMicros > 0 && micros - mSegmentStartMicros >= mMaxSegmentMicros)) {
+            closeSegment();
+            openSegment();
+            mSegmentStartMicros = micros;
+        }
+        mSegment.write(buffer, offset, capturedLength, originalLength, tsSeconds, tsNanos);
+    }
+
+    /**
+     * @return The logical output file.
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return The segments created so far, in order.
+     */
+    public List<File> getSegments() {
+        return Collections.unmodifiableList(mSegments);
+    }
+
+    /**
+     * @return The number of (uncompressed) pcap bytes written so far, across all segments.
+     */
+    public long getBytesWritten() {
+        return mClosedSegmentsBytes + (mSegment == null ? 0 : mSegment.getBytesWritten());
+    }
+
+    /**
+     * Push buffered packets to the compressor. Compressed output is only written to the file once the compressor has
+     * filled a block, which keeps the compression ratio intact.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (mSegment != null) {
+            mSegment.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeSegment();
+    }
+
+    private void openSegment() throws IOException {
+        File file = segmentFile(mFile, mSegments.size(), mCompression);
+        CountingOutputStream counter = new CountingOutputStream(new FileOutputStream(file));
+        OutputStream out = mCompression == Compression.GZIP ?
+                new GZIPOutputStream(counter, FILE_BUFFER_SIZE) : counter;
+        try {
+            mSegment = new PcapFileWriter(out, mSnapshotLength, mLinkType);
+        } catch (IOException ioe) {
+            out.close();
+            throw ioe;
+        }
+        mSegmentFileBytes = counter;
+        mSegmentStartMicros = -1;
+        mSegments.add(file);
+    }
+
+    private void closeSegment() throws IOException {
+        if (mSegment == null) {
+            return;
+        }
+        PcapFileWriter segment = mSegment;
+        mSegment = null;
+        mClosedSegmentsBytes += segment.getBytesWritten();
+        segment.close();
+    }
+
+    /**
+     * Counts the bytes written to a stream.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long mCount = 0;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCount += len;
+        }
+    }
+
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.capture;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ *     Offline analysis of a directory of network traces written while exercising apps ({@code app-<ID>.pcap}, possibly
+ *     gzipped and/or split into segments). Produces a single table of the domains contacted by each app, with the
+ *     number of flows and bytes attributed to each domain; see {@link DomainIndex} for how flows are attributed.
+ * </p>
+ * <p>
+ *     Apps are analyzed in parallel on a {@link ForkJoinPool}: the list of apps is split recursively and every app is
+ *     analyzed by one task that decodes its traces (all segments in order, as DNS answers in one segment apply to flows
+ *     in the next) and feeds them to a {@link DomainIndex}. The rows of an app are appended to the output as soon as
+ *     the app has been analyzed and are then discarded, so memory use is bounded by the number of apps analyzed at
+ *     the same time rather than by the size of the data set. As a consequence, apps appear in the output in the
+ *     order in which they complete.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class TraceAnalyzer {
+
+    /**
+     * Name of the output file if none is given, placed in the analyzed directory.
+     */
+    public static final String DEFAULT_OUTPUT_NAME = "app-domains.tsv";
+
+    /**
+     * Domain name used in the output for the bytes of flows that could not be attributed to any domain.
+     */
+    public static final String UNATTRIBUTED = "-";
+
+    /**
+     * Matches the traces written by {@code Main}: app ID, optional segment index, optional compression suffix.
+     */
+    private static final Pattern TRACE_NAME = Pattern.compile("app-(\\d+)(?:_(\\d+))?\\.pcap(?:\\.gz)?");
+
+    private static final String HEADER = "# app_id\tdomain\tflows\tbytes";
+
+    /**
+     * Print a progress line every this many apps.
+     */
+    private static final int PROGRESS_INTERVAL = 100;
+
+    private final ForkJoinPool mPool;
+
+    /**
+     * Create a {@code TraceAnalyzer}.
+     * @param parallelism Max number of apps analyzed at the same time, e.g. the number of cores.
+     */
+    public TraceAnalyzer(int parallelism) {
+        mPool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Find the traces in a directory, grouped by app. An app that has two files for the same segment (e.g. both
+     * {@code app-12.pcap} and {@code app-12.pcap.gz}) is reported and left out, as it is ambiguous which of them
+     * belongs to the trace.
+     * @param dir The directory.
+     * @return The traces of each app (segments in order), keyed by app ID in ascending order.
+     */
+    public static SortedMap<Integer, List<File>> findTraces(File dir) {
+        SortedMap<Integer, SortedMap<Integer, File>> segments = new TreeMap<>();
+        Set<Integer> ambiguous = new TreeSet<>();
+        File[] files = dir.listFiles();
+        for (File f : files == null ? new File[0] : files) {
+            Matcher m = TRACE_NAME.matcher(f.getName());
+            if (f.isFile() && m.matches()) {
+                int appId = Integer.parseInt(m.group(1));
+                int segment = m.group(2) == null ? 0 : Integer.parseInt(m.group(2));
+                File previous = segments.computeIfAbsent(appId, id -> new TreeMap<>()).putIfAbsent(segment, f);
+                if (previous != null && ambiguous.add(appId)) {
+                    System.out.printf("WARNING: skipping app ID=%d: both '%s' and '%s' hold segment %d.", appId,
+                            previous.getName(), f.getName(), segment);
+                    System.out.println();
+                }
+            }
+        }
+        SortedMap<Integer, List<File>> traces = new TreeMap<>();
+        segments.forEach((appId, bySegment) -> {
+            if (!ambiguous.contains(appId)) {
+                traces.put(appId, new ArrayList<>(bySegment.values()));
+            }
+        });
+        return traces;
+    }
+
+    /**
+     * Analyze all traces in a directory and write the table of contacted domains: one tab-separated line per app
+     * and domain (app ID, domain, number of flows, number of bytes), plus one line per app with domain
+     * {@link #UNATTRIBUTED} for the bytes of flows not attributed to any domain (if any).
+     *
+     * @param dir The directory holding the traces.
+     * @param out Where to write the table; replaced if it exists.
+     * @return Totals of the analysis.
+     * @throws IOException if the table could not be written. Traces that cannot be read are reported and skipped.
+     */
+    public Result analyze(File dir, File out) throws IOException {
+        SortedMap<Integer, List<File>> traces = findTraces(dir);
+        List<Map.Entry<Integer, List<File>>> apps = new ArrayList<>(traces.entrySet());
+        Result result = new Result(apps.size());
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(out),
+                StandardCharsets.UTF_8))) {
+            w.write(HEADER);
+            w.write('\n');
+            mPool.invoke(new AnalyzeTask(apps, 0, apps.size(), w, result));
+            if (result.mWriteError != null) {
+                throw result.mWriteError;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stop the worker threads.
+     */
+    public void shutdown() {
+        mPool.shutdown();
+    }
+
+    /**
+     * Analyze the traces of a single app.
+     */
+    private static DomainIndex analyzeApp(int appId, List<File> traces, Result result) {
+        DomainIndex index = new DomainIndex();
+        PacketHeaders headers = new PacketHeaders();
+        PacketRing.PacketHandler handler = (buf, offset, capLen, origLen, tsSec, tsNanos) -> {
+            if (headers.decode(buf, offset, capLen)) {
+                index.add(headers, buf, origLen, tsSec, tsNanos);
+            }
+        };
+        for (File trace : traces) {
+            try (PcapFileReader reader = PcapFileReader.open(trace)) {
+                result.mPackets.addAndGet(reader.readAll(handler));
+            } catch (IOException ioe) {
+                // Keep what was read so far; the remaining segments are still analyzed.
+                result.mFailedFiles.incrementAndGet();
+                System.out.printf("WARNING: could not read '%s' (app ID=%d): %s", trace, appId, ioe.getMessage());
+                System.out.println();
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Analyzes the apps in {@code mApps[mFrom, mTo)}, splitting the range until a task holds one app.
+     */
+    private static class AnalyzeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Map.Entry<Integer, List<File>>> mApps;
+        private final int mFrom;
+        private final int mTo;
+        private final Writer mOut;
+        private final Result mResult;
+
+        private AnalyzeTask(List<Map.Entry<Integer, List<File>>> apps, int from, int to, Writer out, Result result) {
+            mApps = apps;
+            mFrom = from;
+            mTo = to;
+            mOut = out;
+            mResult = result;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > 1) {
+                int mid = (mFrom + mTo) >>> 1;
+                invokeAll(new AnalyzeTask(mApps, mFrom, mid, mOut, mResult),
+                        new AnalyzeTask(mApps, mid, mTo, mOut, mResult));
+                return;
+            }
+            if (mTo == mFrom) {
+                return;
+            }
+            int appId = mApps.get(mFrom).getKey();
+            DomainIndex index = analyzeApp(appId, mApps.get(mFrom).getValue(), mResult);
+            // Format outside the lock; only the append is serialized.
+            StringBuilder rows = new StringBuilder();
+            for (String domain : index.getDomains()) {
+                rows.append(appId).append('\t').append(domain).append('\t').append(index.getFlows(domain))
+                        .append('\t').append(index.getBytes(domain)).append('\n');
+            }
+            if (index.getUnattributedBytes() > 0) {
+                rows.append(appId).append('\t').append(UNATTRIBUTED).append("\t0\t")
+                        .append(index.getUnattributedBytes()).append('\n');
+            }
+            synchronized (mOut) {
+                try {
+                    mOut.write(rows.toString());
+                } catch (IOException ioe) {
+                    if (mResult.mWriteError == null) {
+                        mResult.mWriteError = ioe;
+                    }
+                }
+            }
+            mResult.mRows.addAndGet(index.size());
+            int done = mResult.mAppsDone.incrementAndGet();
+            if (done % PROGRESS_INTERVAL == 0 || done == mResult.mApps) {
+                System.out.printf("Analyzed %d/%d apps.", done, mResult.mApps);
+                System.out.println();
+            }
+        }
+    }
+
+    /**
+     * Totals of an analysis.
+     */
+    public static class Result {
+
+        private final int mApps;
+        private final AtomicInteger mAppsDone = new AtomicInteger();
+        private final AtomicLong mPackets = new AtomicLong();
+        private final AtomicLong mRows = new AtomicLong();
+        private final AtomicInteger mFailedFiles = new AtomicInteger();
+
+        /**
+         * First error writing the output; guarded by the output writer.
+         */
+        private IOException mWriteError;
+
+        private Result(int apps) {
+            mApps = apps;
+        }
+
+        public int getApps() {
+            return mApps;
+        }
+
+        public long getPackets() {
+            return mPackets.get();
+        }
+
+        /**
+         * @return The number of (app, domain) pairs written, excluding {@link #UNATTRIBUTED} lines.
+         */
+        public long getRows() {
+            return mRows.get();
+        }
+
+        /**
+         * @return The number of trace files that could not be read (completely).
+         */
+        public int getFailedFiles() {
+            return mFailedFiles.get();
+        }
+    }
+
+    /**
+     * Analyze a directory of traces. Arguments: {@code <trace directory> [output file] [threads]}. The output file
+     * defaults to {@link #DEFAULT_OUTPUT_NAME} in the trace directory, and threads to the number of cores.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: TraceAnalyzer <trace directory> [output file] [threads]");
+            return;
+        }
+        File dir = new File(args[0]);
+        File out = args.length > 1 ? new File(args[1]) : new File(dir, DEFAULT_OUTPUT_NAME);
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        TraceAnalyzer analyzer = new TraceAnalyzer(threads);
+        long start = System.currentTimeMillis();
+        try {
+            Result result = analyzer.analyze(dir, out);
+            System.out.printf("Analyzed %d packets of %d apps in %d ms using %d threads; wrote %d app/domain pairs " +
+                            "to '%s'.", result.getPackets(), result.getApps(), System.currentTimeMillis() - start,
+                    threads, result.getRows(), out);
+            System.out.println();
+            if (result.getFailedFiles() > 0) {
+                System.out.printf("WARNING: %d trace files could not be read completely.", result.getFailedFiles());
+                System.out.println();
+            }
+        } finally {
+            analyzer.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.catalog;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.function.IntConsumer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * <p>
+ *     Streams channel IDs from a channel list file, e.g. the {@code channel-ids.txt} written by
+ *     {@link ChannelStoreIngester}, without loading the file into memory. The file holds one entry per line: a channel
+ *     ID, or an inclusive range of IDs written as {@code <first>-<last>}. Blank lines and lines starting with
+ *     {@code #} are skipped. Gzipped files are recognized by their magic number and decompressed on the fly.
+ * </p>
+ * <p>
+ *     The IDs can be restricted to one shard of the ID space, so that several machines given the same file each
+ *     handle a disjoint part of it. Shards are assigned by a hash of the ID rather than by position in the file, so
+ *     the same ID lands in the same shard no matter which file lists it or where. Duplicate IDs are passed on as
+ *     they occur; collect them in a {@link ChannelIdSet} to deduplicate.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class ChannelIdReader implements Closeable {
+
+    /**
+     * Hash salt of the shards selected with {@link #setShard(int, int)}. Splits of a shard (e.g. over the Rokus of
+     * one machine) should use a different salt, or all IDs of a shard would end up in the same split.
+     */
+    public static final int FILE_SHARD_SALT = 0;
+
+    /**
+     * Max number of malformed lines that are reported individually.
+     */
+    private static final int MAX_WARNINGS = 10;
+
+    private static final int FILE_BUFFER_SIZE = 1 << 16;
+
+    private final BufferedReader mIn;
+    private final String mName;
+    private int mShardIndex = 0;
+    private int mShardCount = 1;
+    private long mLineNumber = 0;
+    private long mMalformedLines = 0;
+
+    /**
+     * Create a {@code ChannelIdReader} that reads an uncompressed channel list.
+     * @param in The channel list.
+     * @param name Name of the channel list in warnings, e.g. its path.
+     */
+    public ChannelIdReader(Reader in, String name) {
+        mIn = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in, FILE_BUFFER_SIZE);
+        mName = name;
+    }
+
+    /**
+     * Open a channel list file, which may be gzipped.
+     * @param file The file.
+     * @return A reader positioned at the start of the file.
+     * @throws IOException if the file could not be opened.
+     */
+    public static ChannelIdReader open(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), FILE_BUFFER_SIZE);
+        try {
+            in.mark(2);
+            int magic = in.read() | in.read() << 8;
+            in.reset();
+            if (magic == GZIPInputStream.GZIP_MAGIC) {
+                in = new GZIPInputStream(in, FILE_BUFFER_SIZE);
+            }
+        } catch (IOException ioe) {
+            in.close();
+            throw ioe;
+        }
+        return new ChannelIdReader(new InputStreamReader(in, StandardCharsets.UTF_8), file.getPath());
+    }
+
+    /**
+     * Only pass on the IDs in one shard of the ID space. All IDs are passed on by default.
+     * @param index The shard, in {@code [0, count)}.
+     * @param count The number of shards.
+     */
+    public void setShard(int index, int count) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("shard index must be in [0, count) and count must be positive");
+        }
+        mShardIndex = index;
+        mShardCount = count;
+    }
+
+    /**
+     * Read the rest of the channel list and pass every ID in the selected shard to {@code sink}, in file order
+     * (ranges in ascending order). Malformed lines are reported and skipped.
+     *
+     * @param sink Receives the IDs.
+     * @return The number of IDs passed to {@code sink}, including duplicates.
+     * @throws IOException if the channel list could not be read.
+     */
+    public long readAll(IntConsumer sink) throws IOException {
+        long ids = 0;
+        String line;
+        while ((line = mIn.readLine()) != null) {
+            mLineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int first;
+            int last;
+            // Start the search at 1 to not take a minus sign for a range.
+            int dash = line.indexOf('-', 1);
+            try {
+                first = Integer.parseInt(dash < 0 ? line : line.substring(0, dash).trim());
+                last = dash < 0 ? first : Integer.parseInt(line.substring(dash + 1).trim());
+            } catch (NumberFormatException nfe) {
+                malformed(line, "not a channel ID or range of channel IDs");
+                continue;
+            }
+            if (first < 0 || last > ChannelIdSet.MAX_CHANNEL_ID || first > last) {
+                malformed(line, "channel ID(s) out of range");
+                continue;
+            }
+            for (int id = first; ; id++) {
+                if (mShardCount == 1 || shardOf(id, mShardCount, FILE_SHARD_SALT) == mShardIndex) {
+                    sink.accept(id);
+                    ids++;
+                }
+                if (id == last) {
+                    break;
+                }
+            }
+        }
+        if (mMalformedLines > MAX_WARNINGS) {
+            System.out.printf("WARNING: %d more malformed lines in '%s' were skipped.", mMalformedLines - MAX_WARNINGS,
+                    mName);
+            System.out.println();
+        }
+        return ids;
+    }
+
+    /**
+     * @return The number of lines that were skipped because they could not be parsed.
+     */
+    public long getMalformedLines() {
+        return mMalformedLines;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    /**
+     * Assign a channel ID to a shard. The assignment only depends on its arguments, so it is the same on every
+     * machine and in every run, and it spreads both scattered IDs and ranges of consecutive IDs evenly.
+     *
+     * @param id The channel ID.
+     * @param count The number of shards.
+     * @param salt Selects one of many independent assignments, e.g. {@link #FILE_SHARD_SALT}.
+     * @return The shard of the ID, in {@code [0, count)}.
+     */
+    public static int shardOf(int id, int count, int salt) {
+        // SplitMix64 finalizer, then a multiply-shift of the high half into [0, count).
+        long h = (id & 0xFFFFFFFFL) + (salt + 1) * 0x9E3779B97F4A7C15L;
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        h ^= h >>> 31;
+        return (int) (((h >>> 32) * count) >>> 32);
+    }
+
+    private void malformed(String line, String reason) {
+        if (++mMalformedLines <= MAX_WARNINGS) {
+            System.out.printf("WARNING: skipped line %d of '%s' (%s): '%s'.", mLineNumber, mName, reason, line);
+            System.out.println();
+        }
+    }
+
+}
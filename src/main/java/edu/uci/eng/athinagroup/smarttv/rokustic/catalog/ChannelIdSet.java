@@ -0,0 +1,148 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.catalog;
+
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.IntConsumer;
+
+/**
+ * <p>
+ *     A set of channel IDs stored as a bitset, for deduplicating channel ID lists that span (a large part of) the
+ *     Roku Channel Store. Roku channel IDs are small, fairly dense integers, so one bit per possible ID up to the
+ *     largest ID in the set takes far less memory than a {@code HashSet<Integer>} (e.g. 125 KB for IDs below one
+ *     million, regardless of how many of them are in the set), and adding an ID does not allocate.
+ * </p>
+ * <p>
+ *     Implements {@code Set<Integer>} so that it can be handed to code that takes a collection of app IDs; iteration
+ *     is in ascending order. Use the {@code int} overloads to avoid boxing. Not thread safe.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class ChannelIdSet extends AbstractSet<Integer> {
+
+    /**
+     * The largest ID that can be stored; bounds the memory used by the set to 16 MB.
+     */
+    public static final int MAX_CHANNEL_ID = (1 << 27) - 1;
+
+    private final BitSet mBits = new BitSet();
+    private int mSize = 0;
+
+    /**
+     * Add a channel ID.
+     * @param id The ID, in {@code [0, MAX_CHANNEL_ID]}.
+     * @return {@code true} if the ID was not in the set yet.
+     */
+    public boolean add(int id) {
+        if (id < 0 || id > MAX_CHANNEL_ID) {
+            throw new IllegalArgumentException("channel ID out of range: " + id);
+        }
+        if (mBits.get(id)) {
+            return false;
+        }
+        mBits.set(id);
+        mSize++;
+        return true;
+    }
+
+    @Override
+    public boolean add(Integer id) {
+        return add(id.intValue());
+    }
+
+    public boolean contains(int id) {
+        return id >= 0 && mBits.get(id);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Integer && contains(((Integer) o).intValue());
+    }
+
+    public boolean remove(int id) {
+        if (!contains(id)) {
+            return false;
+        }
+        mBits.clear(id);
+        mSize--;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return o instanceof Integer && remove(((Integer) o).intValue());
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public void clear() {
+        mBits.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Pass every ID in the set to a consumer, in ascending order, without boxing.
+     * @param action The consumer.
+     */
+    public void forEachId(IntConsumer action) {
+        for (int id = mBits.nextSetBit(0); id >= 0; id = mBits.nextSetBit(id + 1)) {
+            action.accept(id);
+        }
+    }
+
+    @Override
+    public Iterator<Integer> iterator() {
+        return new Iterator<Integer>() {
+
+            private int mNext = mBits.nextSetBit(0);
+            private int mLast = -1;
+
+            @Override
+            public boolean hasNext() {
+                return mNext >= 0;
+            }
+
+            @Override
+            public Integer next() {
+                if (mNext < 0) {
+                    throw new NoSuchElementException();
+                }
+                mLast = mNext;
+                mNext = mBits.nextSetBit(mNext + 1);
+                return mLast;
+            }
+
+            @Override
+            public void remove() {
+                if (mLast < 0) {
+                    throw new IllegalStateException();
+                }
+                ChannelIdSet.this.remove(mLast);
+                mLast = -1;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,624 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.catalog;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * <p>
+ *     Ingests the Roku Channel Store catalog: the channel categories, the channels listed in each category, and the
+ *     details of every channel. This is the Java counterpart of {@code scripts/roku_channelstore_crawler.py} and
+ *     {@code scripts/roku_channel_details_crawler.py}, which fetch one page at a time and start over from scratch on
+ *     every run.
+ * </p>
+ * <p>
+ *     Requests are sent by a fixed number of worker threads, so at most that many requests are in flight at the same
+ *     time. The categories are crawled in parallel (the pages of a category one after the other, as the last page is
+ *     only known when it comes back short), and then the details of all distinct channels. Every response is kept in a
+ *     {@link ResponseCache}, and the next request for the same URL is made conditional on the cached {@code ETag}
+ *     and/or {@code Last-Modified} validators; a {@code 304 Not Modified} answer reuses the cached body, so a repeat
+ *     run only downloads what changed since the previous run. The output files are appended to as responses come in,
+ *     so an interrupted run leaves the results obtained so far; rows appear in completion order.
+ * </p>
+ * <p>
+ *     The base URL is configurable so that the ingester can be pointed at a local stand-in of the Channel Store, such
+ *     as {@link edu.uci.eng.athinagroup.smarttv.rokustic.sim.VirtualChannelStore}.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class ChannelStoreIngester {
+
+    /**
+     * The Channel Store API used by the Python crawlers.
+     */
+    public static final String DEFAULT_BASE_URL = "https://channelstore.roku.com/api/v6/channels";
+
+    /**
+     * Default max number of requests in flight.
+     */
+    public static final int DEFAULT_CONCURRENCY = 8;
+
+    /**
+     * Channels per category page; the page size used by the Channel Store website.
+     */
+    public static final int PAGE_SIZE = 24;
+
+    /**
+     * Output file listing the channels of every category, in the columns of the Python crawler.
+     */
+    public static final String CATEGORIES_FILENAME = "channel-categories.tsv";
+
+    /**
+     * Output file holding the details of every channel, one JSON object per line.
+     */
+    public static final String DETAILS_FILENAME = "channel-details.jsonl";
+
+    /**
+     * Output file listing the IDs of all channels found, one per line; can be given to the installer as is.
+     */
+    public static final String CHANNEL_IDS_FILENAME = "channel-ids.txt";
+
+    /**
+     * Name of the cache directory in the output directory if none is given.
+     */
+    public static final String DEFAULT_CACHE_DIRNAME = "http-cache";
+
+    private static final String CATEGORIES_HEADER =
+            "# category_id\tcategory_name\tcategory_type\tchannel_id\tchannel_name\tchannel_price";
+
+    private static final int CONNECT_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(10);
+    private static final int READ_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Number of times a request is sent before giving up on it. Only I/O errors, {@code 429 Too Many Requests} and
+     * {@code 5xx} responses are retried.
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final long RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+    private static final long MAX_RETRY_AFTER_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Print a progress line every this many channel details.
+     */
+    private static final int PROGRESS_INTERVAL = 500;
+
+    private final String mBaseUrl;
+    private final ResponseCache mCache;
+    private final int mConcurrency;
+    private final ExecutorService mWorkers;
+    private final ObjectMapper mJson = new ObjectMapper();
+
+    private String mCountry = "US";
+    private String mLanguage = "en";
+
+    /**
+     * Create a {@code ChannelStoreIngester}.
+     * @param baseUrl The channels endpoint of the Channel Store API, e.g. {@link #DEFAULT_BASE_URL}.
+     * @param cache Where responses are cached between runs.
+     * @param concurrency Max number of requests in flight.
+     */
+    public ChannelStoreIngester(String baseUrl, ResponseCache cache, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be positive");
+        }
+        mBaseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        mCache = cache;
+        mConcurrency = concurrency;
+        AtomicInteger threadCount = new AtomicInteger();
+        mWorkers = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "catalog-fetch-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Set the storefront to ingest. Defaults to the US store in English.
+     * @param country Two-letter country code, e.g. {@code US}.
+     * @param language Two-letter language code, e.g. {@code en}.
+     */
+    public void setLocale(String country, String language) {
+        mCountry = country;
+        mLanguage = language;
+    }
+
+    /**
+     * Ingest the catalog into a directory: {@link #CATEGORIES_FILENAME}, {@link #DETAILS_FILENAME} and
+     * {@link #CHANNEL_IDS_FILENAME}. Existing output files are replaced.
+     *
+     * @param outDir The output directory; created if it does not exist.
+     * @return Totals of the ingest.
+     * @throws IOException if the categories could not be fetched or the output could not be written. Categories and
+     *         channels that cannot be fetched are reported and skipped.
+     * @throws InterruptedException if interrupted while waiting for the workers.
+     */
+    public Result ingest(File outDir) throws IOException, InterruptedException {
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new IOException("could not create output directory " + outDir);
+        }
+        Result result = new Result();
+        JsonNode categories = mJson.readTree(fetch(url(mBaseUrl + "/categories"), result));
+        if (!categories.isArray()) {
+            throw new IOException("unexpected categories response: not a JSON array");
+        }
+        result.mCategories = categories.size();
+
+        // Distinct IDs of the channels listed by any category. Unordered, as categories are crawled in parallel; sorted
+        // below.
+        Set<String> channelIds = ConcurrentHashMap.newKeySet();
+        try (Writer w = writer(new File(outDir, CATEGORIES_FILENAME))) {
+            w.write(CATEGORIES_HEADER);
+            w.write('\n');
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (JsonNode category : categories) {
+                tasks.add(() -> {
+                    crawlCategory(category, w, channelIds, result);
+                    return null;
+                });
+            }
+            mWorkers.invokeAll(tasks);
+            result.throwWriteError();
+        }
+        List<String> sortedIds = new ArrayList<>(channelIds);
+        sortedIds.sort(ChannelStoreIngester::compareIds);
+        result.mChannels = sortedIds.size();
+        try (Writer w = writer(new File(outDir, CHANNEL_IDS_FILENAME))) {
+            for (String id : sortedIds) {
+                w.write(id);
+                w.write('\n');
+            }
+        }
+        System.out.printf("Found %d channels in %d categories; fetching channel details.", sortedIds.size(),
+                result.mCategories);
+        System.out.println();
+
+        try (Writer w = writer(new File(outDir, DETAILS_FILENAME))) {
+            List<Callable<Void>> tasks = new ArrayList<>(sortedIds.size());
+            for (String id : sortedIds) {
+                tasks.add(() -> {
+                    fetchDetails(id, w, result);
+                    return null;
+                });
+            }
+            mWorkers.invokeAll(tasks);
+            result.throwWriteError();
+        }
+        return result;
+    }
+
+    /**
+     * Stop the worker threads.
+     */
+    public void shutdown() {
+        mWorkers.shutdown();
+    }
+
+    /**
+     * @return The max number of requests in flight.
+     */
+    public int getConcurrency() {
+        return mConcurrency;
+    }
+
+    /**
+     * Fetch all pages of a category and append a row per channel to the categories table.
+     */
+    private void crawlCategory(JsonNode category, Writer out, Set<String> channelIds, Result result) {
+        String id = category.path("id").asText();
+        String name = category.path("name").asText();
+        String type = category.path("categoryType").asText();
+        // The Channel Store may answer every page with the same channels once past the last page, so stop at the first
+        // page that lists nothing new, as well as at a short page.
+        Set<String> seen = new HashSet<>();
+        for (int page = 0; ; page++) {
+            JsonNode channels;
+            try {
+                channels = mJson.readTree(fetch(url(mBaseUrl, "category", id, "pagestart", Integer.toString(page),
+                        "pagesize", Integer.toString(PAGE_SIZE), "categoryType", type), result));
+            } catch (IOException ioe) {
+                result.mFailedCategories.incrementAndGet();
+                System.out.printf("WARNING: could not crawl page %d of category '%s': %s", page, id, ioe.getMessage());
+                System.out.println();
+                return;
+            }
+            StringBuilder rows = new StringBuilder();
+            int fresh = 0;
+            for (JsonNode channel : channels) {
+                String channelId = channel.path("id").asText();
+                if (!seen.add(channelId)) {
+                    continue;
+                }
+                fresh++;
+                channelIds.add(channelId);
+                rows.append(clean(id)).append('\t').append(clean(name)).append('\t').append(clean(type)).append('\t')
+                        .append(clean(channelId)).append('\t').append(clean(channel.path("name").asText()))
+                        .append('\t').append(clean(channel.path("price").asText())).append('\n');
+            }
+            result.append(out, rows);
+            if (fresh == 0 || channels.size() < PAGE_SIZE) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Fetch the details of a channel and append them to the details file.
+     */
+    private void fetchDetails(String channelId, Writer out, Result result) {
+        JsonNode details;
+        try {
+            details = mJson.readTree(fetch(url(mBaseUrl + "/detailsunion/" + URLEncoder.encode(channelId, "UTF-8")),
+                    result));
+        } catch (IOException ioe) {
+            result.mFailedChannels.incrementAndGet();
+            System.out.printf("WARNING: could not fetch details of channel '%s': %s", channelId, ioe.getMessage());
+            System.out.println();
+            return;
+        }
+        ObjectNode line = mJson.createObjectNode();
+        line.put("channel_id", channelId);
+        line.set("details", details);
+        try {
+            result.append(out, new StringBuilder(mJson.writeValueAsString(line)).append('\n'));
+        } catch (IOException ioe) {
+            // Serializing a tree that was just parsed does not fail.
+            throw new UncheckedIOException(ioe);
+        }
+        int done = result.mDetails.incrementAndGet();
+        if (done % PROGRESS_INTERVAL == 0 || done == result.mChannels) {
+            System.out.printf("Fetched details of %d/%d channels.", done, result.mChannels);
+            System.out.println();
+        }
+    }
+
+    /**
+     * GET a URL, revalidating the cached response if there is one, and retrying transient failures.
+     * @return The response body.
+     */
+    private byte[] fetch(String url, Result result) throws IOException {
+        ResponseCache.Entry cached = mCache.get(url);
+        for (int attempt = 1; ; attempt++) {
+            long backoffMillis = RETRY_DELAY_MILLIS * attempt;
+            try {
+                HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+                conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+                conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+                conn.setRequestProperty("Accept", "application/json");
+                conn.setRequestProperty("Accept-Encoding", "gzip");
+                if (cached != null && cached.getETag() != null) {
+                    conn.setRequestProperty("If-None-Match", cached.getETag());
+                }
+                if (cached != null && cached.getLastModified() != null) {
+                    conn.setRequestProperty("If-Modified-Since", cached.getLastModified());
+                }
+                result.mRequests.incrementAndGet();
+                int status = conn.getResponseCode();
+                if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                    drain(conn);
+                    result.mNotModified.incrementAndGet();
+                    return cached.getBody();
+                }
+                if (status == HttpURLConnection.HTTP_OK) {
+                    byte[] body = readBody(conn);
+                    result.mDownloaded.incrementAndGet();
+                    result.mBytesDownloaded.addAndGet(body.length);
+                    String etag = conn.getHeaderField("ETag");
+                    String lastModified = conn.getHeaderField("Last-Modified");
+                    if (etag != null || lastModified != null) {
+                        store(url, new ResponseCache.Entry(etag, lastModified, body));
+                    }
+                    return body;
+                }
+                drain(conn);
+                if (status != 429 && status < 500 || attempt == MAX_ATTEMPTS) {
+                    throw new HttpStatusException(status, url);
+                }
+                long retryAfterSeconds = conn.getHeaderFieldLong("Retry-After", -1);
+                if (retryAfterSeconds >= 0) {
+                    backoffMillis = Math.min(TimeUnit.SECONDS.toMillis(retryAfterSeconds), MAX_RETRY_AFTER_MILLIS);
+                }
+            } catch (HttpStatusException hse) {
+                throw hse;
+            } catch (IOException ioe) {
+                // Connection refused or reset, timeout, truncated body, ...
+                if (attempt == MAX_ATTEMPTS) {
+                    throw ioe;
+                }
+            }
+            result.mRetries.incrementAndGet();
+            try {
+                Thread.sleep(backoffMillis);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while backing off " + url);
+            }
+        }
+    }
+
+    /**
+     * Cache a response. A failure to cache only costs a download on the next run, so it is reported but not fatal.
+     */
+    private void store(String url, ResponseCache.Entry entry) {
+        try {
+            mCache.put(url, entry);
+        } catch (IOException ioe) {
+            System.out.printf("WARNING: could not cache response of '%s': %s", url, ioe.getMessage());
+            System.out.println();
+        }
+    }
+
+    /**
+     * Build a URL with the locale query parameters and the given additional name/value pairs.
+     */
+    private String url(String path, String... params) throws UnsupportedEncodingException {
+        StringBuilder sb = new StringBuilder(path).append("?country=").append(URLEncoder.encode(mCountry, "UTF-8"))
+                .append("&language=").append(URLEncoder.encode(mLanguage, "UTF-8"));
+        for (int i = 0; i + 1 < params.length; i += 2) {
+            sb.append('&').append(params[i]).append('=').append(URLEncoder.encode(params[i + 1], "UTF-8"));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] readBody(HttpURLConnection conn) throws IOException {
+        try (InputStream in = "gzip".equalsIgnoreCase(conn.getContentEncoding()) ?
+                new GZIPInputStream(conn.getInputStream()) : conn.getInputStream()) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            for (int n; (n = in.read(buf)) != -1; ) {
+                body.write(buf, 0, n);
+            }
+            return body.toByteArray();
+        }
+    }
+
+    /**
+     * Read and close the rest of a response so that the connection can be reused for the next request.
+     */
+    private static void drain(HttpURLConnection conn) {
+        InputStream in = conn.getErrorStream();
+        try {
+            if (in == null && conn.getResponseCode() < 400) {
+                in = conn.getInputStream();
+            }
+            if (in != null) {
+                try (InputStream toClose = in) {
+                    byte[] buf = new byte[8192];
+                    while (toClose.read(buf) != -1) {
+                        // Discard.
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            // The connection is not reused then.
+        }
+    }
+
+    private static Writer writer(File f) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Order channel IDs numerically when they are numbers (they are in the Roku Channel Store). Numeric IDs come before
+     * all other IDs, which are ordered lexicographically.
+     */
+    private static int compareIds(String a, String b) {
+        boolean aNumeric = isNumeric(a);
+        boolean bNumeric = isNumeric(b);
+        if (aNumeric != bNumeric) {
+            return aNumeric ? -1 : 1;
+        }
+        if (aNumeric) {
+            // Compare by value without parsing, so that IDs of any length are ordered: after stripping leading zeros,
+            // the shorter number is the smaller one, and numbers of equal length compare like strings.
+            String aDigits = stripLeadingZeros(a);
+            String bDigits = stripLeadingZeros(b);
+            int c = aDigits.length() != bDigits.length() ? Integer.compare(aDigits.length(), bDigits.length())
+                    : aDigits.compareTo(bDigits);
+            if (c != 0) {
+                return c;
+            }
+        }
+        // Also breaks ties between equal numbers written differently, e.g. "7" and "07".
+        return a.compareTo(b);
+    }
+
+    private static boolean isNumeric(String s) {
+        return !s.isEmpty() && s.chars().allMatch(c -> c >= '0' && c <= '9');
+    }
+
+    private static String stripLeadingZeros(String digits) {
+        int i = 0;
+        while (i < digits.length() - 1 && digits.charAt(i) == '0') {
+            i++;
+        }
+        return digits.substring(i);
+    }
+
+    private static String clean(String s) {
+        return s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    /**
+     * A response with a status code that is not worth retrying, e.g. {@code 404 Not Found}.
+     */
+    private static class HttpStatusException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private HttpStatusException(int status, String url) {
+            super("HTTP " + status + " for " + url);
+        }
+    }
+
+    /**
+     * Totals of an ingest.
+     */
+    public static class Result {
+
+        private int mCategories;
+        private int mChannels;
+        private final AtomicInteger mDetails = new AtomicInteger();
+        private final AtomicInteger mFailedCategories = new AtomicInteger();
+        private final AtomicInteger mFailedChannels = new AtomicInteger();
+        private final AtomicLong mRequests = new AtomicLong();
+        private final AtomicLong mRetries = new AtomicLong();
+        private final AtomicLong mDownloaded = new AtomicLong();
+        private final AtomicLong mNotModified = new AtomicLong();
+        private final AtomicLong mBytesDownloaded = new AtomicLong();
+
+        /**
+         * First error writing the output; guarded by this.
+         */
+        private IOException mWriteError;
+
+        private Result() {
+        }
+
+        /**
+         * Append rows to an output file and flush them, so that they are on disk if the run is interrupted.
+         */
+        private synchronized void append(Writer out, CharSequence rows) {
+            if (mWriteError != null || rows.length() == 0) {
+                return;
+            }
+            try {
+                out.append(rows);
+                out.flush();
+            } catch (IOException ioe) {
+                mWriteError = ioe;
+            }
+        }
+
+        private synchronized void throwWriteError() throws IOException {
+            if (mWriteError != null) {
+                throw mWriteError;
+            }
+        }
+
+        public int getCategories() {
+            return mCategories;
+        }
+
+        /**
+         * @return The number of distinct channels listed in the categories.
+         */
+        public int getChannels() {
+            return mChannels;
+        }
+
+        /**
+         * @return The number of channels whose details were written.
+         */
+        public int getDetails() {
+            return mDetails.get();
+        }
+
+        /**
+         * @return The number of categories that could not be crawled (completely).
+         */
+        public int getFailedCategories() {
+            return mFailedCategories.get();
+        }
+
+        /**
+         * @return The number of channels whose details could not be fetched.
+         */
+        public int getFailedChannels() {
+            return mFailedChannels.get();
+        }
+
+        /**
+         * @return The number of requests sent, including retries.
+         */
+        public long getRequests() {
+            return mRequests.get();
+        }
+
+        public long getRetries() {
+            return mRetries.get();
+        }
+
+        /**
+         * @return The number of responses downloaded in full ({@code 200 OK}).
+         */
+        public long getDownloaded() {
+            return mDownloaded.get();
+        }
+
+        /**
+         * @return The number of cached responses that were still current ({@code 304 Not Modified}).
+         */
+        public long getNotModified() {
+            return mNotModified.get();
+        }
+
+        public long getBytesDownloaded() {
+            return mBytesDownloaded.get();
+        }
+    }
+
+    /**
+     * Ingest the Channel Store catalog. Arguments: {@code <output directory> [base URL] [concurrency] [cache
+     * directory]}. The base URL defaults to {@link #DEFAULT_BASE_URL}, concurrency to {@link #DEFAULT_CONCURRENCY} and
+     * the cache directory to {@link #DEFAULT_CACHE_DIRNAME} in the output directory.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: ChannelStoreIngester <output directory> [base URL] [concurrency] " +
+                    "[cache directory]");
+            return;
+        }
+        File outDir = new File(args[0]);
+        String baseUrl = args.length > 1 ? args[1] : DEFAULT_BASE_URL;
+        int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_CONCURRENCY;
+        File cacheDir = args.length > 3 ? new File(args[3]) : new File(outDir, DEFAULT_CACHE_DIRNAME);
+        ChannelStoreIngester ingester = new ChannelStoreIngester(baseUrl, new ResponseCache(cacheDir), concurrency);
+        long start = System.currentTimeMillis();
+        try {
+            Result r = ingester.ingest(outDir);
+            System.out.printf("Ingested %d channels in %d categories in %d ms: %d requests, %d downloaded " +
+                            "(%d bytes), %d not modified.", r.getChannels(), r.getCategories(),
+                    System.currentTimeMillis() - start, r.getRequests(), r.getDownloaded(), r.getBytesDownloaded(),
+                    r.getNotModified());
+            System.out.println();
+            if (r.getFailedCategories() > 0 || r.getFailedChannels() > 0) {
+                System.out.printf("WARNING: %d categories and %d channels could not be fetched.",
+                        r.getFailedCategories(), r.getFailedChannels());
+                System.out.println();
+            }
+        } finally {
+            ingester.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.catalog;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * <p>
+ *     An on-disk cache of HTTP response bodies, keyed by request URL, that remembers the validators ({@code ETag} and
+ *     {@code Last-Modified}) sent along with each body so that the next request for the same URL can be made
+ *     conditional. Every entry is a single file holding the URL, the validators and the body; it is written to a
+ *     temporary file and then moved into place, so concurrent readers and a crash never see a partial entry.
+ * </p>
+ * <p>
+ *     Entries are named after the SHA-1 of their URL and spread over 256 subdirectories to keep directories small
+ *     when the whole Channel Store is cached. Safe for use by multiple threads as long as no two threads store the
+ *     same URL at the same time.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class ResponseCache {
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final File mDir;
+
+    /**
+     * Create a {@code ResponseCache} that keeps its entries in a given directory.
+     * @param dir The cache directory; created if it does not exist. Entries of previous runs are reused.
+     */
+    public ResponseCache(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Look up the cached response for a URL.
+     * @param url The request URL.
+     * @return The cached response, or {@code null} if there is none (or it could not be read).
+     */
+    public Entry get(String url) {
+        File f = fileFor(url);
+        if (!f.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readInt() != FORMAT_VERSION || !in.readUTF().equals(url)) {
+                // Written by an incompatible version, or a (very unlikely) hash collision.
+                return null;
+            }
+            String etag = emptyToNull(in.readUTF());
+            String lastModified = emptyToNull(in.readUTF());
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            return new Entry(etag, lastModified, body);
+        } catch (IOException ioe) {
+            // Treat an unreadable entry as a miss; it is replaced when the response is stored again.
+            return null;
+        }
+    }
+
+    /**
+     * Store the response for a URL, replacing any previously cached response.
+     * @param url The request URL.
+     * @param entry The response.
+     * @throws IOException if the entry could not be written.
+     */
+    public void put(String url, Entry entry) throws IOException {
+        File f = fileFor(url);
+        File parent = f.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("could not create cache directory " + parent);
+        }
+        File tmp = new File(parent, f.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(url);
+            out.writeUTF(entry.mETag == null ? "" : entry.mETag);
+            out.writeUTF(entry.mLastModified == null ? "" : entry.mLastModified);
+            out.writeInt(entry.mBody.length);
+            out.write(entry.mBody);
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return The cache directory.
+     */
+    public File getDirectory() {
+        return mDir;
+    }
+
+    private File fileFor(String url) {
+        String hash = sha1Hex(url);
+        return new File(new File(mDir, hash.substring(0, 2)), hash);
+    }
+
+    private static String sha1Hex(String s) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            // Every Java platform is required to support SHA-1.
+            throw new AssertionError(nsae);
+        }
+        StringBuilder hex = new StringBuilder(40);
+        for (byte b : md.digest(s.getBytes(StandardCharsets.UTF_8))) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static String emptyToNull(String s) {
+        return s.isEmpty() ? null : s;
+    }
+
+    /**
+     * A cached response: its body and the validators to revalidate it with.
+     */
+    public static class Entry {
+
+        private final String mETag;
+        private final String mLastModified;
+        private final byte[] mBody;
+
+        /**
+         * @param etag The {@code ETag} response header, or {@code null} if absent.
+         * @param lastModified The {@code Last-Modified} response header, or {@code null} if absent.
+         * @param body The response body.
+         */
+        public Entry(String etag, String lastModified, byte[] body) {
+            mETag = etag;
+            mLastModified = lastModified;
+            mBody = body;
+        }
+
+        public String getETag() {
+            return mETag;
+        }
+
+        public String getLastModified() {
+            return mLastModified;
+        }
+
+        public byte[] getBody() {
+            return mBody;
+        }
+
+        /**
+         * @return {@code true} if the response can be revalidated with a conditional request.
+         */
+        public boolean hasValidator() {
+            return mETag != null || mLastModified != null;
+        }
+    }
+
+}
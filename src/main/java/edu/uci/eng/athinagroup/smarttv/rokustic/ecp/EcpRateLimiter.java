@@ -0,0 +1,247 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.ecp;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     Paces the ECP requests sent to a single Roku. Rokus sometimes stop responding when they are sent requests back
+ *     to back, but how fast is too fast differs between models and with the load on the device, so rather than a fixed
+ *     delay between requests the limiter adapts its rate to how the Roku copes: a token bucket whose refill rate grows
+ *     additively with every healthy response and is cut multiplicatively when the Roku is overloaded.
+ * </p>
+ * <p>
+ *     A response is healthy if it arrived and the smoothed (exponentially weighted) latency of recent responses is
+ *     below {@link #getSlowLatencyMillis()}. A request that failed (no response, e.g. a timeout, or a 5xx status)
+ *     halves the rate; a smoothed latency above the threshold reduces it by a quarter. Reductions are at most once per
+ *     {@link #DECREASE_HOLDOFF_MILLIS}, as the requests in flight when the Roku got overloaded tend to fail together.
+ *     The rate always stays within {@code [min rate, max rate]}.
+ * </p>
+ * <p>
+ *     Thread safe. Callers either block in {@link #acquire()} or, to not hold a thread, {@link #reserve()} a send
+ *     time and send the request after the returned delay (see {@link #schedule(Runnable, long)}).
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class EcpRateLimiter {
+
+    /**
+     * Default rate (requests per second) at which a Roku is first sent requests.
+     */
+    public static final double DEFAULT_INITIAL_RATE = 2.0;
+
+    /**
+     * Default lower bound of the rate, in requests per second.
+     */
+    public static final double DEFAULT_MIN_RATE = 0.2;
+
+    /**
+     * Default upper bound of the rate, in requests per second.
+     */
+    public static final double DEFAULT_MAX_RATE = 10.0;
+
+    /**
+     * Default value for {@link #setSlowLatencyMillis(long)}.
+     */
+    public static final long DEFAULT_SLOW_LATENCY_MILLIS = 1_000;
+
+    /**
+     * Min time between two rate reductions.
+     */
+    public static final long DECREASE_HOLDOFF_MILLIS = 1_000;
+
+    /**
+     * Rate increase per healthy response, in requests per second.
+     */
+    private static final double INCREASE_PER_RESPONSE = 0.25;
+
+    private static final double FAILURE_DECREASE_FACTOR = 0.5;
+
+    private static final double SLOW_DECREASE_FACTOR = 0.75;
+
+    /**
+     * Weight of the latest response in the smoothed latency.
+     */
+    private static final double LATENCY_EWMA_WEIGHT = 0.2;
+
+    /**
+     * Max number of tokens in the bucket: requests are spaced out evenly rather than sent in bursts.
+     */
+    private static final double BUCKET_CAPACITY = 1.0;
+
+    private final double mMinRate;
+    private final double mMaxRate;
+
+    private volatile long mSlowLatencyMillis = DEFAULT_SLOW_LATENCY_MILLIS;
+
+    /**
+     * Requests per second; guarded by this.
+     */
+    private double mRate;
+
+    /**
+     * Tokens in the bucket at {@link #mRefilledNanos}; negative when requests are waiting for a token.
+     */
+    private double mTokens = BUCKET_CAPACITY;
+    private long mRefilledNanos = System.nanoTime();
+
+    /**
+     * Smoothed latency in milliseconds, or -1 before the first response.
+     */
+    private double mLatencyEwmaMillis = -1;
+    private long mLastDecreaseNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(DECREASE_HOLDOFF_MILLIS);
+
+    /**
+     * Create an {@code EcpRateLimiter} with the default rates.
+     */
+    public EcpRateLimiter() {
+        this(DEFAULT_INITIAL_RATE, DEFAULT_MIN_RATE, DEFAULT_MAX_RATE);
+    }
+
+    /**
+     * Create an {@code EcpRateLimiter}.
+     * @param initialRate The rate to start at, in requests per second.
+     * @param minRate The lowest rate the limiter slows down to, in requests per second.
+     * @param maxRate The highest rate the limiter speeds up to, in requests per second.
+     */
+    public EcpRateLimiter(double initialRate, double minRate, double maxRate) {
+        if (!(minRate > 0) || maxRate < minRate || initialRate < minRate || initialRate > maxRate) {
+            throw new IllegalArgumentException("rates must be positive with min rate <= initial rate <= max rate");
+        }
+        mRate = initialRate;
+        mMinRate = minRate;
+        mMaxRate = maxRate;
+    }
+
+    /**
+     * Take a token, waiting for one if the bucket is empty.
+     */
+    public void acquire() {
+        long delayNanos = reserve();
+        if (delayNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delayNanos);
+            } catch (InterruptedException ie) {
+                // Send the request early rather than not at all; let the caller see the interrupt.
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Take a token without waiting for it.
+     * @return Time until the token is available, i.e. until the request may be sent, in nanoseconds; 0 to send it
+     *         right away.
+     */
+    public synchronized long reserve() {
+        refill(System.nanoTime());
+        mTokens -= 1.0;
+        return mTokens >= 0 ? 0 : (long) (-mTokens / mRate * 1e9);
+    }
+
+    /**
+     * Adapt the rate to the outcome of a request.
+     * @param latencyNanos Time from sending the request until its response (or failure), in nanoseconds.
+     * @param failed {@code true} if the request was not answered or was answered with an error that indicates the
+     *               Roku is overloaded.
+     */
+    public synchronized void record(long latencyNanos, boolean failed) {
+        long now = System.nanoTime();
+        // Let the time since the last refill accrue at the old rate.
+        refill(now);
+        if (failed) {
+            decrease(FAILURE_DECREASE_FACTOR, now);
+            return;
+        }
+        double latencyMillis = latencyNanos / 1e6;
+        mLatencyEwmaMillis = mLatencyEwmaMillis < 0 ? latencyMillis
+                : LATENCY_EWMA_WEIGHT * latencyMillis + (1 - LATENCY_EWMA_WEIGHT) * mLatencyEwmaMillis;
+        if (mLatencyEwmaMillis > mSlowLatencyMillis) {
+            decrease(SLOW_DECREASE_FACTOR, now);
+        } else {
+            mRate = Math.min(mMaxRate, mRate + INCREASE_PER_RESPONSE);
+        }
+    }
+
+    /**
+     * @return The current rate, in requests per second.
+     */
+    public synchronized double getRate() {
+        return mRate;
+    }
+
+    /**
+     * @return The smoothed latency of recent responses in milliseconds, or -1 if there has been no response yet.
+     */
+    public synchronized double getLatencyMillis() {
+        return mLatencyEwmaMillis;
+    }
+
+    /**
+     * @param slowLatencyMillis Smoothed latency, in milliseconds, above which the Roku is considered overloaded.
+     */
+    public void setSlowLatencyMillis(long slowLatencyMillis) {
+        if (slowLatencyMillis < 1) {
+            throw new IllegalArgumentException("slowLatencyMillis must be positive");
+        }
+        mSlowLatencyMillis = slowLatencyMillis;
+    }
+
+    public long getSlowLatencyMillis() {
+        return mSlowLatencyMillis;
+    }
+
+    /**
+     * Run a task after a delay on a timer shared by all limiters, e.g. to send an asynchronous request once its token
+     * is available. The task should not block.
+     * @param task The task.
+     * @param delayNanos The delay, in nanoseconds.
+     */
+    public static void schedule(Runnable task, long delayNanos) {
+        Timer.INSTANCE.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void refill(long now) {
+        mTokens = Math.min(BUCKET_CAPACITY, mTokens + (now - mRefilledNanos) / 1e9 * mRate);
+        mRefilledNanos = now;
+    }
+
+    private void decrease(double factor, long now) {
+        if (now - mLastDecreaseNanos < TimeUnit.MILLISECONDS.toNanos(DECREASE_HOLDOFF_MILLIS)) {
+            return;
+        }
+        mLastDecreaseNanos = now;
+        mRate = Math.max(mMinRate, mRate * factor);
+    }
+
+    /**
+     * Holder of the shared timer; started on first use.
+     */
+    private static class Timer {
+
+        private static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ecp-rate-limiter");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+}
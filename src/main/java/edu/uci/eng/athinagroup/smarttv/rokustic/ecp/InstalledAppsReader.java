@@ -0,0 +1,157 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.ecp;
+
+import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model.AppInfo;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+
+/**
+ * <p>
+ *     Streaming decoder for the body of an ECP 'query/apps' response, e.g.:
+ * </p>
+ * <pre>{@code
+ * <apps>
+ *     <app id="12" subtype="ndka" type="appl" version="4.2.81179053">Netflix</app>
+ *     ...
+ * </apps>
+ * }</pre>
+ * <p>
+ *     Records are pulled from the stream one at a time with a StAX parser and handed to a visitor as they are read, so
+ *     neither the response body nor the full list of apps is ever held in memory. {@link AppIdVisitor} is a fast path
+ *     for callers that only need the app IDs: it creates no {@link AppInfo} objects, and can stop reading as soon as it
+ *     has seen the app it is looking for.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class InstalledAppsReader {
+
+    /**
+     * Receives the apps read by {@link #readApps(InputStream, AppVisitor)}.
+     */
+    public interface AppVisitor {
+        /**
+         * @param app An app in the list of installed apps.
+         * @return {@code true} to continue reading, {@code false} to stop.
+         */
+        boolean visit(AppInfo app);
+    }
+
+    /**
+     * Receives the app IDs read by {@link #readAppIds(InputStream, AppIdVisitor)}.
+     */
+    public interface AppIdVisitor {
+        /**
+         * @param appId The ID of an app in the list of installed apps.
+         * @return {@code true} to continue reading, {@code false} to stop.
+         */
+        boolean visit(int appId);
+    }
+
+    private static final String APP_ELEMENT = "app";
+
+    /**
+     * Thread safe once configured.
+     */
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        // The Roku's responses have no DTD; refuse to resolve anything external.
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private InstalledAppsReader() {
+        // Static helpers only.
+    }
+
+    /**
+     * Read the apps in a 'query/apps' response body.
+     *
+     * @param in The response body. Not closed by this method.
+     * @param visitor Receives the apps, in document order.
+     * @throws XMLStreamException if the body is not well formed XML.
+     */
+    public static void readApps(InputStream in, AppVisitor visitor) throws XMLStreamException {
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && APP_ELEMENT.equals(reader.getLocalName())) {
+                    AppInfo app = new AppInfo();
+                    app.setId(parseId(reader.getAttributeValue(null, "id")));
+                    app.setType(reader.getAttributeValue(null, "type"));
+                    app.setSubtype(reader.getAttributeValue(null, "subtype"));
+                    app.setVersion(reader.getAttributeValue(null, "version"));
+                    // Also advances the reader past the end of the element.
+                    app.setName(reader.getElementText());
+                    if (!visitor.visit(app)) {
+                        return;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Read the app IDs in a 'query/apps' response body.
+     *
+     * @param in The response body. Not closed by this method.
+     * @param visitor Receives the app IDs, in document order.
+     * @throws XMLStreamException if the body is not well formed XML.
+     */
+    public static void readAppIds(InputStream in, AppIdVisitor visitor) throws XMLStreamException {
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && APP_ELEMENT.equals(reader.getLocalName())) {
+                    if (!visitor.visit(parseId(reader.getAttributeValue(null, "id")))) {
+                        return;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parse an app ID. Missing or malformed IDs are reported as 0, which is also what the Jackson mapping of
+     * {@link AppInfo} yields for a missing ID.
+     */
+    private static int parseId(String value) {
+        if (value == null) {
+            return 0;
+        }
+        int id = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return 0;
+            }
+            id = id * 10 + (c - '0');
+        }
+        return id;
+    }
+
+}
@@ -21,22 +21,98 @@ import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.ObjectMapper;
 import com.mashape.unirest.http.Unirest;
+import com.mashape.unirest.http.async.Callback;
+import com.mashape.unirest.http.async.utils.AsyncIdleConnectionMonitorThread;
 import com.mashape.unirest.http.exceptions.UnirestException;
+import com.mashape.unirest.http.options.Option;
+import com.mashape.unirest.http.options.Options;
+import com.mashape.unirest.http.utils.ClientFactory;
 import com.vmichalak.protocol.ssdp.Device;
+import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model.ActiveApp;
 import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model.AppInfo;
+import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model.DeviceInfo;
+import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model.MediaPlayerState;
 import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model.RokuRemoteKey;
+import edu.uci.eng.athinagroup.smarttv.rokustic.metrics.EcpCall;
+import edu.uci.eng.athinagroup.smarttv.rokustic.metrics.RunMetrics;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.util.EntityUtils;
 
+import javax.xml.stream.XMLStreamException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
 
 
 /**
- * Control a Roku by sending various External Command API (ECP) commands to it.
+ * <p>
+ *     Control a Roku by sending various External Command API (ECP) commands to it.
+ * </p>
+ * <p>
+ *     All clients share Unirest's pooled, keep-alive HTTP connections, with at most
+ *     {@link #MAX_CONNECTIONS_PER_DEVICE} connections to any single Roku. Every request has a connect and a socket
+ *     timeout (see {@link #setTimeouts(long, long)}). Besides the blocking methods, the most frequently used commands
+ *     have {@code ...Async} variants that return immediately with a {@link CompletableFuture}, so that a single
+ *     thread can drive requests to many Rokus. Use {@link #forDevice(Device)} to share a single client per Roku.
+ * </p>
+ * <p>
+ *     Requests to a Roku are paced by an {@link EcpRateLimiter} shared by all clients of that Roku, which adapts the
+ *     request rate to the Roku's latency and errors. Blocking methods wait for the limiter on the calling thread;
+ *     asynchronous requests are sent from a timer once the limiter allows.
+ * </p>
+ * <p>
+ *     The latency and status of every request is recorded in {@link RunMetrics}.
+ * </p>
  *
  * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
  */
 public class RokuEcpClient {
 
+    /**
+     * Max number of concurrent (pooled, keep-alive) connections to a single Roku.
+     */
+    public static final int MAX_CONNECTIONS_PER_DEVICE = 2;
+
+    /**
+     * Max number of concurrent (pooled, keep-alive) connections across all Rokus.
+     */
+    public static final int MAX_CONNECTIONS_TOTAL = 512;
+
+    /**
+     * Default connect timeout, in milliseconds.
+     */
+    public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 5_000;
+
+    /**
+     * Default socket (read) timeout, in milliseconds.
+     */
+    public static final long DEFAULT_SOCKET_TIMEOUT_MILLIS = 15_000;
+
+    /**
+     * Clients created by {@link #forDevice(Device)}, keyed by the Roku's description URL.
+     */
+    private static final Map<String, RokuEcpClient> CLIENTS = new ConcurrentHashMap<>();
+
+    /**
+     * Rate limiters, keyed by host and port of the Roku's ECP server; see {@link #mMetricsLabel}.
+     */
+    private static final Map<String, EcpRateLimiter> RATE_LIMITERS = new ConcurrentHashMap<>();
+
+    private static final Object ASYNC_CLIENT_LOCK = new Object();
+
     static {
+        // Pool sizes and timeouts are global to Unirest; set them before any request is made.
+        Unirest.setConcurrency(MAX_CONNECTIONS_TOTAL, MAX_CONNECTIONS_PER_DEVICE);
+        Unirest.setTimeouts(DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_SOCKET_TIMEOUT_MILLIS);
         // The object mapper only needs to be set once, so set it at class load time
         Unirest.setObjectMapper(new ObjectMapper() {
             // Use Jackson XML instead of json mapper as Roku responses are XML, not json.
@@ -46,7 +122,10 @@ public class RokuEcpClient {
                 try {
                     return jacksonObjectMapper.readValue(value, valueType);
                 } catch (IOException e) {
-                    throw new RuntimeException(e);
+                    // Unirest maps the body of an asynchronous response on its I/O thread, where a failure is lost
+                    // and the request never completes. So map a body that is not a valid document (e.g. the empty
+                    // body of a 503 response) to null, and let timedQuery/timedQueryAsync fail it if it has status 200.
+                    return null;
                 }
             }
 
@@ -66,6 +145,25 @@ public class RokuEcpClient {
      */
     private final Device mRoku;
 
+    /**
+     * Base URL of the Roku's ECP server, without a trailing slash.
+     */
+    private final String mBaseUrl;
+
+    /**
+     * Prebuilt keypress URLs, so that sending a key does not build a new string each time.
+     */
+    private final Map<RokuRemoteKey, String> mKeypressUrls = new EnumMap<>(RokuRemoteKey.class);
+
+    private final RunMetrics mMetrics = RunMetrics.get();
+
+    /**
+     * Identifies the Roku in {@link #mMetrics}: host and port of its ECP server (several virtual Rokus share a host).
+     */
+    private final String mMetricsLabel;
+
+    private final EcpRateLimiter mRateLimiter;
+
     /**
      * Create a new {@code RokuEcpClient}.
      *
@@ -73,6 +171,52 @@ public class RokuEcpClient {
      */
     public RokuEcpClient(Device targetRoku) {
         mRoku = targetRoku;
+        String url = targetRoku.getDescriptionUrl();
+        mBaseUrl = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        int scheme = mBaseUrl.indexOf("://");
+        mMetricsLabel = scheme < 0 ? mBaseUrl : mBaseUrl.substring(scheme + 3);
+        for (RokuRemoteKey key : RokuRemoteKey.values()) {
+            mKeypressUrls.put(key, mBaseUrl + "/keypress/" + key.toUrlString());
+        }
+        mRateLimiter = RATE_LIMITERS.computeIfAbsent(mMetricsLabel, label -> {
+            EcpRateLimiter limiter = new EcpRateLimiter();
+            mMetrics.addRateLimiter(label, limiter::getRate);
+            return limiter;
+        });
+    }
+
+    /**
+     * Get the shared client for a given Roku, creating it if necessary.
+     *
+     * @param roku The Roku device.
+     * @return The client that sends requests to {@code roku}.
+     */
+    public static RokuEcpClient forDevice(Device roku) {
+        return CLIENTS.computeIfAbsent(roku.getDescriptionUrl(), url -> new RokuEcpClient(roku));
+    }
+
+    /**
+     * Set the timeouts of all ECP requests (by all clients).
+     *
+     * @param connectTimeoutMillis Max time to wait for a connection to be established, in milliseconds.
+     * @param socketTimeoutMillis Max time to wait for data once connected, in milliseconds.
+     */
+    public static void setTimeouts(long connectTimeoutMillis, long socketTimeoutMillis) {
+        Unirest.setTimeouts(connectTimeoutMillis, socketTimeoutMillis);
+    }
+
+    /**
+     * @return The Roku device that this client sends requests to.
+     */
+    public Device getDevice() {
+        return mRoku;
+    }
+
+    /**
+     * @return The limiter that paces the requests to the Roku, e.g. to read its current rate.
+     */
+    public EcpRateLimiter getRateLimiter() {
+        return mRateLimiter;
     }
 
     /**
@@ -83,8 +227,7 @@ public class RokuEcpClient {
      * @throws UnirestException if the request fails.
      */
     public HttpResponse<String> sendKeypress(RokuRemoteKey key) throws UnirestException {
-        String url = String.format("%s/keypress/%s", mRoku.getDescriptionUrl(), key.toUrlString());
-        return Unirest.post(url).asString();
+        return timed(EcpCall.KEYPRESS, () -> Unirest.post(mKeypressUrls.get(key)).asString());
     }
 
     /**
@@ -94,8 +237,7 @@ public class RokuEcpClient {
      * @throws UnirestException if the request fails.
      */
     public HttpResponse<String> launchApp(int appId) throws UnirestException {
-        String url = String.format("%s/launch/%d", mRoku.getDescriptionUrl(), appId);
-        return Unirest.post(url).asString();
+        return timed(EcpCall.LAUNCH, () -> Unirest.post(mBaseUrl + "/launch/" + appId).asString());
     }
 
     /**
@@ -119,8 +261,7 @@ public class RokuEcpClient {
      * @throws UnirestException if the request fails.
      */
     public HttpResponse<String> installApp(int appId) throws UnirestException {
-        String url = String.format("%s/install/%d", mRoku.getDescriptionUrl(), appId);
-        return Unirest.post(url).asString();
+        return timed(EcpCall.INSTALL, () -> Unirest.post(mBaseUrl + "/install/" + appId).asString());
     }
 
     /**
@@ -129,9 +270,348 @@ public class RokuEcpClient {
      * @throws UnirestException if the request fails.
      */
     public HttpResponse<AppInfo[]> getInstalledApps() throws UnirestException {
-        String url = String.format("%s/query/apps", mRoku.getDescriptionUrl());
         // Make jackson deserialize to POJO
-        return Unirest.get(url).asObject(AppInfo[].class);
+        return timedQuery(EcpCall.QUERY_APPS, () -> Unirest.get(mBaseUrl + "/query/apps").asObject(AppInfo[].class));
+    }
+
+    /**
+     * Query the Roku for its list of installed apps, and stream the apps to {@code visitor} as they are read from the
+     * response. Unlike {@link #getInstalledApps()}, the response body is neither buffered nor mapped to an array.
+     *
+     * @param visitor Receives the installed apps. Only invoked if the Roku responds with status 200.
+     * @return The HTTP status code of the response.
+     * @throws UnirestException if the request fails or the response body is malformed.
+     */
+    public int visitInstalledApps(InstalledAppsReader.AppVisitor visitor) throws UnirestException {
+        return streamInstalledApps(in -> InstalledAppsReader.readApps(in, visitor));
+    }
+
+    /**
+     * Query the Roku for its list of installed apps, and stream the IDs of the apps to {@code visitor} as they are
+     * read from the response. Intended for frequent polling: no objects are created per app.
+     *
+     * @param visitor Receives the IDs of the installed apps. Only invoked if the Roku responds with status 200.
+     * @return The HTTP status code of the response.
+     * @throws UnirestException if the request fails or the response body is malformed.
+     */
+    public int visitInstalledAppIds(InstalledAppsReader.AppIdVisitor visitor) throws UnirestException {
+        return streamInstalledApps(in -> InstalledAppsReader.readAppIds(in, visitor));
+    }
+
+    /**
+     * Query the Roku to check if a given app is installed. Stops reading the response as soon as the app is found.
+     *
+     * @param appId The ID of the app.
+     * @return {@code true} if an app with an ID={@code appId} is installed on the Roku device, {@code false} otherwise.
+     * @throws UnirestException if the request fails or the Roku does not respond with status 200.
+     */
+    public boolean isAppInstalled(int appId) throws UnirestException {
+        boolean[] found = { false };
+        int status = visitInstalledAppIds(id -> !(found[0] = id == appId));
+        if (status != 200) {
+            throw new UnirestException(String.format("query for installed apps failed with status %d", status));
+        }
+        return found[0];
+    }
+
+    /**
+     * Issue a 'query/apps' request on Unirest's (pooled) HTTP client, bypassing Unirest's response handling so that
+     * the body can be parsed straight from the connection.
+     */
+    private int streamInstalledApps(BodyReader bodyReader) throws UnirestException {
+        mRateLimiter.acquire();
+        final long start = System.nanoTime();
+        int status = RunMetrics.NO_RESPONSE;
+        try {
+            org.apache.http.HttpResponse response = ClientFactory.getHttpClient()
+                    .execute(new HttpGet(mBaseUrl + "/query/apps"));
+            HttpEntity entity = response.getEntity();
+            status = response.getStatusLine().getStatusCode();
+            try {
+                if (status == 200 && entity != null) {
+                    try (InputStream in = entity.getContent()) {
+                        bodyReader.read(in);
+                    }
+                }
+            } finally {
+                // Release the connection back to the pool.
+                EntityUtils.consumeQuietly(entity);
+            }
+            return status;
+        } catch (IOException | XMLStreamException e) {
+            throw new UnirestException(e);
+        } finally {
+            completed(EcpCall.QUERY_APPS, start, status);
+        }
+    }
+
+    private interface BodyReader {
+        void read(InputStream in) throws IOException, XMLStreamException;
+    }
+
+    /**
+     * Query the Roku for the app that is currently in the foreground.
+     * @return The response from the Roku device, which describes the active app in the message body.
+     * @throws UnirestException if the request fails.
+     */
+    public HttpResponse<ActiveApp> getActiveApp() throws UnirestException {
+        return timedQuery(EcpCall.QUERY_ACTIVE_APP,
+                () -> Unirest.get(mBaseUrl + "/query/active-app").asObject(ActiveApp.class));
+    }
+
+    /**
+     * Query the Roku for the state of its media player.
+     * @return The response from the Roku device, which describes the media player state in the message body.
+     * @throws UnirestException if the request fails.
+     */
+    public HttpResponse<MediaPlayerState> getMediaPlayerState() throws UnirestException {
+        return timedQuery(EcpCall.QUERY_MEDIA_PLAYER,
+                () -> Unirest.get(mBaseUrl + "/query/media-player").asObject(MediaPlayerState.class));
+    }
+
+    /**
+     * Query the Roku for its identity (serial number, model, etc.).
+     * @return The response from the Roku device, which describes the device in the message body.
+     * @throws UnirestException if the request fails.
+     */
+    public HttpResponse<DeviceInfo> getDeviceInfo() throws UnirestException {
+        return timedQuery(EcpCall.QUERY_DEVICE_INFO,
+                () -> Unirest.get(mBaseUrl + "/query/device-info").asObject(DeviceInfo.class));
+    }
+
+    /**
+     * Asynchronous version of {@link #sendKeypress(RokuRemoteKey)}.
+     * @param key The key that is to be virtually pressed.
+     * @return A future that completes with the response from the Roku device, or exceptionally with a
+     *         {@link UnirestException} if the request fails.
+     */
+    public CompletableFuture<HttpResponse<String>> sendKeypressAsync(RokuRemoteKey key) {
+        return sendKeypressAsync(key, null);
+    }
+
+    /**
+     * Asynchronous version of {@link #sendKeypress(RokuRemoteKey)} that reports when the request is actually sent,
+     * which may be later than the call if the request is held back by the {@link #getRateLimiter() rate limiter}.
+     * @param key The key that is to be virtually pressed.
+     * @param onSent Receives the {@link System#nanoTime()} at which the request is sent, or {@code null}.
+     * @return A future that completes with the response from the Roku device, or exceptionally with a
+     *         {@link UnirestException} if the request fails.
+     */
+    public CompletableFuture<HttpResponse<String>> sendKeypressAsync(RokuRemoteKey key, LongConsumer onSent) {
+        return timedAsync(EcpCall.KEYPRESS, onSent, cb -> Unirest.post(mKeypressUrls.get(key)).asStringAsync(cb));
+    }
+
+    /**
+     * Asynchronous version of {@link #launchApp(int)}.
+     * @param appId The ID of the app that the Roku should launch.
+     * @return A future that completes with the response from the Roku device, or exceptionally with a
+     *         {@link UnirestException} if the request fails.
+     */
+    public CompletableFuture<HttpResponse<String>> launchAppAsync(int appId) {
+        return launchAppAsync(appId, null);
+    }
+
+    /**
+     * Asynchronous version of {@link #launchApp(int)} that reports when the request is actually sent, which may be
+     * later than the call if the request is held back by the {@link #getRateLimiter() rate limiter}.
+     * @param appId The ID of the app that the Roku should launch.
+     * @param onSent Receives the {@link System#nanoTime()} at which the request is sent, or {@code null}.
+     * @return A future that completes with the response from the Roku device, or exceptionally with a
+     *         {@link UnirestException} if the request fails.
+     */
+    public CompletableFuture<HttpResponse<String>> launchAppAsync(int appId, LongConsumer onSent) {
+        return timedAsync(EcpCall.LAUNCH, onSent,
+                cb -> Unirest.post(mBaseUrl + "/launch/" + appId).asStringAsync(cb));
+    }
+
+    /**
+     * Asynchronous version of {@link #installApp(int)}.
+     * @param appId The ID of the app to install.
+     * @return A future that completes with the response from the Roku device, or exceptionally with a
+     *         {@link UnirestException} if the request fails.
+     */
+    public CompletableFuture<HttpResponse<String>> installAppAsync(int appId) {
+        return timedAsync(EcpCall.INSTALL, null, cb -> Unirest.post(mBaseUrl + "/install/" + appId).asStringAsync(cb));
+    }
+
+    /**
+     * Asynchronous version of {@link #getInstalledApps()}.
+     * @return A future that completes with the response from the Roku device, or exceptionally with a
+     *         {@link UnirestException} if the request fails.
+     */
+    public CompletableFuture<HttpResponse<AppInfo[]>> getInstalledAppsAsync() {
+        return timedQueryAsync(EcpCall.QUERY_APPS,
+                cb -> Unirest.get(mBaseUrl + "/query/apps").asObjectAsync(AppInfo[].class, cb));
+    }
+
+    /**
+     * Asynchronous version of {@link #getActiveApp()}.
+     * @return A future that completes with the response from the Roku device, or exceptionally with a
+     *         {@link UnirestException} if the request fails.
+     */
+    public CompletableFuture<HttpResponse<ActiveApp>> getActiveAppAsync() {
+        return timedQueryAsync(EcpCall.QUERY_ACTIVE_APP,
+                cb -> Unirest.get(mBaseUrl + "/query/active-app").asObjectAsync(ActiveApp.class, cb));
+    }
+
+    /**
+     * Asynchronous version of {@link #getMediaPlayerState()}.
+     * @return A future that completes with the response from the Roku device, or exceptionally with a
+     *         {@link UnirestException} if the request fails.
+     */
+    public CompletableFuture<HttpResponse<MediaPlayerState>> getMediaPlayerStateAsync() {
+        return timedQueryAsync(EcpCall.QUERY_MEDIA_PLAYER,
+                cb -> Unirest.get(mBaseUrl + "/query/media-player").asObjectAsync(MediaPlayerState.class, cb));
+    }
+
+    /**
+     * Asynchronous version of {@link #getDeviceInfo()}.
+     * @return A future that completes with the response from the Roku device, or exceptionally with a
+     *         {@link UnirestException} if the request fails.
+     */
+    public CompletableFuture<HttpResponse<DeviceInfo>> getDeviceInfoAsync() {
+        return timedQueryAsync(EcpCall.QUERY_DEVICE_INFO,
+                cb -> Unirest.get(mBaseUrl + "/query/device-info").asObjectAsync(DeviceInfo.class, cb));
+    }
+
+    /**
+     * Send a blocking request and record its latency and status.
+     */
+    private <T> HttpResponse<T> timed(EcpCall call, Request<T> request) throws UnirestException {
+        mRateLimiter.acquire();
+        final long start = System.nanoTime();
+        int status = RunMetrics.NO_RESPONSE;
+        try {
+            HttpResponse<T> response = request.send();
+            status = response.getStatus();
+            return response;
+        } finally {
+            completed(call, start, status);
+        }
+    }
+
+    /**
+     * Send an asynchronous request once the rate limiter allows, and record its latency and status when it completes.
+     * {@code onSent}, if not {@code null}, is passed the time the request is sent.
+     */
+    private <T> CompletableFuture<HttpResponse<T>> timedAsync(EcpCall call, LongConsumer onSent,
+                                                             Function<Callback<T>, Future<HttpResponse<T>>> request) {
+        long delayNanos = mRateLimiter.reserve();
+        if (delayNanos == 0) {
+            return sendAsync(call, onSent, request);
+        }
+        CompletableFuture<HttpResponse<T>> future = new CompletableFuture<>();
+        EcpRateLimiter.schedule(() -> {
+            try {
+                sendAsync(call, onSent, request).whenComplete((response, error) -> {
+                    if (error != null) {
+                        future.completeExceptionally(error);
+                    } else {
+                        future.complete(response);
+                    }
+                });
+            } catch (RuntimeException e) {
+                // Would otherwise be swallowed by the timer, leaving the future incomplete.
+                future.completeExceptionally(e);
+            }
+        }, delayNanos);
+        return future;
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> sendAsync(EcpCall call, LongConsumer onSent,
+                                                            Function<Callback<T>, Future<HttpResponse<T>>> request) {
+        final long start = System.nanoTime();
+        if (onSent != null) {
+            onSent.accept(start);
+        }
+        CompletableFuture<HttpResponse<T>> future = async(request);
+        future.whenComplete((response, error) -> completed(call, start,
+                response == null ? RunMetrics.NO_RESPONSE : response.getStatus()));
+        return future;
+    }
+
+    /**
+     * Record the outcome of a request in the metrics and feed it back to the rate limiter.
+     */
+    private void completed(EcpCall call, long startNanos, int status) {
+        mMetrics.recordEcp(call, mMetricsLabel, startNanos, status);
+        // A 503 in response to an install request means that the app is installed already or does not exist, not
+        // that the Roku is overloaded.
+        boolean failed = status == RunMetrics.NO_RESPONSE || status >= 500 && call != EcpCall.INSTALL;
+        mRateLimiter.record(System.nanoTime() - startNanos, failed);
+    }
+
+    /**
+     * Send a blocking request for an XML document, and fail it if it is answered with status 200 but without a valid
+     * document.
+     */
+    private <T> HttpResponse<T> timedQuery(EcpCall call, Request<T> request) throws UnirestException {
+        HttpResponse<T> response = timed(call, request);
+        if (response.getStatus() == 200 && response.getBody() == null) {
+            throw new UnirestException("malformed response body");
+        }
+        return response;
+    }
+
+    /**
+     * Asynchronous version of {@link #timedQuery(EcpCall, Request)}.
+     */
+    private <T> CompletableFuture<HttpResponse<T>> timedQueryAsync(
+            EcpCall call, Function<Callback<T>, Future<HttpResponse<T>>> request) {
+        return timedAsync(call, null, request).thenApply(response -> {
+            if (response.getStatus() == 200 && response.getBody() == null) {
+                throw new CompletionException(new UnirestException("malformed response body"));
+            }
+            return response;
+        });
+    }
+
+    private interface Request<T> {
+        HttpResponse<T> send() throws UnirestException;
+    }
+
+    /**
+     * Adapt Unirest's callback-based async API to a {@link CompletableFuture}.
+     */
+    private static <T> CompletableFuture<HttpResponse<T>> async(
+            Function<Callback<T>, Future<HttpResponse<T>>> request) {
+        startAsyncClient();
+        CompletableFuture<HttpResponse<T>> future = new CompletableFuture<>();
+        request.apply(new Callback<T>() {
+            @Override
+            public void completed(HttpResponse<T> response) {
+                future.complete(response);
+            }
+
+            @Override
+            public void failed(UnirestException e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void cancelled() {
+                future.cancel(false);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Start Unirest's asynchronous HTTP client, as Unirest itself does before each asynchronous request if the client
+     * is not running. Unirest does so without synchronization, so threads that send their first asynchronous request
+     * at the same time may all try to start the client's connection monitor thread, and all but one of them fail.
+     */
+    private static void startAsyncClient() {
+        CloseableHttpAsyncClient client = ClientFactory.getAsyncHttpClient();
+        if (client.isRunning()) {
+            return;
+        }
+        synchronized (ASYNC_CLIENT_LOCK) {
+            if (!client.isRunning()) {
+                client.start();
+                ((AsyncIdleConnectionMonitorThread) Options.getOption(Option.ASYNC_MONITOR)).start();
+            }
+        }
     }
 
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.ecp;
+
+import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model.ActiveApp;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ *     Waits for a Roku to reach a given state (an app in the foreground, the home screen, playback started) by polling
+ *     its ECP state queries ({@code /query/active-app} and {@code /query/media-player}) at a short interval. This
+ *     allows callers to move on as soon as the Roku is ready instead of sleeping for a fixed, worst-case duration.
+ * </p>
+ * <p>
+ *     Every wait is bounded by a timeout. Failed or non-200 state queries are treated as "not there yet", so a wait
+ *     against an unresponsive Roku simply degrades to a fixed sleep of the timeout's length.
+ * </p>
+ * <p>
+ *     Queries are sent asynchronously and polls are scheduled on a given {@link ScheduledExecutorService}, so no thread
+ *     is blocked while waiting. This allows a few threads to wait on many Rokus.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class RokuStateWaiter {
+
+    /**
+     * Default value for {@link #getPollIntervalMillis()}.
+     */
+    public static final long DEFAULT_POLL_INTERVAL_MILLIS = 500;
+
+    private final RokuEcpClient mEcpClient;
+
+    private volatile long mPollIntervalMillis = DEFAULT_POLL_INTERVAL_MILLIS;
+
+    private final Supplier<CompletableFuture<Boolean>> mHomeScreenAsync;
+    private final Supplier<CompletableFuture<Boolean>> mPlaybackAsync;
+
+    /**
+     * Create a new {@code RokuStateWaiter}.
+     * @param ecpClient Client for the Roku whose state is to be polled.
+     */
+    public RokuStateWaiter(RokuEcpClient ecpClient) {
+        mEcpClient = ecpClient;
+        mHomeScreenAsync = () -> activeAppAsync().thenApply(active -> active != null && active.isHomeScreen());
+        mPlaybackAsync = () -> mEcpClient.getMediaPlayerStateAsync().thenApply(resp ->
+                resp.getStatus() == 200 && resp.getBody() != null && resp.getBody().isPlaybackStarted());
+    }
+
+    /**
+     * Wait until a given app is in the foreground.
+     * @param appId The ID of the app.
+     * @param timeoutMillis Max time to wait, in milliseconds.
+     * @param scheduler Runs the polls.
+     * @return A future that completes with {@code true} if the app reached the foreground, or with {@code false} if
+     *         the wait timed out.
+     */
+    public CompletableFuture<Boolean> awaitAppInForegroundAsync(int appId, long timeoutMillis,
+                                                                ScheduledExecutorService scheduler) {
+        return awaitAsync(appInForegroundAsync(appId), timeoutMillis, scheduler);
+    }
+
+    /**
+     * Wait until the Roku shows its home screen, i.e. until no app is in the foreground.
+     * @param timeoutMillis Max time to wait, in milliseconds.
+     * @param scheduler Runs the polls.
+     * @return A future that completes with {@code true} if the home screen was reached, or with {@code false} if the
+     *         wait timed out.
+     */
+    public CompletableFuture<Boolean> awaitHomeScreenAsync(long timeoutMillis, ScheduledExecutorService scheduler) {
+        return awaitAsync(mHomeScreenAsync, timeoutMillis, scheduler);
+    }
+
+    /**
+     * Wait until the Roku's media player reports that playback has started (content is playing or buffering).
+     * @param timeoutMillis Max time to wait, in milliseconds.
+     * @param scheduler Runs the polls.
+     * @return A future that completes with {@code true} if playback started, or with {@code false} if the wait timed
+     *         out.
+     */
+    public CompletableFuture<Boolean> awaitPlaybackAsync(long timeoutMillis, ScheduledExecutorService scheduler) {
+        return awaitAsync(mPlaybackAsync, timeoutMillis, scheduler);
+    }
+
+    /**
+     * Check, without waiting, if a given app is in the foreground.
+     * @param appId The ID of the app.
+     * @return A future that completes with {@code true} if the app is in the foreground, or with {@code false} if it
+     *         is not or if the query failed.
+     */
+    public CompletableFuture<Boolean> isAppInForegroundAsync(int appId) {
+        return holdsAsync(appInForegroundAsync(appId));
+    }
+
+    /**
+     * Check, without waiting, if the Roku shows its home screen.
+     * @return A future that completes with {@code true} if the home screen is showing, or with {@code false} if it is
+     *         not or if the query failed.
+     */
+    public CompletableFuture<Boolean> isHomeScreenAsync() {
+        return holdsAsync(mHomeScreenAsync);
+    }
+
+    /**
+     * Check, without waiting, if the Roku's media player is playing (or buffering) content.
+     * @return A future that completes with {@code true} if playback has started, or with {@code false} if it has not
+     *         or if the query failed.
+     */
+    public CompletableFuture<Boolean> isPlayingAsync() {
+        return holdsAsync(mPlaybackAsync);
+    }
+
+    /**
+     * Get the interval between two consecutive state queries.
+     * @return the poll interval, in milliseconds.
+     */
+    public long getPollIntervalMillis() {
+        return mPollIntervalMillis;
+    }
+
+    /**
+     * Set the interval between two consecutive state queries.
+     * @param pollIntervalMillis the poll interval, in milliseconds.
+     */
+    public void setPollIntervalMillis(long pollIntervalMillis) {
+        mPollIntervalMillis = pollIntervalMillis;
+    }
+
+    private Supplier<CompletableFuture<Boolean>> appInForegroundAsync(int appId) {
+        return () -> activeAppAsync().thenApply(active ->
+                active != null && !active.isHomeScreen() && active.getApp().getId() == appId);
+    }
+
+    private CompletableFuture<ActiveApp> activeAppAsync() {
+        return mEcpClient.getActiveAppAsync().thenApply(resp -> resp.getStatus() == 200 ? resp.getBody() : null);
+    }
+
+    /**
+     * Poll {@code condition} until it holds or {@code timeoutMillis} has passed. Each poll is scheduled on
+     * {@code scheduler}.
+     */
+    private CompletableFuture<Boolean> awaitAsync(Supplier<CompletableFuture<Boolean>> condition, long timeoutMillis,
+                                                  ScheduledExecutorService scheduler) {
+        final long deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        poll(condition, deadline, scheduler, result);
+        return result;
+    }
+
+    /**
+     * Evaluate {@code condition}, and either complete {@code result} or schedule the next poll.
+     */
+    private void poll(Supplier<CompletableFuture<Boolean>> condition, long deadline,
+                      ScheduledExecutorService scheduler, CompletableFuture<Boolean> result) {
+        holdsAsync(condition).thenAcceptAsync(holds -> {
+            if (holds) {
+                result.complete(true);
+                return;
+            }
+            long remainingMillis = (deadline - System.nanoTime()) / 1_000_000;
+            if (remainingMillis <= 0) {
+                result.complete(false);
+                return;
+            }
+            scheduler.schedule(() -> poll(condition, deadline, scheduler, result),
+                    Math.min(mPollIntervalMillis, remainingMillis), TimeUnit.MILLISECONDS);
+        }, scheduler).exceptionally(e -> {
+            // Only if the scheduler rejected the poll, e.g. because it was shut down.
+            result.completeExceptionally(e);
+            return null;
+        });
+    }
+
+    /**
+     * Evaluate {@code condition} once; the returned future never completes exceptionally.
+     */
+    private static CompletableFuture<Boolean> holdsAsync(Supplier<CompletableFuture<Boolean>> condition) {
+        CompletableFuture<Boolean> future;
+        try {
+            future = condition.get();
+        } catch (RuntimeException e) {
+            return CompletableFuture.completedFuture(false);
+        }
+        // Treat failed queries (including XML mapping errors) as "not there yet"; the timeout bounds the wait.
+        return future.exceptionally(e -> false);
+    }
+
+}
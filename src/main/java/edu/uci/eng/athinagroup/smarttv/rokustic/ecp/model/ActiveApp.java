@@ -0,0 +1,56 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlProperty;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement;
+
+/**
+ * POJO for the response to an ECP 'query/active-app' call, i.e., the app that is currently in the foreground.
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+@JacksonXmlRootElement(localName = "active-app")
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ActiveApp {
+
+    @JacksonXmlProperty(localName = "app")
+    private AppInfo app;
+
+    public AppInfo getApp() {
+        return app;
+    }
+
+    public void setApp(AppInfo app) {
+        this.app = app;
+    }
+
+    /**
+     * Determine if the Roku is showing its home screen. The home screen is reported as an app without an ID.
+     * @return {@code true} if no app is in the foreground, {@code false} otherwise.
+     */
+    public boolean isHomeScreen() {
+        return app == null || app.getId() == 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s { app=%s; }", getClass().getSimpleName(), this.app);
+    }
+
+}
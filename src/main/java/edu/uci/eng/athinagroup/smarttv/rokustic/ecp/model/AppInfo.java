@@ -16,6 +16,7 @@
  */
 package edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlProperty;
 import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement;
 import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlText;
@@ -26,6 +27,7 @@ import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlText;
  * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
  */
 @JacksonXmlRootElement(localName = "app")
+@JsonIgnoreProperties(ignoreUnknown = true)
 public class AppInfo {
 
     @JacksonXmlProperty(isAttribute = true)
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlProperty;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement;
+
+/**
+ * POJO for the response to an ECP 'query/device-info' call, i.e., the identity and model of the Roku. Only a subset
+ * of the reported properties is mapped.
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+@JacksonXmlRootElement(localName = "device-info")
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class DeviceInfo {
+
+    @JacksonXmlProperty(localName = "udn")
+    private String udn;
+    @JacksonXmlProperty(localName = "serial-number")
+    private String serialNumber;
+    @JacksonXmlProperty(localName = "model-name")
+    private String modelName;
+    @JacksonXmlProperty(localName = "user-device-name")
+    private String userDeviceName;
+    @JacksonXmlProperty(localName = "software-version")
+    private String softwareVersion;
+
+    public String getUdn() {
+        return udn;
+    }
+
+    public void setUdn(String udn) {
+        this.udn = udn;
+    }
+
+    public String getSerialNumber() {
+        return serialNumber;
+    }
+
+    public void setSerialNumber(String serialNumber) {
+        this.serialNumber = serialNumber;
+    }
+
+    public String getModelName() {
+        return modelName;
+    }
+
+    public void setModelName(String modelName) {
+        this.modelName = modelName;
+    }
+
+    public String getUserDeviceName() {
+        return userDeviceName;
+    }
+
+    public void setUserDeviceName(String userDeviceName) {
+        this.userDeviceName = userDeviceName;
+    }
+
+    public String getSoftwareVersion() {
+        return softwareVersion;
+    }
+
+    public void setSoftwareVersion(String softwareVersion) {
+        this.softwareVersion = softwareVersion;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s { udn=%s; serialNumber=%s; modelName=%s; userDeviceName=%s; softwareVersion=%s; }",
+                getClass().getSimpleName(), this.udn, this.serialNumber, this.modelName, this.userDeviceName,
+                this.softwareVersion);
+    }
+
+}
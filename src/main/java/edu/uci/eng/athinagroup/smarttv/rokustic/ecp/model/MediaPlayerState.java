@@ -0,0 +1,134 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlProperty;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement;
+
+/**
+ * POJO for the response to an ECP 'query/media-player' call, i.e., the state of the Roku's media player.
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+@JacksonXmlRootElement(localName = "player")
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class MediaPlayerState {
+
+    /**
+     * Value of {@link #getState()} while content is playing.
+     */
+    public static final String STATE_PLAY = "play";
+
+    /**
+     * Value of {@link #getState()} while content is buffering, e.g., just before playback starts.
+     */
+    public static final String STATE_BUFFER = "buffer";
+
+    @JacksonXmlProperty(isAttribute = true)
+    private String state;
+    @JacksonXmlProperty(isAttribute = true)
+    private boolean error;
+    @JacksonXmlProperty(localName = "plugin")
+    private Plugin plugin;
+    @JacksonXmlProperty(localName = "position")
+    private String position;
+
+    public String getState() {
+        return state;
+    }
+
+    public void setState(String state) {
+        this.state = state;
+    }
+
+    public boolean isError() {
+        return error;
+    }
+
+    public void setError(boolean error) {
+        this.error = error;
+    }
+
+    public Plugin getPlugin() {
+        return plugin;
+    }
+
+    public void setPlugin(Plugin plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * @return The playback position as reported by the Roku, e.g. {@code "12345 ms"}, or {@code null} if nothing is
+     *         playing.
+     */
+    public String getPosition() {
+        return position;
+    }
+
+    public void setPosition(String position) {
+        this.position = position;
+    }
+
+    /**
+     * Determine if playback has started, i.e. if content is playing or buffering.
+     * @return {@code true} if playback has started, {@code false} otherwise.
+     */
+    public boolean isPlaybackStarted() {
+        return !error && (STATE_PLAY.equals(state) || STATE_BUFFER.equals(state));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s { state=%s; error=%b; plugin=%s; position=%s; }",
+                getClass().getSimpleName(), this.state, this.error, this.plugin, this.position);
+    }
+
+    /**
+     * The app (channel) that owns the media player.
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Plugin {
+
+        @JacksonXmlProperty(isAttribute = true)
+        private int id;
+        @JacksonXmlProperty(isAttribute = true)
+        private String name;
+
+        public int getId() {
+            return id;
+        }
+
+        public void setId(int id) {
+            this.id = id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s { id=%d; name=%s; }", getClass().getSimpleName(), this.id, this.name);
+        }
+    }
+
+}
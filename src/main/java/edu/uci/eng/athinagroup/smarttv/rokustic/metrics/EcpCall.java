@@ -0,0 +1,47 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.metrics;
+
+/**
+ * The types of ECP requests whose latency is tracked separately by {@link RunMetrics}.
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public enum EcpCall {
+
+    KEYPRESS("keypress"),
+    LAUNCH("launch"),
+    INSTALL("install"),
+    QUERY_APPS("query_apps"),
+    QUERY_ACTIVE_APP("query_active_app"),
+    QUERY_MEDIA_PLAYER("query_media_player"),
+    QUERY_DEVICE_INFO("query_device_info");
+
+    private final String mLabel;
+
+    EcpCall(String label) {
+        mLabel = label;
+    }
+
+    /**
+     * @return The name of the request type as used in metric labels.
+     */
+    public String getLabel() {
+        return mLabel;
+    }
+
+}
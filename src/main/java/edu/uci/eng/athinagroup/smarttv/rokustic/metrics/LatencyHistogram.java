@@ -0,0 +1,151 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ *     A histogram of durations with fixed, roughly logarithmic bucket bounds from 1 ms to 5 minutes (see
+ *     {@link #BUCKET_BOUNDS_MILLIS}), which covers both single ECP requests and entire exercise steps. Recording is
+ *     lock free and does not allocate, so it may be done from any number of threads on every request.
+ * </p>
+ * <p>
+ *     Quantiles are estimated as the upper bound of the bucket that holds them, i.e. they are accurate to within a
+ *     factor of about 2.5.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class LatencyHistogram {
+
+    /**
+     * Upper bounds (inclusive) of the buckets, in milliseconds. Durations above the last bound go into an overflow
+     * bucket.
+     */
+    public static final long[] BUCKET_BOUNDS_MILLIS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1_000, 2_000, 5_000, 10_000, 20_000, 60_000, 300_000
+    };
+
+    private static final long[] BUCKET_BOUNDS_NANOS = new long[BUCKET_BOUNDS_MILLIS.length];
+
+    static {
+        for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+            BUCKET_BOUNDS_NANOS[i] = BUCKET_BOUNDS_MILLIS[i] * 1_000_000;
+        }
+    }
+
+    /**
+     * Counts per bucket; the last element is the overflow bucket.
+     */
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+    private final LongAdder mSumNanos = new LongAdder();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    /**
+     * Record a duration.
+     * @param nanos The duration, in nanoseconds.
+     */
+    public void record(long nanos) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_NANOS.length && nanos > BUCKET_BOUNDS_NANOS[bucket]) {
+            bucket++;
+        }
+        mCounts.incrementAndGet(bucket);
+        mSumNanos.add(nanos);
+        long max;
+        while (nanos > (max = mMaxNanos.get()) && !mMaxNanos.compareAndSet(max, nanos)) {
+            // Retry; another thread recorded a new max.
+        }
+    }
+
+    /**
+     * Record a duration given in milliseconds.
+     * @param millis The duration, in milliseconds.
+     */
+    public void recordMillis(long millis) {
+        record(millis * 1_000_000);
+    }
+
+    /**
+     * @return The number of recorded durations.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < mCounts.length(); i++) {
+            count += mCounts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of recorded durations that fall into a bucket.
+     * @param bucket Index of the bucket; {@code BUCKET_BOUNDS_MILLIS.length} for the overflow bucket.
+     * @return The number of durations in the bucket.
+     */
+    public long getBucketCount(int bucket) {
+        return mCounts.get(bucket);
+    }
+
+    /**
+     * @return The sum of the recorded durations, in nanoseconds.
+     */
+    public long getSumNanos() {
+        return mSumNanos.sum();
+    }
+
+    /**
+     * @return The longest recorded duration, in nanoseconds.
+     */
+    public long getMaxNanos() {
+        return mMaxNanos.get();
+    }
+
+    /**
+     * Estimate a quantile of the recorded durations.
+     * @param q The quantile, e.g. 0.99.
+     * @return The estimate in milliseconds (the upper bound of the bucket holding the quantile, or the max duration
+     *         if that is less), or 0 if nothing has been recorded.
+     */
+    public double getQuantileMillis(double q) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * count);
+        long seen = 0;
+        double maxMillis = mMaxNanos.get() / 1e6;
+        for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(BUCKET_BOUNDS_MILLIS[i], maxMillis);
+            }
+        }
+        return maxMillis;
+    }
+
+    @Override
+    public String toString() {
+        long count = getCount();
+        return String.format("count=%d mean=%.1fms p50=%.0fms p99=%.0fms max=%.1fms", count,
+                count == 0 ? 0.0 : getSumNanos() / 1e6 / count, getQuantileMillis(0.5), getQuantileMillis(0.99),
+                getMaxNanos() / 1e6);
+    }
+
+}
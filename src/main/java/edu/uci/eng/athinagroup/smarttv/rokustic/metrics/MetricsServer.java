@@ -0,0 +1,117 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>
+ *     Serves {@link RunMetrics} over HTTP on the loopback interface:
+ * </p>
+ * <ul>
+ *     <li>{@code /metrics}: all metrics in the Prometheus text format, for scraping.</li>
+ *     <li>{@code /}: progress, ETA and summaries of the histograms as plain text, for a quick look with curl.</li>
+ * </ul>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class MetricsServer implements Closeable {
+
+    /**
+     * Default port, used if none is given.
+     */
+    public static final int DEFAULT_PORT = 9400;
+
+    private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final RunMetrics mMetrics;
+    private final HttpServer mServer;
+
+    /**
+     * Create a {@code MetricsServer} and start serving.
+     * @param metrics The metrics to serve.
+     * @param port The port to listen on; 0 for an ephemeral port.
+     * @throws IOException if the port could not be bound.
+     */
+    public MetricsServer(RunMetrics metrics, int port) throws IOException {
+        mMetrics = metrics;
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        mServer.createContext("/metrics", exchange -> respond(exchange, mMetrics.toPrometheusText()));
+        mServer.createContext("/", exchange -> respond(exchange, summary()));
+        // Requests are served on the server's own (single) dispatcher thread.
+        mServer.start();
+    }
+
+    /**
+     * @return The port the server listens on.
+     */
+    public int getPort() {
+        return mServer.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        mServer.stop(0);
+    }
+
+    private String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(mMetrics.getProgressLine()).append("\n\nECP latency by request type:\n");
+        append(sb, mMetrics.getEcpLatencies());
+        sb.append("\nECP latency by Roku:\n");
+        append(sb, mMetrics.getEcpLatenciesByDevice());
+        sb.append("\nECP rate limit by Roku:\n");
+        append(sb, mMetrics.getEcpRateLimits());
+        sb.append("\nPhase durations:\n");
+        append(sb, mMetrics.getPhaseDurations());
+        sb.append("\nPacket captures:\n");
+        append(sb, mMetrics.getCaptures());
+        sb.append(String.format("%nPackets: received=%d dropped=%d written=%d%nInstalls: started=%d succeeded=%d " +
+                        "timed_out=%d polls=%d%n", mMetrics.getPacketsReceived(), mMetrics.getPacketsDropped(),
+                mMetrics.getPacketsWritten(), mMetrics.getInstallsStarted(), mMetrics.getInstallsSucceeded(),
+                mMetrics.getInstallsTimedOut(), mMetrics.getInstallPolls()));
+        return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, String[] lines) {
+        for (String line : lines) {
+            sb.append("  ").append(line).append('\n');
+        }
+    }
+
+    private static void respond(HttpExchange exchange, String text) throws IOException {
+        try {
+            byte[] body = text.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", PROMETHEUS_CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+}
@@ -0,0 +1,483 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.metrics;
+
+import edu.uci.eng.athinagroup.smarttv.rokustic.capture.CaptureStats;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ *     Process-wide metrics of a run: latency histograms of ECP requests (per request type and per Roku), the ECP rate
+ *     limit of each Roku, packet counters of the open packet captures, durations of the phases of exercising an app,
+ *     install polls, and the progress of the batch with an estimated time of completion.
+ * </p>
+ * <p>
+ *     The metrics are recorded by the classes that do the work ({@code RokuEcpClient}, {@code CaptureSession}, the
+ *     exerciser, installer and fleet) into the shared instance returned by {@link #get()}. Recording is lock free.
+ *     The metrics can be read over JMX (see {@link #registerMBean()}), as Prometheus text (see
+ *     {@link #toPrometheusText()} and {@link MetricsServer}), or as a progress line for the console.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class RunMetrics implements RunMetricsMBean {
+
+    /**
+     * Name under which the metrics are registered with the platform MBean server.
+     */
+    public static final String MBEAN_NAME = "edu.uci.eng.athinagroup.smarttv.rokustic:type=RunMetrics";
+
+    /**
+     * Status recorded for ECP requests that failed without a response.
+     */
+    public static final int NO_RESPONSE = -1;
+
+    private static final RunMetrics INSTANCE = new RunMetrics();
+
+    private final Map<EcpCall, LatencyHistogram> mEcpLatencies = new EnumMap<>(EcpCall.class);
+    private final Map<EcpCall, LongAdder> mEcpErrors = new EnumMap<>(EcpCall.class);
+    private final Map<String, LatencyHistogram> mDeviceLatencies = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> mPhaseDurations = new ConcurrentHashMap<>();
+
+    /**
+     * Current ECP rate limits (requests per second), keyed by Roku.
+     */
+    private final Map<String, DoubleSupplier> mRateLimits = new ConcurrentHashMap<>();
+
+    private final LongAdder mInstallPolls = new LongAdder();
+    private final LongAdder mInstallsStarted = new LongAdder();
+    private final LongAdder mInstallsSucceeded = new LongAdder();
+    private final LongAdder mInstallsTimedOut = new LongAdder();
+
+    /**
+     * Open packet captures, mapped to their labels.
+     */
+    private final Map<Supplier<CaptureStats>, String> mCaptures = new ConcurrentHashMap<>();
+
+    /**
+     * Final counters of the captures that have been closed: received, kernel dropped, interface dropped, ring
+     * dropped, written.
+     */
+    private final AtomicLong[] mClosedCaptureTotals = {
+            new AtomicLong(), new AtomicLong(), new AtomicLong(), new AtomicLong(), new AtomicLong()
+    };
+
+    private final AtomicInteger mAppsTotal = new AtomicInteger();
+    private final AtomicInteger mAppsDone = new AtomicInteger();
+    private final AtomicInteger mAppsFailed = new AtomicInteger();
+    private volatile long mStartMillis = System.currentTimeMillis();
+
+    private RunMetrics() {
+        for (EcpCall call : EcpCall.values()) {
+            mEcpLatencies.put(call, new LatencyHistogram());
+            mEcpErrors.put(call, new LongAdder());
+        }
+    }
+
+    /**
+     * @return The metrics of this process.
+     */
+    public static RunMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Register the metrics with the platform MBean server under {@link #MBEAN_NAME}, so that they can be inspected
+     * with e.g. JConsole or VisualVM. Does nothing if they are already registered.
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(MBEAN_NAME));
+        } catch (InstanceAlreadyExistsException iaee) {
+            // Already registered.
+        } catch (JMException jme) {
+            System.out.printf("WARNING: could not register metrics with JMX: %s", jme.getMessage());
+            System.out.println();
+        }
+    }
+
+    /**
+     * Record the completion of an ECP request.
+     * @param call The type of the request.
+     * @param device Identifies the Roku the request was sent to, e.g. its IP address.
+     * @param startNanos {@link System#nanoTime()} when the request was sent.
+     * @param status The HTTP status of the response, or {@link #NO_RESPONSE} if the request failed.
+     */
+    public void recordEcp(EcpCall call, String device, long startNanos, int status) {
+        long nanos = System.nanoTime() - startNanos;
+        mEcpLatencies.get(call).record(nanos);
+        mDeviceLatencies.computeIfAbsent(device, d -> new LatencyHistogram()).record(nanos);
+        if (status != 200) {
+            mEcpErrors.get(call).increment();
+        }
+    }
+
+    /**
+     * Start reporting the ECP rate limit of a Roku.
+     * @param device Identifies the Roku, as in {@link #recordEcp(EcpCall, String, long, int)}.
+     * @param rate Supplies the current rate limit, in requests per second.
+     */
+    public void addRateLimiter(String device, DoubleSupplier rate) {
+        mRateLimits.put(device, rate);
+    }
+
+    /**
+     * Record the duration of a phase of exercising an app, e.g. a step of the exercise plan.
+     * @param phase The name of the phase.
+     * @param millis The duration, in milliseconds.
+     */
+    public void recordPhase(String phase, long millis) {
+        mPhaseDurations.computeIfAbsent(phase, p -> new LatencyHistogram()).recordMillis(millis);
+    }
+
+    /**
+     * Record a query for the installed apps made to check for completed installs.
+     */
+    public void recordInstallPoll() {
+        mInstallPolls.increment();
+    }
+
+    public void recordInstallStarted() {
+        mInstallsStarted.increment();
+    }
+
+    public void recordInstallSucceeded() {
+        mInstallsSucceeded.increment();
+    }
+
+    public void recordInstallTimedOut() {
+        mInstallsTimedOut.increment();
+    }
+
+    /**
+     * Start reporting the packet counters of an open packet capture.
+     * @param label Identifies the capture, e.g. its network interface and filter.
+     * @param stats Supplies live packet counters of the capture.
+     */
+    public void addCapture(String label, Supplier<CaptureStats> stats) {
+        mCaptures.put(stats, label);
+    }
+
+    /**
+     * Stop reporting a packet capture that has been closed. Its final counters are added to the totals.
+     * @param stats The supplier passed to {@link #addCapture(String, Supplier)}.
+     */
+    public void removeCapture(Supplier<CaptureStats> stats) {
+        if (mCaptures.remove(stats) != null) {
+            long[] counters = counters(stats.get());
+            for (int i = 0; i < counters.length; i++) {
+                mClosedCaptureTotals[i].addAndGet(counters[i]);
+            }
+        }
+    }
+
+    /**
+     * Add apps to the number of apps that the run is to process. The first call starts the clock for the ETA.
+     * @param apps The number of apps.
+     */
+    public void addAppsToDo(int apps) {
+        if (mAppsTotal.getAndAdd(apps) == 0 && mAppsDone.get() == 0) {
+            mStartMillis = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Record that an app has been processed for good, i.e. it will not be retried.
+     * @param succeeded {@code true} if the app was processed successfully.
+     */
+    public void recordAppDone(boolean succeeded) {
+        mAppsDone.incrementAndGet();
+        if (!succeeded) {
+            mAppsFailed.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return A one-line summary of the progress of the run, e.g. for printing after each app.
+     */
+    public String getProgressLine() {
+        long eta = getEtaSeconds();
+        return String.format("Progress: %d/%d apps done (%d failed), elapsed %s, ETA %s.", getAppsDone(),
+                getAppsTotal(), getAppsFailed(), formatSeconds(getElapsedSeconds()),
+                eta < 0 ? "unknown" : formatSeconds(eta));
+    }
+
+    @Override
+    public int getAppsTotal() {
+        return mAppsTotal.get();
+    }
+
+    @Override
+    public int getAppsDone() {
+        return mAppsDone.get();
+    }
+
+    @Override
+    public int getAppsFailed() {
+        return mAppsFailed.get();
+    }
+
+    @Override
+    public long getElapsedSeconds() {
+        return (System.currentTimeMillis() - mStartMillis) / 1_000;
+    }
+
+    @Override
+    public long getEtaSeconds() {
+        int done = getAppsDone();
+        if (done == 0) {
+            return -1;
+        }
+        long elapsedMillis = System.currentTimeMillis() - mStartMillis;
+        return Math.max(0, getAppsTotal() - done) * elapsedMillis / done / 1_000;
+    }
+
+    @Override
+    public long getEcpRequests() {
+        long requests = 0;
+        for (LatencyHistogram h : mEcpLatencies.values()) {
+            requests += h.getCount();
+        }
+        return requests;
+    }
+
+    @Override
+    public long getEcpErrors() {
+        long errors = 0;
+        for (LongAdder e : mEcpErrors.values()) {
+            errors += e.sum();
+        }
+        return errors;
+    }
+
+    @Override
+    public String[] getEcpLatencies() {
+        List<String> lines = new ArrayList<>();
+        for (EcpCall call : EcpCall.values()) {
+            lines.add(String.format("%s: %s errors=%d", call.getLabel(), mEcpLatencies.get(call),
+                    mEcpErrors.get(call).sum()));
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getEcpLatenciesByDevice() {
+        return summarize(mDeviceLatencies);
+    }
+
+    @Override
+    public String[] getEcpRateLimits() {
+        List<String> lines = new ArrayList<>();
+        new TreeMap<>(mRateLimits).forEach((device, rate) ->
+                lines.add(String.format("%s: %.1f requests/s", device, rate.getAsDouble())));
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getPhaseDurations() {
+        return summarize(mPhaseDurations);
+    }
+
+    @Override
+    public long getInstallPolls() {
+        return mInstallPolls.sum();
+    }
+
+    @Override
+    public long getInstallsStarted() {
+        return mInstallsStarted.sum();
+    }
+
+    @Override
+    public long getInstallsSucceeded() {
+        return mInstallsSucceeded.sum();
+    }
+
+    @Override
+    public long getInstallsTimedOut() {
+        return mInstallsTimedOut.sum();
+    }
+
+    @Override
+    public long getPacketsReceived() {
+        return captureTotals()[0];
+    }
+
+    @Override
+    public long getPacketsDropped() {
+        long[] totals = captureTotals();
+        return totals[1] + totals[2] + totals[3];
+    }
+
+    @Override
+    public long getPacketsWritten() {
+        return captureTotals()[4];
+    }
+
+    @Override
+    public String[] getCaptures() {
+        List<String> lines = new ArrayList<>();
+        mCaptures.forEach((stats, label) -> lines.add(label + ": " + stats.get()));
+        Collections.sort(lines);
+        return lines.toArray(new String[0]);
+    }
+
+    /**
+     * Render the metrics in the Prometheus text exposition format (version 0.0.4).
+     * @return The metrics.
+     */
+    public String toPrometheusText() {
+        StringBuilder sb = new StringBuilder();
+        gauge(sb, "rokustic_apps_total", "Apps that the run is to process.", getAppsTotal());
+        gauge(sb, "rokustic_apps_done", "Apps processed for good, including failed apps.", getAppsDone());
+        gauge(sb, "rokustic_apps_failed", "Apps that could not be processed.", getAppsFailed());
+        gauge(sb, "rokustic_elapsed_seconds", "Time since the run started.", getElapsedSeconds());
+        gauge(sb, "rokustic_eta_seconds", "Estimated time until all apps are done; -1 if unknown.",
+                getEtaSeconds());
+
+        header(sb, "rokustic_ecp_request_seconds", "Latency of ECP requests, by request type.", "histogram");
+        for (EcpCall call : EcpCall.values()) {
+            histogram(sb, "rokustic_ecp_request_seconds", "call", call.getLabel(), mEcpLatencies.get(call));
+        }
+        header(sb, "rokustic_ecp_errors_total", "ECP requests that failed or were not answered with status 200.",
+                "counter");
+        for (EcpCall call : EcpCall.values()) {
+            sample(sb, "rokustic_ecp_errors_total", "call=\"" + call.getLabel() + "\"", mEcpErrors.get(call).sum());
+        }
+        header(sb, "rokustic_ecp_device_request_seconds", "Latency of ECP requests, by Roku.", "histogram");
+        for (Map.Entry<String, LatencyHistogram> e : new TreeMap<>(mDeviceLatencies).entrySet()) {
+            histogram(sb, "rokustic_ecp_device_request_seconds", "device", e.getKey(), e.getValue());
+        }
+        header(sb, "rokustic_ecp_rate_limit", "Current ECP request rate limit, in requests per second, by Roku.",
+                "gauge");
+        for (Map.Entry<String, DoubleSupplier> e : new TreeMap<>(mRateLimits).entrySet()) {
+            sample(sb, "rokustic_ecp_rate_limit", "device=\"" + escape(e.getKey()) + "\"",
+                    e.getValue().getAsDouble());
+        }
+        header(sb, "rokustic_phase_seconds", "Duration of the phases of exercising an app.", "histogram");
+        for (Map.Entry<String, LatencyHistogram> e : new TreeMap<>(mPhaseDurations).entrySet()) {
+            histogram(sb, "rokustic_phase_seconds", "phase", e.getKey(), e.getValue());
+        }
+
+        header(sb, "rokustic_install_polls_total", "Queries for the installed apps made to detect completed installs.",
+                "counter");
+        sample(sb, "rokustic_install_polls_total", null, getInstallPolls());
+        header(sb, "rokustic_installs_total", "App installs, by outcome.", "counter");
+        sample(sb, "rokustic_installs_total", "outcome=\"started\"", getInstallsStarted());
+        sample(sb, "rokustic_installs_total", "outcome=\"succeeded\"", getInstallsSucceeded());
+        sample(sb, "rokustic_installs_total", "outcome=\"timed_out\"", getInstallsTimedOut());
+
+        String[] counterNames = { "received", "kernel_dropped", "interface_dropped", "ring_dropped", "written" };
+        header(sb, "rokustic_capture_packets", "Packet counters of the open packet captures.", "gauge");
+        for (Map.Entry<Supplier<CaptureStats>, String> e : mCaptures.entrySet()) {
+            long[] counters = counters(e.getKey().get());
+            for (int i = 0; i < counters.length; i++) {
+                sample(sb, "rokustic_capture_packets", "capture=\"" + escape(e.getValue()) + "\",counter=\"" +
+                        counterNames[i] + "\"", counters[i]);
+            }
+        }
+        header(sb, "rokustic_capture_packets_total", "Packet counters of all packet captures, open and closed.",
+                "counter");
+        long[] totals = captureTotals();
+        for (int i = 0; i < totals.length; i++) {
+            sample(sb, "rokustic_capture_packets_total", "counter=\"" + counterNames[i] + "\"", totals[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return The counters of all captures, open and closed, in the order of {@link #mClosedCaptureTotals}.
+     */
+    private long[] captureTotals() {
+        long[] totals = new long[mClosedCaptureTotals.length];
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] = mClosedCaptureTotals[i].get();
+        }
+        for (Supplier<CaptureStats> stats : mCaptures.keySet()) {
+            long[] counters = counters(stats.get());
+            for (int i = 0; i < totals.length; i++) {
+                totals[i] += counters[i];
+            }
+        }
+        return totals;
+    }
+
+    private static long[] counters(CaptureStats stats) {
+        return new long[] { stats.getReceived(), stats.getKernelDropped(), stats.getInterfaceDropped(),
+                stats.getRingDropped(), stats.getWritten() };
+    }
+
+    private static String[] summarize(Map<String, LatencyHistogram> histograms) {
+        List<String> lines = new ArrayList<>();
+        new TreeMap<>(histograms).forEach((label, h) -> lines.add(label + ": " + h));
+        return lines.toArray(new String[0]);
+    }
+
+    private static String formatSeconds(long seconds) {
+        return String.format("%d:%02d:%02d", seconds / 3_600, seconds / 60 % 60, seconds % 60);
+    }
+
+    private static void header(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, help, "gauge");
+        sample(sb, name, null, value);
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, Object value) {
+        sb.append(name);
+        if (labels != null) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder sb, String name, String labelName, String labelValue,
+                                  LatencyHistogram h) {
+        String label = labelName + "=\"" + escape(labelValue) + "\"";
+        long cumulative = 0;
+        for (int i = 0; i < LatencyHistogram.BUCKET_BOUNDS_MILLIS.length; i++) {
+            cumulative += h.getBucketCount(i);
+            sample(sb, name + "_bucket", label + ",le=\"" + LatencyHistogram.BUCKET_BOUNDS_MILLIS[i] / 1e3 + "\"",
+                    cumulative);
+        }
+        cumulative += h.getBucketCount(LatencyHistogram.BUCKET_BOUNDS_MILLIS.length);
+        sample(sb, name + "_bucket", label + ",le=\"+Inf\"", cumulative);
+        sample(sb, name + "_sum", label, h.getSumNanos() / 1e9);
+        sample(sb, name + "_count", label, cumulative);
+    }
+
+    /**
+     * Escape a label value for the Prometheus text format.
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+}
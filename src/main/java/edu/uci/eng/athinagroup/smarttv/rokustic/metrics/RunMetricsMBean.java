@@ -0,0 +1,70 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.metrics;
+
+/**
+ * JMX view of {@link RunMetrics}. Histograms are exposed as one summary line per label.
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public interface RunMetricsMBean {
+
+    int getAppsTotal();
+
+    int getAppsDone();
+
+    int getAppsFailed();
+
+    long getElapsedSeconds();
+
+    /**
+     * @return Estimated time until all apps are done, or -1 if no app is done yet.
+     */
+    long getEtaSeconds();
+
+    long getEcpRequests();
+
+    long getEcpErrors();
+
+    String[] getEcpLatencies();
+
+    String[] getEcpLatenciesByDevice();
+
+    /**
+     * @return The current ECP rate limit of each Roku, in requests per second.
+     */
+    String[] getEcpRateLimits();
+
+    String[] getPhaseDurations();
+
+    long getInstallPolls();
+
+    long getInstallsStarted();
+
+    long getInstallsSucceeded();
+
+    long getInstallsTimedOut();
+
+    long getPacketsReceived();
+
+    long getPacketsDropped();
+
+    long getPacketsWritten();
+
+    String[] getCaptures();
+
+}
@@ -0,0 +1,501 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.plan;
+
+import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model.RokuRemoteKey;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ *     A compiled, immutable sequence of steps for exercising a Roku app: key presses, fixed waits, waits for a state
+ *     of the Roku, and app (re)launches, each optionally guarded by a condition on the state of the Roku. Plans are
+ *     written in a small line-based format, one step per line:
+ * </p>
+ * <pre>
+ * # Comments start with '#'. Durations are written as e.g. 500ms, 1s, 5m or 1h.
+ * apps 12 2285                     # Optional: IDs of the apps that this plan is meant for.
+ * launch                           # Launch the app.
+ * await app-loaded [timeout [settle]]
+ * await home-screen [timeout [settle]]
+ * await playback [timeout]
+ * key SELECT                       # Press a key; see RokuRemoteKey for the names.
+ * wait 5m                          # Sleep.
+ * relaunch                         # Go to the home screen, then launch the app again and await it.
+ * when not-playing key SELECT      # Only perform the step if the condition holds.
+ * </pre>
+ * <p>
+ *     The conditions are {@code playing}, {@code home-screen} and {@code app-active}, each of which may be negated with
+ *     a {@code not-} prefix. A plan is parsed and validated once by {@link #compile(String, List)}; macros (such as
+ *     {@code relaunch}) are expanded and all arguments, defaults and log labels are resolved into flat arrays indexed
+ *     by step, so that executing a plan involves no parsing or allocation per step.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public final class ExercisePlan {
+
+    /**
+     * The kinds of steps.
+     */
+    public enum Op {
+        /**
+         * Launch the app.
+         */
+        LAUNCH,
+        /**
+         * Press the key given by {@link #getKey(int)}.
+         */
+        KEY,
+        /**
+         * Sleep for {@link #getMillis(int)} milliseconds.
+         */
+        WAIT,
+        /**
+         * Wait (up to {@link #getMillis(int)} milliseconds) for the app to be in the foreground, then let it settle
+         * for {@link #getSettleMillis(int)} milliseconds.
+         */
+        AWAIT_APP_LOADED,
+        /**
+         * Wait (up to {@link #getMillis(int)} milliseconds) for the home screen, then let it settle for
+         * {@link #getSettleMillis(int)} milliseconds.
+         */
+        AWAIT_HOME_SCREEN,
+        /**
+         * Wait (up to {@link #getMillis(int)} milliseconds) for playback to start.
+         */
+        AWAIT_PLAYBACK
+    }
+
+    /**
+     * Guards on steps. A step whose condition does not hold is skipped, along with the rest of the macro it starts.
+     */
+    public enum Condition {
+        ALWAYS,
+        PLAYING,
+        NOT_PLAYING,
+        HOME_SCREEN,
+        NOT_HOME_SCREEN,
+        APP_ACTIVE,
+        NOT_APP_ACTIVE
+    }
+
+    /**
+     * Default timeout of {@code await app-loaded}.
+     */
+    public static final long DEFAULT_APP_LOAD_TIMEOUT_MILLIS = 20_000;
+
+    /**
+     * Default settle time of {@code await app-loaded}: an app reports as active as soon as its splash screen shows,
+     * and needs a few more seconds for its UI to become responsive to key presses.
+     */
+    public static final long DEFAULT_APP_SETTLE_MILLIS = 5_000;
+
+    /**
+     * Default timeout of {@code await home-screen}.
+     */
+    public static final long DEFAULT_HOME_SCREEN_TIMEOUT_MILLIS = 10_000;
+
+    /**
+     * Default settle time of {@code await home-screen}.
+     */
+    public static final long DEFAULT_HOME_SCREEN_SETTLE_MILLIS = 1_000;
+
+    /**
+     * Default timeout of {@code await playback}.
+     */
+    public static final long DEFAULT_PLAYBACK_TIMEOUT_MILLIS = 30_000;
+
+    private static final Pattern DURATION = Pattern.compile("(\\d+)(ms|s|m|h)");
+
+    private final String mName;
+    private final Set<Integer> mAppIds;
+    private final Op[] mOps;
+    private final RokuRemoteKey[] mKeys;
+    private final long[] mMillis;
+    private final long[] mSettleMillis;
+    private final Condition[] mConditions;
+    /**
+     * Index of the step to continue at if the condition of a step does not hold.
+     */
+    private final int[] mSkipTo;
+    private final int[] mLineNumbers;
+    private final String[] mLabels;
+
+    private ExercisePlan(String name, Set<Integer> appIds, List<Step> steps) {
+        mName = name;
+        mAppIds = Collections.unmodifiableSet(appIds);
+        int n = steps.size();
+        mOps = new Op[n];
+        mKeys = new RokuRemoteKey[n];
+        mMillis = new long[n];
+        mSettleMillis = new long[n];
+        mConditions = new Condition[n];
+        mSkipTo = new int[n];
+        mLineNumbers = new int[n];
+        mLabels = new String[n];
+        for (int i = 0; i < n; i++) {
+            Step s = steps.get(i);
+            mOps[i] = s.op;
+            mKeys[i] = s.key;
+            mMillis[i] = s.millis;
+            mSettleMillis[i] = s.settleMillis;
+            mConditions[i] = s.condition;
+            mSkipTo[i] = s.skipTo;
+            mLineNumbers[i] = s.lineNumber;
+            mLabels[i] = s.label;
+        }
+    }
+
+    /**
+     * Read and compile a plan file. The plan is named after the file, without its extension.
+     *
+     * @param file The plan file.
+     * @return The compiled plan.
+     * @throws IOException if the file could not be read.
+     * @throws ParseException if the plan is malformed. The error offset is the (1-based) line number.
+     */
+    public static ExercisePlan load(File file) throws IOException, ParseException {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return compile(dot > 0 ? name.substring(0, dot) : name,
+                Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read and compile a plan from a stream.
+     *
+     * @param name The name of the plan.
+     * @param in The plan source. Not closed by this method.
+     * @return The compiled plan.
+     * @throws IOException if the stream could not be read.
+     * @throws ParseException if the plan is malformed. The error offset is the (1-based) line number.
+     */
+    public static ExercisePlan load(String name, InputStream in) throws IOException, ParseException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+        return compile(name, lines);
+    }
+
+    /**
+     * Parse, validate and compile a plan.
+     *
+     * @param name The name of the plan.
+     * @param lines The lines of the plan source.
+     * @return The compiled plan.
+     * @throws ParseException if the plan is malformed. The error offset is the (1-based) line number.
+     */
+    public static ExercisePlan compile(String name, List<String> lines) throws ParseException {
+        Set<Integer> appIds = new LinkedHashSet<>();
+        List<Step> steps = new ArrayList<>();
+        // Occurrence counters for the log labels, e.g. "SELECT #2".
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < lines.size(); i++) {
+            final int lineNumber = i + 1;
+            String line = lines.get(i);
+            int hash = line.indexOf('#');
+            String[] tokens = (hash >= 0 ? line.substring(0, hash) : line).trim().split("\\s+");
+            if (tokens.length == 1 && tokens[0].isEmpty()) {
+                continue;
+            }
+            if (tokens[0].equals("apps")) {
+                if (tokens.length < 2) {
+                    throw new ParseException("'apps' requires at least one app ID", lineNumber);
+                }
+                for (int t = 1; t < tokens.length; t++) {
+                    appIds.add(parseInt(tokens[t], lineNumber));
+                }
+                continue;
+            }
+            Condition condition = Condition.ALWAYS;
+            int first = 0;
+            if (tokens[0].equals("when")) {
+                if (tokens.length < 3) {
+                    throw new ParseException("'when' requires a condition and a step", lineNumber);
+                }
+                condition = parseCondition(tokens[1], lineNumber);
+                first = 2;
+            }
+            int start = steps.size();
+            compileStep(Arrays.copyOfRange(tokens, first, tokens.length), lineNumber, counts, steps);
+            steps.get(start).condition = condition;
+            // A failed guard skips every step that the guarded line expanded to.
+            steps.get(start).skipTo = steps.size();
+        }
+        if (steps.isEmpty()) {
+            throw new ParseException(String.format("plan '%s' has no steps", name), 0);
+        }
+        return new ExercisePlan(name, appIds, steps);
+    }
+
+    private static void compileStep(String[] tokens, int lineNumber, Map<String, Integer> counts, List<Step> steps)
+            throws ParseException {
+        switch (tokens[0]) {
+            case "launch":
+                expectArgs(tokens, 0, 0, lineNumber);
+                steps.add(new Step(Op.LAUNCH, lineNumber, "launch #" + count(counts, "launch")));
+                break;
+            case "relaunch": {
+                expectArgs(tokens, 0, 0, lineNumber);
+                String label = String.format("part of relaunch #%d keypress sequence", count(counts, "relaunch"));
+                Step home = new Step(Op.KEY, lineNumber, label);
+                home.key = RokuRemoteKey.HOME;
+                steps.add(home);
+                steps.add(awaitStep(Op.AWAIT_HOME_SCREEN, DEFAULT_HOME_SCREEN_TIMEOUT_MILLIS,
+                        DEFAULT_HOME_SCREEN_SETTLE_MILLIS, lineNumber, label));
+                steps.add(new Step(Op.LAUNCH, lineNumber, label));
+                steps.add(awaitStep(Op.AWAIT_APP_LOADED, DEFAULT_APP_LOAD_TIMEOUT_MILLIS, DEFAULT_APP_SETTLE_MILLIS,
+                        lineNumber, label));
+                break;
+            }
+            case "key": {
+                expectArgs(tokens, 1, 1, lineNumber);
+                RokuRemoteKey key = parseKey(tokens[1], lineNumber);
+                Step step = new Step(Op.KEY, lineNumber, key.name() + " #" + count(counts, key.name()));
+                step.key = key;
+                steps.add(step);
+                break;
+            }
+            case "wait": {
+                expectArgs(tokens, 1, 1, lineNumber);
+                Step step = new Step(Op.WAIT, lineNumber, "wait " + tokens[1]);
+                step.millis = parseDuration(tokens[1], lineNumber);
+                steps.add(step);
+                break;
+            }
+            case "await":
+                compileAwait(tokens, lineNumber, steps);
+                break;
+            case "when":
+                throw new ParseException("'when' cannot be nested", lineNumber);
+            default:
+                throw new ParseException(String.format("unknown step '%s'", tokens[0]), lineNumber);
+        }
+    }
+
+    private static void compileAwait(String[] tokens, int lineNumber, List<Step> steps) throws ParseException {
+        if (tokens.length < 2) {
+            throw new ParseException("'await' requires a state", lineNumber);
+        }
+        Op op;
+        long timeout;
+        long settle;
+        switch (tokens[1]) {
+            case "app-loaded":
+                expectArgs(tokens, 1, 3, lineNumber);
+                op = Op.AWAIT_APP_LOADED;
+                timeout = DEFAULT_APP_LOAD_TIMEOUT_MILLIS;
+                settle = DEFAULT_APP_SETTLE_MILLIS;
+                break;
+            case "home-screen":
+                expectArgs(tokens, 1, 3, lineNumber);
+                op = Op.AWAIT_HOME_SCREEN;
+                timeout = DEFAULT_HOME_SCREEN_TIMEOUT_MILLIS;
+                settle = DEFAULT_HOME_SCREEN_SETTLE_MILLIS;
+                break;
+            case "playback":
+                expectArgs(tokens, 1, 2, lineNumber);
+                op = Op.AWAIT_PLAYBACK;
+                timeout = DEFAULT_PLAYBACK_TIMEOUT_MILLIS;
+                settle = 0;
+                break;
+            default:
+                throw new ParseException(String.format("unknown state '%s'", tokens[1]), lineNumber);
+        }
+        if (tokens.length > 2) {
+            timeout = parseDuration(tokens[2], lineNumber);
+        }
+        if (tokens.length > 3) {
+            settle = parseDuration(tokens[3], lineNumber);
+        }
+        steps.add(awaitStep(op, timeout, settle, lineNumber, "await " + tokens[1]));
+    }
+
+    private static Step awaitStep(Op op, long timeoutMillis, long settleMillis, int lineNumber, String label) {
+        Step step = new Step(op, lineNumber, label);
+        step.millis = timeoutMillis;
+        step.settleMillis = settleMillis;
+        return step;
+    }
+
+    private static void expectArgs(String[] tokens, int min, int max, int lineNumber) throws ParseException {
+        int args = tokens.length - 1;
+        if (args < min || args > max) {
+            throw new ParseException(String.format("'%s' takes %s argument(s), got %d", tokens[0],
+                    min == max ? Integer.toString(min) : min + "-" + max, args), lineNumber);
+        }
+    }
+
+    private static int count(Map<String, Integer> counts, String key) {
+        return counts.merge(key, 1, Integer::sum);
+    }
+
+    private static RokuRemoteKey parseKey(String token, int lineNumber) throws ParseException {
+        for (RokuRemoteKey key : RokuRemoteKey.values()) {
+            if (key.name().equalsIgnoreCase(token) || key.toUrlString().equalsIgnoreCase(token)) {
+                return key;
+            }
+        }
+        throw new ParseException(String.format("unknown key '%s'", token), lineNumber);
+    }
+
+    private static Condition parseCondition(String token, int lineNumber) throws ParseException {
+        try {
+            Condition condition = Condition.valueOf(token.toUpperCase(Locale.ROOT).replace('-', '_'));
+            if (condition != Condition.ALWAYS) {
+                return condition;
+            }
+        } catch (IllegalArgumentException iae) {
+            // Fall through.
+        }
+        throw new ParseException(String.format("unknown condition '%s'", token), lineNumber);
+    }
+
+    private static long parseDuration(String token, int lineNumber) throws ParseException {
+        Matcher m = DURATION.matcher(token);
+        if (!m.matches()) {
+            throw new ParseException(String.format("malformed duration '%s'", token), lineNumber);
+        }
+        try {
+            long value = Long.parseLong(m.group(1));
+            switch (m.group(2)) {
+                case "ms":
+                    return value;
+                case "s":
+                    return Math.multiplyExact(value, 1_000L);
+                case "m":
+                    return Math.multiplyExact(value, 60_000L);
+                default:
+                    return Math.multiplyExact(value, 3_600_000L);
+            }
+        } catch (NumberFormatException | ArithmeticException e) {
+            // Too many digits for a long, or too long a duration to express in milliseconds.
+            throw new ParseException(String.format("duration out of range '%s'", token), lineNumber);
+        }
+    }
+
+    private static int parseInt(String token, int lineNumber) throws ParseException {
+        try {
+            return Integer.parseInt(token);
+        } catch (NumberFormatException nfe) {
+            throw new ParseException(String.format("malformed app ID '%s'", token), lineNumber);
+        }
+    }
+
+    /**
+     * @return The name of this plan.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return IDs of the apps that this plan is meant for, as listed in its {@code apps} lines. Empty if the plan does
+     *         not name any apps.
+     */
+    public Set<Integer> getAppIds() {
+        return mAppIds;
+    }
+
+    /**
+     * @return The number of (expanded) steps.
+     */
+    public int size() {
+        return mOps.length;
+    }
+
+    public Op getOp(int step) {
+        return mOps[step];
+    }
+
+    /**
+     * @return The key to press, for {@link Op#KEY} steps; {@code null} otherwise.
+     */
+    public RokuRemoteKey getKey(int step) {
+        return mKeys[step];
+    }
+
+    /**
+     * @return The duration of a {@link Op#WAIT} step, or the timeout of an {@code AWAIT_...} step, in milliseconds.
+     */
+    public long getMillis(int step) {
+        return mMillis[step];
+    }
+
+    /**
+     * @return The settle time of an {@code AWAIT_...} step, in milliseconds.
+     */
+    public long getSettleMillis(int step) {
+        return mSettleMillis[step];
+    }
+
+    public Condition getCondition(int step) {
+        return mConditions[step];
+    }
+
+    /**
+     * @return The index of the step to continue at if the condition of {@code step} does not hold.
+     */
+    public int getSkipTo(int step) {
+        return mSkipTo[step];
+    }
+
+    /**
+     * @return The line of the plan source that {@code step} was compiled from.
+     */
+    public int getLineNumber(int step) {
+        return mLineNumbers[step];
+    }
+
+    /**
+     * @return A short description of {@code step}, for logs.
+     */
+    public String getLabel(int step) {
+        return mLabels[step];
+    }
+
+    /**
+     * A step while it is being compiled.
+     */
+    private static class Step {
+        final Op op;
+        final int lineNumber;
+        final String label;
+        RokuRemoteKey key;
+        long millis;
+        long settleMillis;
+        Condition condition = Condition.ALWAYS;
+        int skipTo;
+
+        Step(Op op, int lineNumber, String label) {
+            this.op = op;
+            this.lineNumber = lineNumber;
+            this.label = label;
+        }
+    }
+
+}
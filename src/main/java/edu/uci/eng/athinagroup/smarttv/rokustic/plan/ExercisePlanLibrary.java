@@ -0,0 +1,159 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.plan;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * <p>
+ *     A set of {@link ExercisePlan}s, and the choice of plan for each app. A plan that lists app IDs (see
+ *     {@link ExercisePlan#getAppIds()}) is used for those apps, e.g. one plan per app category; every other app is
+ *     exercised with the plan named {@value #DEFAULT_PLAN_NAME}. If no such plan is given, the built-in default plan
+ *     (which plays three videos for five minutes each) is used.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class ExercisePlanLibrary {
+
+    /**
+     * Name of the plan used for apps that are not listed by any plan.
+     */
+    public static final String DEFAULT_PLAN_NAME = "default";
+
+    /**
+     * File extension of plan files.
+     */
+    public static final String PLAN_FILE_EXTENSION = ".plan";
+
+    private static final String BUILT_IN_DEFAULT_PLAN = "/plans/default.plan";
+
+    /**
+     * The compiled built-in default plan; read on first use. Plans are immutable, so it is shared by all libraries.
+     */
+    private static volatile ExercisePlan sBuiltInDefaultPlan;
+
+    private final ExercisePlan mDefaultPlan;
+    private final Map<Integer, ExercisePlan> mPlansByApp;
+    private final List<ExercisePlan> mPlans;
+
+    private ExercisePlanLibrary(ExercisePlan defaultPlan, List<ExercisePlan> plans,
+                                Map<Integer, ExercisePlan> plansByApp) {
+        mDefaultPlan = defaultPlan;
+        mPlans = Collections.unmodifiableList(plans);
+        mPlansByApp = plansByApp;
+    }
+
+    /**
+     * @return A library that holds only the built-in default plan.
+     * @throws IOException if the built-in plan could not be read.
+     */
+    public static ExercisePlanLibrary builtIn() throws IOException {
+        return new ExercisePlanLibrary(builtInDefaultPlan(), Collections.emptyList(), Collections.emptyMap());
+    }
+
+    /**
+     * Load and compile all plan files (files ending in {@value #PLAN_FILE_EXTENSION}) in a directory.
+     *
+     * @param dir The directory.
+     * @return The library.
+     * @throws IOException if the directory or one of the plan files could not be read.
+     * @throws ParseException if a plan is malformed, or if an app is listed by more than one plan. The message names
+     *         the offending plan.
+     */
+    public static ExercisePlanLibrary load(File dir) throws IOException, ParseException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(PLAN_FILE_EXTENSION));
+        if (files == null) {
+            throw new IOException("not a directory: " + dir);
+        }
+        // Deterministic order, for deterministic error messages.
+        Arrays.sort(files);
+        List<ExercisePlan> plans = new ArrayList<>();
+        Map<Integer, ExercisePlan> plansByApp = new HashMap<>();
+        ExercisePlan defaultPlan = null;
+        for (File file : files) {
+            ExercisePlan plan;
+            try {
+                plan = ExercisePlan.load(file);
+            } catch (ParseException pe) {
+                throw new ParseException(String.format("%s, line %d: %s", file.getName(), pe.getErrorOffset(),
+                        pe.getMessage()), pe.getErrorOffset());
+            }
+            plans.add(plan);
+            for (Integer appId : plan.getAppIds()) {
+                ExercisePlan previous = plansByApp.put(appId, plan);
+                if (previous != null && previous != plan) {
+                    throw new ParseException(String.format("app %d is listed by both plan '%s' and plan '%s'", appId,
+                            previous.getName(), plan.getName()), 0);
+                }
+            }
+            if (plan.getName().equals(DEFAULT_PLAN_NAME)) {
+                defaultPlan = plan;
+            }
+        }
+        return new ExercisePlanLibrary(defaultPlan != null ? defaultPlan : builtInDefaultPlan(), plans, plansByApp);
+    }
+
+    /**
+     * @param appId The ID of an app.
+     * @return The plan to exercise the app with.
+     */
+    public ExercisePlan planFor(int appId) {
+        return mPlansByApp.getOrDefault(appId, mDefaultPlan);
+    }
+
+    /**
+     * @return The plan used for apps that are not listed by any plan.
+     */
+    public ExercisePlan getDefaultPlan() {
+        return mDefaultPlan;
+    }
+
+    /**
+     * @return All plans in this library, except the built-in default plan.
+     */
+    public List<ExercisePlan> getPlans() {
+        return mPlans;
+    }
+
+    private static ExercisePlan builtInDefaultPlan() throws IOException {
+        ExercisePlan plan = sBuiltInDefaultPlan;
+        if (plan == null) {
+            // Concurrent first uses may each compile the plan; that is harmless as the results are equal.
+            plan = loadBuiltInDefaultPlan();
+            sBuiltInDefaultPlan = plan;
+        }
+        return plan;
+    }
+
+    private static ExercisePlan loadBuiltInDefaultPlan() throws IOException {
+        try (InputStream in = ExercisePlanLibrary.class.getResourceAsStream(BUILT_IN_DEFAULT_PLAN)) {
+            if (in == null) {
+                throw new IOException("built-in plan missing: " + BUILT_IN_DEFAULT_PLAN);
+            }
+            return ExercisePlan.load(DEFAULT_PLAN_NAME, in);
+        } catch (ParseException pe) {
+            // The built-in plan ships with the tool; if it does not parse, the build is broken.
+            throw new IllegalStateException("built-in plan is malformed: " + pe.getMessage(), pe);
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.plan;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <p>
+ *     Records when each step of one run of an {@link ExercisePlan} started and ended (wall clock, epoch millis, i.e.
+ *     the clock that packet timestamps are on) and what its outcome was. All storage is allocated up front, sized to
+ *     the plan, so recording a step does not allocate.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class StepTimings {
+
+    /**
+     * Outcome of a step that was not reached, e.g. because an earlier step failed.
+     */
+    public static final int NOT_RUN = -2;
+
+    /**
+     * Outcome of a step that was skipped because its condition did not hold.
+     */
+    public static final int SKIPPED = -1;
+
+    /**
+     * Outcome of an {@code AWAIT_...} step that timed out.
+     */
+    public static final int TIMED_OUT = 0;
+
+    /**
+     * Outcome of a {@code WAIT} step, or of an {@code AWAIT_...} step whose state was reached. Steps that send a
+     * request record the HTTP status code instead.
+     */
+    public static final int DONE = 1;
+
+    private final ExercisePlan mPlan;
+    private final long[] mStartMillis;
+    private final long[] mEndMillis;
+    private final int[] mOutcomes;
+
+    /**
+     * Create a new {@code StepTimings} in which no step has run.
+     * @param plan The plan being run.
+     */
+    public StepTimings(ExercisePlan plan) {
+        mPlan = plan;
+        mStartMillis = new long[plan.size()];
+        mEndMillis = new long[plan.size()];
+        mOutcomes = new int[plan.size()];
+        Arrays.fill(mOutcomes, NOT_RUN);
+    }
+
+    /**
+     * Record the timing and outcome of a step.
+     *
+     * @param step Index of the step.
+     * @param startMillis Time the step started (epoch millis).
+     * @param endMillis Time the step ended (epoch millis).
+     * @param outcome One of the outcome constants of this class, or an HTTP status code.
+     */
+    public void record(int step, long startMillis, long endMillis, int outcome) {
+        mStartMillis[step] = startMillis;
+        mEndMillis[step] = endMillis;
+        mOutcomes[step] = outcome;
+    }
+
+    public ExercisePlan getPlan() {
+        return mPlan;
+    }
+
+    public long getStartMillis(int step) {
+        return mStartMillis[step];
+    }
+
+    public long getEndMillis(int step) {
+        return mEndMillis[step];
+    }
+
+    public int getOutcome(int step) {
+        return mOutcomes[step];
+    }
+
+    /**
+     * Write the timings as tab-separated values, one line per step, with a header line.
+     *
+     * @param file The output file. Replaced if it exists.
+     * @throws IOException if the file could not be written.
+     */
+    public void writeTsv(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8)))) {
+            out.println("step\tline\top\tlabel\tstart_millis\tend_millis\tduration_millis\toutcome");
+            for (int i = 0; i < mPlan.size(); i++) {
+                long duration = mOutcomes[i] == NOT_RUN ? 0 : mEndMillis[i] - mStartMillis[i];
+                out.printf("%d\t%d\t%s\t%s\t%d\t%d\t%d\t%d%n", i, mPlan.getLineNumber(i), mPlan.getOp(i),
+                        mPlan.getLabel(i), mStartMillis[i], mEndMillis[i], duration, mOutcomes[i]);
+            }
+            if (out.checkError()) {
+                throw new IOException("could not write step timings to " + file);
+            }
+        }
+    }
+
+}
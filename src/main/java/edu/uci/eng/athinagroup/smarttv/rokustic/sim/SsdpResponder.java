@@ -0,0 +1,156 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.sim;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * <p>
+ *     Answers SSDP M-SEARCH requests for {@value VirtualRokuFleet#ROKU_SERVICE_TYPE} (and {@code ssdp:all}) on behalf
+ *     of a set of {@link VirtualRoku}s, so that the tool's regular discovery code finds them. Only requests that
+ *     originate from this host are answered, as the advertised locations are loopback addresses.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class SsdpResponder implements Closeable {
+
+    /**
+     * The well-known SSDP multicast group and port.
+     */
+    public static final String SSDP_ADDRESS = "239.255.255.250";
+    public static final int SSDP_PORT = 1900;
+
+    private final Collection<VirtualRoku> mRokus;
+    private final MulticastSocket mSocket;
+    private final Thread mThread;
+    private volatile boolean mRunning = true;
+
+    /**
+     * Create a new {@code SsdpResponder} and start answering requests on a background thread.
+     *
+     * @param rokus The virtual Rokus to advertise. Read on every request, so it may be a live (thread safe) view.
+     * @param port The port to listen on; {@link #SSDP_PORT} for the regular discovery code to find the virtual Rokus.
+     * @throws IOException if the socket could not be set up.
+     */
+    public SsdpResponder(Collection<VirtualRoku> rokus, int port) throws IOException {
+        mRokus = rokus;
+        mSocket = new MulticastSocket(null);
+        mSocket.setReuseAddress(true);
+        mSocket.bind(new InetSocketAddress(port));
+        InetAddress group = InetAddress.getByName(SSDP_ADDRESS);
+        NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+        if (loopback != null) {
+            mSocket.joinGroup(new InetSocketAddress(group, port), loopback);
+        }
+        try {
+            // M-SEARCHes sent from this host leave through the default multicast interface and are looped back there.
+            mSocket.joinGroup(group);
+        } catch (IOException ioe) {
+            // No default multicast interface (e.g., no network); loopback only.
+        }
+        mThread = new Thread(this::serve, "ssdp-responder");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * @return The port that this responder listens on.
+     */
+    public int getPort() {
+        return mSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        mRunning = false;
+        mSocket.close();
+        try {
+            mThread.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serve() {
+        byte[] buf = new byte[2048];
+        DatagramPacket request = new DatagramPacket(buf, buf.length);
+        while (mRunning) {
+            try {
+                request.setLength(buf.length);
+                mSocket.receive(request);
+                String searchTarget = searchTarget(new String(buf, 0, request.getLength(), StandardCharsets.UTF_8));
+                if (searchTarget == null || !isLocal(request.getAddress())) {
+                    continue;
+                }
+                if (searchTarget.equals(VirtualRokuFleet.ROKU_SERVICE_TYPE) || searchTarget.equals("ssdp:all")) {
+                    for (VirtualRoku roku : mRokus) {
+                        byte[] response = response(roku).getBytes(StandardCharsets.UTF_8);
+                        mSocket.send(new DatagramPacket(response, response.length, request.getSocketAddress()));
+                    }
+                }
+            } catch (IOException ioe) {
+                if (mRunning) {
+                    System.err.printf("WARNING: SSDP responder failed to handle a request: %s", ioe.getMessage());
+                    System.err.println();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The search target (ST) of an M-SEARCH request, or {@code null} if {@code message} is not an M-SEARCH.
+     */
+    private static String searchTarget(String message) {
+        String[] lines = message.split("\r?\n");
+        if (lines.length == 0 || !lines[0].toUpperCase(Locale.ROOT).startsWith("M-SEARCH")) {
+            return null;
+        }
+        for (String line : lines) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("ST")) {
+                return line.substring(colon + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    private static boolean isLocal(InetAddress address) {
+        try {
+            return address.isLoopbackAddress() || NetworkInterface.getByInetAddress(address) != null;
+        } catch (SocketException se) {
+            return false;
+        }
+    }
+
+    private static String response(VirtualRoku roku) {
+        return "HTTP/1.1 200 OK\r\n"
+                + "Cache-Control: max-age=3600\r\n"
+                + "ST: " + VirtualRokuFleet.ROKU_SERVICE_TYPE + "\r\n"
+                + "USN: " + roku.getUsn() + "\r\n"
+                + "Ext: \r\n"
+                + "Server: " + VirtualRokuFleet.SERVER_HEADER + "\r\n"
+                + "LOCATION: " + roku.getDescriptionUrl() + "\r\n"
+                + "\r\n";
+    }
+
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.sim;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *     An in-process stand-in for the Roku Channel Store API: an HTTP server on the loopback interface that serves the
+ *     endpoints used by {@link edu.uci.eng.athinagroup.smarttv.rokustic.catalog.ChannelStoreIngester} (the category
+ *     list, paged category listings and per-channel details) from a configurable catalog, with a fixed response
+ *     latency. Use it to run the ingester without network access.
+ * </p>
+ * <p>
+ *     Responses carry an {@code ETag} (a hash of the body) and a {@code Last-Modified} header (the last change to the
+ *     resource), and conditional requests are answered with {@code 304 Not Modified} if the resource did not change.
+ *     The category list and listings change when a channel is added; the details of a channel change when it is
+ *     added or {@link #touchChannel(String) touched}. Like the real Channel Store, requests for pages beyond the last
+ *     page of a category are answered with the last page. The number of requests in flight is tracked, so that a test
+ *     can check how many requests a client sends at the same time, and transient failures can be injected with
+ *     {@link #failNextRequests(int, int)}.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class VirtualChannelStore implements Closeable {
+
+    /**
+     * Path of the channels endpoint, like the real Channel Store's.
+     */
+    public static final String BASE_PATH = "/api/v6/channels";
+
+    private final ObjectMapper mJson = new ObjectMapper();
+
+    /**
+     * Categories in the order they were added, keyed by ID.
+     */
+    private final Map<String, Category> mCategories = new LinkedHashMap<>();
+
+    /**
+     * Channels keyed by ID.
+     */
+    private final Map<String, Channel> mChannels = new HashMap<>();
+
+    /**
+     * Last change to the category list or any listing, in epoch seconds (HTTP dates have a resolution of seconds).
+     */
+    private long mCatalogModifiedSeconds = 0;
+
+    private boolean mETags = true;
+    private boolean mLastModified = true;
+    private long mLatencyMillis = 0;
+
+    /**
+     * Number of requests still to be answered with {@link #mFailureStatus}; guarded by this.
+     */
+    private int mFailuresLeft = 0;
+    private int mFailureStatus;
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mNotModified = new AtomicLong();
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mMaxInFlight = new AtomicInteger();
+
+    private HttpServer mServer;
+    private ScheduledExecutorService mTimer;
+
+    /**
+     * Add a channel to a category, creating the category (at the end of the category list) if needed. A channel may
+     * be listed in several categories.
+     *
+     * @param categoryId ID of the category.
+     * @param categoryType Type of the category, e.g. {@code curated} or {@code tag}.
+     * @param channelId ID of the channel.
+     * @param channelName Name of the channel.
+     * @param price Price of the channel, e.g. {@code 0}.
+     */
+    public synchronized void addChannel(String categoryId, String categoryType, String channelId, String channelName,
+                                        String price) {
+        long now = nowSeconds();
+        mCategories.computeIfAbsent(categoryId, id -> new Category(id, categoryType)).mChannelIds.add(channelId);
+        Channel channel = mChannels.computeIfAbsent(channelId, id -> new Channel(id, channelName, price));
+        channel.mModifiedSeconds = now;
+        mCatalogModifiedSeconds = now;
+    }
+
+    /**
+     * Change the details of a channel (but not its listing), as when its developer publishes an update.
+     * @param channelId ID of the channel.
+     */
+    public synchronized void touchChannel(String channelId) {
+        Channel channel = mChannels.get(channelId);
+        if (channel == null) {
+            throw new IllegalArgumentException("no such channel: " + channelId);
+        }
+        channel.mVersion++;
+        channel.mModifiedSeconds = nowSeconds();
+    }
+
+    /**
+     * Choose the validators sent with responses. Both are sent by default.
+     * @param etags Send {@code ETag} headers and honor {@code If-None-Match}.
+     * @param lastModified Send {@code Last-Modified} headers and honor {@code If-Modified-Since}.
+     */
+    public void setValidators(boolean etags, boolean lastModified) {
+        mETags = etags;
+        mLastModified = lastModified;
+    }
+
+    /**
+     * @param latencyMillis Time by which every response is delayed.
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        if (latencyMillis < 0) {
+            throw new IllegalArgumentException("latency must be non-negative");
+        }
+        mLatencyMillis = latencyMillis;
+    }
+
+    /**
+     * Answer the next {@code count} requests with {@code status}, e.g. {@code 503 Service Unavailable} or
+     * {@code 429 Too Many Requests}, and {@code Retry-After: 0}, then serve requests normally again.
+     * @param count Number of requests to fail.
+     * @param status Status code of the failed responses.
+     */
+    public synchronized void failNextRequests(int count, int status) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count must be non-negative");
+        }
+        mFailuresLeft = count;
+        mFailureStatus = status;
+    }
+
+    /**
+     * Start serving requests on an ephemeral port of the loopback interface.
+     *
+     * @param executor Runs the request handlers.
+     * @param timer Sends the delayed responses.
+     * @throws IOException if the server could not be started.
+     */
+    public synchronized void start(Executor executor, ScheduledExecutorService timer) throws IOException {
+        if (mServer != null) {
+            throw new IllegalStateException("already started");
+        }
+        mTimer = timer;
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/", this::handle);
+        mServer.setExecutor(executor);
+        mServer.start();
+    }
+
+    /**
+     * @return The URL of the channels endpoint, to be given to the ingester as its base URL.
+     */
+    public String getBaseUrl() {
+        InetSocketAddress address = mServer.getAddress();
+        return String.format("http://%s:%d%s", address.getAddress().getHostAddress(), address.getPort(), BASE_PATH);
+    }
+
+    /**
+     * @return The number of requests received so far.
+     */
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    /**
+     * @return The number of requests that were answered with {@code 304 Not Modified}.
+     */
+    public long getNotModifiedCount() {
+        return mNotModified.get();
+    }
+
+    /**
+     * @return The max number of requests that were in flight at the same time.
+     */
+    public int getMaxInFlight() {
+        return mMaxInFlight.get();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mServer != null) {
+            mServer.stop(0);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        mRequests.incrementAndGet();
+        int inFlight = mInFlight.incrementAndGet();
+        mMaxInFlight.accumulateAndGet(inFlight, Math::max);
+        // Discard the request body (if any), so that the connection can be reused.
+        InputStream requestBody = exchange.getRequestBody();
+        while (requestBody.read() != -1) {
+            // Discard.
+        }
+        Response response = respond(exchange);
+        if (response.mStatus == 304) {
+            mNotModified.incrementAndGet();
+        }
+        if (mLatencyMillis == 0) {
+            send(exchange, response);
+        } else {
+            // Don't hold a handler thread for the duration of the delay.
+            mTimer.schedule(() -> send(exchange, response), mLatencyMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void send(HttpExchange exchange, Response response) {
+        // No longer in flight once the client can have the response, or the client's next request may overlap.
+        mInFlight.decrementAndGet();
+        try {
+            if (response.mETag != null) {
+                exchange.getResponseHeaders().set("ETag", response.mETag);
+            }
+            if (response.mLastModified != null) {
+                exchange.getResponseHeaders().set("Last-Modified", response.mLastModified);
+            }
+            if (response.mRetryAfterSeconds >= 0) {
+                exchange.getResponseHeaders().set("Retry-After", Long.toString(response.mRetryAfterSeconds));
+            }
+            if (response.mBody.length > 0) {
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            }
+            exchange.sendResponseHeaders(response.mStatus, response.mBody.length == 0 ? -1 : response.mBody.length);
+            if (response.mBody.length > 0) {
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(response.mBody);
+                }
+            }
+        } catch (IOException ioe) {
+            // Client went away; nothing to do.
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Produce the (possibly conditional) response to a request.
+     */
+    private synchronized Response respond(HttpExchange exchange) throws JsonProcessingException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            return Response.NOT_FOUND;
+        }
+        if (mFailuresLeft > 0) {
+            mFailuresLeft--;
+            return new Response(mFailureStatus, new byte[0], null, null, 0);
+        }
+        String path = exchange.getRequestURI().getPath();
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        byte[] body;
+        long modifiedSeconds;
+        if (path.equals(BASE_PATH + "/categories")) {
+            body = mJson.writeValueAsBytes(categoriesJson());
+            modifiedSeconds = mCatalogModifiedSeconds;
+        } else if (path.equals(BASE_PATH)) {
+            Category category = mCategories.get(query.get("category"));
+            if (category == null) {
+                return Response.NOT_FOUND;
+            }
+            body = mJson.writeValueAsBytes(listingJson(category, parseInt(query.get("pagestart"), 0),
+                    parseInt(query.get("pagesize"), 24)));
+            modifiedSeconds = mCatalogModifiedSeconds;
+        } else if (path.startsWith(BASE_PATH + "/detailsunion/")) {
+            Channel channel = mChannels.get(path.substring((BASE_PATH + "/detailsunion/").length()));
+            if (channel == null) {
+                return Response.NOT_FOUND;
+            }
+            body = mJson.writeValueAsBytes(channel.detailsJson(mJson));
+            modifiedSeconds = channel.mModifiedSeconds;
+        } else {
+            return Response.NOT_FOUND;
+        }
+        String etag = mETags ? String.format("\"%08x-%d\"", Arrays.hashCode(body), body.length) : null;
+        String lastModified = mLastModified ? DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                ZonedDateTime.ofInstant(Instant.ofEpochSecond(modifiedSeconds), ZoneOffset.UTC)) : null;
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        boolean notModified;
+        if (etag != null && ifNoneMatch != null) {
+            // If-None-Match takes precedence over If-Modified-Since.
+            notModified = ifNoneMatch.equals(etag);
+        } else {
+            notModified = lastModified != null && ifModifiedSince != null
+                    && modifiedSeconds <= parseHttpDate(ifModifiedSince);
+        }
+        return new Response(notModified ? 304 : 200, notModified ? new byte[0] : body, etag, lastModified);
+    }
+
+    private ArrayNode categoriesJson() {
+        ArrayNode categories = mJson.createArrayNode();
+        for (Category category : mCategories.values()) {
+            categories.addObject().put("id", category.mId).put("name", category.mId)
+                    .put("categoryType", category.mType);
+        }
+        return categories;
+    }
+
+    private ArrayNode listingJson(Category category, int page, int pageSize) {
+        ArrayNode channels = mJson.createArrayNode();
+        int size = category.mChannelIds.size();
+        int lastPage = size == 0 ? 0 : (size - 1) / Math.max(pageSize, 1);
+        int from = Math.min(Math.max(page, 0), lastPage) * pageSize;
+        for (String id : category.mChannelIds.subList(Math.min(from, size), Math.min(from + pageSize, size))) {
+            Channel channel = mChannels.get(id);
+            channels.addObject().put("id", channel.mId).put("name", channel.mName).put("price", channel.mPrice);
+        }
+        return channels;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null) {
+            return params;
+        }
+        for (String param : rawQuery.split("&")) {
+            int eq = param.indexOf('=');
+            try {
+                params.put(URLDecoder.decode(eq < 0 ? param : param.substring(0, eq), "UTF-8"),
+                        eq < 0 ? "" : URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+            } catch (IllegalArgumentException | UnsupportedEncodingException e) {
+                // Ignore malformed parameters.
+            }
+        }
+        return params;
+    }
+
+    private static int parseInt(String s, int defaultValue) {
+        try {
+            return s == null ? defaultValue : Integer.parseInt(s);
+        } catch (NumberFormatException nfe) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return The epoch seconds of an HTTP date, or -1 if it cannot be parsed (which makes the resource modified).
+     */
+    private static long parseHttpDate(String s) {
+        try {
+            return ZonedDateTime.parse(s, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+        } catch (DateTimeParseException dtpe) {
+            return -1;
+        }
+    }
+
+    private static long nowSeconds() {
+        return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+    }
+
+    private static class Category {
+
+        private final String mId;
+        private final String mType;
+        private final List<String> mChannelIds = new ArrayList<>();
+
+        private Category(String id, String type) {
+            mId = id;
+            mType = type;
+        }
+    }
+
+    private static class Channel {
+
+        private final String mId;
+        private final String mName;
+        private final String mPrice;
+        private int mVersion = 1;
+        private long mModifiedSeconds;
+
+        private Channel(String id, String name, String price) {
+            mId = id;
+            mName = name;
+            mPrice = price;
+        }
+
+        private ObjectNode detailsJson(ObjectMapper json) {
+            ObjectNode details = json.createObjectNode();
+            details.putObject("details").put("id", mId).put("name", mName).put("priceAsNumber", mPrice)
+                    .put("version", Integer.toString(mVersion)).put("rating", "NR");
+            return details;
+        }
+    }
+
+    /**
+     * An HTTP status code, a (possibly empty) body, validators and a retry delay.
+     */
+    private static class Response {
+
+        static final Response NOT_FOUND = new Response(404, new byte[0], null, null);
+
+        private final int mStatus;
+        private final byte[] mBody;
+        private final String mETag;
+        private final String mLastModified;
+        /**
+         * Value of the {@code Retry-After} header, or -1 to send none.
+         */
+        private final long mRetryAfterSeconds;
+
+        Response(int status, byte[] body, String etag, String lastModified) {
+            this(status, body, etag, lastModified, -1);
+        }
+
+        Response(int status, byte[] body, String etag, String lastModified, long retryAfterSeconds) {
+            mStatus = status;
+            mBody = body;
+            mETag = etag;
+            mLastModified = lastModified;
+            mRetryAfterSeconds = retryAfterSeconds;
+        }
+    }
+
+}
@@ -0,0 +1,467 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.sim;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.vmichalak.protocol.ssdp.Device;
+import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model.AppInfo;
+import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model.MediaPlayerState;
+import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model.RokuRemoteKey;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *     An in-process stand-in for a Roku: an HTTP server on the loopback interface that implements the subset of the
+ *     External Control Protocol (ECP) used by this tool ({@code /keypress}, {@code /launch}, {@code /install},
+ *     {@code /query/apps}, {@code /query/active-app}, {@code /query/media-player} and {@code /query/device-info}), with
+ *     configurable response latency, injected errors, install durations and app catalogs. Use it to run the installer
+ *     and the exercisers without hardware, and many virtual Rokus side by side in one JVM (see
+ *     {@link VirtualRokuFleet}).
+ * </p>
+ * <p>
+ *     The virtual Roku models just enough state for the tool's control flow to behave as it does against a real
+ *     device: {@code /install} opens the Channel Store page of a catalog app, and a subsequent SELECT keypress starts
+ *     an install that completes after the configured install duration; {@code /launch} brings an installed app to
+ *     the foreground and starts playback after a delay; HOME returns to the home screen. Configure it before calling
+ *     {@link #start(Executor, ScheduledExecutorService)}.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class VirtualRoku implements Closeable {
+
+    /**
+     * Default value for {@link #setPlaybackDelayMillis(long)}.
+     */
+    public static final long DEFAULT_PLAYBACK_DELAY_MILLIS = 2_000;
+
+    /**
+     * Default value for {@link #setInstallDurationMillis(long)}.
+     */
+    public static final long DEFAULT_INSTALL_DURATION_MILLIS = 10_000;
+
+    private static final int HOME_SCREEN_APP_ID = 0;
+
+    private final String mSerialNumber;
+
+    /**
+     * Apps available in the (virtual) Channel Store, keyed by ID.
+     */
+    private final Map<Integer, AppInfo> mCatalog = new HashMap<>();
+
+    /**
+     * Installed apps, keyed by ID, in install order.
+     */
+    private final Map<Integer, AppInfo> mInstalled = new LinkedHashMap<>();
+
+    /**
+     * Completion times (epoch millis) of the installs in progress, keyed by app ID.
+     */
+    private final Map<Integer, Long> mPendingInstalls = new HashMap<>();
+
+    private long mMinLatencyMillis = 0;
+    private long mMaxLatencyMillis = 0;
+    private double mErrorRate = 0.0;
+    private long mInstallDurationMillis = DEFAULT_INSTALL_DURATION_MILLIS;
+    private long mPlaybackDelayMillis = DEFAULT_PLAYBACK_DELAY_MILLIS;
+
+    /**
+     * ID of the app whose Channel Store page is showing, or -1 if none.
+     */
+    private int mStorePageAppId = -1;
+    private int mActiveAppId = HOME_SCREEN_APP_ID;
+    private long mLaunchedAtMillis = 0;
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mInjectedErrors = new AtomicLong();
+
+    private HttpServer mServer;
+    private ScheduledExecutorService mTimer;
+
+    /**
+     * Create a new {@code VirtualRoku} with an empty catalog and no installed apps.
+     * @param serialNumber The serial number of the virtual Roku; used in its USN.
+     */
+    public VirtualRoku(String serialNumber) {
+        mSerialNumber = serialNumber;
+    }
+
+    /**
+     * Add an app to the (virtual) Channel Store, so that it can be installed with {@code /install}.
+     * @param app The app.
+     */
+    public synchronized void addCatalogApp(AppInfo app) {
+        mCatalog.put(app.getId(), app);
+    }
+
+    /**
+     * Install an app right away, i.e. without going through the Channel Store. The app is also added to the catalog.
+     * @param app The app.
+     */
+    public synchronized void addInstalledApp(AppInfo app) {
+        mCatalog.put(app.getId(), app);
+        mInstalled.put(app.getId(), app);
+    }
+
+    /**
+     * Set the response latency. Each response is delayed by a uniformly random time in the given range.
+     * @param minMillis Min latency, in milliseconds.
+     * @param maxMillis Max latency, in milliseconds.
+     */
+    public void setLatencyMillis(long minMillis, long maxMillis) {
+        if (minMillis < 0 || maxMillis < minMillis) {
+            throw new IllegalArgumentException("latency range must be non-negative and non-empty");
+        }
+        mMinLatencyMillis = minMillis;
+        mMaxLatencyMillis = maxMillis;
+    }
+
+    /**
+     * Set the fraction of requests that are answered with a 503 Service Unavailable without having any effect, like a
+     * real Roku does every now and then when it is sent back to back requests.
+     * @param errorRate Probability in [0, 1] that a request fails.
+     */
+    public void setErrorRate(double errorRate) {
+        if (errorRate < 0.0 || errorRate > 1.0) {
+            throw new IllegalArgumentException("error rate must be in [0, 1]");
+        }
+        mErrorRate = errorRate;
+    }
+
+    /**
+     * @param installDurationMillis Time from the SELECT keypress on a Channel Store page until the app shows up in
+     *                              {@code /query/apps}.
+     */
+    public void setInstallDurationMillis(long installDurationMillis) {
+        mInstallDurationMillis = installDurationMillis;
+    }
+
+    /**
+     * @param playbackDelayMillis Time from an app launch until the media player reports that playback has started.
+     */
+    public void setPlaybackDelayMillis(long playbackDelayMillis) {
+        mPlaybackDelayMillis = playbackDelayMillis;
+    }
+
+    /**
+     * Start serving ECP requests on an ephemeral port of the loopback interface.
+     *
+     * @param executor Runs the request handlers. May be shared by many virtual Rokus.
+     * @param timer Sends the delayed responses. May be shared by many virtual Rokus.
+     * @throws IOException if the server could not be started.
+     */
+    public synchronized void start(Executor executor, ScheduledExecutorService timer) throws IOException {
+        if (mServer != null) {
+            throw new IllegalStateException("already started");
+        }
+        mTimer = timer;
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/", this::handle);
+        mServer.setExecutor(executor);
+        mServer.start();
+    }
+
+    /**
+     * @return The base URL of the virtual Roku's ECP server, with a trailing slash like a real Roku's SSDP location.
+     */
+    public String getDescriptionUrl() {
+        InetSocketAddress address = mServer.getAddress();
+        return String.format("http://%s:%d/", address.getAddress().getHostAddress(), address.getPort());
+    }
+
+    /**
+     * @return The unique service name that the virtual Roku is advertised with.
+     */
+    public String getUsn() {
+        return "uuid:roku:ecp:" + mSerialNumber;
+    }
+
+    public String getSerialNumber() {
+        return mSerialNumber;
+    }
+
+    /**
+     * @return A {@link Device} for the virtual Roku, as SSDP discovery would have produced it.
+     */
+    public Device toDevice() {
+        return new Device(mServer.getAddress().getAddress().getHostAddress(), getDescriptionUrl(),
+                VirtualRokuFleet.SERVER_HEADER, VirtualRokuFleet.ROKU_SERVICE_TYPE, getUsn());
+    }
+
+    /**
+     * @return The number of requests received so far.
+     */
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    /**
+     * @return The number of requests that were answered with an injected error.
+     */
+    public long getInjectedErrorCount() {
+        return mInjectedErrors.get();
+    }
+
+    /**
+     * @return IDs of the apps that are installed right now.
+     */
+    public synchronized Set<Integer> getInstalledAppIds() {
+        completeInstalls(System.currentTimeMillis());
+        return new HashSet<>(mInstalled.keySet());
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mServer != null) {
+            mServer.stop(0);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        mRequests.incrementAndGet();
+        // Discard the request body (if any), so that the connection can be reused.
+        InputStream requestBody = exchange.getRequestBody();
+        while (requestBody.read() != -1) {
+            // Discard.
+        }
+        Response response;
+        if (mErrorRate > 0.0 && ThreadLocalRandom.current().nextDouble() < mErrorRate) {
+            mInjectedErrors.incrementAndGet();
+            response = Response.SERVICE_UNAVAILABLE;
+        } else {
+            response = respond(exchange.getRequestMethod(), exchange.getRequestURI().getPath());
+        }
+        long latency = mMinLatencyMillis == mMaxLatencyMillis ? mMinLatencyMillis
+                : ThreadLocalRandom.current().nextLong(mMinLatencyMillis, mMaxLatencyMillis + 1);
+        if (latency == 0) {
+            send(exchange, response);
+        } else {
+            // Don't hold a handler thread for the duration of the delay.
+            mTimer.schedule(() -> send(exchange, response), latency, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void send(HttpExchange exchange, Response response) {
+        try {
+            byte[] body = response.mBody.getBytes(StandardCharsets.UTF_8);
+            if (body.length > 0) {
+                exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=\"utf-8\"");
+            }
+            exchange.sendResponseHeaders(response.mStatus, body.length == 0 ? -1 : body.length);
+            if (body.length > 0) {
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        } catch (IOException ioe) {
+            // Client went away; nothing to do.
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Apply a request to the state of the virtual Roku and produce the response.
+     */
+    private synchronized Response respond(String method, String path) {
+        final long now = System.currentTimeMillis();
+        completeInstalls(now);
+        String[] segments = path.split("/");
+        // segments[0] is the empty string before the leading slash.
+        String command = segments.length > 1 ? segments[1] : "";
+        String argument = segments.length > 2 ? segments[2] : null;
+        if ("POST".equals(method) && argument != null) {
+            switch (command) {
+                case "keypress":
+                    return keypress(argument, now);
+                case "launch":
+                    return launch(parseAppId(argument), now);
+                case "install":
+                    return install(parseAppId(argument));
+                default:
+                    return Response.NOT_FOUND;
+            }
+        }
+        if ("GET".equals(method) && "query".equals(command) && argument != null) {
+            switch (argument) {
+                case "apps":
+                    return new Response(200, appsXml());
+                case "active-app":
+                    return new Response(200, activeAppXml());
+                case "media-player":
+                    return new Response(200, mediaPlayerXml(now));
+                case "device-info":
+                    return new Response(200, deviceInfoXml());
+                default:
+                    return Response.NOT_FOUND;
+            }
+        }
+        return Response.NOT_FOUND;
+    }
+
+    private Response keypress(String key, long now) {
+        if (RokuRemoteKey.SELECT.toUrlString().equalsIgnoreCase(key) && mStorePageAppId > 0) {
+            // "Add Channel" is highlighted by default on the Channel Store page.
+            mPendingInstalls.put(mStorePageAppId, now + mInstallDurationMillis);
+            mStorePageAppId = -1;
+        } else if (RokuRemoteKey.HOME.toUrlString().equalsIgnoreCase(key)) {
+            mStorePageAppId = -1;
+            mActiveAppId = HOME_SCREEN_APP_ID;
+        }
+        return Response.OK;
+    }
+
+    private Response launch(int appId, long now) {
+        if (!mInstalled.containsKey(appId)) {
+            return Response.NOT_FOUND;
+        }
+        mStorePageAppId = -1;
+        mActiveAppId = appId;
+        mLaunchedAtMillis = now;
+        return Response.OK;
+    }
+
+    private Response install(int appId) {
+        if (!mCatalog.containsKey(appId) || mInstalled.containsKey(appId) || mPendingInstalls.containsKey(appId)) {
+            // Matches a real Roku: already installed, or no such app in the Channel Store.
+            return Response.SERVICE_UNAVAILABLE;
+        }
+        mStorePageAppId = appId;
+        mActiveAppId = HOME_SCREEN_APP_ID;
+        return Response.OK;
+    }
+
+    private void completeInstalls(long now) {
+        Iterator<Map.Entry<Integer, Long>> it = mPendingInstalls.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Long> e = it.next();
+            if (e.getValue() <= now) {
+                mInstalled.put(e.getKey(), mCatalog.get(e.getKey()));
+                it.remove();
+            }
+        }
+    }
+
+    private String appsXml() {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<apps>\n");
+        for (AppInfo app : mInstalled.values()) {
+            sb.append('\t');
+            appendApp(sb, app);
+            sb.append('\n');
+        }
+        return sb.append("</apps>\n").toString();
+    }
+
+    private String activeAppXml() {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<active-app>\n\t");
+        AppInfo app = mInstalled.get(mActiveAppId);
+        if (app == null) {
+            sb.append("<app>Roku</app>");
+        } else {
+            appendApp(sb, app);
+        }
+        return sb.append("\n</active-app>\n").toString();
+    }
+
+    private String mediaPlayerXml(long now) {
+        AppInfo app = mInstalled.get(mActiveAppId);
+        if (app == null) {
+            return "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<player error=\"false\" state=\"close\" />\n";
+        }
+        long elapsed = now - mLaunchedAtMillis;
+        String state = elapsed >= mPlaybackDelayMillis ? MediaPlayerState.STATE_PLAY : "open";
+        long position = Math.max(0, elapsed - mPlaybackDelayMillis);
+        return String.format("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>%n"
+                        + "<player error=\"false\" state=\"%s\">%n"
+                        + "\t<plugin bandwidth=\"10000000 bps\" id=\"%d\" name=\"%s\" />%n"
+                        + "\t<position>%d ms</position>%n"
+                        + "</player>%n",
+                state, app.getId(), escape(app.getName()), position);
+    }
+
+    private String deviceInfoXml() {
+        return String.format("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>%n"
+                        + "<device-info>%n"
+                        + "\t<udn>%s</udn>%n"
+                        + "\t<serial-number>%s</serial-number>%n"
+                        + "\t<vendor-name>Roku</vendor-name>%n"
+                        + "\t<model-name>Virtual Roku</model-name>%n"
+                        + "\t<user-device-name>%s</user-device-name>%n"
+                        + "</device-info>%n",
+                UUID.nameUUIDFromBytes(mSerialNumber.getBytes(StandardCharsets.UTF_8)), escape(mSerialNumber),
+                escape("Virtual Roku " + mSerialNumber));
+    }
+
+    private static void appendApp(StringBuilder sb, AppInfo app) {
+        sb.append("<app id=\"").append(app.getId()).append('"');
+        if (app.getType() != null) {
+            sb.append(" type=\"").append(escape(app.getType())).append('"');
+        }
+        if (app.getSubtype() != null) {
+            sb.append(" subtype=\"").append(escape(app.getSubtype())).append('"');
+        }
+        if (app.getVersion() != null) {
+            sb.append(" version=\"").append(escape(app.getVersion())).append('"');
+        }
+        sb.append('>').append(escape(app.getName() == null ? "" : app.getName())).append("</app>");
+    }
+
+    private static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static int parseAppId(String s) {
+        try {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    /**
+     * An HTTP status code and a (possibly empty) body.
+     */
+    private static class Response {
+
+        static final Response OK = new Response(200, "");
+        static final Response NOT_FOUND = new Response(404, "");
+        static final Response SERVICE_UNAVAILABLE = new Response(503, "");
+
+        private final int mStatus;
+        private final String mBody;
+
+        Response(int status, String body) {
+            mStatus = status;
+            mBody = body;
+        }
+    }
+
+}
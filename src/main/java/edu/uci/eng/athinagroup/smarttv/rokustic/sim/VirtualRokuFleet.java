@@ -0,0 +1,213 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.sim;
+
+import com.vmichalak.protocol.ssdp.Device;
+import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model.AppInfo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * <p>
+ *     Runs many {@link VirtualRoku}s in one JVM on a shared pair of thread pools, optionally advertised over SSDP by
+ *     an {@link SsdpResponder}. Intended for measuring the throughput (apps/hour) of the installer and the
+ *     orchestrator at scale, and for finding their bottlenecks, without a rack of Rokus.
+ * </p>
+ * <p>
+ *     Run {@link #main(String[])} to start a fleet from the command line, then point the tool's regular discovery at
+ *     it.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class VirtualRokuFleet implements Closeable {
+
+    /**
+     * The SSDP service type (search target) of a Roku's ECP server.
+     */
+    public static final String ROKU_SERVICE_TYPE = "roku:ecp";
+
+    /**
+     * The SSDP SERVER header sent by the virtual Rokus.
+     */
+    public static final String SERVER_HEADER = "Roku/9.2.0 UPnP/1.0 Roku/9.2.0 (virtual)";
+
+    private final List<VirtualRoku> mRokus = new CopyOnWriteArrayList<>();
+    private final ExecutorService mHandlers;
+    private final ScheduledExecutorService mTimer;
+    private SsdpResponder mSsdpResponder;
+
+    /**
+     * Create a new (empty) {@code VirtualRokuFleet}.
+     * @param handlerThreads Number of threads that handle requests for all virtual Rokus in the fleet.
+     */
+    public VirtualRokuFleet(int handlerThreads) {
+        mHandlers = Executors.newFixedThreadPool(handlerThreads, daemonThreads("virtual-roku-handler"));
+        mTimer = Executors.newScheduledThreadPool(1, daemonThreads("virtual-roku-timer"));
+    }
+
+    /**
+     * Start a virtual Roku and add it to the fleet. Configure the virtual Roku before calling this method.
+     *
+     * @param roku The virtual Roku.
+     * @return {@code roku}, for chaining.
+     * @throws IOException if the virtual Roku's server could not be started.
+     */
+    public VirtualRoku add(VirtualRoku roku) throws IOException {
+        roku.start(mHandlers, mTimer);
+        mRokus.add(roku);
+        return roku;
+    }
+
+    /**
+     * Advertise the fleet over SSDP.
+     *
+     * @param port The port to answer M-SEARCH requests on; {@link SsdpResponder#SSDP_PORT} for regular discovery.
+     * @throws IOException if the responder's socket could not be set up.
+     */
+    public synchronized void startSsdpResponder(int port) throws IOException {
+        if (mSsdpResponder == null) {
+            mSsdpResponder = new SsdpResponder(mRokus, port);
+        }
+    }
+
+    /**
+     * @return The virtual Rokus in the fleet.
+     */
+    public List<VirtualRoku> getRokus() {
+        return Collections.unmodifiableList(mRokus);
+    }
+
+    /**
+     * @return The virtual Rokus in the fleet as {@link Device}s, i.e. what SSDP discovery of the fleet would return.
+     */
+    public List<Device> getDevices() {
+        List<Device> devices = new ArrayList<>();
+        for (VirtualRoku roku : mRokus) {
+            devices.add(roku.toDevice());
+        }
+        return devices;
+    }
+
+    /**
+     * @return The total number of requests received by the virtual Rokus in the fleet.
+     */
+    public long getRequestCount() {
+        long count = 0;
+        for (VirtualRoku roku : mRokus) {
+            count += roku.getRequestCount();
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mSsdpResponder != null) {
+            mSsdpResponder.close();
+        }
+        for (VirtualRoku roku : mRokus) {
+            roku.close();
+        }
+        mHandlers.shutdownNow();
+        mTimer.shutdownNow();
+    }
+
+    /**
+     * Generate a deterministic catalog of made-up apps.
+     *
+     * @param size Number of apps in the catalog.
+     * @param seed Seed of the generator; the same seed yields the same catalog.
+     * @return The catalog, ordered by app ID.
+     */
+    public static List<AppInfo> generateCatalog(int size, long seed) {
+        Random rnd = new Random(seed);
+        SortedMap<Integer, AppInfo> catalog = new TreeMap<>();
+        while (catalog.size() < size) {
+            // Range of the IDs of real Channel Store apps.
+            int id = 1_000 + rnd.nextInt(650_000);
+            if (catalog.containsKey(id)) {
+                continue;
+            }
+            AppInfo app = new AppInfo();
+            app.setId(id);
+            app.setType("appl");
+            app.setVersion(String.format("%d.%d.%d", 1 + rnd.nextInt(12), rnd.nextInt(40), rnd.nextInt(1_000_000)));
+            app.setName("Virtual App " + id);
+            catalog.put(id, app);
+        }
+        return new ArrayList<>(catalog.values());
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Start a fleet of virtual Rokus and advertise it over SSDP until stdin is closed or the process is killed.
+     * Arguments: {@code <number of rokus> [catalog size] [installed apps per roku] [latency millis] [error rate]
+     * [install duration millis]}.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: VirtualRokuFleet <number of rokus> [catalog size] [installed apps per roku] "
+                    + "[latency millis] [error rate] [install duration millis]");
+            return;
+        }
+        int count = Integer.parseInt(args[0]);
+        int catalogSize = args.length > 1 ? Integer.parseInt(args[1]) : 1_000;
+        int installedPerRoku = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        long latency = args.length > 3 ? Long.parseLong(args[3]) : 50;
+        double errorRate = args.length > 4 ? Double.parseDouble(args[4]) : 0.0;
+        long installDuration = args.length > 5 ? Long.parseLong(args[5]) : VirtualRoku.DEFAULT_INSTALL_DURATION_MILLIS;
+
+        List<AppInfo> catalog = generateCatalog(catalogSize, 42);
+        VirtualRokuFleet fleet = new VirtualRokuFleet(Math.max(4, Runtime.getRuntime().availableProcessors()));
+        for (int i = 0; i < count; i++) {
+            VirtualRoku roku = new VirtualRoku(String.format("VIRT%08d", i));
+            for (int j = 0; j < catalog.size(); j++) {
+                if (j < installedPerRoku) {
+                    roku.addInstalledApp(catalog.get(j));
+                } else {
+                    roku.addCatalogApp(catalog.get(j));
+                }
+            }
+            roku.setLatencyMillis(latency / 2, latency + latency / 2);
+            roku.setErrorRate(errorRate);
+            roku.setInstallDurationMillis(installDuration);
+            fleet.add(roku);
+        }
+        fleet.startSsdpResponder(SsdpResponder.SSDP_PORT);
+        System.out.printf("Started %d virtual Rokus (%s ... ); answering SSDP searches for %s.", count,
+                fleet.getRokus().isEmpty() ? "-" : fleet.getRokus().get(0).getDescriptionUrl(), ROKU_SERVICE_TYPE);
+        System.out.println();
+        System.out.println("Close stdin (Ctrl-D) to stop.");
+        while (System.in.read() != -1) {
+            // Run until stdin is closed.
+        }
+        System.out.printf("Served %d requests.", fleet.getRequestCount());
+        System.out.println();
+        fleet.close();
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.capture;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link PcapIndex}.
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class PcapIndexTest {
+
+    private static final int PACKET_LENGTH = 60;
+
+    @Rule
+    public TemporaryFolder mTmp = new TemporaryFolder();
+
+    @Test
+    public void buildIndexesEveryPacket() throws IOException {
+        File pcap = writePcap(ascendingSeconds(1000, 3 * PcapIndex.BLOCK_PACKETS + 7));
+        PcapIndex index = PcapIndex.open(pcap);
+        assertEquals(3 * PcapIndex.BLOCK_PACKETS + 7, index.getPacketCount());
+        assertEquals(1000_000_000L, index.getFirstMicros());
+        assertEquals((1000L + 3 * PcapIndex.BLOCK_PACKETS + 6) * 1_000_000L, index.getLastMicros());
+        assertTrue(PcapIndex.indexFileFor(pcap).isFile());
+    }
+
+    @Test
+    public void readReportsExactlyThePacketsOfTheRange() throws IOException {
+        File pcap = writePcap(ascendingSeconds(1000, 1000));
+        List<Integer> packets = read(PcapIndex.open(pcap), 1300, 1600);
+        assertEquals(300, packets.size());
+        for (int i = 0; i < packets.size(); i++) {
+            assertEquals(300 + i, (int) packets.get(i));
+        }
+    }
+
+    @Test
+    public void readOutsideOfTheCaptureReportsNothing() throws IOException {
+        PcapIndex index = PcapIndex.open(writePcap(ascendingSeconds(1000, 600)));
+        assertTrue(read(index, 0, 1000).isEmpty());
+        assertTrue(read(index, 1600, 5000).isEmpty());
+    }
+
+    @Test
+    public void readHandlesUnorderedTimestamps() throws IOException {
+        // Packets of consecutive blocks interleave in time, and one late packet belongs far back in time.
+        long[] seconds = new long[4 * PcapIndex.BLOCK_PACKETS];
+        for (int i = 0; i < seconds.length; i++) {
+            seconds[i] = 1000 + (i % 2 == 0 ? i : i - PcapIndex.BLOCK_PACKETS);
+        }
+        seconds[seconds.length - 1] = 1001;
+        PcapIndex index = PcapIndex.open(writePcap(seconds));
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < seconds.length; i++) {
+            if (seconds[i] >= 1000 && seconds[i] < 1010) {
+                expected.add(i);
+            }
+        }
+        assertEquals(expected, read(index, 1000, 1010));
+    }
+
+    @Test
+    public void sliceCopiesTheRangeToANewPcapFile() throws IOException {
+        PcapIndex index = PcapIndex.open(writePcap(ascendingSeconds(1000, 500)));
+        File out = mTmp.newFile("slice.pcap");
+        assertEquals(50, index.slice(Instant.ofEpochSecond(1100), Instant.ofEpochSecond(1150), out));
+        List<Integer> packets = new ArrayList<>();
+        try (PcapFileReader reader = PcapFileReader.open(out)) {
+            assertEquals(PACKET_LENGTH, reader.getSnapshotLength());
+            reader.readAll((buf, offset, capLen, origLen, tsSec, tsNanos) -> packets.add(id(buf, offset)));
+        }
+        assertEquals(50, packets.size());
+        assertEquals(100, (int) packets.get(0));
+        assertEquals(149, (int) packets.get(49));
+    }
+
+    @Test
+    public void truncatedTailIsLeftOut() throws IOException {
+        File pcap = writePcap(ascendingSeconds(1000, 10));
+        try (RandomAccessFile raf = new RandomAccessFile(pcap, "rw")) {
+            raf.setLength(raf.length() - 50);
+        }
+        PcapIndex index = PcapIndex.open(pcap);
+        assertEquals(9, index.getPacketCount());
+        assertEquals(9, read(index, 1000, 2000).size());
+        assertEquals(9, index.slice(Instant.ofEpochSecond(1000), Instant.ofEpochSecond(2000),
+                mTmp.newFile("slice.pcap")));
+    }
+
+    @Test
+    public void indexIsRebuiltWhenThePcapFileChanges() throws IOException {
+        File pcap = writePcap(ascendingSeconds(1000, 10));
+        assertEquals(10, PcapIndex.open(pcap).getPacketCount());
+        File other = writePcap(ascendingSeconds(1000, 20));
+        assertTrue(other.renameTo(pcap));
+        assertEquals(20, PcapIndex.open(pcap).getPacketCount());
+    }
+
+    private static long[] ascendingSeconds(long first, int count) {
+        long[] seconds = new long[count];
+        for (int i = 0; i < count; i++) {
+            seconds[i] = first + i;
+        }
+        return seconds;
+    }
+
+    /**
+     * Write a pcap file with one packet per element of {@code seconds}, each holding its index in its first bytes.
+     */
+    private File writePcap(long[] seconds) throws IOException {
+        File file = mTmp.newFile();
+        byte[] packet = new byte[PACKET_LENGTH];
+        try (PcapFileWriter writer = new PcapFileWriter(file, PACKET_LENGTH, 1)) {
+            for (int i = 0; i < seconds.length; i++) {
+                packet[0] = (byte) (i >>> 8);
+                packet[1] = (byte) i;
+                writer.write(packet, 0, PACKET_LENGTH, PACKET_LENGTH, seconds[i], 0);
+            }
+        }
+        return file;
+    }
+
+    private static List<Integer> read(PcapIndex index, long fromSeconds, long toSeconds) throws IOException {
+        List<Integer> packets = new ArrayList<>();
+        index.read(fromSeconds * 1_000_000L, toSeconds * 1_000_000L,
+                (buf, offset, capLen, origLen, tsSec, tsNanos) -> packets.add(id(buf, offset)));
+        return packets;
+    }
+
+    private static int id(byte[] buf, int offset) {
+        return (buf[offset] & 0xFF) << 8 | buf[offset + 1] & 0xFF;
+    }
+
+}
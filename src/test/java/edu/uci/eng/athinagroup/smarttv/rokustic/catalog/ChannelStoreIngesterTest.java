@@ -0,0 +1,168 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.catalog;
+
+import edu.uci.eng.athinagroup.smarttv.rokustic.sim.VirtualChannelStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link ChannelStoreIngester} against a {@link VirtualChannelStore}.
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class ChannelStoreIngesterTest {
+
+    /**
+     * Channels in category {@code a}: more than one page.
+     */
+    private static final int CATEGORY_A_CHANNELS = ChannelStoreIngester.PAGE_SIZE + 6;
+
+    /**
+     * Requests of one ingest: the category list, two pages of category {@code a}, one page of category {@code b}, and
+     * the details of every channel.
+     */
+    private static final int REQUESTS_PER_INGEST = 1 + 2 + 1 + CATEGORY_A_CHANNELS + 1;
+
+    @Rule
+    public TemporaryFolder mTmp = new TemporaryFolder();
+
+    private final ExecutorService mHandlers = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService mTimer = Executors.newSingleThreadScheduledExecutor();
+    private final VirtualChannelStore mStore = new VirtualChannelStore();
+    private ChannelStoreIngester mIngester;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 1; i <= CATEGORY_A_CHANNELS; i++) {
+            mStore.addChannel("a", "curated", Integer.toString(i), "Channel " + i, "0");
+        }
+        // Listed by both categories.
+        mStore.addChannel("b", "tag", "2", "Channel 2", "0");
+        mStore.addChannel("b", "tag", "100", "Channel 100", "4.99");
+        mStore.start(mHandlers, mTimer);
+        mIngester = new ChannelStoreIngester(mStore.getBaseUrl(), new ResponseCache(mTmp.newFolder("cache")), 4);
+    }
+
+    @After
+    public void tearDown() {
+        mIngester.shutdown();
+        mStore.close();
+        mHandlers.shutdownNow();
+        mTimer.shutdownNow();
+    }
+
+    @Test
+    public void ingestDownloadsTheCatalog() throws IOException, InterruptedException {
+        File out = mTmp.newFolder("out");
+        ChannelStoreIngester.Result result = mIngester.ingest(out);
+        assertEquals(2, result.getCategories());
+        assertEquals(CATEGORY_A_CHANNELS + 1, result.getChannels());
+        assertEquals(CATEGORY_A_CHANNELS + 1, result.getDetails());
+        assertEquals(0, result.getFailedCategories());
+        assertEquals(0, result.getFailedChannels());
+        assertEquals(REQUESTS_PER_INGEST, result.getRequests());
+        assertEquals(REQUESTS_PER_INGEST, result.getDownloaded());
+        assertEquals(0, result.getNotModified());
+        assertEquals(0, result.getRetries());
+
+        List<String> expectedIds = new ArrayList<>();
+        for (int i = 1; i <= CATEGORY_A_CHANNELS; i++) {
+            expectedIds.add(Integer.toString(i));
+        }
+        expectedIds.add("100");
+        // Sorted numerically.
+        assertEquals(expectedIds, lines(out, ChannelStoreIngester.CHANNEL_IDS_FILENAME));
+        // A header, and a row per listing of a channel.
+        assertEquals(1 + CATEGORY_A_CHANNELS + 2, lines(out, ChannelStoreIngester.CATEGORIES_FILENAME).size());
+        assertEquals(CATEGORY_A_CHANNELS + 1, lines(out, ChannelStoreIngester.DETAILS_FILENAME).size());
+    }
+
+    @Test
+    public void repeatIngestRevalidatesCachedResponses() throws IOException, InterruptedException {
+        mIngester.ingest(mTmp.newFolder("out1"));
+        ChannelStoreIngester.Result result = mIngester.ingest(mTmp.newFolder("out2"));
+        assertEquals(REQUESTS_PER_INGEST, result.getRequests());
+        assertEquals(REQUESTS_PER_INGEST, result.getNotModified());
+        assertEquals(0, result.getDownloaded());
+        assertEquals(REQUESTS_PER_INGEST, mStore.getNotModifiedCount());
+        // Cached bodies are written like downloaded ones.
+        assertEquals(CATEGORY_A_CHANNELS + 1, result.getDetails());
+
+        // Only the details of the changed channel are downloaded again.
+        mStore.touchChannel("7");
+        result = mIngester.ingest(mTmp.newFolder("out3"));
+        assertEquals(1, result.getDownloaded());
+        assertEquals(REQUESTS_PER_INGEST - 1, result.getNotModified());
+    }
+
+    @Test
+    public void repeatIngestRevalidatesWithLastModifiedOnly() throws IOException, InterruptedException {
+        mStore.setValidators(false, true);
+        mIngester.ingest(mTmp.newFolder("out1"));
+        ChannelStoreIngester.Result result = mIngester.ingest(mTmp.newFolder("out2"));
+        assertEquals(REQUESTS_PER_INGEST, result.getNotModified());
+        assertEquals(0, result.getDownloaded());
+    }
+
+    @Test
+    public void transientFailuresAreRetried() throws IOException, InterruptedException {
+        // The first request (the category list) fails twice, and succeeds on its last attempt.
+        mStore.failNextRequests(2, 503);
+        ChannelStoreIngester.Result result = mIngester.ingest(mTmp.newFolder("out1"));
+        assertEquals(2, result.getRetries());
+        assertEquals(REQUESTS_PER_INGEST + 2, result.getRequests());
+        assertEquals(CATEGORY_A_CHANNELS + 1, result.getDetails());
+
+        mStore.failNextRequests(1, 429);
+        result = mIngester.ingest(mTmp.newFolder("out2"));
+        assertEquals(1, result.getRetries());
+        assertEquals(CATEGORY_A_CHANNELS + 1, result.getDetails());
+    }
+
+    @Test
+    public void ingestFailsAfterTheLastAttempt() throws InterruptedException {
+        mStore.failNextRequests(3, 503);
+        try {
+            mIngester.ingest(mTmp.newFolder("out"));
+            fail("expected an IOException");
+        } catch (IOException ioe) {
+            assertTrue(ioe.getMessage(), ioe.getMessage().startsWith("HTTP 503 for "));
+        }
+        assertEquals(3, mStore.getRequestCount());
+    }
+
+    private static List<String> lines(File dir, String filename) throws IOException {
+        return Files.readAllLines(new File(dir, filename).toPath(), StandardCharsets.UTF_8);
+    }
+
+}
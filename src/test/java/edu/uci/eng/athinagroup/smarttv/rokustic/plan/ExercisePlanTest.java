@@ -0,0 +1,221 @@
+/*
+ * Copyright 2020 Janus Varmarken and the UCI Networking Group
+ * <https://athinagroup.eng.uci.edu>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.uci.eng.athinagroup.smarttv.rokustic.plan;
+
+import edu.uci.eng.athinagroup.smarttv.rokustic.ecp.model.RokuRemoteKey;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link ExercisePlan} and {@link ExercisePlanLibrary}.
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class ExercisePlanTest {
+
+    @Rule
+    public TemporaryFolder mTmp = new TemporaryFolder();
+
+    @Test
+    public void compilesEachStep() throws ParseException {
+        ExercisePlan plan = compile(
+                "# A comment line.",
+                "apps 12 2285",
+                "",
+                "launch",
+                "key SELECT   # A trailing comment.",
+                "key instantreplay",
+                "wait 1500ms",
+                "await playback 10s");
+        assertEquals("test", plan.getName());
+        assertEquals(new LinkedHashSet<>(Arrays.asList(12, 2285)), plan.getAppIds());
+        assertEquals(5, plan.size());
+
+        assertEquals(ExercisePlan.Op.LAUNCH, plan.getOp(0));
+        assertEquals(4, plan.getLineNumber(0));
+        assertEquals("launch #1", plan.getLabel(0));
+
+        assertEquals(ExercisePlan.Op.KEY, plan.getOp(1));
+        assertEquals(RokuRemoteKey.SELECT, plan.getKey(1));
+        assertEquals("SELECT #1", plan.getLabel(1));
+        // Keys are also accepted by the name used in ECP requests.
+        assertEquals(RokuRemoteKey.INSTANT_REPLAY, plan.getKey(2));
+
+        assertEquals(ExercisePlan.Op.WAIT, plan.getOp(3));
+        assertEquals(1500, plan.getMillis(3));
+
+        assertEquals(ExercisePlan.Op.AWAIT_PLAYBACK, plan.getOp(4));
+        assertEquals(10_000, plan.getMillis(4));
+        assertEquals(8, plan.getLineNumber(4));
+    }
+
+    @Test
+    public void parsesDurations() throws ParseException {
+        ExercisePlan plan = compile("wait 250ms", "wait 3s", "wait 5m", "wait 1h");
+        assertEquals(250, plan.getMillis(0));
+        assertEquals(3_000, plan.getMillis(1));
+        assertEquals(300_000, plan.getMillis(2));
+        assertEquals(3_600_000, plan.getMillis(3));
+    }
+
+    @Test
+    public void awaitDefaultsToTheBuiltInTimeouts() throws ParseException {
+        ExercisePlan plan = compile("await app-loaded", "await home-screen 2s", "await app-loaded 1m 0ms");
+        assertEquals(ExercisePlan.Op.AWAIT_APP_LOADED, plan.getOp(0));
+        assertEquals(ExercisePlan.DEFAULT_APP_LOAD_TIMEOUT_MILLIS, plan.getMillis(0));
+        assertEquals(ExercisePlan.DEFAULT_APP_SETTLE_MILLIS, plan.getSettleMillis(0));
+        assertEquals(ExercisePlan.Op.AWAIT_HOME_SCREEN, plan.getOp(1));
+        assertEquals(2_000, plan.getMillis(1));
+        assertEquals(ExercisePlan.DEFAULT_HOME_SCREEN_SETTLE_MILLIS, plan.getSettleMillis(1));
+        assertEquals(60_000, plan.getMillis(2));
+        assertEquals(0, plan.getSettleMillis(2));
+    }
+
+    @Test
+    public void relaunchExpandsToGoHomeAndLaunchAgain() throws ParseException {
+        ExercisePlan plan = compile("launch", "relaunch");
+        assertEquals(5, plan.size());
+        assertEquals(ExercisePlan.Op.KEY, plan.getOp(1));
+        assertEquals(RokuRemoteKey.HOME, plan.getKey(1));
+        assertEquals(ExercisePlan.Op.AWAIT_HOME_SCREEN, plan.getOp(2));
+        assertEquals(ExercisePlan.Op.LAUNCH, plan.getOp(3));
+        assertEquals(ExercisePlan.Op.AWAIT_APP_LOADED, plan.getOp(4));
+        for (int step = 1; step < plan.size(); step++) {
+            assertEquals(2, plan.getLineNumber(step));
+        }
+    }
+
+    @Test
+    public void failedGuardSkipsTheWholeLine() throws ParseException {
+        ExercisePlan plan = compile("launch", "when not-playing relaunch", "when playing key SELECT", "key HOME");
+        assertEquals(ExercisePlan.Condition.ALWAYS, plan.getCondition(0));
+        assertEquals(ExercisePlan.Condition.NOT_PLAYING, plan.getCondition(1));
+        // The guard is on the first step of the expanded macro, and skips all of its steps.
+        assertEquals(5, plan.getSkipTo(1));
+        assertEquals(ExercisePlan.Condition.ALWAYS, plan.getCondition(2));
+        assertEquals(ExercisePlan.Condition.PLAYING, plan.getCondition(5));
+        assertEquals(6, plan.getSkipTo(5));
+    }
+
+    @Test
+    public void errorOffsetIsTheLineNumber() {
+        assertParseError("unknown step 'jump'", 3, "launch", "", "jump");
+        assertParseError("unknown key 'MENU'", 2, "launch", "key MENU");
+        assertParseError("'key' takes 1 argument(s), got 2", 1, "key UP DOWN");
+        assertParseError("'await' takes 1-3 argument(s), got 4", 2, "launch", "await app-loaded 1s 1s 1s");
+        assertParseError("'await' requires a state", 1, "await");
+        assertParseError("unknown state 'ready'", 1, "await ready");
+        assertParseError("malformed duration '5'", 2, "# Missing unit.", "wait 5");
+        assertParseError("malformed duration '-1s'", 1, "wait -1s");
+        assertParseError("duration out of range '99999999999999999999ms'", 1, "wait 99999999999999999999ms");
+        assertParseError("duration out of range '9999999999999999h'", 1, "wait 9999999999999999h");
+        assertParseError("'apps' requires at least one app ID", 1, "apps", "launch");
+        assertParseError("malformed app ID 'x'", 1, "apps 1 x", "launch");
+        assertParseError("'when' requires a condition and a step", 1, "when playing");
+        assertParseError("unknown condition 'always'", 1, "when always launch");
+        assertParseError("'when' cannot be nested", 1, "when playing when home-screen launch");
+    }
+
+    @Test
+    public void planWithoutStepsIsRejected() {
+        assertParseError("plan 'test' has no steps", 0, "# Only comments.", "apps 12");
+    }
+
+    @Test
+    public void loadNamesThePlanAfterTheFile() throws IOException, ParseException {
+        File file = mTmp.newFile("games.plan");
+        Files.write(file.toPath(), Arrays.asList("apps 7", "launch"), StandardCharsets.UTF_8);
+        ExercisePlan plan = ExercisePlan.load(file);
+        assertEquals("games", plan.getName());
+        assertEquals(Collections.singleton(7), plan.getAppIds());
+    }
+
+    @Test
+    public void libraryChoosesThePlanThatListsTheApp() throws IOException, ParseException {
+        File dir = mTmp.newFolder("plans");
+        Files.write(new File(dir, "games.plan").toPath(), Arrays.asList("apps 7 8", "launch"), StandardCharsets.UTF_8);
+        Files.write(new File(dir, "notes.txt").toPath(), Collections.singletonList("not a plan"),
+                StandardCharsets.UTF_8);
+        ExercisePlanLibrary library = ExercisePlanLibrary.load(dir);
+        assertEquals(1, library.getPlans().size());
+        assertEquals("games", library.planFor(8).getName());
+        // Unlisted apps get the built-in default plan, which is compiled once.
+        assertSame(ExercisePlanLibrary.builtIn().getDefaultPlan(), library.planFor(9));
+        assertSame(library.getDefaultPlan(), ExercisePlanLibrary.builtIn().getDefaultPlan());
+    }
+
+    @Test
+    public void libraryRejectsAnAppListedByTwoPlans() throws IOException {
+        File dir = mTmp.newFolder("plans");
+        Files.write(new File(dir, "a.plan").toPath(), Arrays.asList("apps 7", "launch"), StandardCharsets.UTF_8);
+        Files.write(new File(dir, "b.plan").toPath(), Arrays.asList("apps 7", "launch"), StandardCharsets.UTF_8);
+        try {
+            ExercisePlanLibrary.load(dir);
+            fail("expected a ParseException");
+        } catch (ParseException pe) {
+            assertEquals("app 7 is listed by both plan 'a' and plan 'b'", pe.getMessage());
+        }
+    }
+
+    @Test
+    public void libraryNamesTheFileOfAMalformedPlan() throws IOException {
+        File dir = mTmp.newFolder("plans");
+        Files.write(new File(dir, "bad.plan").toPath(), Arrays.asList("launch", "key MENU"), StandardCharsets.UTF_8);
+        try {
+            ExercisePlanLibrary.load(dir);
+            fail("expected a ParseException");
+        } catch (ParseException pe) {
+            assertEquals("bad.plan, line 2: unknown key 'MENU'", pe.getMessage());
+            assertEquals(2, pe.getErrorOffset());
+        }
+    }
+
+    @Test
+    public void builtInDefaultPlanCompiles() throws IOException {
+        ExercisePlan plan = ExercisePlanLibrary.builtIn().getDefaultPlan();
+        assertEquals(ExercisePlanLibrary.DEFAULT_PLAN_NAME, plan.getName());
+        assertTrue(plan.getAppIds().isEmpty());
+        assertEquals(ExercisePlan.Op.LAUNCH, plan.getOp(0));
+    }
+
+    private static ExercisePlan compile(String... lines) throws ParseException {
+        return ExercisePlan.compile("test", Arrays.asList(lines));
+    }
+
+    private static void assertParseError(String message, int errorOffset, String... lines) {
+        try {
+            compile(lines);
+            fail("expected a ParseException for " + Arrays.toString(lines));
+        } catch (ParseException pe) {
+            assertEquals(message, pe.getMessage());
+            assertEquals(message, errorOffset, pe.getErrorOffset());
+        }
+    }
+
+}